@@ -0,0 +1,24 @@
+#version 330
+
+layout (location=0) in vec3 position;
+layout (location=3) in mat4 modelViewInstancedMatrix;
+#ifdef PICKING
+// The w component holds the id of the instance
+layout (location=8) in vec4 materialParamsInstanced;
+
+flat out float outEntityId;
+#endif
+
+uniform mat4 projectionMatrix;
+
+// Same transform as arena_vertex.vs, so the color pass finds exactly the depth written here
+invariant gl_Position;
+
+void main()
+{
+    vec4 mvPos = modelViewInstancedMatrix * vec4(position, 1.0);
+    gl_Position = projectionMatrix * mvPos;
+#ifdef PICKING
+    outEntityId = materialParamsInstanced.w;
+#endif
+}
\ No newline at end of file
@@ -0,0 +1,219 @@
+#version 330
+
+// Size of the light cluster grid, has to match LightClusters
+const int CLUSTER_X = 16;
+const int CLUSTER_Y = 9;
+const int CLUSTER_Z = 24;
+// Number of shadow cascades, has to match ShadowCascades
+const int CASCADE_COUNT = 3;
+
+in vec2 outTexCoord;
+in vec3 mvVertexNormal;
+in vec3 mvVertexPos;
+// Per-instance material: uv region, (texture layer, reflectance, useColor, unused) and color
+flat in vec4 outUvRect;
+flat in vec4 outMaterialParams;
+flat in vec3 outColor;
+
+out vec4 fragColor;
+
+const int TEXTURE_NONE = 0;
+const int TEXTURE_2D = 1;
+const int TEXTURE_ARRAY = 2;
+
+uniform sampler2D texture_sampler;
+uniform sampler2DArray texture_array_sampler;
+uniform int textureMode;
+
+struct Attenuation
+{
+    float constant;
+    float linear;
+    float exponent;
+};
+
+struct PointLight
+{
+    vec3 color;
+    // Light position is assumed to be in view coordinates
+    vec3 position;
+    float intensity;
+    Attenuation att;
+};
+
+struct DirectionalLight
+{
+	vec3 color;
+	vec3 direction;
+	float intensity;
+};
+
+struct SpotLight
+{
+	PointLight pointLight;
+	vec3 coneDirection;
+	float cutOff;
+};
+
+uniform vec3 ambientLight;
+uniform float specularPower;
+// Per cluster offset into the index list and point count | spot count << 16
+uniform usamplerBuffer clusterGrid;
+uniform usamplerBuffer clusterLightIndices;
+// Four texels per light: (position, intensity), (color, constant), (linear, exponent, cutOff, 0), (cone direction, 0)
+uniform samplerBuffer clusterLightData;
+// Clusters per pixel, and the factors turning the log of the view depth into a depth slice
+uniform vec2 clusterTileScale;
+uniform vec2 clusterDepthParams;
+uniform DirectionalLight directionalLight;
+uniform vec3 camera_pos;
+uniform sampler2DArrayShadow shadowMap;
+// Camera view space to shadow map coordinates, and the far view distance of every cascade
+uniform mat4 shadowMatrices[CASCADE_COUNT];
+uniform float cascadeSplits[CASCADE_COUNT];
+
+float reflectance;
+
+vec4 calcLightColor(vec3 light_color, float light_intensity, vec3 position, vec3 to_light_dir, vec3 normal)
+{
+    vec4 diffuseColor = vec4(0, 0, 0, 0);
+    vec4 specColor = vec4(0, 0, 0, 0);
+
+    // Diffuse Light
+    float diffuseFactor = max(dot(normal, to_light_dir), 0.0);
+    diffuseColor = vec4(light_color, 1.0) * light_intensity * diffuseFactor;
+
+    // Specular Light
+    vec3 camera_direction = normalize(camera_pos - position);
+    vec3 from_light_dir = -to_light_dir;
+    vec3 reflected_light = normalize(reflect(from_light_dir , normal));
+    float specularFactor = max( dot(camera_direction, reflected_light), 0.0);
+    specularFactor = pow(specularFactor, specularPower);
+    specColor = light_intensity  * specularFactor * reflectance * vec4(light_color, 1.0);
+
+    return (diffuseColor + specColor);
+}
+
+vec4 calcPointLight(PointLight light, vec3 position, vec3 normal)
+{
+    vec3 light_direction = light.position - position;
+    vec3 to_light_dir  = normalize(light_direction);
+    vec4 light_color = calcLightColor(light.color, light.intensity, position, to_light_dir, normal);
+
+    // Apply Attenuation
+    float distance = length(light_direction);
+    float attenuationInv = light.att.constant + light.att.linear * distance + light.att.exponent * distance * distance;
+    return light_color / attenuationInv;
+}
+
+vec4 calcSpotLight(SpotLight light, vec3 position, vec3 normal)
+{
+    vec3 light_direction = light.pointLight.position - position;
+    vec3 to_light_dir  = normalize(light_direction);
+    vec3 from_light_dir  = -to_light_dir;
+    float spot_alfa = dot(from_light_dir, normalize(light.coneDirection));
+    
+    vec4 color = vec4(0, 0, 0, 0);
+    
+    if ( spot_alfa > light.cutOff ) 
+    {
+        color = calcPointLight(light.pointLight, position, normal);
+        color *= (1.0 - (1.0 - spot_alfa)/(1.0 - light.cutOff));
+    }
+    return color;    
+}
+
+PointLight fetchPointLight(int index)
+{
+    vec4 posIntensity = texelFetch(clusterLightData, index * 4);
+    vec4 colorConstant = texelFetch(clusterLightData, index * 4 + 1);
+    vec4 params = texelFetch(clusterLightData, index * 4 + 2);
+    return PointLight(colorConstant.rgb, posIntensity.xyz, posIntensity.w,
+        Attenuation(colorConstant.w, params.x, params.y));
+}
+
+SpotLight fetchSpotLight(int index)
+{
+    float cutOff = texelFetch(clusterLightData, index * 4 + 2).z;
+    vec3 coneDirection = texelFetch(clusterLightData, index * 4 + 3).xyz;
+    return SpotLight(fetchPointLight(index), coneDirection, cutOff);
+}
+
+int clusterIndex(vec3 position)
+{
+    ivec2 tile = min(ivec2(gl_FragCoord.xy * clusterTileScale), ivec2(CLUSTER_X - 1, CLUSTER_Y - 1));
+    int slice = int(max(log(-position.z) * clusterDepthParams.x - clusterDepthParams.y, 0.0));
+    slice = min(slice, CLUSTER_Z - 1);
+    return (slice * CLUSTER_Y + tile.y) * CLUSTER_X + tile.x;
+}
+
+float calcShadow(vec3 position)
+{
+    int cascade = 0;
+    while ( cascade < CASCADE_COUNT && -position.z > cascadeSplits[cascade] )
+    {
+        cascade++;
+    }
+    if ( cascade == CASCADE_COUNT )
+    {
+        // Past the shadow distance
+        return 1.0;
+    }
+    vec4 coord = shadowMatrices[cascade] * vec4(position, 1.0);
+    vec2 texelSize = 1.0 / vec2(textureSize(shadowMap, 0).xy);
+    // 3x3 percentage closer filter, every lookup compares and blends 2x2 texels on its own
+    float lit = 0.0;
+    for (int y=-1; y<=1; y++)
+    {
+        for (int x=-1; x<=1; x++)
+        {
+            lit += texture(shadowMap, vec4(coord.xy + vec2(x, y) * texelSize, cascade, coord.z));
+        }
+    }
+    return lit / 9.0;
+}
+
+vec4 calcDirectionalLight(DirectionalLight light, vec3 position, vec3 normal)
+{
+    return calcLightColor(light.color, light.intensity, position, normalize(light.direction), normal) * calcShadow(position);
+}
+
+void main()
+{
+    reflectance = outMaterialParams.y;
+
+    vec4 baseColor; 
+    vec2 texCoord = outUvRect.xy + outTexCoord * outUvRect.zw;
+    if ( outMaterialParams.z > 0.5 || textureMode == TEXTURE_NONE )
+    {
+        baseColor = vec4(outColor, 1);
+    }
+    else if ( textureMode == TEXTURE_ARRAY )
+    {
+        baseColor = texture(texture_array_sampler, vec3(texCoord, outMaterialParams.x));
+    }
+    else
+    {
+        baseColor = texture(texture_sampler, texCoord);
+    }
+    vec4 totalLight = vec4(ambientLight, 1.0);
+    totalLight += calcDirectionalLight(directionalLight, mvVertexPos, mvVertexNormal);
+
+    // Only the lights reaching the cluster of this fragment, point lights first
+    uvec2 cluster = texelFetch(clusterGrid, clusterIndex(mvVertexPos)).xy;
+    int offset = int(cluster.x);
+    int pointCount = int(cluster.y & 0xFFFFu);
+    int spotCount = int(cluster.y >> 16);
+    for (int i=0; i<pointCount; i++)
+    {
+        int index = int(texelFetch(clusterLightIndices, offset + i).r);
+        totalLight += calcPointLight(fetchPointLight(index), mvVertexPos, mvVertexNormal);
+    }
+    for (int i=0; i<spotCount; i++)
+    {
+        int index = int(texelFetch(clusterLightIndices, offset + pointCount + i).r);
+        totalLight += calcSpotLight(fetchSpotLight(index), mvVertexPos, mvVertexNormal);
+    }
+    
+    fragColor = baseColor * totalLight;
+}
\ No newline at end of file
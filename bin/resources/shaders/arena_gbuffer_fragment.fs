@@ -0,0 +1,38 @@
+#version 330
+
+in vec2 outTexCoord;
+in vec3 mvVertexNormal;
+in vec3 mvVertexPos;
+// Per-instance material: uv region, (texture layer, reflectance, useColor, unused) and color
+flat in vec4 outUvRect;
+flat in vec4 outMaterialParams;
+flat in vec3 outColor;
+
+layout (location=0) out vec4 albedoOut;
+layout (location=1) out vec4 normalOut;
+
+const int TEXTURE_NONE = 0;
+const int TEXTURE_2D = 1;
+const int TEXTURE_ARRAY = 2;
+
+uniform sampler2D texture_sampler;
+uniform sampler2DArray texture_array_sampler;
+uniform int textureMode;
+
+void main()
+{
+    vec2 texCoord = outUvRect.xy + outTexCoord * outUvRect.zw;
+    if ( outMaterialParams.z > 0.5 || textureMode == TEXTURE_NONE )
+    {
+        albedoOut = vec4(outColor, 1);
+    }
+    else if ( textureMode == TEXTURE_ARRAY )
+    {
+        albedoOut = texture(texture_array_sampler, vec3(texCoord, outMaterialParams.x));
+    }
+    else
+    {
+        albedoOut = texture(texture_sampler, texCoord);
+    }
+    normalOut = vec4(normalize(mvVertexNormal), outMaterialParams.y);
+}
\ No newline at end of file
@@ -0,0 +1,33 @@
+#version 330
+
+layout (location=0) in vec3 position;
+layout (location=1) in vec2 texCoord;
+layout (location=2) in vec3 vertexNormal;
+layout (location=3) in mat4 modelViewInstancedMatrix;
+layout (location=7) in vec4 uvRectInstanced;
+layout (location=8) in vec4 materialParamsInstanced;
+layout (location=9) in vec3 colorInstanced;
+
+out vec2 outTexCoord;
+out vec3 mvVertexNormal;
+out vec3 mvVertexPos;
+flat out vec4 outUvRect;
+flat out vec4 outMaterialParams;
+flat out vec3 outColor;
+
+uniform mat4 projectionMatrix;
+
+// The depth pre-pass shaders have to produce the same positions
+invariant gl_Position;
+
+void main()
+{
+    vec4 mvPos = modelViewInstancedMatrix * vec4(position, 1.0);
+    gl_Position = projectionMatrix * mvPos;
+    outTexCoord = texCoord;
+    mvVertexNormal = normalize(modelViewInstancedMatrix * vec4(vertexNormal, 0.0)).xyz;
+    mvVertexPos = mvPos.xyz;
+    outUvRect = uvRectInstanced;
+    outMaterialParams = materialParamsInstanced;
+    outColor = colorInstanced;
+}
\ No newline at end of file
@@ -0,0 +1,69 @@
+#version 330
+
+flat in vec4 outPositionRange;
+flat in vec4 outColorIntensity;
+flat in vec4 outAttenuationCutOff;
+flat in vec4 outConeDirection;
+
+out vec4 fragColor;
+
+uniform sampler2D albedo_sampler;
+uniform sampler2D normal_sampler;
+uniform sampler2D depth_sampler;
+uniform mat4 invProjectionMatrix;
+uniform vec2 screenSize;
+uniform float specularPower;
+
+vec3 viewPosition(float depth)
+{
+    vec4 ndc = vec4(gl_FragCoord.xy / screenSize, depth, 1.0) * 2.0 - 1.0;
+    vec4 position = invProjectionMatrix * ndc;
+    return position.xyz / position.w;
+}
+
+void main()
+{
+    ivec2 pixel = ivec2(gl_FragCoord.xy);
+    float depth = texelFetch(depth_sampler, pixel, 0).r;
+    vec4 albedo = texelFetch(albedo_sampler, pixel, 0);
+    vec4 normalReflectance = texelFetch(normal_sampler, pixel, 0);
+    vec3 normal = normalize(normalReflectance.xyz);
+    vec3 position = viewPosition(depth);
+
+    vec3 light_direction = outPositionRange.xyz - position;
+    float distance = length(light_direction);
+    if ( distance > outPositionRange.w )
+    {
+        discard;
+    }
+    vec3 to_light_dir = light_direction / distance;
+    vec3 light_color = outColorIntensity.rgb;
+    float light_intensity = outColorIntensity.w;
+
+    float factor = 1.0;
+    if ( outConeDirection.w > 0.5 )
+    {
+        float spot_alfa = dot(-to_light_dir, normalize(outConeDirection.xyz));
+        float cutOff = outAttenuationCutOff.w;
+        if ( spot_alfa <= cutOff )
+        {
+            discard;
+        }
+        factor = 1.0 - (1.0 - spot_alfa)/(1.0 - cutOff);
+    }
+
+    // Diffuse Light
+    float diffuseFactor = max(dot(normal, to_light_dir), 0.0);
+    vec3 diffuseColor = light_color * light_intensity * diffuseFactor;
+
+    // Specular Light, the camera sits at the origin of view space
+    vec3 camera_direction = normalize(-position);
+    vec3 reflected_light = normalize(reflect(-to_light_dir, normal));
+    float specularFactor = pow(max(dot(camera_direction, reflected_light), 0.0), specularPower);
+    vec3 specColor = light_intensity * specularFactor * normalReflectance.w * light_color;
+
+    // Apply Attenuation
+    float attenuationInv = outAttenuationCutOff.x + outAttenuationCutOff.y * distance
+        + outAttenuationCutOff.z * distance * distance;
+    fragColor = vec4(albedo.rgb * (diffuseColor + specColor) * factor / attenuationInv, 0.0);
+}
\ No newline at end of file
@@ -0,0 +1,15 @@
+#version 330
+
+layout (location=0) in vec3 position;
+
+uniform mat4 projectionMatrix;
+uniform mat4 modelViewMatrix;
+
+// Same transform as vertex.vs, so the color pass finds exactly the depth written here
+invariant gl_Position;
+
+void main()
+{
+    vec4 mvPos = modelViewMatrix * vec4(position, 1.0);
+    gl_Position = projectionMatrix * mvPos;
+}
\ No newline at end of file
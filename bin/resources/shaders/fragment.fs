@@ -1,7 +1,11 @@
 #version 330
 
-const int MAX_POINT_LIGHTS = 5;
-const int MAX_SPOT_LIGHTS = 5;
+// Size of the light cluster grid, has to match LightClusters
+const int CLUSTER_X = 16;
+const int CLUSTER_Y = 9;
+const int CLUSTER_Z = 24;
+// Number of shadow cascades, has to match ShadowCascades
+const int CASCADE_COUNT = 3;
 
 in vec2 outTexCoord;
 in vec3 mvVertexNormal;
@@ -10,8 +14,6 @@ in vec3 mvVertexPos;
 out vec4 fragColor;
 
 uniform sampler2D texture_sampler;
-uniform vec3 color;
-uniform int useColor;
 
 struct Attenuation
 {
@@ -45,18 +47,30 @@ struct SpotLight
 
 struct Material
 {
+    // Only read by the untextured permutation
     vec3 color;
-    int useColor;
     float reflectance;
+    // Region of the texture used, xy is the offset and zw the scale of the texture coordinates. Only read when TEXTURED
+    vec4 uvRect;
 };
 
 uniform vec3 ambientLight;
 uniform float specularPower;
 uniform Material material;
-uniform PointLight pointLights[MAX_POINT_LIGHTS];
-uniform SpotLight spotLights[MAX_SPOT_LIGHTS];
+// Per cluster offset into the index list and point count | spot count << 16
+uniform usamplerBuffer clusterGrid;
+uniform usamplerBuffer clusterLightIndices;
+// Four texels per light: (position, intensity), (color, constant), (linear, exponent, cutOff, 0), (cone direction, 0)
+uniform samplerBuffer clusterLightData;
+// Clusters per pixel, and the factors turning the log of the view depth into a depth slice
+uniform vec2 clusterTileScale;
+uniform vec2 clusterDepthParams;
 uniform DirectionalLight directionalLight;
 uniform vec3 camera_pos;
+uniform sampler2DArrayShadow shadowMap;
+// Camera view space to shadow map coordinates, and the far view distance of every cascade
+uniform mat4 shadowMatrices[CASCADE_COUNT];
+uniform float cascadeSplits[CASCADE_COUNT];
 
 vec4 calcLightColor(vec3 light_color, float light_intensity, vec3 position, vec3 to_light_dir, vec3 normal)
 {
@@ -107,39 +121,86 @@ vec4 calcSpotLight(SpotLight light, vec3 position, vec3 normal)
     return color;    
 }
 
-vec4 calcDirectionalLight(DirectionalLight light, vec3 position, vec3 normal)
+PointLight fetchPointLight(int index)
 {
-    return calcLightColor(light.color, light.intensity, position, normalize(light.direction), normal);
+    vec4 posIntensity = texelFetch(clusterLightData, index * 4);
+    vec4 colorConstant = texelFetch(clusterLightData, index * 4 + 1);
+    vec4 params = texelFetch(clusterLightData, index * 4 + 2);
+    return PointLight(colorConstant.rgb, posIntensity.xyz, posIntensity.w,
+        Attenuation(colorConstant.w, params.x, params.y));
 }
 
-void main()
+SpotLight fetchSpotLight(int index)
 {
-    vec4 baseColor; 
-    if ( material.useColor == 1 )
+    float cutOff = texelFetch(clusterLightData, index * 4 + 2).z;
+    vec3 coneDirection = texelFetch(clusterLightData, index * 4 + 3).xyz;
+    return SpotLight(fetchPointLight(index), coneDirection, cutOff);
+}
+
+int clusterIndex(vec3 position)
+{
+    ivec2 tile = min(ivec2(gl_FragCoord.xy * clusterTileScale), ivec2(CLUSTER_X - 1, CLUSTER_Y - 1));
+    int slice = int(max(log(-position.z) * clusterDepthParams.x - clusterDepthParams.y, 0.0));
+    slice = min(slice, CLUSTER_Z - 1);
+    return (slice * CLUSTER_Y + tile.y) * CLUSTER_X + tile.x;
+}
+
+float calcShadow(vec3 position)
+{
+    int cascade = 0;
+    while ( cascade < CASCADE_COUNT && -position.z > cascadeSplits[cascade] )
     {
-        baseColor = vec4(material.color, 1);
+        cascade++;
     }
-    else
+    if ( cascade == CASCADE_COUNT )
     {
-        baseColor = texture(texture_sampler, outTexCoord);
+        // Past the shadow distance
+        return 1.0;
     }
-    vec4 totalLight = vec4(ambientLight, 1.0);
-    totalLight += calcDirectionalLight(directionalLight, mvVertexPos, mvVertexNormal);
-
-    for (int i=0; i<MAX_POINT_LIGHTS; i++)
+    vec4 coord = shadowMatrices[cascade] * vec4(position, 1.0);
+    vec2 texelSize = 1.0 / vec2(textureSize(shadowMap, 0).xy);
+    // 3x3 percentage closer filter, every lookup compares and blends 2x2 texels on its own
+    float lit = 0.0;
+    for (int y=-1; y<=1; y++)
     {
-        if ( pointLights[i].intensity > 0 )
+        for (int x=-1; x<=1; x++)
         {
-            totalLight += calcPointLight(pointLights[i], mvVertexPos, mvVertexNormal); 
+            lit += texture(shadowMap, vec4(coord.xy + vec2(x, y) * texelSize, cascade, coord.z));
         }
     }
+    return lit / 9.0;
+}
 
-    for (int i=0; i<MAX_SPOT_LIGHTS; i++)
+vec4 calcDirectionalLight(DirectionalLight light, vec3 position, vec3 normal)
+{
+    return calcLightColor(light.color, light.intensity, position, normalize(light.direction), normal) * calcShadow(position);
+}
+
+void main()
+{
+    // TEXTURED is defined by the renderer for textured materials, the other permutation uses the material color
+#ifdef TEXTURED
+    vec4 baseColor = texture(texture_sampler, material.uvRect.xy + outTexCoord * material.uvRect.zw);
+#else
+    vec4 baseColor = vec4(material.color, 1);
+#endif
+    vec4 totalLight = vec4(ambientLight, 1.0);
+    totalLight += calcDirectionalLight(directionalLight, mvVertexPos, mvVertexNormal);
+
+    // Only the lights reaching the cluster of this fragment, point lights first
+    uvec2 cluster = texelFetch(clusterGrid, clusterIndex(mvVertexPos)).xy;
+    int offset = int(cluster.x);
+    int pointCount = int(cluster.y & 0xFFFFu);
+    int spotCount = int(cluster.y >> 16);
+    for (int i=0; i<pointCount; i++)
     {
-        if ( spotLights[i].pointLight.intensity > 0 )
-        {
-            totalLight += calcSpotLight(spotLights[i], mvVertexPos, mvVertexNormal);
-        }
+        int index = int(texelFetch(clusterLightIndices, offset + i).r);
+        totalLight += calcPointLight(fetchPointLight(index), mvVertexPos, mvVertexNormal);
+    }
+    for (int i=0; i<spotCount; i++)
+    {
+        int index = int(texelFetch(clusterLightIndices, offset + pointCount + i).r);
+        totalLight += calcSpotLight(fetchSpotLight(index), mvVertexPos, mvVertexNormal);
     }
     
     fragColor = baseColor * totalLight;
@@ -2,14 +2,20 @@
 
 layout (location=0) in vec3 position;
 layout (location=1) in vec2 texCoord;
-layout (location=2) in vec3 vertexNormal;
+layout (location=2) in vec4 vertexColor;
+layout (location=3) in float vertexMode;
 
 out vec2 outTexCoord;
+out vec4 outColor;
+flat out int outMode;
 
-uniform mat4 projModelMatrix;
+uniform mat4 orthoMatrix;
 
 void main()
 {
-    gl_Position = projModelMatrix * vec4(position, 1.0);
+    // Vertices arrive transformed into screen pixels by the HUD batch
+    gl_Position = orthoMatrix * vec4(position, 1.0);
     outTexCoord = texCoord;
+    outColor = vertexColor;
+    outMode = int(vertexMode);
 }
\ No newline at end of file
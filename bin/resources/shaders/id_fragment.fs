@@ -0,0 +1,19 @@
+#version 330
+
+#ifdef INSTANCED
+flat in float outEntityId;
+#else
+uniform int entityId;
+#endif
+
+// Id 0 is left where no entity was drawn
+layout (location=0) out uint idOut;
+
+void main()
+{
+#ifdef INSTANCED
+    idOut = uint(outEntityId);
+#else
+    idOut = uint(entityId);
+#endif
+}
\ No newline at end of file
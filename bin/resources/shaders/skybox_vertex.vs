@@ -1,16 +1,17 @@
 #version 330
 
 layout (location=0) in vec3 position;
-layout (location=1) in vec2 texCoord;
-layout (location=2) in vec3 vertexNormal;
 
-out vec2 outTexCoord;
+out vec3 outDirection;
 
 uniform mat4 modelViewMatrix;
 uniform mat4 projectionMatrix;
 
 void main()
 {
-    gl_Position = projectionMatrix * modelViewMatrix * vec4(position, 1.0);
-    outTexCoord = texCoord;
+    // The cube is centered on the camera, so its positions are the directions to look up
+    outDirection = position;
+    vec4 pos = projectionMatrix * modelViewMatrix * vec4(position, 1.0);
+    // Depth of the far plane, the sky only covers pixels no geometry was drawn to
+    gl_Position = pos.xyww;
 }
\ No newline at end of file
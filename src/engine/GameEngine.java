@@ -1,6 +1,7 @@
 package engine;
 
 import engine.input.MouseInput;
+import engine.jobs.JobSystem;
 import engine.utilities.Timer;
 
 public class GameEngine implements Runnable{
@@ -19,12 +20,23 @@ public class GameEngine implements Runnable{
 
     private final MouseInput mouseInput;
     
+    private final JobSystem jobSystem;
+    
+    /**
+     * Prints the utilization of the job workers once per second, enabled with -DjobStats=true
+     */
+    private final boolean printJobStats;
+    
+    private double lastJobStatsTime;
+    
     public GameEngine(String windowTitle, int width, int height, boolean vSync, IGameLogic gameLogic) throws Exception {
         gameLoopThread = new Thread(this, "GAME_LOOP_THREAD");
         window = new Window(windowTitle, width, height, vSync);
         this.gameLogic = gameLogic;
         timer = new Timer();
         mouseInput = new MouseInput();
+        jobSystem = JobSystem.getInstance();
+        printJobStats = Boolean.getBoolean("jobStats");
     }
 
     public void start() {
@@ -62,6 +74,10 @@ public class GameEngine implements Runnable{
 
         boolean running = true;
         while (running && !window.windowShouldClose()) {
+            jobSystem.beginFrame();
+            if (printJobStats) {
+                printJobStats();
+            }
             elapsedTime = timer.getElapsedTime();
             accumulator += elapsedTime;
 
@@ -80,6 +96,20 @@ public class GameEngine implements Runnable{
         }
     }
 
+    private void printJobStats() {
+        double time = timer.getTime();
+        if (time - lastJobStatsTime < 1.0) {
+            return;
+        }
+        lastJobStatsTime = time;
+        StringBuilder stats = new StringBuilder("Job workers:");
+        for (int i = 0; i < jobSystem.getWorkerCount(); i++) {
+            stats.append(String.format(" %d%% (%d jobs, %d stolen)", (int) (jobSystem.getUtilization(i) * 100),
+                    jobSystem.getJobCount(i), jobSystem.getStealCount(i)));
+        }
+        System.out.println(stats);
+    }
+
     private void sync() {
         float loopSlot = 1f / TARGET_FPS;
         double endTime = timer.getLastLoopTime() + loopSlot;
@@ -92,6 +122,8 @@ public class GameEngine implements Runnable{
     }
 
     protected void input() {
+    	// The events queued by the callbacks during the last glfwPollEvents() become the input of this frame
+    	window.updateInput();
     	mouseInput.input(window);
         gameLogic.input(window, mouseInput);
     }
@@ -107,5 +139,6 @@ public class GameEngine implements Runnable{
 	
     protected void cleanup() {
     	gameLogic.cleanup();
+    	jobSystem.shutdown();
     }
 }
@@ -2,6 +2,10 @@ package engine;
 
 import engine.input.MouseInput;
 
+/**
+ * The game run by the GameEngine. All methods are called on the game loop thread, work can be spread over the cores
+ * with the jobs of JobSystem.getInstance()
+ */
 public interface IGameLogic {
 
 	void init(Window window) throws Exception;
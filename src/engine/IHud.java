@@ -10,7 +10,10 @@ public interface IHud {
     default void cleanup() {
     	List<Entity> entities = getEntities();
         for (Entity entity : entities) {
-            entity.getMesh().cleanUp();
+            // Texts have no mesh, their quads live in the HUD batch
+            if (entity.getMesh() != null) {
+                entity.getMesh().cleanUp();
+            }
         }
     }
 }
@@ -2,13 +2,47 @@ package engine;
 
 import java.util.*;
 
+import engine.ecs.RenderExtractSystem;
+import engine.ecs.SystemScheduler;
+import engine.ecs.World;
 import engine.entities.Entity;
 import engine.entities.SkyBox;
 import engine.graphics.Mesh;
 import engine.graphics.lights.SceneLight;
+import engine.input.PickCallback;
 
 public class Scene {
 	
+	/**
+	 * A pixel whose entity is looked up by the renderer, in window coordinates from the top left
+	 */
+	public static final class PickRequest {
+		
+		private final int x;
+		
+		private final int y;
+		
+		private final PickCallback callback;
+		
+		private PickRequest(int x, int y, PickCallback callback) {
+			this.x = x;
+			this.y = y;
+			this.callback = callback;
+		}
+		
+		public int getX() {
+			return x;
+		}
+		
+		public int getY() {
+			return y;
+		}
+		
+		public PickCallback getCallback() {
+			return callback;
+		}
+	}
+	
 	private List<Entity> uniqueEntities;
     
     private SkyBox skyBox;
@@ -17,9 +51,51 @@ public class Scene {
 
     private Map<Mesh, List<Entity>> meshMap;
     
+    private final World world;
+    
+    private final SystemScheduler systems;
+    
+    private final RenderExtractSystem renderExtraction;
+    
+    private final Deque<PickRequest> pickRequests;
+    
     public Scene() {
     	uniqueEntities = new ArrayList<>();
+    	pickRequests = new ArrayDeque<>();
     	meshMap = new HashMap<>();
+    	world = new World();
+    	systems = new SystemScheduler();
+    	renderExtraction = new RenderExtractSystem();
+    }
+    
+    /**
+     * Method to run the systems of the world, then hand its meshes and lights to the renderer
+     * @param interval float The time since the last update in seconds
+     */
+    public void update(float interval) {
+    	systems.update(world, interval);
+    	renderExtraction.update(world, interval);
+    	if (sceneLight != null) {
+    		sceneLight.setWorldPointLights(renderExtraction.getPointLights());
+    	}
+    }
+    
+    /**
+     * @return World The entities and components simulated by the systems of the scene
+     */
+    public World getWorld() {
+    	return world;
+    }
+    
+    public SystemScheduler getSystems() {
+    	return systems;
+    }
+    
+    /**
+     * @return Map<Mesh, List<Entity>> The entities of the world with a mesh as of the last update(), grouped by mesh
+     */
+    public Map<Mesh, List<Entity>> getWorldMeshes() {
+    	return renderExtraction.getMeshEntities();
     }
     
     public List<Entity> getEntities() {
@@ -50,6 +126,24 @@ public class Scene {
     	this.uniqueEntities.add(entity);
     }
 
+    /**
+     * Method to ask the renderer which entity is drawn at a pixel. The renderer draws the entity ids into a buffer,
+     * and reads the pixel back asynchronously, so the callback runs a frame or two later on the render thread
+     * @param x int The horizontal position of the pixel, from the left of the window
+     * @param y int The vertical position of the pixel, from the top of the window
+     * @param callback PickCallback Receives the entity, or null if no entity is drawn at the pixel
+     */
+    public void requestPick(int x, int y, PickCallback callback) {
+    	pickRequests.add(new PickRequest(x, y, callback));
+    }
+    
+    /**
+     * @return Deque<PickRequest> The picks not yet taken by the renderer, oldest first
+     */
+    public Deque<PickRequest> getPickRequests() {
+    	return pickRequests;
+    }
+    
     public SkyBox getSkyBox() {
         return skyBox;
     }
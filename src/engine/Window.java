@@ -5,9 +5,18 @@ import org.lwjgl.opengl.*;
 import static org.lwjgl.glfw.GLFW.*;
 import static org.lwjgl.opengl.GL11.*;
 import static org.lwjgl.system.MemoryUtil.*;
+
+import engine.input.InputEvent;
+import engine.input.InputEventQueue;
+import engine.input.InputSnapshot;
 		
 public class Window {
 
+    /**
+     * Events the queue holds between two updates of the input, far more than a frame produces
+     */
+    private static final int INPUT_QUEUE_CAPACITY = 4096;
+
     private final String title;
 
     private int width;
@@ -29,12 +38,18 @@ public class Window {
 
     private boolean vSync;
 
+    private final InputEventQueue inputEvents;
+
+    private final InputSnapshot input;
+
     public Window(String title, int width, int height, boolean vSync) {
         this.title = title;
         this.width = width;
         this.height = height;
         this.vSync = vSync;
         this.resized = false;
+        this.inputEvents = new InputEventQueue(INPUT_QUEUE_CAPACITY);
+        this.input = new InputSnapshot();
     }
 	
     public void init() {
@@ -68,16 +83,20 @@ public class Window {
                 Window.this.width = width;
                 Window.this.height = height;
                 Window.this.setResized(true);
+                inputEvents.push(InputEvent.RESIZE, 0, 0, 0, width, height);
             }
         });
+        inputEvents.push(InputEvent.RESIZE, 0, 0, 0, width, height);
 
         // Setup a key callback. It will be called every time a key is pressed, repeated or released.
+        // The keys are only queued here, the game reads them from the snapshot taken by updateInput()
         glfwSetKeyCallback(windowHandle, keyCallback = new GLFWKeyCallback() {
             @Override
             public void invoke(long window, int key, int scancode, int action, int mods) {
                 if (key == GLFW_KEY_ESCAPE && action == GLFW_RELEASE) {
                     glfwSetWindowShouldClose(window, true);
                 }
+                inputEvents.push(InputEvent.KEY, key, action, mods, 0, 0);
             }
         });
 
@@ -123,8 +142,35 @@ public class Window {
         glClearColor(r, g, b, alpha);
     }
 
+    /**
+     * Method to check a key in the input snapshot of the frame
+     * @param keyCode int The GLFW key
+     * @return boolean True if the key is held down, or was pressed during the frame and released again
+     */
     public boolean isKeyPressed(int keyCode) {
-        return glfwGetKey(windowHandle, keyCode) == GLFW_PRESS;
+        return input.isKeyDown(keyCode) || input.wasKeyPressed(keyCode);
+    }
+
+    /**
+     * Method to take a new input snapshot from the events queued since the last call. The events are queued by the
+     * thread polling the window, the snapshot may be taken by another thread, as long as it is always the same one
+     */
+    public void updateInput() {
+        input.update(inputEvents);
+    }
+
+    /**
+     * @return InputSnapshot The keyboard, mouse and window state as of the last updateInput()
+     */
+    public InputSnapshot getInput() {
+        return input;
+    }
+
+    /**
+     * @return InputEventQueue The queue the input callbacks of the window push their events into
+     */
+    public InputEventQueue getInputEvents() {
+        return inputEvents;
     }
 
     public boolean windowShouldClose() {
@@ -0,0 +1,66 @@
+package engine.ecs;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * All entities having exactly the same set of components, stored in chunks
+ */
+final class Archetype {
+
+    private final long mask;
+
+    private final ComponentType[] types;
+
+    /**
+     * Index of every component type in the arrays of a chunk, by type id, -1 if the archetype does not have it
+     */
+    private final int[] slots;
+
+    private final List<Chunk> chunks;
+
+    private final int chunkCapacity;
+
+    Archetype(long mask, ComponentType[] types, int chunkCapacity) {
+        this.mask = mask;
+        this.types = types;
+        this.chunkCapacity = chunkCapacity;
+        slots = new int[ComponentType.MAX_TYPES];
+        Arrays.fill(slots, -1);
+        for (int i = 0; i < types.length; i++) {
+            slots[types[i].getId()] = i;
+        }
+        chunks = new ArrayList<>();
+    }
+
+    long getMask() {
+        return mask;
+    }
+
+    ComponentType[] getTypes() {
+        return types;
+    }
+
+    int slot(ComponentType type) {
+        return slots[type.getId()];
+    }
+
+    List<Chunk> getChunks() {
+        return chunks;
+    }
+
+    /**
+     * @return A chunk with a free slot, the first one with room so the entities stay packed in few chunks
+     */
+    Chunk chunkWithRoom() {
+        for (Chunk chunk : chunks) {
+            if (!chunk.isFull()) {
+                return chunk;
+            }
+        }
+        Chunk chunk = new Chunk(this, chunkCapacity);
+        chunks.add(chunk);
+        return chunk;
+    }
+}
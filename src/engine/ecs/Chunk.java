@@ -0,0 +1,144 @@
+package engine.ecs;
+
+import java.util.Arrays;
+
+/**
+ * A fixed number of entities of one archetype. Every component has its own array, so a system only touches the
+ * memory of the components it uses, and the floats of consecutive entities are next to each other.
+ * The entities are kept packed: the first size() slots are used, removing one moves the last entity into its slot.
+ */
+public final class Chunk {
+
+    private final Archetype archetype;
+
+    private final float[][] floats;
+
+    private final Object[][] objects;
+
+    private final int[] entities;
+
+    private int size;
+
+    Chunk(Archetype archetype, int capacity) {
+        this.archetype = archetype;
+        ComponentType[] types = archetype.getTypes();
+        floats = new float[types.length][];
+        objects = new Object[types.length][];
+        for (int i = 0; i < types.length; i++) {
+            if (types[i].isObject()) {
+                objects[i] = new Object[capacity];
+            } else {
+                floats[i] = new float[capacity * types[i].getFloatCount()];
+            }
+        }
+        entities = new int[capacity];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    boolean isFull() {
+        return size == entities.length;
+    }
+
+    /**
+     * @return The entity in a slot of the chunk
+     */
+    public int getEntity(int index) {
+        return entities[index];
+    }
+
+    public boolean has(ComponentType type) {
+        return archetype.slot(type) >= 0;
+    }
+
+    /**
+     * Method to get the floats of a component, the ones of the entity in slot i start at i * type.getFloatCount()
+     * @param type ComponentType A float component of the archetype
+     * @return float[] The floats of all slots
+     */
+    public float[] floats(ComponentType type) {
+        float[] array = floats[requireSlot(type)];
+        if (array == null) {
+            throw new IllegalArgumentException("Not a float component: " + type);
+        }
+        return array;
+    }
+
+    /**
+     * Method to get the objects of a component, indexed by slot
+     * @param type ComponentType An object component of the archetype
+     * @return Object[] The objects of all slots
+     */
+    public Object[] objects(ComponentType type) {
+        Object[] array = objects[requireSlot(type)];
+        if (array == null) {
+            throw new IllegalArgumentException("Not an object component: " + type);
+        }
+        return array;
+    }
+
+    Archetype getArchetype() {
+        return archetype;
+    }
+
+    private int requireSlot(ComponentType type) {
+        int slot = archetype.slot(type);
+        if (slot < 0) {
+            throw new IllegalArgumentException("Component " + type + " is not part of this chunk");
+        }
+        return slot;
+    }
+
+    /**
+     * @return The slot of the added entity, its components are zero or null
+     */
+    int add(int entity) {
+        entities[size] = entity;
+        return size++;
+    }
+
+    /**
+     * Method to remove the entity of a slot
+     * @return The entity moved into the slot, or -1 if it was the last one
+     */
+    int remove(int index) {
+        int last = --size;
+        int moved = -1;
+        for (int c = 0; c < floats.length; c++) {
+            if (floats[c] != null) {
+                int n = archetype.getTypes()[c].getFloatCount();
+                System.arraycopy(floats[c], last * n, floats[c], index * n, n);
+                Arrays.fill(floats[c], last * n, last * n + n, 0);
+            } else {
+                objects[c][index] = objects[c][last];
+                objects[c][last] = null;
+            }
+        }
+        if (index != last) {
+            moved = entities[last];
+            entities[index] = moved;
+        }
+        return moved;
+    }
+
+    /**
+     * Method to copy the components both chunks have from a slot of another chunk
+     */
+    void copyFrom(Chunk source, int sourceIndex, int index) {
+        ComponentType[] types = archetype.getTypes();
+        for (int c = 0; c < types.length; c++) {
+            int sourceSlot = source.archetype.slot(types[c]);
+            if (sourceSlot < 0) {
+                continue;
+            }
+            if (floats[c] != null) {
+                int n = types[c].getFloatCount();
+                System.arraycopy(source.floats[sourceSlot], sourceIndex * n, floats[c], index * n, n);
+            } else {
+                objects[c][index] = source.objects[sourceSlot][sourceIndex];
+            }
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package engine.ecs;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A kind of component entities of a World can have. Float components store a fixed number of floats per entity,
+ * packed next to each other in one array per chunk, object components store one reference per entity.
+ * Every type gets a bit of the archetype masks, so at most MAX_TYPES types can exist.
+ */
+public final class ComponentType {
+
+    public static final int MAX_TYPES = 64;
+
+    private static final AtomicInteger NEXT_ID = new AtomicInteger();
+
+    private static final ComponentType[] TYPES = new ComponentType[MAX_TYPES];
+
+    private final String name;
+
+    private final int id;
+
+    private final int floatCount;
+
+    private ComponentType(String name, int floatCount) {
+        this.name = name;
+        this.floatCount = floatCount;
+        id = NEXT_ID.getAndIncrement();
+        if (id >= MAX_TYPES) {
+            throw new IllegalStateException("Too many component types, at most " + MAX_TYPES + " are supported");
+        }
+        TYPES[id] = this;
+    }
+
+    /**
+     * Method to declare a component made of floats
+     * @param name String The name of the component
+     * @param floatCount int The number of floats of every entity
+     * @return ComponentType The new type
+     */
+    public static ComponentType floats(String name, int floatCount) {
+        if (floatCount <= 0) {
+            throw new IllegalArgumentException("A float component needs at least one float");
+        }
+        return new ComponentType(name, floatCount);
+    }
+
+    /**
+     * Method to declare a component holding an object, like a mesh or a light
+     * @param name String The name of the component
+     * @return ComponentType The new type
+     */
+    public static ComponentType object(String name) {
+        return new ComponentType(name, 0);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public int getFloatCount() {
+        return floatCount;
+    }
+
+    public boolean isObject() {
+        return floatCount == 0;
+    }
+
+    /**
+     * @return The bit of the type in archetype masks
+     */
+    public long mask() {
+        return 1L << id;
+    }
+
+    /**
+     * @return The mask of all the given types
+     */
+    public static long mask(ComponentType... types) {
+        long mask = 0;
+        for (ComponentType type : types) {
+            mask |= type.mask();
+        }
+        return mask;
+    }
+
+    /**
+     * @return The type with an id, in archetypes the types are ordered by id
+     */
+    static ComponentType byId(int id) {
+        return TYPES[id];
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,37 @@
+package engine.ecs;
+
+/**
+ * The component types known to the engine. Games can declare their own with ComponentType.floats() and ComponentType.object()
+ */
+public final class Components {
+
+    /**
+     * World space position, x, y and z
+     */
+    public static final ComponentType POSITION = ComponentType.floats("position", 3);
+
+    /**
+     * Rotation around x, y and z in degrees, like Entity
+     */
+    public static final ComponentType ROTATION = ComponentType.floats("rotation", 3);
+
+    public static final ComponentType SCALE = ComponentType.floats("scale", 1);
+
+    /**
+     * Units per second along x, y and z
+     */
+    public static final ComponentType VELOCITY = ComponentType.floats("velocity", 3);
+
+    /**
+     * The Mesh drawn at the position of the entity
+     */
+    public static final ComponentType MESH = ComponentType.object("mesh");
+
+    /**
+     * A PointLight following the position of the entity
+     */
+    public static final ComponentType LIGHT = ComponentType.object("light");
+
+    private Components() {
+    }
+}
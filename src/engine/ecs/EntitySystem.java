@@ -0,0 +1,25 @@
+package engine.ecs;
+
+/**
+ * Updates the components of a World once per frame. The declared components tell the SystemScheduler which systems
+ * may run at the same time: two systems conflict when one writes a component the other reads or writes
+ */
+public interface EntitySystem {
+
+    /**
+     * @return The components the system only reads
+     */
+    ComponentType[] reads();
+
+    /**
+     * @return The components the system writes
+     */
+    ComponentType[] writes();
+
+    /**
+     * Method to run the system, possibly on a worker thread
+     * @param world World The world to update
+     * @param interval float The time since the last update in seconds
+     */
+    void update(World world, float interval);
+}
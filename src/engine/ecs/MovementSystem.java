@@ -0,0 +1,38 @@
+package engine.ecs;
+
+/**
+ * Moves every entity with a velocity
+ */
+public class MovementSystem implements EntitySystem {
+
+    private static final ComponentType[] READS = { Components.VELOCITY };
+
+    private static final ComponentType[] WRITES = { Components.POSITION };
+
+    private Query query;
+
+    @Override
+    public ComponentType[] reads() {
+        return READS;
+    }
+
+    @Override
+    public ComponentType[] writes() {
+        return WRITES;
+    }
+
+    @Override
+    public void update(World world, float interval) {
+        if (query == null) {
+            query = world.query(Components.POSITION, Components.VELOCITY);
+        }
+        query.forEachParallel((Chunk chunk) -> {
+            float[] position = chunk.floats(Components.POSITION);
+            float[] velocity = chunk.floats(Components.VELOCITY);
+            int n = chunk.size() * 3;
+            for (int i = 0; i < n; i++) {
+                position[i] += velocity[i] * interval;
+            }
+        });
+    }
+}
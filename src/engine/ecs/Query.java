@@ -0,0 +1,90 @@
+package engine.ecs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import engine.jobs.JobSystem;
+
+/**
+ * The chunks of all archetypes having a set of components. The matching archetypes are looked up again when the
+ * world created new ones. A query is meant to be used by one system, not by several threads at once
+ */
+public class Query {
+
+    private final World world;
+
+    private final long mask;
+
+    private final List<Archetype> archetypes;
+
+    private final List<Chunk> chunks;
+
+    private int archetypeCount;
+
+    Query(World world, long mask) {
+        this.world = world;
+        this.mask = mask;
+        archetypes = new ArrayList<>();
+        chunks = new ArrayList<>();
+    }
+
+    /**
+     * Method to call an action for every chunk with at least one entity, one chunk after the other
+     * @param action Consumer<Chunk> Called with the chunks
+     */
+    public void forEach(Consumer<Chunk> action) {
+        collectChunks();
+        for (Chunk chunk : chunks) {
+            action.accept(chunk);
+        }
+        chunks.clear();
+    }
+
+    /**
+     * Method to call an action for every chunk with at least one entity on the workers of the job system.
+     * Chunks do not share any storage, so the action may write the components of its chunk
+     * @param action Consumer<Chunk> Called with the chunks, from several threads at once
+     */
+    public void forEachParallel(Consumer<Chunk> action) {
+        collectChunks();
+        JobSystem.getInstance().parallelFor(chunks.size(), 1, (int i) -> action.accept(chunks.get(i)));
+        chunks.clear();
+    }
+
+    /**
+     * @return The number of entities matching the query
+     */
+    public int count() {
+        updateArchetypes();
+        int count = 0;
+        for (Archetype archetype : archetypes) {
+            for (Chunk chunk : archetype.getChunks()) {
+                count += chunk.size();
+            }
+        }
+        return count;
+    }
+
+    private void collectChunks() {
+        updateArchetypes();
+        chunks.clear();
+        for (Archetype archetype : archetypes) {
+            for (Chunk chunk : archetype.getChunks()) {
+                if (chunk.size() > 0) {
+                    chunks.add(chunk);
+                }
+            }
+        }
+    }
+
+    private void updateArchetypes() {
+        List<Archetype> all = world.getArchetypes();
+        for (int i = archetypeCount; i < all.size(); i++) {
+            if ((all.get(i).getMask() & mask) == mask) {
+                archetypes.add(all.get(i));
+            }
+        }
+        archetypeCount = all.size();
+    }
+}
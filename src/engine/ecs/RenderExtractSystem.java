@@ -0,0 +1,139 @@
+package engine.ecs;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import engine.entities.Entity;
+import engine.graphics.Mesh;
+import engine.graphics.lights.PointLight;
+
+/**
+ * Hands the renderable entities and lights of a World to the renderer. Every entity with a position and a mesh gets
+ * an Entity kept by id, which carries its level of detail from frame to frame; the transforms are copied into them
+ * on the worker threads and the entities are grouped by mesh like the ones added to the Scene.
+ * Lights are moved to the position of their entity.
+ */
+public class RenderExtractSystem implements EntitySystem {
+
+    private static final ComponentType[] READS = { Components.POSITION, Components.ROTATION, Components.SCALE,
+            Components.MESH };
+
+    private static final ComponentType[] WRITES = { Components.LIGHT };
+
+    private final Map<Mesh, List<Entity>> meshEntities;
+
+    private final List<PointLight> pointLights;
+
+    private Entity[] proxies;
+
+    private Query meshQuery;
+
+    private Query lightQuery;
+
+    public RenderExtractSystem() {
+        meshEntities = new HashMap<>();
+        pointLights = new ArrayList<>();
+        proxies = new Entity[1024];
+    }
+
+    @Override
+    public ComponentType[] reads() {
+        return READS;
+    }
+
+    @Override
+    public ComponentType[] writes() {
+        return WRITES;
+    }
+
+    @Override
+    public void update(World world, float interval) {
+        if (meshQuery == null) {
+            meshQuery = world.query(Components.POSITION, Components.MESH);
+            lightQuery = world.query(Components.POSITION, Components.LIGHT);
+        }
+        if (proxies.length < world.getIdCapacity()) {
+            proxies = Arrays.copyOf(proxies, Math.max(world.getIdCapacity(), proxies.length * 2));
+        }
+
+        // Every entity has its own slot in the proxy array, so the chunks can be copied at the same time
+        meshQuery.forEachParallel(this::copyTransforms);
+
+        for (List<Entity> entities : meshEntities.values()) {
+            entities.clear();
+        }
+        meshQuery.forEach((Chunk chunk) -> {
+            for (int i = 0; i < chunk.size(); i++) {
+                Entity proxy = proxies[chunk.getEntity(i)];
+                if (proxy.getMesh() == null) {
+                    continue;
+                }
+                List<Entity> entities = meshEntities.get(proxy.getMesh());
+                if (entities == null) {
+                    entities = new ArrayList<>();
+                    meshEntities.put(proxy.getMesh(), entities);
+                }
+                entities.add(proxy);
+            }
+        });
+        meshEntities.values().removeIf(List::isEmpty);
+
+        pointLights.clear();
+        lightQuery.forEach((Chunk chunk) -> {
+            float[] position = chunk.floats(Components.POSITION);
+            Object[] lights = chunk.objects(Components.LIGHT);
+            for (int i = 0; i < chunk.size(); i++) {
+                PointLight light = (PointLight) lights[i];
+                if (light != null) {
+                    light.getPosition().set(position[i * 3], position[i * 3 + 1], position[i * 3 + 2]);
+                    pointLights.add(light);
+                }
+            }
+        });
+    }
+
+    private void copyTransforms(Chunk chunk) {
+        float[] position = chunk.floats(Components.POSITION);
+        float[] rotation = chunk.has(Components.ROTATION) ? chunk.floats(Components.ROTATION) : null;
+        float[] scale = chunk.has(Components.SCALE) ? chunk.floats(Components.SCALE) : null;
+        Object[] meshes = chunk.objects(Components.MESH);
+        for (int i = 0; i < chunk.size(); i++) {
+            int entity = chunk.getEntity(i);
+            Entity proxy = proxies[entity];
+            if (proxy == null) {
+                proxy = new Entity();
+                proxies[entity] = proxy;
+            }
+            Mesh mesh = (Mesh) meshes[i];
+            if (proxy.getMesh() != mesh) {
+                // The id may have belonged to another entity before
+                proxy.setMesh(mesh);
+                proxy.setLodLevel(0);
+            }
+            proxy.setPosition(position[i * 3], position[i * 3 + 1], position[i * 3 + 2]);
+            if (rotation != null) {
+                proxy.setRotation(rotation[i * 3], rotation[i * 3 + 1], rotation[i * 3 + 2]);
+            } else {
+                proxy.setRotation(0, 0, 0);
+            }
+            proxy.setScale(scale != null ? scale[i] : 1);
+        }
+    }
+
+    /**
+     * @return Map<Mesh, List<Entity>> The entities with a mesh of the last update, grouped by mesh
+     */
+    public Map<Mesh, List<Entity>> getMeshEntities() {
+        return meshEntities;
+    }
+
+    /**
+     * @return List<PointLight> The lights of the last update
+     */
+    public List<PointLight> getPointLights() {
+        return pointLights;
+    }
+}
@@ -0,0 +1,69 @@
+package engine.ecs;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import engine.jobs.JobSystem;
+
+/**
+ * Runs systems in the order they were added, except that systems without conflicting components run at the same time.
+ * Every system is put into the first stage after the last stage holding a system it conflicts with, so a system always
+ * sees the writes of the conflicting systems added before it. The systems of a stage run on the workers of the job system.
+ */
+public class SystemScheduler {
+
+    private final List<List<EntitySystem>> stages;
+
+    private final List<long[]> stageMasks;
+
+    public SystemScheduler() {
+        stages = new ArrayList<>();
+        stageMasks = new ArrayList<>();
+    }
+
+    /**
+     * Method to add a system, that runs after the conflicting systems added before it
+     * @param system EntitySystem The system
+     */
+    public void add(EntitySystem system) {
+        long reads = ComponentType.mask(system.reads());
+        long writes = ComponentType.mask(system.writes());
+        int stage = 0;
+        for (int i = 0; i < stages.size(); i++) {
+            // The reads and writes of all systems of the stage
+            long[] masks = stageMasks.get(i);
+            if ((writes & (masks[0] | masks[1])) != 0 || (reads & masks[1]) != 0) {
+                stage = i + 1;
+            }
+        }
+        if (stage == stages.size()) {
+            stages.add(new ArrayList<>());
+            stageMasks.add(new long[2]);
+        }
+        stages.get(stage).add(system);
+        stageMasks.get(stage)[0] |= reads;
+        stageMasks.get(stage)[1] |= writes;
+    }
+
+    /**
+     * Method to run all systems once, returns when all are done
+     * @param world World The world to update
+     * @param interval float The time since the last update in seconds
+     */
+    public void update(World world, float interval) {
+        for (List<EntitySystem> stage : stages) {
+            if (stage.size() == 1) {
+                stage.get(0).update(world, interval);
+            } else {
+                JobSystem.getInstance().parallelFor(stage.size(), 1, (int i) -> stage.get(i).update(world, interval));
+            }
+        }
+    }
+
+    /**
+     * @return The number of stages, that run one after the other
+     */
+    public int getStageCount() {
+        return stages.size();
+    }
+}
@@ -0,0 +1,218 @@
+package engine.ecs;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Stores entities as plain ids with their components grouped by archetype, the set of components an entity has.
+ * Entities of the same archetype share chunks of CHUNK_CAPACITY slots, so iterating a component touches packed arrays
+ * instead of objects spread over the heap.
+ * Adding or removing components moves an entity into another archetype. Structural changes (create, destroy, adding
+ * and removing components) must not happen while systems run; reading and writing component values may, within the
+ * access the systems declared. Ids of destroyed entities are handed out again.
+ */
+public class World {
+
+    public static final int CHUNK_CAPACITY = 1024;
+
+    private final Map<Long, Archetype> archetypes;
+
+    private final List<Archetype> archetypeList;
+
+    private Chunk[] entityChunks;
+
+    private int[] entitySlots;
+
+    private int[] freeIds;
+
+    private int freeCount;
+
+    private int nextId;
+
+    private int entityCount;
+
+    public World() {
+        archetypes = new HashMap<>();
+        archetypeList = new ArrayList<>();
+        entityChunks = new Chunk[1024];
+        entitySlots = new int[1024];
+        freeIds = new int[64];
+    }
+
+    /**
+     * Method to create an entity
+     * @param types ComponentType[] The components of the entity, floats start at zero and objects at null
+     * @return int The id of the entity
+     */
+    public int create(ComponentType... types) {
+        int entity;
+        if (freeCount > 0) {
+            entity = freeIds[--freeCount];
+        } else {
+            entity = nextId++;
+            if (entity == entityChunks.length) {
+                entityChunks = Arrays.copyOf(entityChunks, entity * 2);
+                entitySlots = Arrays.copyOf(entitySlots, entity * 2);
+            }
+        }
+        Chunk chunk = archetype(ComponentType.mask(types)).chunkWithRoom();
+        entityChunks[entity] = chunk;
+        entitySlots[entity] = chunk.add(entity);
+        entityCount++;
+        return entity;
+    }
+
+    /**
+     * Method to destroy an entity, its id may be returned by a later create() call
+     * @param entity int A living entity
+     */
+    public void destroy(int entity) {
+        Chunk chunk = requireAlive(entity);
+        removeFromChunk(chunk, entitySlots[entity]);
+        entityChunks[entity] = null;
+        if (freeCount == freeIds.length) {
+            freeIds = Arrays.copyOf(freeIds, freeCount * 2);
+        }
+        freeIds[freeCount++] = entity;
+        entityCount--;
+    }
+
+    public boolean isAlive(int entity) {
+        return entity >= 0 && entity < nextId && entityChunks[entity] != null;
+    }
+
+    public boolean has(int entity, ComponentType type) {
+        return requireAlive(entity).has(type);
+    }
+
+    /**
+     * Method to add a component to an entity, moving it to the archetype with the component. Does nothing if it has it already
+     * @param entity int A living entity
+     * @param type ComponentType The component to add, zero or null at first
+     */
+    public void addComponent(int entity, ComponentType type) {
+        Chunk chunk = requireAlive(entity);
+        long mask = chunk.getArchetype().getMask();
+        if ((mask & type.mask()) == 0) {
+            move(entity, mask | type.mask());
+        }
+    }
+
+    /**
+     * Method to remove a component from an entity, moving it to the archetype without the component
+     * @param entity int A living entity
+     * @param type ComponentType The component to remove
+     */
+    public void removeComponent(int entity, ComponentType type) {
+        Chunk chunk = requireAlive(entity);
+        long mask = chunk.getArchetype().getMask();
+        if ((mask & type.mask()) != 0) {
+            move(entity, mask & ~type.mask());
+        }
+    }
+
+    /**
+     * Method to set the floats of a component of an entity
+     * @param entity int A living entity
+     * @param type ComponentType A float component of the entity
+     * @param values float[] The floats, as many as the component has
+     */
+    public void set(int entity, ComponentType type, float... values) {
+        if (values.length != type.getFloatCount()) {
+            throw new IllegalArgumentException(type + " has " + type.getFloatCount() + " floats, not " + values.length);
+        }
+        Chunk chunk = requireAlive(entity);
+        System.arraycopy(values, 0, chunk.floats(type), entitySlots[entity] * values.length, values.length);
+    }
+
+    /**
+     * Method to get one float of a component of an entity
+     * @param entity int A living entity
+     * @param type ComponentType A float component of the entity
+     * @param element int The index of the float within the component
+     * @return float The value
+     */
+    public float get(int entity, ComponentType type, int element) {
+        Chunk chunk = requireAlive(entity);
+        return chunk.floats(type)[entitySlots[entity] * type.getFloatCount() + element];
+    }
+
+    public void setObject(int entity, ComponentType type, Object value) {
+        Chunk chunk = requireAlive(entity);
+        chunk.objects(type)[entitySlots[entity]] = value;
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T> T getObject(int entity, ComponentType type) {
+        Chunk chunk = requireAlive(entity);
+        return (T) chunk.objects(type)[entitySlots[entity]];
+    }
+
+    /**
+     * Method to create a query over the entities having all given components, also the ones of archetypes created later
+     * @param types ComponentType[] The required components
+     * @return Query The query
+     */
+    public Query query(ComponentType... types) {
+        return new Query(this, ComponentType.mask(types));
+    }
+
+    public int getEntityCount() {
+        return entityCount;
+    }
+
+    /**
+     * @return One more than the largest id handed out, to size arrays indexed by entity
+     */
+    public int getIdCapacity() {
+        return nextId;
+    }
+
+    List<Archetype> getArchetypes() {
+        return archetypeList;
+    }
+
+    private Archetype archetype(long mask) {
+        Archetype archetype = archetypes.get(mask);
+        if (archetype == null) {
+            List<ComponentType> types = new ArrayList<>();
+            for (int id = 0; id < ComponentType.MAX_TYPES; id++) {
+                if ((mask & (1L << id)) != 0) {
+                    types.add(ComponentType.byId(id));
+                }
+            }
+            archetype = new Archetype(mask, types.toArray(new ComponentType[0]), CHUNK_CAPACITY);
+            archetypes.put(mask, archetype);
+            archetypeList.add(archetype);
+        }
+        return archetype;
+    }
+
+    private void move(int entity, long mask) {
+        Chunk source = entityChunks[entity];
+        int sourceSlot = entitySlots[entity];
+        Chunk target = archetype(mask).chunkWithRoom();
+        int slot = target.add(entity);
+        target.copyFrom(source, sourceSlot, slot);
+        removeFromChunk(source, sourceSlot);
+        entityChunks[entity] = target;
+        entitySlots[entity] = slot;
+    }
+
+    private void removeFromChunk(Chunk chunk, int slot) {
+        int moved = chunk.remove(slot);
+        if (moved >= 0) {
+            entitySlots[moved] = slot;
+        }
+    }
+
+    private Chunk requireAlive(int entity) {
+        if (!isAlive(entity)) {
+            throw new IllegalArgumentException("Entity " + entity + " does not exist");
+        }
+        return entityChunks[entity];
+    }
+}
@@ -13,6 +13,11 @@ public class Entity {
     private float scale;
 
     private final Vector3f rotation;
+    
+    /**
+     * The level of detail of the mesh the entity was drawn with last
+     */
+    private int lodLevel;
 
     public Entity() {
         position = new Vector3f(0, 0, 0);
@@ -60,4 +65,12 @@ public class Entity {
     public Mesh getMesh() {
         return mesh;
     }
+
+    public int getLodLevel() {
+        return lodLevel;
+    }
+
+    public void setLodLevel(int lodLevel) {
+        this.lodLevel = lodLevel;
+    }
 }
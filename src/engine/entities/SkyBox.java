@@ -1,19 +1,28 @@
 package engine.entities;
 
+import engine.graphics.CubeMap;
 import engine.graphics.Material;
 import engine.graphics.Mesh;
-import engine.graphics.Texture;
 import engine.utilities.OBJLoader;
 
+/**
+ * The sky around the camera, a cube whose positions are used as the directions to sample a cube map with
+ */
 public class SkyBox extends Entity {
 
-    public SkyBox(String objModel, String textureFile) throws Exception {
+    private final CubeMap cubeMap;
+
+    public SkyBox(String objModel, CubeMap cubeMap) throws Exception {
         super();
+        this.cubeMap = cubeMap;
         Mesh skyBoxMesh = OBJLoader.loadMesh(objModel);
-        Texture skyBoxTexture = new Texture(textureFile);
-        skyBoxMesh.setMaterial(new Material(skyBoxTexture, 0.0f));
+        skyBoxMesh.setMaterial(new Material());
         setMesh(skyBoxMesh);
         setPosition(0, 0, 0);
     }
+
+    public CubeMap getCubeMap() {
+        return cubeMap;
+    }
 	
 }
@@ -1,97 +1,58 @@
 package engine.entities;
 
 
-import java.util.ArrayList;
-import java.util.List;
+import org.joml.Vector3f;
 
 import engine.graphics.*;
-import engine.utilities.Utils;
 
 public class TextEntity extends Entity {
 
-    private static final float ZPOS = 0.0f;
-
-    private static final int VERTICES_PER_QUAD = 4;
-
     private final FontTexture fontTexture;
     
+    private final TextMesh textMesh;
+    
+    private final Vector3f color;
+    
     private String text;
     
     public TextEntity(String text, FontTexture fontTexture) throws Exception {
         super();
         this.text = text;
         this.fontTexture = fontTexture;
-        setMesh(buildMesh());
+        this.textMesh = new TextMesh(fontTexture);
+        this.color = new Vector3f(1, 1, 1);
+        textMesh.setText(text);
     }
 
-    private Mesh buildMesh() {
-        List<Float> positions = new ArrayList<>();
-        List<Float> textCoords = new ArrayList<>();
-        float[] normals   = new float[0];
-        List<Integer> indices   = new ArrayList<>();
-        char[] characters = text.toCharArray();
-        int numChars = characters.length;
-
-        float startx = 0;
-        for(int i=0; i<numChars; i++) {
-            FontTexture.CharInfo charInfo = fontTexture.getCharInfo(characters[i]);
-            
-            // Build a character tile composed by two triangles
-            
-            // Left Top vertex
-            positions.add(startx); // x
-            positions.add(0.0f); //y
-            positions.add(ZPOS); //z
-            textCoords.add( (float)charInfo.getStartX() / (float)fontTexture.getWidth());
-            textCoords.add(0.0f);
-            indices.add(i*VERTICES_PER_QUAD);
-                        
-            // Left Bottom vertex
-            positions.add(startx); // x
-            positions.add((float)fontTexture.getHeight()); //y
-            positions.add(ZPOS); //z
-            textCoords.add((float)charInfo.getStartX() / (float)fontTexture.getWidth());
-            textCoords.add(1.0f);
-            indices.add(i*VERTICES_PER_QUAD + 1);
-
-            // Right Bottom vertex
-            positions.add(startx + charInfo.getWidth()); // x
-            positions.add((float)fontTexture.getHeight()); //y
-            positions.add(ZPOS); //z
-            textCoords.add((float)(charInfo.getStartX() + charInfo.getWidth() )/ (float)fontTexture.getWidth());
-            textCoords.add(1.0f);
-            indices.add(i*VERTICES_PER_QUAD + 2);
-
-            // Right Top vertex
-            positions.add(startx + charInfo.getWidth()); // x
-            positions.add(0.0f); //y
-            positions.add(ZPOS); //z
-            textCoords.add((float)(charInfo.getStartX() + charInfo.getWidth() )/ (float)fontTexture.getWidth());
-            textCoords.add(0.0f);
-            indices.add(i*VERTICES_PER_QUAD + 3);
-            
-            // Add indices for left top and bottom right vertices
-            indices.add(i*VERTICES_PER_QUAD);
-            indices.add(i*VERTICES_PER_QUAD + 2);
-            
-            startx += charInfo.getWidth();
-        }
-
-        float[] posArr = Utils.listToArray(positions);
-        float[] textCoordsArr = Utils.listToArray(textCoords);
-        int[] indicesArr = indices.stream().mapToInt(i->i).toArray();
-        Mesh mesh = new Mesh(posArr, textCoordsArr, normals, indicesArr);
-        mesh.setMaterial(new Material(fontTexture.getTexture()));
-        return mesh;
+    public FontTexture getFontTexture() {
+        return fontTexture;
+    }
+    
+    public TextMesh getTextMesh() {
+        return textMesh;
+    }
+    
+    /**
+     * @return The colour the glyphs are drawn with, white by default. Can be changed in place
+     */
+    public Vector3f getColor() {
+        return color;
+    }
+    
+    public void setColor(Vector3f color) {
+        this.color.set(color);
     }
     
     public String getText() {
         return text;
     }
     
+    /**
+     * Method to change the text. Only the quads of glyphs that changed are rewritten
+     * @param text String The new text
+     */
     public void setText(String text) {
         this.text = text;
-        this.getMesh().deleteBuffers();
-        this.setMesh(buildMesh());
+        textMesh.setText(text);
     }
 }
@@ -0,0 +1,190 @@
+package engine.graphics;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Pure Java encoder of the S3TC block compressed formats BC1 (DXT1, 4 bits per texel, opaque)
+ * and BC3 (DXT5, 8 bits per texel, with interpolated alpha).
+ * The image is processed in 4x4 texel blocks. The colour endpoints of a block are the corners of the bounding box
+ * of its colours, inset slightly to reduce the error of the interpolated palette entries.
+ * Encoding quality is below that of offline tools, but good enough to build the texture cache on the first run.
+ */
+public class BlockCompressor {
+
+    public static final int BC1_BLOCK_SIZE = 8;
+
+    public static final int BC3_BLOCK_SIZE = 16;
+
+    private BlockCompressor() {
+    }
+
+    /**
+     *
+     * @param width int The width of the image
+     * @param height int The height of the image
+     * @param blockSize int The number of bytes per 4x4 block, BC1_BLOCK_SIZE or BC3_BLOCK_SIZE
+     * @return int The number of bytes the compressed image takes up
+     */
+    public static int compressedSize(int width, int height, int blockSize) {
+        return ((width + 3) / 4) * ((height + 3) / 4) * blockSize;
+    }
+
+    /**
+     * Method to check whether every texel of an RGBA8 image is fully opaque, so it can be stored as BC1
+     * @param rgba ByteBuffer The tightly packed RGBA8 texels
+     * @return True if no texel has an alpha below 255
+     */
+    public static boolean isOpaque(ByteBuffer rgba) {
+        for (int i = 3; i < rgba.limit(); i += 4) {
+            if ((rgba.get(i) & 0xFF) != 0xFF) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Compresses an RGBA8 image to BC1 or BC3
+     * @param rgba ByteBuffer The tightly packed RGBA8 texels, starting at index 0
+     * @param width int The width of the image
+     * @param height int The height of the image
+     * @param withAlpha boolean True to encode BC3, false to encode BC1 and ignore the alpha channel
+     * @param dst ByteBuffer The buffer the blocks are written to, from its current position
+     */
+    public static void compress(ByteBuffer rgba, int width, int height, boolean withAlpha, ByteBuffer dst) {
+        ByteOrder order = dst.order();
+        dst.order(ByteOrder.LITTLE_ENDIAN);
+        int[] block = new int[16 * 4];
+        for (int by = 0; by < height; by += 4) {
+            for (int bx = 0; bx < width; bx += 4) {
+                fetchBlock(rgba, width, height, bx, by, block);
+                if (withAlpha) {
+                    encodeAlphaBlock(block, dst);
+                }
+                encodeColorBlock(block, dst);
+            }
+        }
+        dst.order(order);
+    }
+
+    /**
+     * Copies a 4x4 block of texels, clamping at the edges of images which are not a multiple of 4 in size
+     */
+    private static void fetchBlock(ByteBuffer rgba, int width, int height, int bx, int by, int[] block) {
+        for (int y = 0; y < 4; y++) {
+            int sy = Math.min(by + y, height - 1);
+            for (int x = 0; x < 4; x++) {
+                int sx = Math.min(bx + x, width - 1);
+                int src = (sy * width + sx) * 4;
+                int dst = (y * 4 + x) * 4;
+                block[dst] = rgba.get(src) & 0xFF;
+                block[dst + 1] = rgba.get(src + 1) & 0xFF;
+                block[dst + 2] = rgba.get(src + 2) & 0xFF;
+                block[dst + 3] = rgba.get(src + 3) & 0xFF;
+            }
+        }
+    }
+
+    private static void encodeColorBlock(int[] block, ByteBuffer dst) {
+        int minR = 255, minG = 255, minB = 255;
+        int maxR = 0, maxG = 0, maxB = 0;
+        for (int i = 0; i < 16; i++) {
+            int r = block[i * 4], g = block[i * 4 + 1], b = block[i * 4 + 2];
+            minR = Math.min(minR, r); maxR = Math.max(maxR, r);
+            minG = Math.min(minG, g); maxG = Math.max(maxG, g);
+            minB = Math.min(minB, b); maxB = Math.max(maxB, b);
+        }
+        // Inset the bounding box by 1/16 of its size, the palette then covers the colours more evenly
+        int insetR = (maxR - minR) >> 4, insetG = (maxG - minG) >> 4, insetB = (maxB - minB) >> 4;
+        minR += insetR; maxR -= insetR;
+        minG += insetG; maxG -= insetG;
+        minB += insetB; maxB -= insetB;
+
+        int c0 = toRGB565(maxR, maxG, maxB);
+        int c1 = toRGB565(minR, minG, minB);
+        if (c0 < c1) {
+            int tmp = c0;
+            c0 = c1;
+            c1 = tmp;
+        }
+
+        int indices = 0;
+        if (c0 != c1) {
+            // Four colour mode: c0, c1, 2/3 c0 + 1/3 c1, 1/3 c0 + 2/3 c1
+            int[] palette = new int[12];
+            fromRGB565(c0, palette, 0);
+            fromRGB565(c1, palette, 3);
+            for (int k = 0; k < 3; k++) {
+                palette[6 + k] = (2 * palette[k] + palette[3 + k]) / 3;
+                palette[9 + k] = (palette[k] + 2 * palette[3 + k]) / 3;
+            }
+            for (int i = 15; i >= 0; i--) {
+                int best = 0;
+                int bestDist = Integer.MAX_VALUE;
+                for (int p = 0; p < 4; p++) {
+                    int dr = block[i * 4] - palette[p * 3];
+                    int dg = block[i * 4 + 1] - palette[p * 3 + 1];
+                    int db = block[i * 4 + 2] - palette[p * 3 + 2];
+                    int dist = dr * dr + dg * dg + db * db;
+                    if (dist < bestDist) {
+                        bestDist = dist;
+                        best = p;
+                    }
+                }
+                indices = (indices << 2) | best;
+            }
+        }
+
+        dst.putShort((short) c0);
+        dst.putShort((short) c1);
+        dst.putInt(indices);
+    }
+
+    private static void encodeAlphaBlock(int[] block, ByteBuffer dst) {
+        int minA = 255, maxA = 0;
+        for (int i = 0; i < 16; i++) {
+            int a = block[i * 4 + 3];
+            minA = Math.min(minA, a);
+            maxA = Math.max(maxA, a);
+        }
+        dst.put((byte) maxA);
+        dst.put((byte) minA);
+
+        // Eight alpha mode (a0 > a1): a0, a1 and six values interpolated in between
+        long indices = 0;
+        if (maxA > minA) {
+            int range = maxA - minA;
+            for (int i = 15; i >= 0; i--) {
+                int a = block[i * 4 + 3];
+                // Position between min and max in steps of 1/7, 0 = maxA and 7 = minA
+                int step = ((maxA - a) * 7 + range / 2) / range;
+                int index;
+                if (step == 0) {
+                    index = 0;
+                } else if (step == 7) {
+                    index = 1;
+                } else {
+                    index = step + 1;
+                }
+                indices = (indices << 3) | index;
+            }
+        }
+        for (int i = 0; i < 6; i++) {
+            dst.put((byte) (indices >>> (8 * i)));
+        }
+    }
+
+    private static int toRGB565(int r, int g, int b) {
+        return ((r * 31 + 127) / 255) << 11 | ((g * 63 + 127) / 255) << 5 | ((b * 31 + 127) / 255);
+    }
+
+    private static void fromRGB565(int c, int[] out, int offset) {
+        int r = (c >> 11) & 0x1F;
+        int g = (c >> 5) & 0x3F;
+        int b = c & 0x1F;
+        out[offset] = (r << 3) | (r >> 2);
+        out[offset + 1] = (g << 2) | (g >> 4);
+        out[offset + 2] = (b << 3) | (b >> 2);
+    }
+}
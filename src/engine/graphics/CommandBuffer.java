@@ -0,0 +1,204 @@
+package engine.graphics;
+
+import static org.lwjgl.opengl.GL20.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+import org.joml.Vector4f;
+import org.lwjgl.system.MemoryUtil;
+
+/**
+ * A list of draw commands recorded into off-heap memory without touching OpenGL, so any thread can fill one,
+ * and replayed later on the thread owning the GL context.
+ * Every command is an int opcode followed by its arguments. Uniforms are recorded with their location and packed
+ * value, programs and meshes as an index into a list of referenced objects.
+ * A buffer must only be recorded by one thread at a time, and not be replayed while it is recorded.
+ */
+public class CommandBuffer {
+
+    private static final int BIND_PROGRAM = 1;
+
+    private static final int UNIFORM_INT = 2;
+
+    private static final int UNIFORM_FLOAT = 3;
+
+    private static final int UNIFORM_VEC3 = 4;
+
+    private static final int UNIFORM_VEC4 = 5;
+
+    private static final int UNIFORM_MAT4 = 6;
+
+    private static final int BEGIN_MESH = 7;
+
+    private static final int DRAW_MESH = 8;
+
+    private static final int END_MESH = 9;
+
+    private static final int INITIAL_SIZE = 16 * 1024;
+
+    private final List<Object> objects;
+
+    private ByteBuffer commands;
+
+    public CommandBuffer() {
+        objects = new ArrayList<>();
+        commands = MemoryUtil.memAlloc(INITIAL_SIZE);
+    }
+
+    /**
+     * Method to forget the recorded commands, keeping the memory for the next recording
+     */
+    public void reset() {
+        commands.clear();
+        objects.clear();
+    }
+
+    public boolean isEmpty() {
+        return commands.position() == 0;
+    }
+
+    public void bindProgram(ShaderProgram shaderProgram) {
+        reserve(8);
+        commands.putInt(BIND_PROGRAM).putInt(reference(shaderProgram));
+    }
+
+    public void setUniform(ShaderProgram shaderProgram, String uniformName, int value) {
+        reserve(12);
+        commands.putInt(UNIFORM_INT).putInt(shaderProgram.getUniformLocation(uniformName)).putInt(value);
+    }
+
+    public void setUniform(ShaderProgram shaderProgram, String uniformName, float value) {
+        reserve(12);
+        commands.putInt(UNIFORM_FLOAT).putInt(shaderProgram.getUniformLocation(uniformName)).putFloat(value);
+    }
+
+    public void setUniform(ShaderProgram shaderProgram, String uniformName, Vector3f value) {
+        reserve(20);
+        commands.putInt(UNIFORM_VEC3).putInt(shaderProgram.getUniformLocation(uniformName))
+                .putFloat(value.x).putFloat(value.y).putFloat(value.z);
+    }
+
+    public void setUniform(ShaderProgram shaderProgram, String uniformName, Vector4f value) {
+        reserve(24);
+        commands.putInt(UNIFORM_VEC4).putInt(shaderProgram.getUniformLocation(uniformName))
+                .putFloat(value.x).putFloat(value.y).putFloat(value.z).putFloat(value.w);
+    }
+
+    public void setUniform(ShaderProgram shaderProgram, String uniformName, Matrix4f value) {
+        reserve(8 + 64);
+        commands.putInt(UNIFORM_MAT4).putInt(shaderProgram.getUniformLocation(uniformName));
+        value.get(commands.position(), commands);
+        commands.position(commands.position() + 64);
+    }
+
+    /**
+     * Method to record the uniforms of a material, the same ones ShaderProgram.setUniform(String, Material) sets
+     */
+    public void setUniform(ShaderProgram shaderProgram, String uniformName, Material material) {
+        if (shaderProgram.hasUniform(uniformName + ".color")) {
+            setUniform(shaderProgram, uniformName + ".color", material.getColor());
+        }
+        setUniform(shaderProgram, uniformName + ".reflectance", material.getReflectance());
+        if (shaderProgram.hasUniform(uniformName + ".uvRect")) {
+            setUniform(shaderProgram, uniformName + ".uvRect", material.getUvRect());
+        }
+    }
+
+    /**
+     * Method to bind the vertex array and texture of a mesh, for the drawMesh() calls up to the next endMesh()
+     */
+    public void beginMesh(Mesh mesh) {
+        reserve(8);
+        commands.putInt(BEGIN_MESH).putInt(reference(mesh));
+    }
+
+    public void drawMesh(Mesh mesh) {
+        reserve(8);
+        commands.putInt(DRAW_MESH).putInt(reference(mesh));
+    }
+
+    public void endMesh(Mesh mesh) {
+        reserve(8);
+        commands.putInt(END_MESH).putInt(reference(mesh));
+    }
+
+    /**
+     * Method to replay the recorded commands. Has to be called on the thread owning the GL context.
+     * The commands stay recorded, so a buffer can be replayed several times
+     */
+    public void execute() {
+        int end = commands.position();
+        int offset = 0;
+        while (offset < end) {
+            int opcode = commands.getInt(offset);
+            switch (opcode) {
+            case BIND_PROGRAM:
+                ((ShaderProgram) objects.get(commands.getInt(offset + 4))).bind();
+                offset += 8;
+                break;
+            case UNIFORM_INT:
+                glUniform1i(commands.getInt(offset + 4), commands.getInt(offset + 8));
+                offset += 12;
+                break;
+            case UNIFORM_FLOAT:
+                glUniform1f(commands.getInt(offset + 4), commands.getFloat(offset + 8));
+                offset += 12;
+                break;
+            case UNIFORM_VEC3:
+                glUniform3f(commands.getInt(offset + 4), commands.getFloat(offset + 8), commands.getFloat(offset + 12),
+                        commands.getFloat(offset + 16));
+                offset += 20;
+                break;
+            case UNIFORM_VEC4:
+                glUniform4f(commands.getInt(offset + 4), commands.getFloat(offset + 8), commands.getFloat(offset + 12),
+                        commands.getFloat(offset + 16), commands.getFloat(offset + 20));
+                offset += 24;
+                break;
+            case UNIFORM_MAT4:
+                nglUniformMatrix4fv(commands.getInt(offset + 4), 1, false, MemoryUtil.memAddress(commands, offset + 8));
+                offset += 8 + 64;
+                break;
+            case BEGIN_MESH:
+                ((Mesh) objects.get(commands.getInt(offset + 4))).initRender();
+                offset += 8;
+                break;
+            case DRAW_MESH:
+                ((Mesh) objects.get(commands.getInt(offset + 4))).drawElements();
+                offset += 8;
+                break;
+            case END_MESH:
+                ((Mesh) objects.get(commands.getInt(offset + 4))).endRender();
+                offset += 8;
+                break;
+            default:
+                throw new IllegalStateException("Unknown command " + opcode + " at " + offset);
+            }
+        }
+    }
+
+    /**
+     * @return The index of an object in the reference list, adding it unless it is the last one added
+     */
+    private int reference(Object object) {
+        int last = objects.size() - 1;
+        if (last >= 0 && objects.get(last) == object) {
+            return last;
+        }
+        objects.add(object);
+        return last + 1;
+    }
+
+    private void reserve(int bytes) {
+        if (commands.remaining() < bytes) {
+            commands = MemoryUtil.memRealloc(commands, Math.max(commands.capacity() * 2, commands.position() + bytes));
+        }
+    }
+
+    public void cleanup() {
+        MemoryUtil.memFree(commands);
+    }
+}
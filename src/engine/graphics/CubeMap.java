@@ -0,0 +1,39 @@
+package engine.graphics;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL13.GL_TEXTURE_CUBE_MAP;
+
+/**
+ * A cube map texture, sampled with a direction instead of texture coordinates. Created by the TextureCache from six
+ * square faces, in the order of GL_TEXTURE_CUBE_MAP_POSITIVE_X + i
+ */
+public class CubeMap {
+
+    private final int id;
+
+    private final int size;
+
+    CubeMap(int id, int size) {
+        this.id = id;
+        this.size = size;
+    }
+
+    public void bind() {
+        glBindTexture(GL_TEXTURE_CUBE_MAP, id);
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * @return The width and height of every face
+     */
+    public int getSize() {
+        return size;
+    }
+
+    public void cleanup() {
+        glDeleteTextures(id);
+    }
+}
@@ -0,0 +1,314 @@
+package engine.graphics;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL20.*;
+import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL31.*;
+import static org.lwjgl.opengl.GL32.*;
+import static org.lwjgl.opengl.GL33.*;
+
+import org.joml.Matrix4f;
+import org.joml.Vector2f;
+import org.joml.Vector3f;
+import org.joml.Vector4f;
+import org.lwjgl.system.MemoryUtil;
+
+import engine.graphics.lights.DirectionalLight;
+import engine.graphics.lights.PointLight;
+import engine.graphics.lights.SceneLight;
+import engine.graphics.lights.SpotLight;
+import engine.utilities.Utils;
+
+/**
+ * Light pass of the deferred pipeline, shading the surfaces stored in a GBuffer into the default framebuffer.
+ * A fullscreen triangle adds the ambient and the directional light, and writes the depth of the scene so everything
+ * drawn afterwards is depth tested against it. Point and spot lights are drawn as instanced sphere volumes
+ * sized by their range, with additive blending; only their back faces are rasterized, and only where the scene surface
+ * lies in front of them, so every light only shades the pixels it can reach.
+ */
+public class DeferredLighting {
+
+    /**
+     * Per light instance: (position, range), (color, intensity), (constant, linear, exponent, cutOff), (cone direction, spot)
+     */
+    private static final int INSTANCE_FLOATS = 16;
+
+    private final ShaderProgram directionalShaderProgram;
+
+    private final ShaderProgram volumeShaderProgram;
+
+    private final int fullscreenVaoId;
+
+    private final int volumeVaoId;
+
+    private final List<Integer> vboIdList;
+
+    private final int instanceVboId;
+
+    private final int volumeIndexCount;
+
+    private final Matrix4f invProjectionMatrix;
+
+    private final Vector2f screenSize;
+
+    private final Vector4f aux;
+
+    private final ShadowCascades shadowCascades;
+
+    private FloatBuffer instances;
+
+    /**
+     * @param shaderCache ShaderCache The cache the lighting programs are loaded from, or null to always build them
+     * @param shadowCascades ShadowCascades The shadow maps of the directional light
+     */
+    public DeferredLighting(ShaderCache shaderCache, ShadowCascades shadowCascades) throws Exception {
+        this.shadowCascades = shadowCascades;
+        vboIdList = new ArrayList<>();
+        invProjectionMatrix = new Matrix4f();
+        screenSize = new Vector2f();
+        aux = new Vector4f();
+
+        directionalShaderProgram = new ShaderProgram(shaderCache);
+        directionalShaderProgram.createVertexShader(Utils.loadResource("/resources/shaders/deferred_vertex.vs"));
+        directionalShaderProgram.createFragmentShader(Utils.loadResource("/resources/shaders/deferred_directional.fs"));
+        directionalShaderProgram.link();
+        createGBufferUniforms(directionalShaderProgram);
+        directionalShaderProgram.createUniform("ambientLight");
+        directionalShaderProgram.createDirectionalLight("directionalLight");
+        shadowCascades.createUniforms(directionalShaderProgram);
+
+        volumeShaderProgram = new ShaderProgram(shaderCache);
+        volumeShaderProgram.createVertexShader(Utils.loadResource("/resources/shaders/deferred_light_vertex.vs"));
+        volumeShaderProgram.createFragmentShader(Utils.loadResource("/resources/shaders/deferred_light_fragment.fs"));
+        volumeShaderProgram.link();
+        createGBufferUniforms(volumeShaderProgram);
+        volumeShaderProgram.createUniform("projectionMatrix");
+
+        // The fullscreen triangle is generated from gl_VertexID, the VAO only has to exist
+        fullscreenVaoId = glGenVertexArrays();
+
+        float[] positions = buildSphere();
+        int[] indices = new int[positions.length / 3];
+        for (int i = 0; i < indices.length; i++) {
+            indices[i] = i;
+        }
+        volumeIndexCount = indices.length;
+        volumeVaoId = glGenVertexArrays();
+        glBindVertexArray(volumeVaoId);
+        int posVboId = glGenBuffers();
+        vboIdList.add(posVboId);
+        glBindBuffer(GL_ARRAY_BUFFER, posVboId);
+        glBufferData(GL_ARRAY_BUFFER, positions, GL_STATIC_DRAW);
+        glVertexAttribPointer(0, 3, GL_FLOAT, false, 0, 0);
+        glEnableVertexAttribArray(0);
+        int idxVboId = glGenBuffers();
+        vboIdList.add(idxVboId);
+        glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, idxVboId);
+        glBufferData(GL_ELEMENT_ARRAY_BUFFER, indices, GL_STATIC_DRAW);
+
+        instanceVboId = glGenBuffers();
+        vboIdList.add(instanceVboId);
+        glBindBuffer(GL_ARRAY_BUFFER, instanceVboId);
+        for (int i = 0; i < 4; i++) {
+            glVertexAttribPointer(1 + i, 4, GL_FLOAT, false, INSTANCE_FLOATS * 4, i * 16);
+            glVertexAttribDivisor(1 + i, 1);
+            glEnableVertexAttribArray(1 + i);
+        }
+        glBindBuffer(GL_ARRAY_BUFFER, 0);
+        glBindVertexArray(0);
+
+        instances = MemoryUtil.memAllocFloat(64 * INSTANCE_FLOATS);
+    }
+
+    private static void createGBufferUniforms(ShaderProgram shaderProgram) throws Exception {
+        shaderProgram.createUniform("albedo_sampler");
+        shaderProgram.createUniform("normal_sampler");
+        shaderProgram.createUniform("depth_sampler");
+        shaderProgram.createUniform("invProjectionMatrix");
+        shaderProgram.createUniform("screenSize");
+        shaderProgram.createUniform("specularPower");
+    }
+
+    private void setGBufferUniforms(ShaderProgram shaderProgram, float specularPower) {
+        shaderProgram.setUniform("albedo_sampler", GBuffer.ALBEDO_UNIT);
+        shaderProgram.setUniform("normal_sampler", GBuffer.NORMAL_UNIT);
+        shaderProgram.setUniform("depth_sampler", GBuffer.DEPTH_UNIT);
+        shaderProgram.setUniform("invProjectionMatrix", invProjectionMatrix);
+        shaderProgram.setUniform("screenSize", screenSize);
+        shaderProgram.setUniform("specularPower", specularPower);
+    }
+
+    /**
+     * Builds an icosahedron subdivided once, as a triangle list scaled so its faces enclose the unit sphere
+     */
+    private static float[] buildSphere() {
+        float t = (float) ((1.0 + Math.sqrt(5.0)) / 2.0);
+        float[][] v = {
+            { -1, t, 0 }, { 1, t, 0 }, { -1, -t, 0 }, { 1, -t, 0 },
+            { 0, -1, t }, { 0, 1, t }, { 0, -1, -t }, { 0, 1, -t },
+            { t, 0, -1 }, { t, 0, 1 }, { -t, 0, -1 }, { -t, 0, 1 }
+        };
+        int[] faces = {
+            0, 11, 5, 0, 5, 1, 0, 1, 7, 0, 7, 10, 0, 10, 11,
+            1, 5, 9, 5, 11, 4, 11, 10, 2, 10, 7, 6, 7, 1, 8,
+            3, 9, 4, 3, 4, 2, 3, 2, 6, 3, 6, 8, 3, 8, 9,
+            4, 9, 5, 2, 4, 11, 6, 2, 10, 8, 6, 7, 9, 8, 1
+        };
+        List<Vector3f> triangles = new ArrayList<>();
+        for (int i = 0; i < faces.length; i += 3) {
+            Vector3f a = new Vector3f(v[faces[i]][0], v[faces[i]][1], v[faces[i]][2]).normalize();
+            Vector3f b = new Vector3f(v[faces[i + 1]][0], v[faces[i + 1]][1], v[faces[i + 1]][2]).normalize();
+            Vector3f c = new Vector3f(v[faces[i + 2]][0], v[faces[i + 2]][1], v[faces[i + 2]][2]).normalize();
+            Vector3f ab = new Vector3f(a).add(b).normalize();
+            Vector3f bc = new Vector3f(b).add(c).normalize();
+            Vector3f ca = new Vector3f(c).add(a).normalize();
+            Vector3f[] sub = { a, ab, ca, ab, b, bc, ca, bc, c, ab, bc, ca };
+            for (Vector3f p : sub) {
+                triangles.add(p);
+            }
+        }
+
+        // The closest point of a face to the centre decides how far the vertices have to be pushed out
+        float minDistance = 1;
+        for (int i = 0; i < triangles.size(); i += 3) {
+            Vector3f a = triangles.get(i), b = triangles.get(i + 1), c = triangles.get(i + 2);
+            Vector3f normal = new Vector3f(b).sub(a).cross(new Vector3f(c).sub(a)).normalize();
+            minDistance = Math.min(minDistance, Math.abs(normal.dot(a)));
+        }
+        float[] positions = new float[triangles.size() * 3];
+        for (int i = 0; i < triangles.size(); i++) {
+            Vector3f p = triangles.get(i);
+            positions[i * 3] = p.x / minDistance;
+            positions[i * 3 + 1] = p.y / minDistance;
+            positions[i * 3 + 2] = p.z / minDistance;
+        }
+        return positions;
+    }
+
+    /**
+     * Method to shade the G-buffer into the default framebuffer, which has to be bound and cleared
+     * @param gBuffer GBuffer The surfaces written by the geometry pass
+     * @param sceneLight SceneLight The lights of the scene
+     * @param projectionMatrix Matrix4f The projection matrix of the frame
+     * @param viewMatrix Matrix4f The view matrix of the frame
+     * @param specularPower float The specular power of all surfaces
+     * @param zFar float The distance of the far plane, bounding lights without falloff
+     */
+    public void render(GBuffer gBuffer, SceneLight sceneLight, Matrix4f projectionMatrix, Matrix4f viewMatrix,
+            float specularPower, float zFar) {
+        projectionMatrix.invert(invProjectionMatrix);
+        screenSize.set(gBuffer.getWidth(), gBuffer.getHeight());
+        gBuffer.bindTextures();
+
+        // Ambient and directional light, also restores the depth of the scene
+        glDepthFunc(GL_ALWAYS);
+        glDisable(GL_BLEND);
+        directionalShaderProgram.bind();
+        setGBufferUniforms(directionalShaderProgram, specularPower);
+        directionalShaderProgram.setUniform("ambientLight", sceneLight.getAmbientLight());
+        DirectionalLight currDirLight = new DirectionalLight(sceneLight.getDirectionalLight());
+        Vector4f dir = new Vector4f(currDirLight.getDirection(), 0);
+        dir.mul(viewMatrix);
+        currDirLight.setDirection(new Vector3f(dir.x, dir.y, dir.z));
+        directionalShaderProgram.setUniform("directionalLight", currDirLight);
+        shadowCascades.setUniforms(directionalShaderProgram);
+        glBindVertexArray(fullscreenVaoId);
+        glDrawArrays(GL_TRIANGLES, 0, 3);
+        directionalShaderProgram.unbind();
+
+        int lightCount = fillInstances(sceneLight, viewMatrix, zFar);
+        if (lightCount > 0) {
+            // Back faces of the volumes behind the scene surface, clamped instead of clipped at the far plane
+            glDepthFunc(GL_GEQUAL);
+            glDepthMask(false);
+            glCullFace(GL_FRONT);
+            glEnable(GL_DEPTH_CLAMP);
+            glEnable(GL_BLEND);
+            glBlendFunc(GL_ONE, GL_ONE);
+
+            volumeShaderProgram.bind();
+            setGBufferUniforms(volumeShaderProgram, specularPower);
+            volumeShaderProgram.setUniform("projectionMatrix", projectionMatrix);
+            glBindVertexArray(volumeVaoId);
+            glBindBuffer(GL_ARRAY_BUFFER, instanceVboId);
+            glBufferData(GL_ARRAY_BUFFER, instances, GL_STREAM_DRAW);
+            glBindBuffer(GL_ARRAY_BUFFER, 0);
+            glDrawElementsInstanced(GL_TRIANGLES, volumeIndexCount, GL_UNSIGNED_INT, 0, lightCount);
+            volumeShaderProgram.unbind();
+
+            glBlendFunc(GL_SRC_ALPHA, GL_ONE_MINUS_SRC_ALPHA);
+            glDisable(GL_DEPTH_CLAMP);
+            glCullFace(GL_BACK);
+            glDepthMask(true);
+        }
+        glBindVertexArray(0);
+        glEnable(GL_BLEND);
+        glDepthFunc(GL_LESS);
+    }
+
+    /**
+     * Writes the view space data of every point and spot light with a range into the instance buffer
+     */
+    private int fillInstances(SceneLight sceneLight, Matrix4f viewMatrix, float zFar) {
+        List<PointLight> pointLights = sceneLight.getPointLights();
+        List<SpotLight> spotLights = sceneLight.getSpotLights();
+        int maxLights = (pointLights != null ? pointLights.size() : 0) + (spotLights != null ? spotLights.size() : 0);
+        if (instances.capacity() < maxLights * INSTANCE_FLOATS) {
+            instances = MemoryUtil.memRealloc(instances, maxLights * INSTANCE_FLOATS);
+        }
+        instances.clear();
+
+        int count = 0;
+        if (pointLights != null) {
+            for (PointLight light : pointLights) {
+                count += putLight(light, null, viewMatrix, zFar);
+            }
+        }
+        if (spotLights != null) {
+            for (SpotLight light : spotLights) {
+                count += putLight(light.getPointLight(), light, viewMatrix, zFar);
+            }
+        }
+        instances.flip();
+        return count;
+    }
+
+    private int putLight(PointLight light, SpotLight spotLight, Matrix4f viewMatrix, float zFar) {
+        float range = LightClusters.lightRange(light, zFar);
+        if (range <= 0) {
+            return 0;
+        }
+        aux.set(light.getPosition(), 1).mul(viewMatrix);
+        instances.put(aux.x).put(aux.y).put(aux.z).put(range);
+        Vector3f color = light.getColor();
+        instances.put(color.x).put(color.y).put(color.z).put(light.getIntensity());
+        PointLight.Attenuation att = light.getAttenuation();
+        instances.put(att.getConstant()).put(att.getLinear()).put(att.getExponent())
+                .put(spotLight != null ? spotLight.getCutOff() : 0);
+        if (spotLight != null) {
+            aux.set(spotLight.getConeDirection(), 0).mul(viewMatrix);
+            instances.put(aux.x).put(aux.y).put(aux.z).put(1);
+        } else {
+            instances.put(0).put(0).put(0).put(0);
+        }
+        return 1;
+    }
+
+    public void cleanup() {
+        directionalShaderProgram.cleanup();
+        volumeShaderProgram.cleanup();
+        glBindBuffer(GL_ARRAY_BUFFER, 0);
+        for (int vboId : vboIdList) {
+            glDeleteBuffers(vboId);
+        }
+        glBindVertexArray(0);
+        glDeleteVertexArrays(volumeVaoId);
+        glDeleteVertexArrays(fullscreenVaoId);
+        MemoryUtil.memFree(instances);
+    }
+}
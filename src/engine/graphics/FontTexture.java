@@ -1,129 +1,402 @@
 package engine.graphics;
 
 import java.awt.*;
+import java.awt.font.FontRenderContext;
+import java.awt.font.GlyphVector;
+import java.awt.font.TextAttribute;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.InputStream;
+import java.awt.image.DataBufferByte;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
-import javax.imageio.ImageIO;
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL30.GL_R8;
 
+import org.lwjgl.system.MemoryUtil;
+
+/**
+ * Signed distance field glyph atlas of a font.
+ * Glyphs are rasterized lazily the first time they are asked for, converted to a distance field and packed into
+ * an atlas page with a SkylinePacker. When no page has room left for a glyph, another page is allocated. The page has a single GL_R8 channel holding the distance to the outline: 0.5
+ * on the outline, above inside the glyph and below outside, so the HUD shader can draw sharp edges at any scale.
+ */
 public class FontTexture {
 
+	/**
+	 * Placement of a glyph in the atlas and on screen, in pixels of the font size relative to the pen position
+	 * at the top of the line
+	 */
 	public static class CharInfo {
 
-		private final int startX;
+		private final float u0, v0, u1, v1;
+
+		private final float xOffset, yOffset;
+
+		private final float quadWidth, quadHeight;
+
+		private final float advance;
+
+		private final int page;
 
-		private final int width;
+		public CharInfo(float u0, float v0, float u1, float v1, float xOffset, float yOffset, float quadWidth,
+				float quadHeight, float advance, int page) {
+			this.u0 = u0;
+			this.v0 = v0;
+			this.u1 = u1;
+			this.v1 = v1;
+			this.xOffset = xOffset;
+			this.yOffset = yOffset;
+			this.quadWidth = quadWidth;
+			this.quadHeight = quadHeight;
+			this.advance = advance;
+			this.page = page;
+		}
+
+		public float getU0() {
+			return u0;
+		}
+
+		public float getV0() {
+			return v0;
+		}
 
-		public CharInfo(int startX, int width) {
-			this.startX = startX;
-			this.width = width;
+		public float getU1() {
+			return u1;
 		}
 
-		public int getStartX() {
-			return startX;
+		public float getV1() {
+			return v1;
 		}
 
-		public int getWidth() {
-			return width;
+		public float getXOffset() {
+			return xOffset;
+		}
+
+		public float getYOffset() {
+			return yOffset;
+		}
+
+		public float getQuadWidth() {
+			return quadWidth;
+		}
+
+		public float getQuadHeight() {
+			return quadHeight;
+		}
+
+		/**
+		 * @return The horizontal distance to the next glyph, without kerning
+		 */
+		public float getAdvance() {
+			return advance;
+		}
+
+		/**
+		 * @return The atlas page holding the glyph
+		 */
+		public int getPage() {
+			return page;
 		}
 	}
 
-	private final String IMAGE_FORMAT = "png";
+	/**
+	 * Distance, in pixels of the font size, covered by the field on either side of the outline
+	 */
+	private static final int SPREAD = 4;
+
+	/**
+	 * Glyphs are rasterized at this multiple of the font size, so the field is computed with sub-pixel precision
+	 */
+	private static final int UPSCALE = 4;
+
+	private static final int DEFAULT_PAGE_SIZE = 1024;
+
+	private static final char REPLACEMENT_CHAR = '?';
+
+	/**
+	 * Glyphs are looked up in pages of 256 characters, allocated when a character of the page is first used
+	 */
+	private static final int PAGE_BITS = 8;
+
+	private static final int PAGE_SIZE = 1 << PAGE_BITS;
+
+	/**
+	 * Kerning is cached for pairs of characters below this code point
+	 */
+	private static final int KERNING_CHARS = 256;
 
 	private final Font font;
 
-	private final String charSetName;
+	private final CharsetEncoder encoder;
 
-	private final Map<Character, CharInfo> charMap;
+	private final FontRenderContext renderContext;
 
-	private Texture texture;
+	private final CharInfo[][] charPages;
 
-	private int width;
+	private final float[] kerningTable;
 
-	private int height;
+	private final int pageSize;
 
-	public FontTexture(Font font, String charSetName) throws Exception {
-		this.font = font;
-		this.charSetName = charSetName;
-		charMap = new HashMap<>();
+	private final List<Texture> pages;
+
+	private final List<SkylinePacker> packers;
 
-		buildTexture();
+	private final int ascent;
+
+	private final int height;
+
+	public FontTexture(Font font, String charSetName) throws Exception {
+		this(font, charSetName, DEFAULT_PAGE_SIZE);
 	}
 
-	private void buildTexture() throws Exception {
-		// Get the font metrics for each character for the selected font by
-		// using image
+	/**
+	 * @param font Font The font to rasterize
+	 * @param charSetName String Characters outside of this charset are drawn as '?'
+	 * @param pageSize int The width and height of every atlas page
+	 */
+	public FontTexture(Font font, String charSetName, int pageSize) throws Exception {
+		Map<TextAttribute, Object> attributes = new HashMap<>();
+		attributes.put(TextAttribute.KERNING, TextAttribute.KERNING_ON);
+		this.font = font.deriveFont(attributes);
+		this.encoder = Charset.forName(charSetName).newEncoder();
+		this.renderContext = new FontRenderContext(new AffineTransform(), true, true);
+		this.charPages = new CharInfo[(Character.MAX_VALUE + 1) >> PAGE_BITS][];
+		this.kerningTable = new float[KERNING_CHARS * KERNING_CHARS];
+		Arrays.fill(kerningTable, Float.NaN);
+
 		BufferedImage img = new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB);
 		Graphics2D g2D = img.createGraphics();
-		g2D.setFont(font);
+		g2D.setFont(this.font);
 		FontMetrics fontMetrics = g2D.getFontMetrics();
+		this.ascent = fontMetrics.getAscent();
+		this.height = fontMetrics.getHeight();
+		g2D.dispose();
+
+		this.pageSize = pageSize;
+		this.pages = new ArrayList<>();
+		this.packers = new ArrayList<>();
+		addPage();
+	}
+
+	private void addPage() {
+		Texture page = new Texture(pageSize, pageSize, GL_R8, GL_RED);
+		// The distance field has to be interpolated to get smooth edges
+		page.bind();
+		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR);
+		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
+		glBindTexture(GL_TEXTURE_2D, 0);
+		pages.add(page);
+		packers.add(new SkylinePacker(pageSize, pageSize));
+	}
 
-		String allChars = getAllAvailableChars(charSetName);
-		this.width = 0;
-		this.height = 0;
-		for (char c : allChars.toCharArray()) {
-			// Get the size for each character and update global image size
-			CharInfo charInfo = new CharInfo(width, fontMetrics.charWidth(c));
-			charMap.put(c, charInfo);
-			width += charInfo.getWidth();
-			height = Math.max(height, fontMetrics.getHeight());
+	/**
+	 * Method to get the placement of a glyph, rasterizing it into the atlas on first use.
+	 * Has to be called from the thread owning the GL context
+	 * @param c char The character
+	 * @return CharInfo The glyph of the character, or of '?' if it is not in the charset
+	 * @throws IllegalStateException If the glyph is larger than an atlas page
+	 */
+	public CharInfo getCharInfo(char c) {
+		CharInfo[] page = charPages[c >>> PAGE_BITS];
+		if (page == null) {
+			page = new CharInfo[PAGE_SIZE];
+			charPages[c >>> PAGE_BITS] = page;
+		}
+		CharInfo charInfo = page[c & (PAGE_SIZE - 1)];
+		if (charInfo == null) {
+			charInfo = encoder.canEncode(c) ? buildGlyph(c) : null;
+			if (charInfo == null) {
+				charInfo = c != REPLACEMENT_CHAR ? getCharInfo(REPLACEMENT_CHAR) : new CharInfo(0, 0, 0, 0, 0, 0, 0, 0, 0, 0);
+			}
+			page[c & (PAGE_SIZE - 1)] = charInfo;
 		}
+		return charInfo;
+	}
 
-		g2D.dispose();
+	/**
+	 * Method to get the adjustment of the space between two characters
+	 * @param left char The first character
+	 * @param right char The character following it
+	 * @return float The offset added to the advance of the first character
+	 */
+	public float getKerning(char left, char right) {
+		if (left < KERNING_CHARS && right < KERNING_CHARS) {
+			int index = left * KERNING_CHARS + right;
+			float kerning = kerningTable[index];
+			if (Float.isNaN(kerning)) {
+				kerning = computeKerning(left, right);
+				kerningTable[index] = kerning;
+			}
+			return kerning;
+		}
+		return computeKerning(left, right);
+	}
 
-		// Create the image associated to the charset
-		img = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
-		g2D = img.createGraphics();
-		g2D.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-		g2D.setFont(font);
-		fontMetrics = g2D.getFontMetrics();
-		g2D.setColor(Color.WHITE);
-		g2D.drawString(allChars, 0, fontMetrics.getAscent());
+	private float computeKerning(char left, char right) {
+		char[] pair = new char[] { left, right };
+		GlyphVector kerned = font.layoutGlyphVector(renderContext, pair, 0, 2, Font.LAYOUT_LEFT_TO_RIGHT);
+		if (kerned.getNumGlyphs() != 2) {
+			return 0;
+		}
+		GlyphVector plain = font.createGlyphVector(renderContext, pair);
+		return (float) (kerned.getGlyphPosition(1).getX() - plain.getGlyphPosition(1).getX());
+	}
+
+	/**
+	 * Method to compute the horizontal pen positions of every character of a text, including kerning.
+	 * Allocates nothing once the glyphs and kerning pairs of the text have been cached
+	 * @param text CharSequence The text to lay out
+	 * @param positions float[] Receives the x position of every character, has to be at least as long as the text
+	 */
+	public void layout(CharSequence text, float[] positions) {
+		float x = 0;
+		int length = text.length();
+		for (int i = 0; i < length; i++) {
+			char c = text.charAt(i);
+			positions[i] = x;
+			x += getCharInfo(c).getAdvance();
+			if (i + 1 < length) {
+				x += getKerning(c, text.charAt(i + 1));
+			}
+		}
+	}
+
+	private CharInfo buildGlyph(char c) {
+		GlyphVector glyphVector = font.createGlyphVector(renderContext, new char[] { c });
+		float advance = glyphVector.getGlyphMetrics(0).getAdvanceX();
+		Shape outline = glyphVector.getOutline();
+		Rectangle2D bounds = outline.getBounds2D();
+		if (bounds.isEmpty()) {
+			// Whitespace, nothing to draw
+			return new CharInfo(0, 0, 0, 0, 0, 0, 0, 0, advance, 0);
+		}
+
+		int originX = (int) Math.floor(bounds.getX()) - SPREAD;
+		int originY = (int) Math.floor(bounds.getY()) - SPREAD;
+		int glyphWidth = (int) Math.ceil(bounds.getMaxX()) + SPREAD - originX;
+		int glyphHeight = (int) Math.ceil(bounds.getMaxY()) + SPREAD - originY;
 
+		if (glyphWidth > pageSize || glyphHeight > pageSize) {
+			throw new IllegalStateException("Glyph '" + c + "' of " + glyphWidth + "x" + glyphHeight
+					+ " does not fit into an atlas page of " + pageSize + "x" + pageSize);
+		}
+		int page = 0;
+		Rectangle rect = packers.get(page).insert(glyphWidth, glyphHeight);
+		while (rect == null) {
+			page++;
+			if (page == pages.size()) {
+				addPage();
+			}
+			rect = packers.get(page).insert(glyphWidth, glyphHeight);
+		}
+		Texture texture = pages.get(page);
+
+		byte[] coverage = rasterize(outline, originX, originY, glyphWidth * UPSCALE, glyphHeight * UPSCALE);
+		ByteBuffer pixels = MemoryUtil.memAlloc(glyphWidth * glyphHeight);
+		try {
+			buildDistanceField(coverage, glyphWidth, glyphHeight, pixels);
+			texture.bind();
+			glPixelStorei(GL_UNPACK_ALIGNMENT, 1);
+			glTexSubImage2D(GL_TEXTURE_2D, 0, rect.x, rect.y, glyphWidth, glyphHeight, GL_RED, GL_UNSIGNED_BYTE, pixels);
+			glBindTexture(GL_TEXTURE_2D, 0);
+		} finally {
+			MemoryUtil.memFree(pixels);
+		}
+
+		float pageWidth = texture.getWidth();
+		float pageHeight = texture.getHeight();
+		return new CharInfo(rect.x / pageWidth, rect.y / pageHeight, (rect.x + glyphWidth) / pageWidth,
+				(rect.y + glyphHeight) / pageHeight, originX, ascent + originY, glyphWidth, glyphHeight, advance, page);
+	}
+
+	/**
+	 * Draws the outline at UPSCALE times the font size into a grayscale raster, and returns the raster directly
+	 */
+	private byte[] rasterize(Shape outline, int originX, int originY, int width, int height) {
+		BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+		Graphics2D g2D = img.createGraphics();
+		g2D.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_OFF);
+		g2D.scale(UPSCALE, UPSCALE);
+		g2D.translate(-originX, -originY);
+		g2D.setColor(Color.WHITE);
+		g2D.fill(outline);
 		g2D.dispose();
-		
-	    // Dump image to a byte buffer
-	    InputStream is;
-	    try (
-	        ByteArrayOutputStream out = new ByteArrayOutputStream()) {
-	        ImageIO.write(img, IMAGE_FORMAT, out);
-	        out.flush();
-	        is = new ByteArrayInputStream(out.toByteArray());
-	    }
-
-	    texture = new Texture(is);
-	}
-
-	private String getAllAvailableChars(String charsetName) {
-		CharsetEncoder ce = Charset.forName(charsetName).newEncoder();
-		StringBuilder result = new StringBuilder();
-		for (char c = 0; c < Character.MAX_VALUE; c++) {
-			if (ce.canEncode(c)) {
-				result.append(c);
+		return ((DataBufferByte) img.getRaster().getDataBuffer()).getData();
+	}
+
+	/**
+	 * Samples the signed distance to the closest texel of opposite coverage at the centre of every output texel
+	 */
+	private void buildDistanceField(byte[] coverage, int width, int height, ByteBuffer pixels) {
+		int hiWidth = width * UPSCALE;
+		int hiHeight = height * UPSCALE;
+		int radius = SPREAD * UPSCALE;
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				int cx = x * UPSCALE + UPSCALE / 2;
+				int cy = y * UPSCALE + UPSCALE / 2;
+				boolean inside = coverage[cy * hiWidth + cx] != 0;
+
+				int minDistSquared = radius * radius;
+				int y0 = Math.max(0, cy - radius), y1 = Math.min(hiHeight - 1, cy + radius);
+				int x0 = Math.max(0, cx - radius), x1 = Math.min(hiWidth - 1, cx + radius);
+				for (int sy = y0; sy <= y1; sy++) {
+					int dy = sy - cy;
+					int row = sy * hiWidth;
+					for (int sx = x0; sx <= x1; sx++) {
+						if ((coverage[row + sx] != 0) != inside) {
+							int dx = sx - cx;
+							minDistSquared = Math.min(minDistSquared, dx * dx + dy * dy);
+						}
+					}
+				}
+
+				float distance = (float) Math.sqrt(minDistSquared) / radius;
+				float value = inside ? 0.5f + 0.5f * distance : 0.5f - 0.5f * distance;
+				pixels.put(y * width + x, (byte) Math.round(Math.max(0, Math.min(1, value)) * 255));
 			}
 		}
-		return result.toString();
 	}
 
+	/**
+	 * @return The width of an atlas page
+	 */
 	public int getWidth() {
-		return width;
+		return pageSize;
 	}
 
+	/**
+	 * @return The height of a line of text
+	 */
 	public int getHeight() {
 		return height;
 	}
 
-	public Texture getTexture() {
-		return texture;
+	/**
+	 * @param page int The index of the page, as returned by CharInfo.getPage()
+	 * @return Texture The atlas page
+	 */
+	public Texture getTexture(int page) {
+		return pages.get(page);
 	}
 
-	public CharInfo getCharInfo(char c) {
-		return charMap.get(c);
+	public int getPageCount() {
+		return pages.size();
+	}
+
+	public void cleanup() {
+		for (Texture page : pages) {
+			page.cleanup();
+		}
+		pages.clear();
+		packers.clear();
 	}
 }
@@ -0,0 +1,122 @@
+package engine.graphics;
+
+import java.nio.IntBuffer;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL13.*;
+import static org.lwjgl.opengl.GL20.*;
+import static org.lwjgl.opengl.GL30.*;
+
+import org.lwjgl.system.MemoryStack;
+
+/**
+ * Framebuffer the geometry pass of the deferred pipeline writes the surface attributes of the scene to.
+ * Attachment 0 holds the albedo (RGBA8), attachment 1 the view space normal and the reflectance (RGBA16F),
+ * and the depth is kept in a texture so the light pass can rebuild the view space position of every pixel.
+ * The textures are transient textures of the render graph, attached anew whenever the graph hands out other ones.
+ */
+public class GBuffer {
+
+    public static final int ALBEDO_FORMAT = GL_RGBA8;
+
+    public static final int NORMAL_FORMAT = GL_RGBA16F;
+
+    public static final int DEPTH_FORMAT = GL_DEPTH_COMPONENT32F;
+
+    public static final int ALBEDO_UNIT = 0;
+
+    public static final int NORMAL_UNIT = 1;
+
+    public static final int DEPTH_UNIT = 2;
+
+    private final int fboId;
+
+    private int albedoTextureId;
+
+    private int normalTextureId;
+
+    private int depthTextureId;
+
+    private int width;
+
+    private int height;
+
+    public GBuffer() {
+        fboId = glGenFramebuffers();
+        glBindFramebuffer(GL_FRAMEBUFFER, fboId);
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            IntBuffer drawBuffers = stack.ints(GL_COLOR_ATTACHMENT0, GL_COLOR_ATTACHMENT1);
+            glDrawBuffers(drawBuffers);
+        }
+        glBindFramebuffer(GL_FRAMEBUFFER, 0);
+    }
+
+    /**
+     * Method to attach the textures written this frame, they need the formats ALBEDO_FORMAT, NORMAL_FORMAT and DEPTH_FORMAT
+     * @param albedoTextureId int The albedo texture
+     * @param normalTextureId int The normal and reflectance texture
+     * @param depthTextureId int The depth texture
+     * @param width int The width of all three textures
+     * @param height int The height of all three textures
+     */
+    public void attach(int albedoTextureId, int normalTextureId, int depthTextureId, int width, int height) {
+        this.width = width;
+        this.height = height;
+        if (albedoTextureId == this.albedoTextureId && normalTextureId == this.normalTextureId
+                && depthTextureId == this.depthTextureId) {
+            return;
+        }
+        this.albedoTextureId = albedoTextureId;
+        this.normalTextureId = normalTextureId;
+        this.depthTextureId = depthTextureId;
+        glBindFramebuffer(GL_FRAMEBUFFER, fboId);
+        glFramebufferTexture2D(GL_FRAMEBUFFER, GL_COLOR_ATTACHMENT0, GL_TEXTURE_2D, albedoTextureId, 0);
+        glFramebufferTexture2D(GL_FRAMEBUFFER, GL_COLOR_ATTACHMENT1, GL_TEXTURE_2D, normalTextureId, 0);
+        glFramebufferTexture2D(GL_FRAMEBUFFER, GL_DEPTH_ATTACHMENT, GL_TEXTURE_2D, depthTextureId, 0);
+        int status = glCheckFramebufferStatus(GL_FRAMEBUFFER);
+        glBindFramebuffer(GL_FRAMEBUFFER, 0);
+        if (status != GL_FRAMEBUFFER_COMPLETE) {
+            throw new IllegalStateException("Could not attach the G-buffer textures: " + status);
+        }
+    }
+
+    /**
+     * Method to direct the following draws into the G-buffer and clear it
+     */
+    public void bindForWriting() {
+        glBindFramebuffer(GL_FRAMEBUFFER, fboId);
+        glClear(GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT);
+    }
+
+    public void unbind() {
+        glBindFramebuffer(GL_FRAMEBUFFER, 0);
+    }
+
+    /**
+     * Method to bind the albedo, normal and depth textures to ALBEDO_UNIT, NORMAL_UNIT and DEPTH_UNIT
+     */
+    public void bindTextures() {
+        glActiveTexture(GL_TEXTURE0 + ALBEDO_UNIT);
+        glBindTexture(GL_TEXTURE_2D, albedoTextureId);
+        glActiveTexture(GL_TEXTURE0 + NORMAL_UNIT);
+        glBindTexture(GL_TEXTURE_2D, normalTextureId);
+        glActiveTexture(GL_TEXTURE0 + DEPTH_UNIT);
+        glBindTexture(GL_TEXTURE_2D, depthTextureId);
+        glActiveTexture(GL_TEXTURE0);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Deletes the framebuffer, the textures belong to the render graph
+     */
+    public void cleanup() {
+        glDeleteFramebuffers(fboId);
+    }
+}
@@ -0,0 +1,210 @@
+package engine.graphics;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL20.*;
+import static org.lwjgl.opengl.GL30.*;
+
+import org.lwjgl.system.MemoryUtil;
+
+/**
+ * Large shared vertex and index buffers, that many meshes are placed into.
+ * Every mesh in the arena shares the same VAO, so meshes can be drawn one after another without rebinding,
+ * or submitted all at once through an IndirectDrawBatch.
+ * The vertex layout is the same as that of a standalone Mesh: position (0), texture coordinates (1) and normal (2).
+ */
+public class GeometryArena {
+
+    private static final int FLOAT_BYTES = 4;
+
+    private static final int INT_BYTES = 4;
+
+    /**
+     * A range of vertices and indices owned by a single mesh inside the arena.
+     * The indices are stored relative to the first vertex of the range, so they have to be drawn with baseVertex.
+     */
+    public static class Allocation {
+
+        private final int baseVertex;
+
+        private final int vertexCount;
+
+        private final int firstIndex;
+
+        private final int indexCount;
+
+        public Allocation(int baseVertex, int vertexCount, int firstIndex, int indexCount) {
+            this.baseVertex = baseVertex;
+            this.vertexCount = vertexCount;
+            this.firstIndex = firstIndex;
+            this.indexCount = indexCount;
+        }
+
+        public int getBaseVertex() {
+            return baseVertex;
+        }
+
+        public int getVertexCount() {
+            return vertexCount;
+        }
+
+        public int getFirstIndex() {
+            return firstIndex;
+        }
+
+        public int getIndexCount() {
+            return indexCount;
+        }
+    }
+
+    private final int vaoId;
+
+    private final int posVboId;
+
+    private final int textVboId;
+
+    private final int normalVboId;
+
+    private final int idxVboId;
+
+    private final RangeAllocator vertexAllocator;
+
+    private final RangeAllocator indexAllocator;
+
+    /**
+     * Creates the shared buffers of the arena. The storage is reserved up front and never grows.
+     * @param vertexCapacity int The maximum number of vertices stored in the arena
+     * @param indexCapacity int The maximum number of indices stored in the arena
+     */
+    public GeometryArena(int vertexCapacity, int indexCapacity) {
+        vertexAllocator = new RangeAllocator(vertexCapacity);
+        indexAllocator = new RangeAllocator(indexCapacity);
+
+        vaoId = glGenVertexArrays();
+        glBindVertexArray(vaoId);
+
+        //Position VBO
+        posVboId = glGenBuffers();
+        glBindBuffer(GL_ARRAY_BUFFER, posVboId);
+        glBufferData(GL_ARRAY_BUFFER, (long) vertexCapacity * 3 * FLOAT_BYTES, GL_STATIC_DRAW);
+        glVertexAttribPointer(0, 3, GL_FLOAT, false, 0, 0);
+
+        //Texture coordinates VBO
+        textVboId = glGenBuffers();
+        glBindBuffer(GL_ARRAY_BUFFER, textVboId);
+        glBufferData(GL_ARRAY_BUFFER, (long) vertexCapacity * 2 * FLOAT_BYTES, GL_STATIC_DRAW);
+        glVertexAttribPointer(1, 2, GL_FLOAT, false, 0, 0);
+
+        //Normal vector coordinates VBO
+        normalVboId = glGenBuffers();
+        glBindBuffer(GL_ARRAY_BUFFER, normalVboId);
+        glBufferData(GL_ARRAY_BUFFER, (long) vertexCapacity * 3 * FLOAT_BYTES, GL_STATIC_DRAW);
+        glVertexAttribPointer(2, 3, GL_FLOAT, false, 0, 0);
+
+        //Index VBO
+        idxVboId = glGenBuffers();
+        glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, idxVboId);
+        glBufferData(GL_ELEMENT_ARRAY_BUFFER, (long) indexCapacity * INT_BYTES, GL_STATIC_DRAW);
+
+        glBindBuffer(GL_ARRAY_BUFFER, 0);
+        glBindVertexArray(0);
+    }
+
+    /**
+     * Method to copy the data of a mesh into free ranges of the shared buffers
+     * @param positions float[] Flattened vertex positions, 3 floats per vertex
+     * @param textCoords float[] Flattened texture coordinates, 2 floats per vertex. May be shorter than the vertex count
+     * @param normals float[] Flattened normals, 3 floats per vertex. May be shorter than the vertex count
+     * @param indices int[] The face indices, relative to the first vertex of the mesh
+     * @return Allocation The ranges the mesh has been placed into
+     */
+    public Allocation allocate(float[] positions, float[] textCoords, float[] normals, int[] indices) {
+        int vertexCount = positions.length / 3;
+        int baseVertex = vertexAllocator.allocate(vertexCount);
+        if (baseVertex == RangeAllocator.NO_SPACE) {
+            throw new IllegalStateException("Geometry arena is out of vertex space, requested: " + vertexCount
+                    + ", free: " + vertexAllocator.getFreeSpace());
+        }
+        int firstIndex = indexAllocator.allocate(indices.length);
+        if (firstIndex == RangeAllocator.NO_SPACE) {
+            vertexAllocator.free(baseVertex, vertexCount);
+            throw new IllegalStateException("Geometry arena is out of index space, requested: " + indices.length
+                    + ", free: " + indexAllocator.getFreeSpace());
+        }
+
+        upload(GL_ARRAY_BUFFER, posVboId, (long) baseVertex * 3 * FLOAT_BYTES, positions, vertexCount * 3);
+        upload(GL_ARRAY_BUFFER, textVboId, (long) baseVertex * 2 * FLOAT_BYTES, textCoords, vertexCount * 2);
+        upload(GL_ARRAY_BUFFER, normalVboId, (long) baseVertex * 3 * FLOAT_BYTES, normals, vertexCount * 3);
+        glBindBuffer(GL_ARRAY_BUFFER, 0);
+
+        IntBuffer indicesBuffer = null;
+        try {
+            indicesBuffer = MemoryUtil.memAllocInt(indices.length);
+            indicesBuffer.put(indices).flip();
+            // The element array binding is VAO state, so go through the VAO to not disturb any other bound mesh
+            glBindVertexArray(vaoId);
+            glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, idxVboId);
+            glBufferSubData(GL_ELEMENT_ARRAY_BUFFER, (long) firstIndex * INT_BYTES, indicesBuffer);
+            glBindVertexArray(0);
+        } finally {
+            if (indicesBuffer != null) {
+                MemoryUtil.memFree(indicesBuffer);
+            }
+        }
+
+        return new Allocation(baseVertex, vertexCount, firstIndex, indices.length);
+    }
+
+    private void upload(int target, int vboId, long offset, float[] data, int maxLength) {
+        int length = Math.min(data.length, maxLength);
+        if (length == 0) {
+            return;
+        }
+        FloatBuffer buffer = null;
+        try {
+            buffer = MemoryUtil.memAllocFloat(length);
+            buffer.put(data, 0, length).flip();
+            glBindBuffer(target, vboId);
+            glBufferSubData(target, offset, buffer);
+        } finally {
+            if (buffer != null) {
+                MemoryUtil.memFree(buffer);
+            }
+        }
+    }
+
+    /**
+     * Method to release the ranges of a mesh, so they can be reused by other meshes
+     * @param allocation Allocation The ranges returned by allocate()
+     */
+    public void free(Allocation allocation) {
+        vertexAllocator.free(allocation.getBaseVertex(), allocation.getVertexCount());
+        indexAllocator.free(allocation.getFirstIndex(), allocation.getIndexCount());
+    }
+
+    public int getVaoId() {
+        return vaoId;
+    }
+
+    public int getFreeVertices() {
+        return vertexAllocator.getFreeSpace();
+    }
+
+    public int getFreeIndices() {
+        return indexAllocator.getFreeSpace();
+    }
+
+    public void cleanup() {
+        glBindBuffer(GL_ARRAY_BUFFER, 0);
+        glDeleteBuffers(posVboId);
+        glDeleteBuffers(textVboId);
+        glDeleteBuffers(normalVboId);
+        glDeleteBuffers(idxVboId);
+
+        glBindVertexArray(0);
+        glDeleteVertexArrays(vaoId);
+    }
+}
@@ -1,17 +1,26 @@
 package engine.graphics;
 
 import de.matthiasmann.twl.utils.PNGDecoder;
+import engine.jobs.JobSystem;
 import engine.utilities.Utils;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import org.joml.Vector3f;
 
+import static org.lwjgl.opengl.GL11.GL_TRIANGLE_STRIP;
+
 public class HeightMapMesh {
 
     private static final int MAX_COLOUR = 255 * 255 * 255;
 
+    /**
+     * Cells per strip. A row of the strip and the row below it, 2 * (STRIP_CELLS + 1) vertices, fit into a 16 entry vertex cache
+     */
+    private static final int STRIP_CELLS = 7;
+
     private static final float STARTX = -0.5f;
 
     private static final float STARTZ = -0.5f;
@@ -39,43 +48,29 @@ public class HeightMapMesh {
         float incx = getXLength() / (width - 1);
         float incz = getZLength() / (height - 1);
 
-        List<Float> positions = new ArrayList<>();
-        List<Float> textCoords = new ArrayList<>();
-        List<Integer> indices = new ArrayList<>();
+        float[] posArr = new float[width * height * 3];
+        float[] textCoordsArr = new float[width * height * 2];
 
-        for (int row = 0; row < height; row++) {
+        // Every row writes its own part of the arrays, so the rows are generated on the job workers
+        JobSystem.getInstance().parallelFor(height, 16, (int row) -> {
             for (int col = 0; col < width; col++) {
+                int vertex = row * width + col;
                 // Create vertex for current position
-                positions.add(STARTX + col * incx); // x
-                positions.add(getHeight(col, row, width, buf)); //y
-                positions.add(STARTZ + row * incz); //z
+                posArr[vertex * 3] = STARTX + col * incx; // x
+                posArr[vertex * 3 + 1] = getHeight(col, row, width, buf); //y
+                posArr[vertex * 3 + 2] = STARTZ + row * incz; //z
 
                 // Set texture coordinates
-                textCoords.add((float) textInc * (float) col / (float) width);
-                textCoords.add((float) textInc * (float) row / (float) height);
-
-                // Create indices
-                if (col < width - 1 && row < height - 1) {
-                    int leftTop = row * width + col;
-                    int leftBottom = (row + 1) * width + col;
-                    int rightBottom = (row + 1) * width + col + 1;
-                    int rightTop = row * width + col + 1;
-
-                    indices.add(leftTop);
-                    indices.add(leftBottom);
-                    indices.add(rightTop);
-
-                    indices.add(rightTop);
-                    indices.add(leftBottom);
-                    indices.add(rightBottom);
-                }
+                textCoordsArr[vertex * 2] = (float) textInc * (float) col / (float) width;
+                textCoordsArr[vertex * 2 + 1] = (float) textInc * (float) row / (float) height;
             }
-        }
-        float[] posArr = Utils.listToArray(positions);
-        int[] indicesArr = indices.stream().mapToInt(i -> i).toArray();
-        float[] textCoordsArr = Utils.listToArray(textCoords);
+        });
+        int[] indicesArr = createIndices(width, height);
         float[] normalsArr = calcNormals(posArr, width, height);
-        this.mesh = new Mesh(posArr, textCoordsArr, normalsArr, indicesArr);
+        // Strips need about a third of the indices of a triangle list, and are narrow enough to reuse the cached row above
+        this.mesh = new Mesh(posArr, textCoordsArr, normalsArr, createStripIndices(width, height), GL_TRIANGLE_STRIP);
+        // Terrain blocks are large and solid, the best occluders there are
+        mesh.setOccluder(posArr, indicesArr);
         Material material = new Material(texture, 0.0f);
         mesh.setMaterial(material);
     }
@@ -84,6 +79,59 @@ public class HeightMapMesh {
         return mesh;
     }
 
+    /**
+     * Method to create triangle strips covering a grid of vertices. The grid is cut into bands of STRIP_CELLS cells,
+     * and every row of a band is one strip, so the vertices shared with the row before are still in the vertex cache
+     * @param width int The number of vertices per row
+     * @param height int The number of rows
+     * @return int[] The strip indices, separated by Mesh.RESTART_INDEX
+     */
+    public static int[] createStripIndices(int width, int height) {
+        int bands = (width - 2) / STRIP_CELLS + 1;
+        int[] indices = new int[(height - 1) * ((width - 1) * 2 + bands * 3)];
+        int i = 0;
+        for (int firstCol = 0; firstCol < width - 1; firstCol += STRIP_CELLS) {
+            int lastCol = Math.min(firstCol + STRIP_CELLS, width - 1);
+            for (int row = 0; row < height - 1; row++) {
+                // Left top, left bottom, right top, right bottom... gives the same winding as createIndices()
+                for (int col = firstCol; col <= lastCol; col++) {
+                    indices[i++] = row * width + col;
+                    indices[i++] = (row + 1) * width + col;
+                }
+                indices[i++] = Mesh.RESTART_INDEX;
+            }
+        }
+        return Arrays.copyOf(indices, i);
+    }
+
+    /**
+     * Method to create the two triangles of every cell of a grid of vertices, row by row
+     * @param width int The number of vertices per row
+     * @param height int The number of rows
+     * @return int[] The triangle indices
+     */
+    public static int[] createIndices(int width, int height) {
+        int[] indices = new int[(width - 1) * (height - 1) * 6];
+        int i = 0;
+        for (int row = 0; row < height - 1; row++) {
+            for (int col = 0; col < width - 1; col++) {
+                int leftTop = row * width + col;
+                int leftBottom = (row + 1) * width + col;
+                int rightBottom = (row + 1) * width + col + 1;
+                int rightTop = row * width + col + 1;
+
+                indices[i++] = leftTop;
+                indices[i++] = leftBottom;
+                indices[i++] = rightTop;
+
+                indices[i++] = rightTop;
+                indices[i++] = leftBottom;
+                indices[i++] = rightBottom;
+            }
+        }
+        return indices;
+    }
+
     public static float getXLength() {
         return Math.abs(-STARTX * 2);
     }
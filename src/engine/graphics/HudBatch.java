@@ -0,0 +1,269 @@
+package engine.graphics;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL13.*;
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL20.*;
+import static org.lwjgl.opengl.GL30.*;
+
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+import org.lwjgl.system.MemoryUtil;
+
+import engine.entities.TextEntity;
+
+/**
+ * Collects the triangles of every HUD item of a frame into one streaming vertex buffer.
+ * Vertices are transformed into screen space on the CPU and carry their own colour and texture mode, so the whole HUD
+ * is drawn with one glDrawArrays per run of items sharing a texture instead of one draw with its own uniforms per item.
+ * Items are drawn in the order they were added, untextured items join the run of the texture before them.
+ */
+public class HudBatch {
+
+    public static final int MODE_COLOR = 0;
+
+    public static final int MODE_TEXTURE = 1;
+
+    public static final int MODE_DISTANCE_FIELD = 2;
+
+    /**
+     * Position (3 floats), texture coordinates (2 floats), colour (4 unsigned bytes) and mode (4 unsigned bytes)
+     */
+    private static final int VERTEX_SIZE = 28;
+
+    private static final int INITIAL_CAPACITY = 4096;
+
+    private static final int[] QUAD_TRIANGLES = { 0, 1, 2, 3, 0, 2 };
+
+    private static class DrawRange {
+
+        private Texture texture;
+
+        private int firstVertex;
+
+        private int vertexCount;
+    }
+
+    /**
+     * Triangles of a mesh read back from video memory once, as triangle lists in model space
+     */
+    private static class MeshGeometry {
+
+        private final float[] positions;
+
+        private final float[] textCoords;
+
+        private final int[] indices;
+
+        private MeshGeometry(Mesh mesh) {
+            positions = mesh.readPositions();
+            textCoords = mesh.readTextCoords();
+            indices = mesh.readIndices();
+        }
+    }
+
+    private final int vaoId;
+
+    private final int vboId;
+
+    private final Map<Mesh, MeshGeometry> geometryCache;
+
+    private final List<DrawRange> ranges;
+
+    private final Vector3f vertex;
+
+    private ByteBuffer vertices;
+
+    private int vertexCount;
+
+    private int bufferCapacity;
+
+    private int rangeCount;
+
+    public HudBatch() {
+        geometryCache = new WeakHashMap<>();
+        ranges = new ArrayList<>();
+        vertex = new Vector3f();
+        vertices = MemoryUtil.memAlloc(INITIAL_CAPACITY * VERTEX_SIZE);
+
+        vaoId = glGenVertexArrays();
+        glBindVertexArray(vaoId);
+        vboId = glGenBuffers();
+        glBindBuffer(GL_ARRAY_BUFFER, vboId);
+        glVertexAttribPointer(0, 3, GL_FLOAT, false, VERTEX_SIZE, 0);
+        glVertexAttribPointer(1, 2, GL_FLOAT, false, VERTEX_SIZE, 12);
+        glVertexAttribPointer(2, 4, GL_UNSIGNED_BYTE, true, VERTEX_SIZE, 20);
+        glVertexAttribPointer(3, 1, GL_UNSIGNED_BYTE, false, VERTEX_SIZE, 24);
+        for (int i = 0; i < 4; i++) {
+            glEnableVertexAttribArray(i);
+        }
+        glBindBuffer(GL_ARRAY_BUFFER, 0);
+        glBindVertexArray(0);
+    }
+
+    /**
+     * Method to start collecting the items of a new frame
+     */
+    public void begin() {
+        vertexCount = 0;
+        rangeCount = 0;
+    }
+
+    /**
+     * Method to add the triangles of a mesh, drawn with the colour and texture of its material
+     * @param mesh Mesh The mesh, which must not be stored in a GeometryArena
+     * @param modelMatrix Matrix4f The transformation from model space to screen pixels
+     */
+    public void addMesh(Mesh mesh, Matrix4f modelMatrix) {
+        MeshGeometry geometry = geometryCache.get(mesh);
+        if (geometry == null) {
+            geometry = new MeshGeometry(mesh);
+            geometryCache.put(mesh, geometry);
+        }
+        Material material = mesh.getMaterial();
+        Texture texture = material.isTextured() ? material.getTexture() : null;
+        int mode = texture != null ? MODE_TEXTURE : MODE_COLOR;
+        int color = packColor(material.getColor());
+
+        int[] indices = geometry.indices;
+        beginRange(texture, indices.length);
+        for (int index : indices) {
+            modelMatrix.transformPosition(geometry.positions[index * 3], geometry.positions[index * 3 + 1],
+                    geometry.positions[index * 3 + 2], vertex);
+            float u = index * 2 < geometry.textCoords.length ? geometry.textCoords[index * 2] : 0;
+            float v = index * 2 < geometry.textCoords.length ? geometry.textCoords[index * 2 + 1] : 0;
+            putVertex(vertex.x, vertex.y, vertex.z, u, v, color, mode);
+        }
+    }
+
+    /**
+     * Method to add the glyph quads of a text, drawn from the distance field atlas pages of its font
+     * @param text TextEntity The text
+     * @param modelMatrix Matrix4f The transformation from text space to screen pixels
+     */
+    public void addText(TextEntity text, Matrix4f modelMatrix) {
+        TextMesh textMesh = text.getTextMesh();
+        float[] positions = textMesh.getPositions();
+        float[] textCoords = textMesh.getTextCoords();
+        int[] pages = textMesh.getPages();
+        FontTexture fontTexture = textMesh.getFontTexture();
+        int color = packColor(text.getColor());
+
+        int glyphCount = textMesh.getGlyphCount();
+        for (int i = 0; i < glyphCount; i++) {
+            // Glyphs on another atlas page than the one before them start a new draw range
+            if (i == 0 || pages[i] != pages[i - 1]) {
+                beginRange(fontTexture.getTexture(pages[i]), (glyphCount - i) * QUAD_TRIANGLES.length);
+            }
+            // Left Top, Left Bottom, Right Bottom and Right Top vertex, split into two triangles
+            for (int k = 0; k < QUAD_TRIANGLES.length; k++) {
+                int v = i * 4 + QUAD_TRIANGLES[k];
+                modelMatrix.transformPosition(positions[v * 3], positions[v * 3 + 1], positions[v * 3 + 2], vertex);
+                putVertex(vertex.x, vertex.y, vertex.z, textCoords[v * 2], textCoords[v * 2 + 1], color,
+                        MODE_DISTANCE_FIELD);
+            }
+        }
+    }
+
+    /**
+     * Method to upload the vertices of the frame and draw them. The HUD shader has to be bound
+     */
+    public void render() {
+        if (vertexCount == 0) {
+            return;
+        }
+        glBindVertexArray(vaoId);
+        glBindBuffer(GL_ARRAY_BUFFER, vboId);
+        int bytes = vertexCount * VERTEX_SIZE;
+        if (bytes > bufferCapacity) {
+            bufferCapacity = vertices.capacity();
+        }
+        // Orphan the storage of the last frame, the driver can hand out fresh memory instead of waiting for the GPU
+        glBufferData(GL_ARRAY_BUFFER, bufferCapacity, GL_STREAM_DRAW);
+        vertices.limit(bytes);
+        glBufferSubData(GL_ARRAY_BUFFER, 0, vertices);
+        vertices.clear();
+
+        glActiveTexture(GL_TEXTURE0);
+        for (int i = 0; i < rangeCount; i++) {
+            DrawRange range = ranges.get(i);
+            glBindTexture(GL_TEXTURE_2D, range.texture != null ? range.texture.getId() : 0);
+            glDrawArrays(GL_TRIANGLES, range.firstVertex, range.vertexCount);
+        }
+
+        glBindTexture(GL_TEXTURE_2D, 0);
+        glBindBuffer(GL_ARRAY_BUFFER, 0);
+        glBindVertexArray(0);
+    }
+
+    /**
+     * @return The number of draw calls issued by the last render()
+     */
+    public int getDrawCount() {
+        return rangeCount;
+    }
+
+    /**
+     * Continues the current draw range if the texture allows it, and makes room for the vertices
+     */
+    private void beginRange(Texture texture, int maxVertices) {
+        DrawRange current = rangeCount > 0 ? ranges.get(rangeCount - 1) : null;
+        if (current == null || (texture != null && current.texture != null && current.texture != texture)) {
+            if (rangeCount == ranges.size()) {
+                ranges.add(new DrawRange());
+            }
+            current = ranges.get(rangeCount++);
+            current.texture = null;
+            current.firstVertex = vertexCount;
+            current.vertexCount = 0;
+        }
+        if (texture != null) {
+            current.texture = texture;
+        }
+
+        int required = (vertexCount + maxVertices) * VERTEX_SIZE;
+        if (required > vertices.capacity()) {
+            vertices = MemoryUtil.memRealloc(vertices, Math.max(required, vertices.capacity() * 2));
+        }
+    }
+
+    private void putVertex(float x, float y, float z, float u, float v, int color, int mode) {
+        int offset = vertexCount * VERTEX_SIZE;
+        vertices.putFloat(offset, x);
+        vertices.putFloat(offset + 4, y);
+        vertices.putFloat(offset + 8, z);
+        vertices.putFloat(offset + 12, u);
+        vertices.putFloat(offset + 16, v);
+        vertices.put(offset + 20, (byte) color);
+        vertices.put(offset + 21, (byte) (color >> 8));
+        vertices.put(offset + 22, (byte) (color >> 16));
+        vertices.put(offset + 23, (byte) (color >> 24));
+        vertices.putInt(offset + 24, 0);
+        vertices.put(offset + 24, (byte) mode);
+        vertexCount++;
+        ranges.get(rangeCount - 1).vertexCount++;
+    }
+
+    /**
+     * Packs an RGB colour into the bytes r, g, b, a from the lowest to the highest
+     */
+    private static int packColor(Vector3f color) {
+        int r = Math.round(Math.max(0, Math.min(1, color.x)) * 255);
+        int g = Math.round(Math.max(0, Math.min(1, color.y)) * 255);
+        int b = Math.round(Math.max(0, Math.min(1, color.z)) * 255);
+        return 0xFF << 24 | b << 16 | g << 8 | r;
+    }
+
+    public void cleanup() {
+        glDeleteBuffers(vboId);
+        glDeleteVertexArrays(vaoId);
+        MemoryUtil.memFree(vertices);
+        geometryCache.clear();
+    }
+}
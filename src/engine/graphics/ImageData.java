@@ -0,0 +1,85 @@
+package engine.graphics;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import org.lwjgl.system.MemoryUtil;
+
+import de.matthiasmann.twl.utils.PNGDecoder;
+import de.matthiasmann.twl.utils.PNGDecoder.Format;
+
+/**
+ * RGBA8 pixels of a decoded image, held in off-heap memory until free() is called
+ */
+public class ImageData {
+
+    private final int width;
+
+    private final int height;
+
+    private ByteBuffer pixels;
+
+    public ImageData(int width, int height, ByteBuffer pixels) {
+        this.width = width;
+        this.height = height;
+        this.pixels = pixels;
+    }
+
+    /**
+     * Decodes a PNG resource into RGBA8 pixels
+     * @param fileName String The resource path of the image
+     * @return ImageData The decoded image
+     * @throws Exception If the resource cannot be read or is not a valid PNG
+     */
+    public static ImageData loadPNG(String fileName) throws Exception {
+        InputStream is = ImageData.class.getResourceAsStream(fileName);
+        if (is == null) {
+            throw new Exception("Could not find image: " + fileName);
+        }
+        try {
+            return loadPNG(is);
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Decodes a PNG stream into RGBA8 pixels
+     * @param is InputStream The stream to decode
+     * @return ImageData The decoded image
+     * @throws Exception If the stream is not a valid PNG
+     */
+    public static ImageData loadPNG(InputStream is) throws Exception {
+        PNGDecoder decoder = new PNGDecoder(is);
+        int width = decoder.getWidth();
+        int height = decoder.getHeight();
+        ByteBuffer buf = MemoryUtil.memAlloc(4 * width * height);
+        try {
+            decoder.decode(buf, width * 4, Format.RGBA);
+        } catch (Exception excp) {
+            MemoryUtil.memFree(buf);
+            throw excp;
+        }
+        buf.flip();
+        return new ImageData(width, height, buf);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public ByteBuffer getPixels() {
+        return pixels;
+    }
+
+    public void free() {
+        if (pixels != null) {
+            MemoryUtil.memFree(pixels);
+            pixels = null;
+        }
+    }
+}
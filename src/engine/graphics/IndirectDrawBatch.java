@@ -0,0 +1,433 @@
+package engine.graphics;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiFunction;
+import java.util.function.IntConsumer;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL13.*;
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL20.*;
+import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL32.*;
+import static org.lwjgl.opengl.GL33.*;
+import static org.lwjgl.opengl.GL40.*;
+import static org.lwjgl.opengl.GL43.*;
+
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+import org.joml.Vector4f;
+import org.lwjgl.opengl.GL;
+import org.lwjgl.system.MemoryUtil;
+
+import engine.entities.Entity;
+import engine.jobs.JobSystem;
+
+/**
+ * Collects the meshes of a GeometryArena with the entities using them, and submits them with as few draw calls as possible.
+ * Every mesh becomes one DrawElementsIndirectCommand, drawing all of its entities as instances.
+ * The model view matrix (locations 3 to 6) and the material (locations 7 to 9) of every instance are streamed into per-instance attributes,
+ * so meshes only have to be split by the texture object they sample: a texture array, an atlas, a plain texture or none at all.
+ * Commands sharing a texture are submitted with a single glMultiDrawElementsIndirect call when OpenGL 4.3 is available,
+ * otherwise every command is drawn with glDrawElementsInstancedBaseVertex.
+ * Every instance also carries an id for the picking pass, counted up from an id base in the order of the instances.
+ */
+public class IndirectDrawBatch {
+
+    /**
+     * Number of ints in a DrawElementsIndirectCommand: count, instanceCount, firstIndex, baseVertex, baseInstance
+     */
+    private static final int COMMAND_SIZE = 5;
+
+    public static final int TEXTURE_NONE = 0;
+
+    public static final int TEXTURE_2D = 1;
+
+    public static final int TEXTURE_ARRAY = 2;
+
+    private static final int MATRIX_SIZE = 16;
+
+    /**
+     * Floats per instance: model view matrix, uv rectangle, (layer, reflectance, useColor, id) and color
+     */
+    private static final int INSTANCE_SIZE = MATRIX_SIZE + 4 + 4 + 4;
+
+    private static final int INSTANCE_ATTRIB = 3;
+
+    private static final int INSTANCE_ATTRIB_COUNT = 7;
+
+    private static final int INITIAL_INSTANCES = 1024;
+
+    /**
+     * Most instances packed by one task, so large meshes are split over several threads
+     */
+    private static final int INSTANCES_PER_TASK = 1024;
+
+    /**
+     * A range of the entities of one mesh, packed into the instance buffer by a single task
+     */
+    private static final class PackTask {
+
+        private final Material material;
+
+        private final List<Entity> entities;
+
+        private final int from;
+
+        private final int to;
+
+        private final int firstInstance;
+
+        private PackTask(Material material, List<Entity> entities, int from, int to, int firstInstance) {
+            this.material = material;
+            this.entities = entities;
+            this.from = from;
+            this.to = to;
+            this.firstInstance = firstInstance;
+        }
+    }
+
+    private static final class DrawGroup {
+
+        private final int textureMode;
+
+        private final int textureId;
+
+        private final List<Mesh> meshes = new ArrayList<>();
+
+        private final List<List<Entity>> entityLists = new ArrayList<>();
+
+        private int firstCommand;
+
+        private int commandCount;
+
+        private DrawGroup(int textureMode, int textureId) {
+            this.textureMode = textureMode;
+            this.textureId = textureId;
+        }
+    }
+
+    private final GeometryArena arena;
+
+    private final boolean multiDrawIndirect;
+
+    private final int instanceVboId;
+
+    private final int indirectBufferId;
+
+    private final Map<Object, DrawGroup> groups;
+
+    private FloatBuffer instanceBuffer;
+
+    private IntBuffer commandBuffer;
+
+    private final List<PackTask> packTasks;
+
+    private int idBase;
+
+    private int instanceCount;
+
+    /**
+     * Creates the instance and indirect buffers and attaches the per-instance matrix attribute to the VAO of the arena
+     * @param arena GeometryArena The arena, whose meshes will be drawn by this batch
+     */
+    public IndirectDrawBatch(GeometryArena arena) {
+        this.arena = arena;
+        this.multiDrawIndirect = GL.getCapabilities().OpenGL43;
+        this.groups = new LinkedHashMap<>();
+        this.packTasks = new ArrayList<>();
+
+        instanceBuffer = MemoryUtil.memAllocFloat(INITIAL_INSTANCES * INSTANCE_SIZE);
+        commandBuffer = MemoryUtil.memAllocInt(64 * COMMAND_SIZE);
+
+        glBindVertexArray(arena.getVaoId());
+        instanceVboId = glGenBuffers();
+        glBindBuffer(GL_ARRAY_BUFFER, instanceVboId);
+        setInstanceAttribPointers(0);
+        for (int i = 0; i < INSTANCE_ATTRIB_COUNT; i++) {
+            glVertexAttribDivisor(INSTANCE_ATTRIB + i, 1);
+            glEnableVertexAttribArray(INSTANCE_ATTRIB + i);
+        }
+        glBindBuffer(GL_ARRAY_BUFFER, 0);
+        glBindVertexArray(0);
+
+        indirectBufferId = multiDrawIndirect ? glGenBuffers() : 0;
+    }
+
+    private void setInstanceAttribPointers(int baseInstance) {
+        // A mat4 attribute takes up four consecutive vec4 locations, followed by the three material vectors
+        int stride = INSTANCE_SIZE * 4;
+        long offset = (long) baseInstance * stride;
+        for (int i = 0; i < INSTANCE_ATTRIB_COUNT; i++) {
+            glVertexAttribPointer(INSTANCE_ATTRIB + i, 4, GL_FLOAT, false, stride, offset + i * 16);
+        }
+    }
+
+    /**
+     * Method to queue all entities using a mesh for the next render() call
+     * @param mesh Mesh A mesh stored in the arena of this batch
+     * @param entities List<Entity> The entities to draw with the mesh. The list is referenced, not copied, until render() returns
+     */
+    public void add(Mesh mesh, List<Entity> entities) {
+        if (mesh.getArena() != arena) {
+            throw new IllegalArgumentException("Mesh is not stored in the arena of this batch");
+        }
+        if (entities.isEmpty()) {
+            return;
+        }
+        Material material = mesh.getMaterial();
+        Object key = material.getTextureArray() != null ? material.getTextureArray() : material.getTexture();
+        DrawGroup group = groups.get(key);
+        if (group == null) {
+            if (material.getTextureArray() != null) {
+                group = new DrawGroup(TEXTURE_ARRAY, material.getTextureArray().getId());
+            } else if (material.getTexture() != null) {
+                group = new DrawGroup(TEXTURE_2D, material.getTexture().getId());
+            } else {
+                group = new DrawGroup(TEXTURE_NONE, 0);
+            }
+            groups.put(key, group);
+        }
+        group.meshes.add(mesh);
+        group.entityLists.add(entities);
+    }
+
+    /**
+     * Method to draw everything queued since the last call. The shader program has to be bound already.
+     * Plain and atlas textures are bound to texture unit 0, texture arrays to texture unit 1.
+     * @param modelViewBuilder BiFunction<Entity, Matrix4f, Matrix4f> Builds the model view matrix of an entity into the given matrix and returns it.
+     * Called from several threads at once
+     * @param textureModeSetup IntConsumer Called with TEXTURE_NONE, TEXTURE_2D or TEXTURE_ARRAY before every group is drawn
+     */
+    public void render(BiFunction<Entity, Matrix4f, Matrix4f> modelViewBuilder, IntConsumer textureModeSetup) {
+        upload(modelViewBuilder);
+        draw(textureModeSetup);
+        clear();
+    }
+
+    /**
+     * Method to build the commands and instances of everything queued and upload them, so that draw() can be called
+     * several times with the same data, e.g. once for a depth pre-pass and once for the color pass.
+     * The instances are packed in parallel, only the upload itself happens on the calling thread
+     * @param modelViewBuilder BiFunction<Entity, Matrix4f, Matrix4f> Builds the model view matrix of an entity into the given matrix and returns it.
+     * Called from several threads at once
+     */
+    public void upload(BiFunction<Entity, Matrix4f, Matrix4f> modelViewBuilder) {
+        if (groups.isEmpty()) {
+            return;
+        }
+        buildCommands(modelViewBuilder);
+
+        glBindBuffer(GL_ARRAY_BUFFER, instanceVboId);
+        glBufferData(GL_ARRAY_BUFFER, instanceBuffer, GL_STREAM_DRAW);
+        glBindBuffer(GL_ARRAY_BUFFER, 0);
+        if (multiDrawIndirect) {
+            glBindBuffer(GL_DRAW_INDIRECT_BUFFER, indirectBufferId);
+            glBufferData(GL_DRAW_INDIRECT_BUFFER, commandBuffer, GL_STREAM_DRAW);
+            glBindBuffer(GL_DRAW_INDIRECT_BUFFER, 0);
+        }
+    }
+
+    /**
+     * Method to draw the commands of the last upload() call. The shader program has to be bound already
+     * @param textureModeSetup IntConsumer Called with TEXTURE_NONE, TEXTURE_2D or TEXTURE_ARRAY before every group is drawn
+     */
+    public void draw(IntConsumer textureModeSetup) {
+        if (groups.isEmpty()) {
+            return;
+        }
+        glBindVertexArray(arena.getVaoId());
+        glEnableVertexAttribArray(0);
+        glEnableVertexAttribArray(1);
+        glEnableVertexAttribArray(2);
+
+        if (multiDrawIndirect) {
+            glBindBuffer(GL_DRAW_INDIRECT_BUFFER, indirectBufferId);
+        } else {
+            glBindBuffer(GL_ARRAY_BUFFER, instanceVboId);
+        }
+
+        for (DrawGroup group : groups.values()) {
+            textureModeSetup.accept(group.textureMode);
+            if (group.textureMode == TEXTURE_ARRAY) {
+                glActiveTexture(GL_TEXTURE1);
+                glBindTexture(GL_TEXTURE_2D_ARRAY, group.textureId);
+                glActiveTexture(GL_TEXTURE0);
+            } else if (group.textureMode == TEXTURE_2D) {
+                glActiveTexture(GL_TEXTURE0);
+                glBindTexture(GL_TEXTURE_2D, group.textureId);
+            }
+
+            if (multiDrawIndirect) {
+                glMultiDrawElementsIndirect(GL_TRIANGLES, GL_UNSIGNED_INT,
+                        (long) group.firstCommand * COMMAND_SIZE * 4, group.commandCount, 0);
+            } else {
+                for (int i = group.firstCommand; i < group.firstCommand + group.commandCount; i++) {
+                    int base = i * COMMAND_SIZE;
+                    setInstanceAttribPointers(commandBuffer.get(base + 4));
+                    glDrawElementsInstancedBaseVertex(GL_TRIANGLES, commandBuffer.get(base), GL_UNSIGNED_INT,
+                            (long) commandBuffer.get(base + 2) * 4, commandBuffer.get(base + 1), commandBuffer.get(base + 3));
+                }
+                setInstanceAttribPointers(0);
+            }
+        }
+
+        // Restore state
+        if (multiDrawIndirect) {
+            glBindBuffer(GL_DRAW_INDIRECT_BUFFER, 0);
+        }
+        glBindBuffer(GL_ARRAY_BUFFER, 0);
+        glDisableVertexAttribArray(0);
+        glDisableVertexAttribArray(1);
+        glDisableVertexAttribArray(2);
+        glBindVertexArray(0);
+        glActiveTexture(GL_TEXTURE1);
+        glBindTexture(GL_TEXTURE_2D_ARRAY, 0);
+        glActiveTexture(GL_TEXTURE0);
+        glBindTexture(GL_TEXTURE_2D, 0);
+    }
+
+    /**
+     * Method to set the id of the first instance of the next upload() minus one. Ids are stored as floats,
+     * so they stay exact up to 2^24
+     * @param idBase int The id base, the instances get the ids idBase + 1 to idBase + getInstanceCount()
+     */
+    public void setIdBase(int idBase) {
+        this.idBase = idBase;
+    }
+
+    /**
+     * 
+     * @return The number of instances of the last upload() call
+     */
+    public int getInstanceCount() {
+        return instanceCount;
+    }
+
+    /**
+     * Method to list the entities of the last upload() call in the order of their instances, so entity i has the id idBase + i + 1
+     * @param dest List<Entity> The list the entities are added to
+     */
+    public void collectEntities(List<Entity> dest) {
+        for (DrawGroup group : groups.values()) {
+            for (List<Entity> entities : group.entityLists) {
+                dest.addAll(entities);
+            }
+        }
+    }
+
+    /**
+     * Method to forget everything queued, the entity lists are no longer referenced afterwards
+     */
+    public void clear() {
+        groups.clear();
+        instanceCount = 0;
+    }
+
+    private void buildCommands(BiFunction<Entity, Matrix4f, Matrix4f> modelViewBuilder) {
+        int commandCount = 0;
+        int instanceCount = 0;
+        for (DrawGroup group : groups.values()) {
+            for (List<Entity> entities : group.entityLists) {
+                instanceCount += entities.size();
+            }
+            commandCount += group.meshes.size();
+        }
+        ensureCapacity(commandCount, instanceCount);
+        this.instanceCount = instanceCount;
+
+        int command = 0;
+        int instance = 0;
+        for (DrawGroup group : groups.values()) {
+            group.firstCommand = command;
+            group.commandCount = group.meshes.size();
+            for (int m = 0; m < group.meshes.size(); m++) {
+                Mesh mesh = group.meshes.get(m);
+                GeometryArena.Allocation allocation = mesh.getAllocation();
+                Material material = mesh.getMaterial();
+                List<Entity> entities = group.entityLists.get(m);
+
+                int base = command * COMMAND_SIZE;
+                commandBuffer.put(base, allocation.getIndexCount());
+                commandBuffer.put(base + 1, entities.size());
+                commandBuffer.put(base + 2, allocation.getFirstIndex());
+                commandBuffer.put(base + 3, allocation.getBaseVertex());
+                commandBuffer.put(base + 4, instance);
+                command++;
+
+                for (int from = 0; from < entities.size(); from += INSTANCES_PER_TASK) {
+                    int to = Math.min(from + INSTANCES_PER_TASK, entities.size());
+                    packTasks.add(new PackTask(material, entities, from, to, instance + from));
+                }
+                instance += entities.size();
+            }
+        }
+
+        // Every task writes its own instances with absolute puts, so they never touch the same part of the buffer
+        JobSystem.getInstance().parallelFor(packTasks.size(), 1, (int t) -> {
+            PackTask task = packTasks.get(t);
+            Matrix4f modelViewMatrix = new Matrix4f();
+            for (int i = task.from; i < task.to; i++) {
+                putInstance(task.firstInstance + i - task.from,
+                        modelViewBuilder.apply(task.entities.get(i), modelViewMatrix), task.material);
+            }
+        });
+        packTasks.clear();
+
+        commandBuffer.limit(commandCount * COMMAND_SIZE);
+        instanceBuffer.limit(instanceCount * INSTANCE_SIZE);
+    }
+
+    private void putInstance(int instance, Matrix4f modelViewMatrix, Material material) {
+        int base = instance * INSTANCE_SIZE;
+        modelViewMatrix.get(base, instanceBuffer);
+        base += MATRIX_SIZE;
+
+        Vector4f uvRect = material.getUvRect();
+        instanceBuffer.put(base, uvRect.x).put(base + 1, uvRect.y).put(base + 2, uvRect.z).put(base + 3, uvRect.w);
+        base += 4;
+
+        instanceBuffer.put(base, material.getTextureLayer());
+        instanceBuffer.put(base + 1, material.getReflectance());
+        instanceBuffer.put(base + 2, material.isTextured() ? 0 : 1);
+        instanceBuffer.put(base + 3, idBase + instance + 1);
+        base += 4;
+
+        Vector3f color = material.getColor();
+        instanceBuffer.put(base, color.x).put(base + 1, color.y).put(base + 2, color.z).put(base + 3, 1);
+    }
+
+    private void ensureCapacity(int commandCount, int instanceCount) {
+        if (commandBuffer.capacity() < commandCount * COMMAND_SIZE) {
+            commandBuffer = MemoryUtil.memRealloc(commandBuffer, commandCount * COMMAND_SIZE * 2);
+        }
+        if (instanceBuffer.capacity() < instanceCount * INSTANCE_SIZE) {
+            instanceBuffer = MemoryUtil.memRealloc(instanceBuffer, instanceCount * INSTANCE_SIZE * 2);
+        }
+        commandBuffer.clear();
+        instanceBuffer.clear();
+    }
+
+    /**
+     *
+     * @return True if the batch submits through glMultiDrawElementsIndirect, false if it uses the base vertex fallback
+     */
+    public boolean isMultiDrawIndirect() {
+        return multiDrawIndirect;
+    }
+
+    public void cleanup() {
+        glBindBuffer(GL_ARRAY_BUFFER, 0);
+        glDeleteBuffers(instanceVboId);
+        if (indirectBufferId != 0) {
+            glDeleteBuffers(indirectBufferId);
+        }
+        MemoryUtil.memFree(instanceBuffer);
+        MemoryUtil.memFree(commandBuffer);
+    }
+}
@@ -0,0 +1,476 @@
+package engine.graphics;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL13.*;
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL31.*;
+
+import org.joml.Matrix4f;
+import org.joml.Vector2f;
+import org.joml.Vector3f;
+import org.joml.Vector4f;
+import org.lwjgl.system.MemoryUtil;
+
+import engine.graphics.lights.PointLight;
+import engine.graphics.lights.SceneLight;
+import engine.graphics.lights.SpotLight;
+import engine.jobs.JobSystem;
+
+/**
+ * Assigns the point and spot lights of a scene to the clusters of a grid dividing the view frustum, so the fragment
+ * shader only evaluates the lights that can reach the cluster of the fragment.
+ * The grid has CLUSTER_X x CLUSTER_Y tiles on screen and CLUSTER_Z slices in depth, spaced exponentially between the
+ * near and the far plane. Every frame the lights are transformed to view space, given a range from their attenuation,
+ * and tested against the clusters, one depth slice per job on the JobSystem.
+ * The results reach the shaders through three buffer textures:
+ * the grid (offset into the index list, point count | spot count << 16), the light index list and the light data.
+ * The grid size has to match the constants in fragment.fs and arena_fragment.fs.
+ */
+public class LightClusters {
+
+    public static final int CLUSTER_X = 16;
+
+    public static final int CLUSTER_Y = 9;
+
+    public static final int CLUSTER_Z = 24;
+
+    /**
+     * Texture units of the grid, index and light buffer textures
+     */
+    public static final int GRID_UNIT = 4;
+
+    public static final int INDEX_UNIT = 5;
+
+    public static final int LIGHT_UNIT = 6;
+
+    /**
+     * A light is cut off where its attenuated intensity drops below this fraction
+     */
+    private static final float LIGHT_THRESHOLD = 1.0f / 256.0f;
+
+    /**
+     * Light data texels per light: (position, intensity), (color, constant), (linear, exponent, cutOff, 0), (cone direction, 0)
+     */
+    private static final int LIGHT_TEXELS = 4;
+
+    private static final int TILES = CLUSTER_X * CLUSTER_Y;
+
+    private static final int CLUSTERS = TILES * CLUSTER_Z;
+
+    /**
+     * Lights found in the clusters of one depth slice, filled by one task
+     */
+    private static class Slice {
+
+        /**
+         * Point and spot light count of every tile
+         */
+        private final int[] counts = new int[TILES * 2];
+
+        /**
+         * Entries tile << 24 | light, in light order so the point lights of a tile come first
+         */
+        private int[] entries = new int[256];
+
+        private int entryCount;
+
+        private int[] sorted = new int[256];
+
+        private final int[] tileOffsets = new int[TILES];
+
+        private final int[] nextOffsets = new int[TILES];
+    }
+
+    private final int gridBufferId, gridTextureId;
+
+    private final int indexBufferId, indexTextureId;
+
+    private final int lightBufferId, lightTextureId;
+
+    private final Slice[] slices;
+
+    /**
+     * View space bounds of every cluster, min xyz and max xyz
+     */
+    private final float[] clusterBounds;
+
+    private final Matrix4f clusterProjection;
+
+    private final Vector2f tileScale;
+
+    private final Vector2f depthParams;
+
+    private final Vector4f aux;
+
+    private IntBuffer grid;
+
+    private IntBuffer indices;
+
+    private FloatBuffer lightData;
+
+    /**
+     * View space position and range of every light, and its tile and slice range
+     */
+    private float[] lightSpheres;
+
+    private int[] lightClusterRanges;
+
+    private int pointCount;
+
+    private int spotCount;
+
+    private int indexCount;
+
+    public LightClusters() {
+        slices = new Slice[CLUSTER_Z];
+        for (int i = 0; i < CLUSTER_Z; i++) {
+            slices[i] = new Slice();
+        }
+        clusterBounds = new float[CLUSTERS * 6];
+        clusterProjection = new Matrix4f();
+        tileScale = new Vector2f();
+        depthParams = new Vector2f();
+        aux = new Vector4f();
+        lightSpheres = new float[0];
+        lightClusterRanges = new int[0];
+
+        grid = MemoryUtil.memAllocInt(CLUSTERS * 2);
+        indices = MemoryUtil.memAllocInt(1024);
+        lightData = MemoryUtil.memAllocFloat(64 * LIGHT_TEXELS * 4);
+
+        gridBufferId = glGenBuffers();
+        gridTextureId = createBufferTexture(gridBufferId, GL_RG32UI);
+        indexBufferId = glGenBuffers();
+        indexTextureId = createBufferTexture(indexBufferId, GL_R32UI);
+        lightBufferId = glGenBuffers();
+        lightTextureId = createBufferTexture(lightBufferId, GL_RGBA32F);
+    }
+
+    private static int createBufferTexture(int bufferId, int format) {
+        glBindBuffer(GL_TEXTURE_BUFFER, bufferId);
+        glBufferData(GL_TEXTURE_BUFFER, 16, GL_STREAM_DRAW);
+        int textureId = glGenTextures();
+        glBindTexture(GL_TEXTURE_BUFFER, textureId);
+        glTexBuffer(GL_TEXTURE_BUFFER, format, bufferId);
+        glBindTexture(GL_TEXTURE_BUFFER, 0);
+        glBindBuffer(GL_TEXTURE_BUFFER, 0);
+        return textureId;
+    }
+
+    /**
+     * Method to create the uniforms read by the clustered lighting code of a shader
+     * @param shaderProgram ShaderProgram The shader
+     */
+    public void createUniforms(ShaderProgram shaderProgram) throws Exception {
+        shaderProgram.createUniform("clusterGrid");
+        shaderProgram.createUniform("clusterLightIndices");
+        shaderProgram.createUniform("clusterLightData");
+        shaderProgram.createUniform("clusterTileScale");
+        shaderProgram.createUniform("clusterDepthParams");
+    }
+
+    /**
+     * Method to assign the lights of a scene to the clusters and upload the result. Called once per frame
+     * @param projectionMatrix Matrix4f The perspective projection of the frame
+     * @param viewMatrix Matrix4f The view matrix of the frame
+     * @param sceneLight SceneLight The lights of the scene
+     * @param width int The width of the viewport
+     * @param height int The height of the viewport
+     * @param zNear float The distance of the near plane
+     * @param zFar float The distance of the far plane
+     */
+    public void update(Matrix4f projectionMatrix, Matrix4f viewMatrix, SceneLight sceneLight, int width, int height,
+            float zNear, float zFar) {
+        if (!projectionMatrix.equals(clusterProjection)) {
+            clusterProjection.set(projectionMatrix);
+            buildClusterBounds(zNear, zFar);
+        }
+        float logDepthRange = (float) Math.log(zFar / zNear);
+        depthParams.set(CLUSTER_Z / logDepthRange, CLUSTER_Z * (float) Math.log(zNear) / logDepthRange);
+        tileScale.set((float) CLUSTER_X / width, (float) CLUSTER_Y / height);
+
+        List<PointLight> pointLights = sceneLight.getPointLights();
+        List<SpotLight> spotLights = sceneLight.getSpotLights();
+        pointCount = pointLights != null ? pointLights.size() : 0;
+        spotCount = spotLights != null ? spotLights.size() : 0;
+        int lightCount = pointCount + spotCount;
+        prepareLights(lightCount);
+        for (int i = 0; i < pointCount; i++) {
+            writeLight(i, pointLights.get(i), null, viewMatrix, zNear, zFar);
+        }
+        for (int i = 0; i < spotCount; i++) {
+            SpotLight spotLight = spotLights.get(i);
+            writeLight(pointCount + i, spotLight.getPointLight(), spotLight, viewMatrix, zNear, zFar);
+        }
+
+        JobSystem.getInstance().parallelFor(CLUSTER_Z, 1, (int z) -> assignSlice(z, lightCount));
+        mergeSlices();
+        upload(lightCount);
+    }
+
+    private void prepareLights(int lightCount) {
+        if (lightSpheres.length < lightCount * 4) {
+            lightSpheres = new float[lightCount * 4];
+            lightClusterRanges = new int[lightCount * 6];
+        }
+        int floats = Math.max(1, lightCount) * LIGHT_TEXELS * 4;
+        if (lightData.capacity() < floats) {
+            lightData = MemoryUtil.memRealloc(lightData, floats);
+        }
+        lightData.clear();
+    }
+
+    /**
+     * Transforms a light to view space, stores its data for the shader and finds the clusters its range can touch
+     */
+    private void writeLight(int index, PointLight light, SpotLight spotLight, Matrix4f viewMatrix, float zNear,
+            float zFar) {
+        Vector3f position = light.getPosition();
+        aux.set(position, 1).mul(viewMatrix);
+        float x = aux.x, y = aux.y, z = aux.z;
+        PointLight.Attenuation att = light.getAttenuation();
+        Vector3f color = light.getColor();
+        float range = lightRange(light, zFar);
+
+        int offset = index * LIGHT_TEXELS * 4;
+        lightData.put(offset, x).put(offset + 1, y).put(offset + 2, z).put(offset + 3, light.getIntensity());
+        lightData.put(offset + 4, color.x).put(offset + 5, color.y).put(offset + 6, color.z)
+                .put(offset + 7, att.getConstant());
+        lightData.put(offset + 8, att.getLinear()).put(offset + 9, att.getExponent())
+                .put(offset + 10, spotLight != null ? spotLight.getCutOff() : 0).put(offset + 11, 0);
+        if (spotLight != null) {
+            aux.set(spotLight.getConeDirection(), 0).mul(viewMatrix);
+            lightData.put(offset + 12, aux.x).put(offset + 13, aux.y).put(offset + 14, aux.z);
+        } else {
+            lightData.put(offset + 12, 0).put(offset + 13, 0).put(offset + 14, 0);
+        }
+        lightData.put(offset + 15, 0);
+
+        lightSpheres[index * 4] = x;
+        lightSpheres[index * 4 + 1] = y;
+        lightSpheres[index * 4 + 2] = z;
+        lightSpheres[index * 4 + 3] = range;
+
+        // Tile and slice range of the sphere, empty if it is out of range or behind the camera
+        int[] ranges = lightClusterRanges;
+        int r = index * 6;
+        float nearDepth = -z - range;
+        float farDepth = -z + range;
+        if (range <= 0 || farDepth < zNear || nearDepth > zFar) {
+            ranges[r] = 0; ranges[r + 1] = -1;
+            ranges[r + 4] = 0; ranges[r + 5] = -1;
+            return;
+        }
+        ranges[r + 4] = depthSlice(Math.max(nearDepth, zNear));
+        ranges[r + 5] = depthSlice(Math.min(farDepth, zFar));
+        if (nearDepth <= zNear) {
+            // The sphere reaches past the near plane, the projection is unbounded
+            ranges[r] = 0; ranges[r + 1] = CLUSTER_X - 1;
+            ranges[r + 2] = 0; ranges[r + 3] = CLUSTER_Y - 1;
+            return;
+        }
+        // The extremes of x / depth over the box around the sphere lie at its corners
+        float p00 = clusterProjection.m00(), p11 = clusterProjection.m11();
+        float minX = p00 * Math.min((x - range) / nearDepth, (x - range) / farDepth);
+        float maxX = p00 * Math.max((x + range) / nearDepth, (x + range) / farDepth);
+        float minY = p11 * Math.min((y - range) / nearDepth, (y - range) / farDepth);
+        float maxY = p11 * Math.max((y + range) / nearDepth, (y + range) / farDepth);
+        ranges[r] = tile(minX, CLUSTER_X);
+        ranges[r + 1] = tile(maxX, CLUSTER_X);
+        ranges[r + 2] = tile(minY, CLUSTER_Y);
+        ranges[r + 3] = tile(maxY, CLUSTER_Y);
+    }
+
+    /**
+     * Solves constant + linear * d + exponent * d^2 = intensity / LIGHT_THRESHOLD for the distance d.
+     * Lights without falloff get twice the far plane distance
+     */
+    static float lightRange(PointLight light, float zFar) {
+        PointLight.Attenuation att = light.getAttenuation();
+        Vector3f color = light.getColor();
+        float brightness = light.getIntensity() * Math.max(color.x, Math.max(color.y, color.z));
+        float c = att.getConstant() - brightness / LIGHT_THRESHOLD;
+        if (brightness <= 0 || c >= 0) {
+            return 0;
+        }
+        float a = att.getExponent(), b = att.getLinear();
+        if (a > 0) {
+            return (float) ((-b + Math.sqrt(b * b - 4 * a * c)) / (2 * a));
+        } else if (b > 0) {
+            return -c / b;
+        }
+        // No falloff, the light reaches every cluster
+        return 2 * zFar;
+    }
+
+    private int depthSlice(float depth) {
+        int slice = (int) (Math.log(depth) * depthParams.x - depthParams.y);
+        return Math.max(0, Math.min(CLUSTER_Z - 1, slice));
+    }
+
+    private static int tile(float ndc, int tiles) {
+        int tile = (int) Math.floor((ndc * 0.5f + 0.5f) * tiles);
+        return Math.max(0, Math.min(tiles - 1, tile));
+    }
+
+    private void buildClusterBounds(float zNear, float zFar) {
+        float p00 = clusterProjection.m00(), p11 = clusterProjection.m11();
+        for (int z = 0; z < CLUSTER_Z; z++) {
+            float near = zNear * (float) Math.pow(zFar / zNear, (float) z / CLUSTER_Z);
+            float far = zNear * (float) Math.pow(zFar / zNear, (float) (z + 1) / CLUSTER_Z);
+            for (int y = 0; y < CLUSTER_Y; y++) {
+                float y0 = (2.0f * y / CLUSTER_Y - 1) / p11, y1 = (2.0f * (y + 1) / CLUSTER_Y - 1) / p11;
+                for (int x = 0; x < CLUSTER_X; x++) {
+                    float x0 = (2.0f * x / CLUSTER_X - 1) / p00, x1 = (2.0f * (x + 1) / CLUSTER_X - 1) / p00;
+                    int b = ((z * CLUSTER_Y + y) * CLUSTER_X + x) * 6;
+                    clusterBounds[b] = Math.min(x0 * near, x0 * far);
+                    clusterBounds[b + 1] = Math.min(y0 * near, y0 * far);
+                    clusterBounds[b + 2] = -far;
+                    clusterBounds[b + 3] = Math.max(x1 * near, x1 * far);
+                    clusterBounds[b + 4] = Math.max(y1 * near, y1 * far);
+                    clusterBounds[b + 5] = -near;
+                }
+            }
+        }
+    }
+
+    /**
+     * Collects the lights of every cluster of a depth slice. Runs on a worker thread, only touches the slice
+     */
+    private void assignSlice(int z, int lightCount) {
+        Slice slice = slices[z];
+        Arrays.fill(slice.counts, 0);
+        slice.entryCount = 0;
+        for (int light = 0; light < lightCount; light++) {
+            int r = light * 6;
+            if (z < lightClusterRanges[r + 4] || z > lightClusterRanges[r + 5]) {
+                continue;
+            }
+            float lx = lightSpheres[light * 4], ly = lightSpheres[light * 4 + 1];
+            float lz = lightSpheres[light * 4 + 2], range = lightSpheres[light * 4 + 3];
+            int kind = light < pointCount ? 0 : 1;
+            for (int y = lightClusterRanges[r + 2]; y <= lightClusterRanges[r + 3]; y++) {
+                for (int x = lightClusterRanges[r]; x <= lightClusterRanges[r + 1]; x++) {
+                    int tile = y * CLUSTER_X + x;
+                    int b = (z * TILES + tile) * 6;
+                    // Distance from the centre of the sphere to the box of the cluster
+                    float dx = Math.max(0, Math.max(clusterBounds[b] - lx, lx - clusterBounds[b + 3]));
+                    float dy = Math.max(0, Math.max(clusterBounds[b + 1] - ly, ly - clusterBounds[b + 4]));
+                    float dz = Math.max(0, Math.max(clusterBounds[b + 2] - lz, lz - clusterBounds[b + 5]));
+                    if (dx * dx + dy * dy + dz * dz > range * range) {
+                        continue;
+                    }
+                    if (slice.entryCount == slice.entries.length) {
+                        slice.entries = Arrays.copyOf(slice.entries, slice.entries.length * 2);
+                    }
+                    slice.entries[slice.entryCount++] = tile << 24 | light;
+                    slice.counts[tile * 2 + kind]++;
+                }
+            }
+        }
+
+        // Counting sort by tile, stable so point lights stay in front of spot lights
+        int offset = 0;
+        for (int tile = 0; tile < TILES; tile++) {
+            slice.tileOffsets[tile] = offset;
+            offset += slice.counts[tile * 2] + slice.counts[tile * 2 + 1];
+        }
+        if (slice.sorted.length < slice.entryCount) {
+            slice.sorted = new int[slice.entries.length];
+        }
+        System.arraycopy(slice.tileOffsets, 0, slice.nextOffsets, 0, TILES);
+        for (int i = 0; i < slice.entryCount; i++) {
+            int entry = slice.entries[i];
+            slice.sorted[slice.nextOffsets[entry >>> 24]++] = entry & 0xFFFFFF;
+        }
+    }
+
+    private void mergeSlices() {
+        indexCount = 0;
+        for (Slice slice : slices) {
+            indexCount += slice.entryCount;
+        }
+        if (indices.capacity() < Math.max(1, indexCount)) {
+            indices = MemoryUtil.memRealloc(indices, Math.max(indexCount, indices.capacity() * 2));
+        }
+        indices.clear();
+        grid.clear();
+
+        int base = 0;
+        for (int z = 0; z < CLUSTER_Z; z++) {
+            Slice slice = slices[z];
+            for (int tile = 0; tile < TILES; tile++) {
+                int cluster = z * TILES + tile;
+                grid.put(cluster * 2, base + slice.tileOffsets[tile]);
+                grid.put(cluster * 2 + 1, slice.counts[tile * 2] | slice.counts[tile * 2 + 1] << 16);
+            }
+            indices.position(base);
+            indices.put(slice.sorted, 0, slice.entryCount);
+            base += slice.entryCount;
+        }
+        indices.flip();
+    }
+
+    private void upload(int lightCount) {
+        glBindBuffer(GL_TEXTURE_BUFFER, gridBufferId);
+        glBufferData(GL_TEXTURE_BUFFER, grid, GL_STREAM_DRAW);
+
+        glBindBuffer(GL_TEXTURE_BUFFER, indexBufferId);
+        if (indexCount > 0) {
+            glBufferData(GL_TEXTURE_BUFFER, indices, GL_STREAM_DRAW);
+        } else {
+            glBufferData(GL_TEXTURE_BUFFER, 16, GL_STREAM_DRAW);
+        }
+
+        glBindBuffer(GL_TEXTURE_BUFFER, lightBufferId);
+        lightData.limit(Math.max(1, lightCount) * LIGHT_TEXELS * 4);
+        glBufferData(GL_TEXTURE_BUFFER, lightData, GL_STREAM_DRAW);
+        lightData.clear();
+        glBindBuffer(GL_TEXTURE_BUFFER, 0);
+    }
+
+    /**
+     * Method to bind the buffer textures and set the uniforms of the clustered lighting code of a shader
+     * @param shaderProgram ShaderProgram The bound shader
+     */
+    public void setUniforms(ShaderProgram shaderProgram) {
+        glActiveTexture(GL_TEXTURE0 + GRID_UNIT);
+        glBindTexture(GL_TEXTURE_BUFFER, gridTextureId);
+        glActiveTexture(GL_TEXTURE0 + INDEX_UNIT);
+        glBindTexture(GL_TEXTURE_BUFFER, indexTextureId);
+        glActiveTexture(GL_TEXTURE0 + LIGHT_UNIT);
+        glBindTexture(GL_TEXTURE_BUFFER, lightTextureId);
+        glActiveTexture(GL_TEXTURE0);
+
+        shaderProgram.setUniform("clusterGrid", GRID_UNIT);
+        shaderProgram.setUniform("clusterLightIndices", INDEX_UNIT);
+        shaderProgram.setUniform("clusterLightData", LIGHT_UNIT);
+        shaderProgram.setUniform("clusterTileScale", tileScale);
+        shaderProgram.setUniform("clusterDepthParams", depthParams);
+    }
+
+    /**
+     * @return The number of light indices of all clusters of the last update
+     */
+    public int getIndexCount() {
+        return indexCount;
+    }
+
+    public void cleanup() {
+        glDeleteTextures(gridTextureId);
+        glDeleteTextures(indexTextureId);
+        glDeleteTextures(lightTextureId);
+        glDeleteBuffers(gridBufferId);
+        glDeleteBuffers(indexBufferId);
+        glDeleteBuffers(lightBufferId);
+        MemoryUtil.memFree(grid);
+        MemoryUtil.memFree(indices);
+        MemoryUtil.memFree(lightData);
+    }
+}
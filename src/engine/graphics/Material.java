@@ -1,6 +1,7 @@
 package engine.graphics;
 
 import org.joml.Vector3f;
+import org.joml.Vector4f;
 
 /**
  * Basic material to hold information about either the texture or the diffuse color, and the reflectance of an Entity
@@ -17,12 +18,21 @@ public class Material {
 
     private Texture texture;
     
+    private TextureArray textureArray;
+    
+    private int textureLayer;
+    
+    private final Vector4f uvRect;
+    
+    private boolean sharedTexture;
+    
     /**
      * Default constructor the sets the diffuse color to the DEFAULT_COLOR = (1,1,1) and reflectance to 0
      */
     public Material() {
         color = DEFAULT_COLOR;
         reflectance = 0;
+        uvRect = new Vector4f(0, 0, 1, 1);
     }
     
     /**
@@ -41,6 +51,7 @@ public class Material {
      * @param texture The texture of the material
      */
     public Material(Texture texture) {
+    	this();
     	this.texture = texture;
     	this.reflectance = 0.0f;
     }
@@ -56,6 +67,35 @@ public class Material {
         this.reflectance = reflectance;
     }
 
+    /**
+     * Constructor to use a layer of a texture array as the texture of the material.
+     * Texture arrays are only sampled by meshes drawn from a GeometryArena
+     * @param textureArray The TextureArray holding the texture
+     * @param textureLayer The index of the layer within the array
+     * @param reflectance The reflectance of the material
+     */
+    public Material(TextureArray textureArray, int textureLayer, float reflectance) {
+        this();
+        this.textureArray = textureArray;
+        this.textureLayer = textureLayer;
+        this.reflectance = reflectance;
+        this.sharedTexture = true;
+    }
+    
+    /**
+     * Constructor to use a region of an atlas texture as the texture of the material
+     * @param atlasTexture The Texture of the atlas
+     * @param uvRect The region of the atlas: xy is the offset and zw the scale applied to the texture coordinates
+     * @param reflectance The reflectance of the material
+     */
+    public Material(Texture atlasTexture, Vector4f uvRect, float reflectance) {
+        this();
+        this.texture = atlasTexture;
+        this.uvRect.set(uvRect);
+        this.reflectance = reflectance;
+        this.sharedTexture = true;
+    }
+
     /**
      * 
      * @return Vector3f containing the diffuse color of the material
@@ -93,7 +133,7 @@ public class Material {
      * @return True if the material has a texture specified, false otherwise 
      */
     public boolean isTextured() {
-        return this.texture != null;
+        return this.texture != null || this.textureArray != null;
     }
 
     /**
@@ -111,4 +151,36 @@ public class Material {
     public void setTexture(Texture texture) {
         this.texture = texture;
     }
+
+    /**
+     * 
+     * @return The TextureArray holding the texture of this material, or null if the material does not use an array
+     */
+    public TextureArray getTextureArray() {
+        return textureArray;
+    }
+
+    /**
+     * 
+     * @return The layer of the texture array used by this material
+     */
+    public int getTextureLayer() {
+        return textureLayer;
+    }
+
+    /**
+     * 
+     * @return Vector4f The region of the texture used: xy is the offset and zw the scale of the texture coordinates
+     */
+    public Vector4f getUvRect() {
+        return uvRect;
+    }
+
+    /**
+     * 
+     * @return True if the texture is shared with other materials and owned by a TexturePool, false if the material owns it
+     */
+    public boolean isSharedTexture() {
+        return sharedTexture;
+    }
 }
@@ -2,6 +2,7 @@ package engine.graphics;
 
 import java.nio.*;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.function.Consumer;
 
@@ -10,10 +11,14 @@ import static org.lwjgl.opengl.GL13.*;
 import static org.lwjgl.opengl.GL15.*;
 import static org.lwjgl.opengl.GL20.*;
 import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL31.*;
+import static org.lwjgl.opengl.GL32.*;
 
+import org.joml.Vector3f;
 import org.lwjgl.system.MemoryUtil;
 
 import engine.entities.Entity;
+import engine.physics.TriangleBvh;
 
 /**
  * Class to create and render a mesh of triangles specified in a *.obj file
@@ -22,13 +27,51 @@ import engine.entities.Entity;
  */
 public class Mesh {
 	
+    /**
+     * Index ending the current triangle strip and starting a new one, in the index arrays given to the constructors
+     */
+    public static final int RESTART_INDEX = -1;
+    
+    /**
+     * Meshes with at most this many vertices store their indices as unsigned shorts. The largest short is the restart index
+     */
+    private static final int MAX_SHORT_VERTICES = 0xffff;
+    
     private final int vaoId;
 
     private final List<Integer> vboIdList;
     
     private final int vertexCount;
     
+    private final int drawMode;
+    
+    private int indexType;
+    
+    private final GeometryArena arena;
+    
+    private final GeometryArena.Allocation allocation;
+    
+    private final float boundingRadius;
+    
+    private final Vector3f boundsMin;
+    
+    private final Vector3f boundsMax;
+    
     private Material material;
+
+    /**
+     * The triangles of the mesh kept on the heap for ray casts, null for meshes built by subclasses
+     */
+    private final TriangleBvh triangleBvh;
+    
+    private float[] occluderPositions;
+    
+    private int[] occluderIndices;
+    
+    /**
+     * Simplified versions of the mesh, each with fewer triangles than the one before
+     */
+    private Mesh[] lods = new Mesh[0];
     
 
     /**
@@ -39,13 +82,34 @@ public class Mesh {
      * @param indicies int[] The array of face indices specifying the order of vertices of the triangle faces
      */
     public Mesh(float[] positions, float[] textCoords, float[] normals, int[] indicies) {
+        this(positions, textCoords, normals, indicies, GL_TRIANGLES);
+    }
+    
+    /**
+     * Constructs a new mesh of triangles or triangle strips. Meshes with few enough vertices store 16 bit indices
+     * @param positions float[] The flattened array of vertices of the mesh
+     * @param textCoords float[] The flattened array of texture coordinates
+     * @param normals float[] The flattened array of normal vectors
+     * @param indicies int[] The element indices. Strips are separated by RESTART_INDEX
+     * @param drawMode int GL_TRIANGLES or GL_TRIANGLE_STRIP
+     */
+    public Mesh(float[] positions, float[] textCoords, float[] normals, int[] indicies, int drawMode) {
         FloatBuffer verticesBuffer = null;
         FloatBuffer textBuffer = null;
         FloatBuffer vecNormalsBuffer = null;
-        IntBuffer indiciesBuffer = null;
+        Buffer indiciesBuffer = null;
         try {
         	vboIdList = new ArrayList<Integer>();
         	vertexCount = indicies.length;
+        	this.drawMode = drawMode;
+        	indexType = positions.length / 3 <= MAX_SHORT_VERTICES ? GL_UNSIGNED_SHORT : GL_UNSIGNED_INT;
+        	arena = null;
+        	allocation = null;
+        	boundingRadius = calcBoundingRadius(positions);
+        	boundsMin = new Vector3f();
+        	boundsMax = new Vector3f();
+        	calcBounds(positions, boundsMin, boundsMax);
+        	triangleBvh = new TriangleBvh(positions, drawMode == GL_TRIANGLE_STRIP ? stripsToTriangles(indicies) : indicies);
         	
             verticesBuffer = MemoryUtil.memAllocFloat(positions.length);
             verticesBuffer.put(positions).flip();
@@ -56,8 +120,7 @@ public class Mesh {
             vecNormalsBuffer = MemoryUtil.memAllocFloat(normals.length);
             vecNormalsBuffer.put(normals).flip();
 
-            indiciesBuffer = MemoryUtil.memAllocInt(indicies.length);
-            indiciesBuffer.put(indicies).flip();
+            indiciesBuffer = createIndexBuffer(indicies, indexType);
             
             
             vaoId = glGenVertexArrays();
@@ -75,7 +138,11 @@ public class Mesh {
             int idxVboId = glGenBuffers();
             vboIdList.add(idxVboId);
             glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, idxVboId);
-            glBufferData(GL_ELEMENT_ARRAY_BUFFER, indiciesBuffer, GL_STATIC_DRAW);
+            if (indexType == GL_UNSIGNED_SHORT) {
+            	glBufferData(GL_ELEMENT_ARRAY_BUFFER, (ShortBuffer) indiciesBuffer, GL_STATIC_DRAW);
+            } else {
+            	glBufferData(GL_ELEMENT_ARRAY_BUFFER, (IntBuffer) indiciesBuffer, GL_STATIC_DRAW);
+            }
             
             //Texture coordinates VBO
             int textVboId = glGenBuffers();
@@ -111,7 +178,90 @@ public class Mesh {
         }
     }
     
-    private void initRender() {
+    /**
+     * Constructs a new mesh, whose data is placed into the shared buffers of a geometry arena instead of its own VAO and VBOs
+     * @param arena GeometryArena The arena to store the vertices and indices in
+     * @param positions float[] The flattened array of vertices of the mesh
+     * @param textCoords float[] The flattened array of texture coordinates
+     * @param normals float[] The flattened array of normal vectors
+     * @param indicies int[] The array of face indices
+     */
+    public Mesh(GeometryArena arena, float[] positions, float[] textCoords, float[] normals, int[] indicies) {
+        this.arena = arena;
+        this.allocation = arena.allocate(positions, textCoords, normals, indicies);
+        this.vaoId = arena.getVaoId();
+        this.vboIdList = new ArrayList<Integer>();
+        this.vertexCount = indicies.length;
+        // The shared buffers always hold 32 bit triangle lists
+        this.drawMode = GL_TRIANGLES;
+        this.indexType = GL_UNSIGNED_INT;
+        this.boundingRadius = calcBoundingRadius(positions);
+        this.boundsMin = new Vector3f();
+        this.boundsMax = new Vector3f();
+        calcBounds(positions, boundsMin, boundsMax);
+        this.triangleBvh = new TriangleBvh(positions, indicies);
+    }
+    
+    /**
+     * Constructs a mesh around a VAO and VBOs created by a subclass, which provides the number of indices to draw
+     * by overriding getVertexCount(). The VBOs have to be in the order positions, indices, texture coordinates, normals
+     * @param vaoId int The vertex array object of the mesh
+     * @param vboIdList List<Integer> The buffers deleted together with the mesh
+     */
+    protected Mesh(int vaoId, List<Integer> vboIdList) {
+        this.vaoId = vaoId;
+        this.vboIdList = vboIdList;
+        this.vertexCount = 0;
+        this.drawMode = GL_TRIANGLES;
+        this.indexType = GL_UNSIGNED_INT;
+        this.arena = null;
+        this.allocation = null;
+        this.boundingRadius = 0;
+        this.boundsMin = new Vector3f();
+        this.boundsMax = new Vector3f();
+        this.triangleBvh = null;
+    }
+    
+    private static float calcBoundingRadius(float[] positions) {
+        float maxLengthSquared = 0;
+        for (int i = 0; i + 2 < positions.length; i += 3) {
+            float x = positions[i], y = positions[i + 1], z = positions[i + 2];
+            maxLengthSquared = Math.max(maxLengthSquared, x * x + y * y + z * z);
+        }
+        return (float) Math.sqrt(maxLengthSquared);
+    }
+    
+    /**
+     * Copies indices into a new buffer of shorts or ints, turning RESTART_INDEX into the largest value of the type
+     */
+    private static Buffer createIndexBuffer(int[] indices, int indexType) {
+        if (indexType == GL_UNSIGNED_SHORT) {
+            ShortBuffer buffer = MemoryUtil.memAllocShort(indices.length);
+            for (int index : indices) {
+                buffer.put((short) (index == RESTART_INDEX ? MAX_SHORT_VERTICES : index));
+            }
+            buffer.flip();
+            return buffer;
+        }
+        // The restart index is all bits set either way
+        IntBuffer buffer = MemoryUtil.memAllocInt(indices.length);
+        buffer.put(indices).flip();
+        return buffer;
+    }
+    
+    private static void calcBounds(float[] positions, Vector3f min, Vector3f max) {
+        if (positions.length < 3) {
+            return;
+        }
+        min.set(Float.MAX_VALUE);
+        max.set(-Float.MAX_VALUE);
+        for (int i = 0; i + 2 < positions.length; i += 3) {
+            min.set(Math.min(min.x, positions[i]), Math.min(min.y, positions[i + 1]), Math.min(min.z, positions[i + 2]));
+            max.set(Math.max(max.x, positions[i]), Math.max(max.y, positions[i + 1]), Math.max(max.z, positions[i + 2]));
+        }
+    }
+    
+    void initRender() {
         Texture texture = material.getTexture();
         if (texture != null) {
             // Activate first texture bank
@@ -125,10 +275,18 @@ public class Mesh {
         glEnableVertexAttribArray(0);
         glEnableVertexAttribArray(1);
         glEnableVertexAttribArray(2);
+        
+        if (drawMode == GL_TRIANGLE_STRIP) {
+            glEnable(GL_PRIMITIVE_RESTART);
+            glPrimitiveRestartIndex(indexType == GL_UNSIGNED_SHORT ? MAX_SHORT_VERTICES : RESTART_INDEX);
+        }
     }
 
-    private void endRender() {
+    void endRender() {
         // Restore state
+        if (drawMode == GL_TRIANGLE_STRIP) {
+            glDisable(GL_PRIMITIVE_RESTART);
+        }
         glDisableVertexAttribArray(0);
         glDisableVertexAttribArray(1);
         glDisableVertexAttribArray(2);
@@ -143,11 +301,20 @@ public class Mesh {
     public void render() {
         initRender();
 
-        glDrawElements(GL_TRIANGLES, getVertexCount(), GL_UNSIGNED_INT, 0);
+        drawElements();
 
         endRender();
     }
 
+    void drawElements() {
+        if (allocation != null) {
+            glDrawElementsBaseVertex(GL_TRIANGLES, getVertexCount(), GL_UNSIGNED_INT,
+                    (long) allocation.getFirstIndex() * 4, allocation.getBaseVertex());
+        } else {
+            glDrawElements(drawMode, getVertexCount(), indexType, 0);
+        }
+    }
+
     public void renderList(List<Entity> entities, Consumer<Entity> consumer) {
         initRender();
 
@@ -155,7 +322,7 @@ public class Mesh {
             // Set up data required by gameItem
             consumer.accept(entity);
             // Render this game item
-            glDrawElements(GL_TRIANGLES, getVertexCount(), GL_UNSIGNED_INT, 0);
+            drawElements();
         }
 
         endRender();
@@ -175,6 +342,9 @@ public class Mesh {
      */
 	public void setMaterial(Material material) {
 		this.material = material;
+		for (Mesh lod : lods) {
+			lod.setMaterial(material);
+		}
 	}
 
 	public boolean hasMaterial() {
@@ -185,29 +355,248 @@ public class Mesh {
         return vaoId;
     }
 
+    /**
+     * 
+     * @return GL_UNSIGNED_SHORT or GL_UNSIGNED_INT, the type of the indices
+     */
+    public int getIndexType() {
+        return indexType;
+    }
+
+    /**
+     * Method for subclasses which upload their own indices to tell their type
+     * @param indexType int GL_UNSIGNED_SHORT or GL_UNSIGNED_INT
+     */
+    protected void setIndexType(int indexType) {
+        this.indexType = indexType;
+    }
+
+    /**
+     * 
+     * @return GL_TRIANGLES or GL_TRIANGLE_STRIP
+     */
+    public int getDrawMode() {
+        return drawMode;
+    }
+
     public int getVertexCount() {
         return vertexCount;
     }
 
-    public void cleanUp() {
-        glDisableVertexAttribArray(0);
+    /**
+     * 
+     * @return The radius of the sphere around the model space origin enclosing every vertex of the mesh
+     */
+    public float getBoundingRadius() {
+        return boundingRadius;
+    }
+
+    /**
+     * 
+     * @return The minimum corner of the axis aligned box in model space enclosing every vertex of the mesh
+     */
+    public Vector3f getBoundsMin() {
+        return boundsMin;
+    }
+
+    /**
+     * 
+     * @return The maximum corner of the axis aligned box in model space enclosing every vertex of the mesh
+     */
+    public Vector3f getBoundsMax() {
+        return boundsMax;
+    }
+
+    /**
+     * 
+     * @return The hierarchy of the triangles in model space, built when the mesh was created, to cast rays against
+     * the mesh. Null for meshes built by subclasses
+     */
+    public TriangleBvh getTriangleBvh() {
+        return triangleBvh;
+    }
+
+    /**
+     * Method to let the mesh hide what is behind it in the software occlusion culling. The occluder geometry is kept
+     * on the heap, so it should be a simplified version of the mesh lying completely inside of it
+     * @param positions float[] The flattened vertices of the occluder, or null to stop occluding
+     * @param indices int[] The counter clockwise triangles of the occluder
+     */
+    public void setOccluder(float[] positions, int[] indices) {
+        this.occluderPositions = positions;
+        this.occluderIndices = indices;
+    }
+
+    /**
+     * Method to use the bounding box of the mesh as its occluder, which is only correct for solid box shaped meshes
+     */
+    public void setBoxOccluder() {
+        setOccluder(OcclusionCuller.boxCorners(boundsMin, boundsMax), OcclusionCuller.BOX_INDICES);
+    }
+
+    public boolean isOccluder() {
+        return occluderPositions != null;
+    }
 
-        // Delete the position VBO
+    public float[] getOccluderPositions() {
+        return occluderPositions;
+    }
+
+    public int[] getOccluderIndices() {
+        return occluderIndices;
+    }
+
+    /**
+     * Method to set the levels of detail drawn instead of the mesh when it is small on screen.
+     * The levels share the material of this mesh
+     * @param lods Mesh... The simplified meshes, from the most to the least detailed
+     */
+    public void setLods(Mesh... lods) {
+        this.lods = lods.clone();
+        for (Mesh lod : lods) {
+            lod.setMaterial(material);
+        }
+    }
+
+    /**
+     * Method to get a level of detail of the mesh
+     * @param level int The level, 0 for the mesh itself. Levels past the last one give the last one
+     * @return Mesh The mesh to draw for the level
+     */
+    public Mesh getLod(int level) {
+        if (level <= 0 || lods.length == 0) {
+            return this;
+        }
+        return lods[Math.min(level, lods.length) - 1];
+    }
+
+    /**
+     * 
+     * @return The number of levels of detail, including the mesh itself
+     */
+    public int getLodCount() {
+        return lods.length + 1;
+    }
+
+    /**
+     * 
+     * @return The GeometryArena the mesh is stored in, or null if the mesh owns its buffers
+     */
+    public GeometryArena getArena() {
+        return arena;
+    }
+
+    /**
+     * 
+     * @return The ranges of the arena occupied by the mesh, or null if the mesh owns its buffers
+     */
+    public GeometryArena.Allocation getAllocation() {
+        return allocation;
+    }
+
+    /**
+     * Method to read the vertex positions back from video memory. Slow, meant to be called once for small meshes
+     * whose vertices are transformed on the CPU, like HUD items
+     * @return float[] The flattened array of vertices
+     */
+    float[] readPositions() {
+        return readFloats(vboIdList.get(0));
+    }
+
+    /**
+     * Method to read the texture coordinates back from video memory
+     * @return float[] The flattened array of texture coordinates
+     */
+    float[] readTextCoords() {
+        return readFloats(vboIdList.get(2));
+    }
+
+    /**
+     * Method to read the element indices back from video memory
+     * @return int[] The array of face indices, with triangle strips turned into separate triangles
+     */
+    int[] readIndices() {
+        if (allocation != null) {
+            throw new IllegalStateException("Cannot read back a mesh stored in a GeometryArena");
+        }
+        glBindBuffer(GL_ARRAY_BUFFER, vboIdList.get(1));
+        int size = glGetBufferParameteri(GL_ARRAY_BUFFER, GL_BUFFER_SIZE);
+        int[] data;
+        if (indexType == GL_UNSIGNED_SHORT) {
+            short[] shorts = new short[size / 2];
+            glGetBufferSubData(GL_ARRAY_BUFFER, 0, shorts);
+            data = new int[shorts.length];
+            for (int i = 0; i < shorts.length; i++) {
+                int index = shorts[i] & 0xffff;
+                data[i] = index == MAX_SHORT_VERTICES ? RESTART_INDEX : index;
+            }
+        } else {
+            data = new int[size / 4];
+            glGetBufferSubData(GL_ARRAY_BUFFER, 0, data);
+        }
         glBindBuffer(GL_ARRAY_BUFFER, 0);
-        for (int vboId : vboIdList) {
-            glDeleteBuffers(vboId);
+        return drawMode == GL_TRIANGLE_STRIP ? stripsToTriangles(data) : data;
+    }
+
+    /**
+     * Method to turn triangle strips separated by RESTART_INDEX into a list of triangles with the same winding
+     * @param strips int[] The strip indices
+     * @return int[] The triangle indices, without degenerate triangles
+     */
+    public static int[] stripsToTriangles(int[] strips) {
+        int[] triangles = new int[Math.max(0, strips.length - 2) * 3];
+        int count = 0;
+        int stripStart = 0;
+        for (int i = 0; i < strips.length; i++) {
+            if (strips[i] == RESTART_INDEX) {
+                stripStart = i + 1;
+                continue;
+            }
+            if (i - stripStart < 2) {
+                continue;
+            }
+            int a = strips[i - 2], b = strips[i - 1], c = strips[i];
+            if (a == b || b == c || a == c) {
+                continue;
+            }
+            // Every other triangle of a strip is wound the other way round
+            boolean odd = ((i - stripStart) & 1) != 0;
+            triangles[count++] = odd ? b : a;
+            triangles[count++] = odd ? a : b;
+            triangles[count++] = c;
         }
-        
+        return Arrays.copyOf(triangles, count);
+    }
+
+    private float[] readFloats(int vboId) {
+        if (allocation != null) {
+            throw new IllegalStateException("Cannot read back a mesh stored in a GeometryArena");
+        }
+        glBindBuffer(GL_ARRAY_BUFFER, vboId);
+        float[] data = new float[glGetBufferParameteri(GL_ARRAY_BUFFER, GL_BUFFER_SIZE) / 4];
+        glGetBufferSubData(GL_ARRAY_BUFFER, 0, data);
+        glBindBuffer(GL_ARRAY_BUFFER, 0);
+        return data;
+    }
+
+    public void cleanUp() {
         Texture texture = material.getTexture();
-        if (texture != null)
+        if (texture != null && !material.isSharedTexture())
         	texture.cleanup();
         
-        // Delete the VAO
-        glBindVertexArray(0);
-        glDeleteVertexArrays(vaoId);
+        for (Mesh lod : lods) {
+        	lod.deleteBuffers();
+        }
+        deleteBuffers();
     }
     
     public void deleteBuffers() {
+        if (allocation != null) {
+            // The buffers are shared, only give back our ranges
+            arena.free(allocation);
+            return;
+        }
+        
         glDisableVertexAttribArray(0);
 
         // Delete the VBOs
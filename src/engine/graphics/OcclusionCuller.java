@@ -0,0 +1,483 @@
+package engine.graphics;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+
+import engine.jobs.JobSystem;
+
+/**
+ * Software occlusion culling. A few large occluders are rasterized on the CPU into a small depth buffer, which is then
+ * reduced into a Hi-Z pyramid whose texels hold the farthest depth below them. An entity is hidden when the nearest
+ * point of its bounding box is behind the farthest depth of every Hi-Z texel covering its screen rectangle.
+ * Triangles are binned into square tiles, and the tiles are rasterized in parallel with half-space edge functions.
+ * Everything runs on the CPU without any OpenGL call, depths are normalized to [0, 1] with 1 at the far plane.
+ */
+public class OcclusionCuller {
+
+    public static final int TILE_SIZE = 32;
+
+    /**
+     * The twelve counter clockwise triangles of a box, whose corner i has the maximum x if bit 0 of i is set,
+     * the maximum y for bit 1 and the maximum z for bit 2
+     */
+    public static final int[] BOX_INDICES = {
+        0, 4, 6, 0, 6, 2, 1, 3, 7, 1, 7, 5, 0, 1, 5, 0, 5, 4,
+        2, 6, 7, 2, 7, 3, 0, 2, 3, 0, 3, 1, 4, 5, 7, 4, 7, 6
+    };
+
+    /**
+     * Floats per triangle: screen x, screen y and depth of each of the three vertices
+     */
+    private static final int TRIANGLE_SIZE = 9;
+
+    private final int width;
+
+    private final int height;
+
+    private final int tilesX;
+
+    private final int tilesY;
+
+    /**
+     * Hi-Z pyramid, level 0 is the depth buffer itself
+     */
+    private final float[][] levels;
+
+    private final int[] levelWidths;
+
+    private final int[] levelHeights;
+
+    private final int[][] tileBins;
+
+    private final int[] tileBinCounts;
+
+    private final Matrix4f viewProjection;
+
+    private final Matrix4f transform;
+
+    private float[] triangles;
+
+    private int triangleCount;
+
+    private float[] clip;
+
+    /**
+     * Creates the depth buffer and the pyramid
+     * @param width int The width of the depth buffer, rounded up to whole tiles
+     * @param height int The height of the depth buffer, rounded up to whole tiles
+     */
+    public OcclusionCuller(int width, int height) {
+        this.tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+        this.tilesY = (height + TILE_SIZE - 1) / TILE_SIZE;
+        this.width = tilesX * TILE_SIZE;
+        this.height = tilesY * TILE_SIZE;
+
+        int levelCount = 1;
+        for (int size = Math.max(this.width, this.height); size > 1; size = (size + 1) / 2) {
+            levelCount++;
+        }
+        levels = new float[levelCount][];
+        levelWidths = new int[levelCount];
+        levelHeights = new int[levelCount];
+        int w = this.width;
+        int h = this.height;
+        for (int i = 0; i < levelCount; i++) {
+            levels[i] = new float[w * h];
+            levelWidths[i] = w;
+            levelHeights[i] = h;
+            w = Math.max(1, (w + 1) / 2);
+            h = Math.max(1, (h + 1) / 2);
+        }
+
+        tileBins = new int[tilesX * tilesY][64];
+        tileBinCounts = new int[tilesX * tilesY];
+        viewProjection = new Matrix4f();
+        transform = new Matrix4f();
+        triangles = new float[1024 * TRIANGLE_SIZE];
+        clip = new float[256 * 4];
+    }
+
+    /**
+     * Method to clear the depth buffer and forget the occluders of the last frame
+     * @param viewProjection Matrix4f The projection matrix multiplied by the view matrix
+     */
+    public void begin(Matrix4f viewProjection) {
+        this.viewProjection.set(viewProjection);
+        triangleCount = 0;
+        Arrays.fill(tileBinCounts, 0);
+    }
+
+    /**
+     * Method to add the triangles of an occluder. Back faces and triangles crossing the near plane are skipped,
+     * which only makes the occluder smaller than it is, never larger
+     * @param positions float[] The flattened vertices of the occluder in model space
+     * @param indices int[] The counter clockwise triangles of the occluder
+     * @param modelMatrix Matrix4f Places the occluder in the world
+     */
+    public void addOccluder(float[] positions, int[] indices, Matrix4f modelMatrix) {
+        viewProjection.mul(modelMatrix, transform);
+        int vertexCount = positions.length / 3;
+        if (clip.length < vertexCount * 4) {
+            clip = new float[Math.max(vertexCount * 4, clip.length * 2)];
+        }
+        for (int v = 0; v < vertexCount; v++) {
+            float x = positions[v * 3], y = positions[v * 3 + 1], z = positions[v * 3 + 2];
+            clip[v * 4] = transform.m00() * x + transform.m10() * y + transform.m20() * z + transform.m30();
+            clip[v * 4 + 1] = transform.m01() * x + transform.m11() * y + transform.m21() * z + transform.m31();
+            clip[v * 4 + 2] = transform.m02() * x + transform.m12() * y + transform.m22() * z + transform.m32();
+            clip[v * 4 + 3] = transform.m03() * x + transform.m13() * y + transform.m23() * z + transform.m33();
+        }
+        for (int i = 0; i + 2 < indices.length; i += 3) {
+            addTriangle(indices[i] * 4, indices[i + 1] * 4, indices[i + 2] * 4);
+        }
+    }
+
+    private void addTriangle(int a, int b, int c) {
+        // Clipping against the near plane is not worth it for occluders, such triangles are dropped
+        if (clip[a + 2] < -clip[a + 3] || clip[b + 2] < -clip[b + 3] || clip[c + 2] < -clip[c + 3]) {
+            return;
+        }
+        if (triangles.length < (triangleCount + 1) * TRIANGLE_SIZE) {
+            triangles = Arrays.copyOf(triangles, triangles.length * 2);
+        }
+        int t = triangleCount * TRIANGLE_SIZE;
+        toScreen(a, t);
+        toScreen(b, t + 3);
+        toScreen(c, t + 6);
+
+        float x0 = triangles[t], y0 = triangles[t + 1];
+        float x1 = triangles[t + 3], y1 = triangles[t + 4];
+        float x2 = triangles[t + 6], y2 = triangles[t + 7];
+        float area = (x1 - x0) * (y2 - y0) - (x2 - x0) * (y1 - y0);
+        if (area <= 0) {
+            return;
+        }
+        float minX = Math.min(x0, Math.min(x1, x2));
+        float maxX = Math.max(x0, Math.max(x1, x2));
+        float minY = Math.min(y0, Math.min(y1, y2));
+        float maxY = Math.max(y0, Math.max(y1, y2));
+        if (maxX < 0 || maxY < 0 || minX >= width || minY >= height) {
+            return;
+        }
+
+        int tileMinX = Math.max(0, (int) minX / TILE_SIZE);
+        int tileMaxX = Math.min(tilesX - 1, (int) maxX / TILE_SIZE);
+        int tileMinY = Math.max(0, (int) minY / TILE_SIZE);
+        int tileMaxY = Math.min(tilesY - 1, (int) maxY / TILE_SIZE);
+        for (int ty = tileMinY; ty <= tileMaxY; ty++) {
+            for (int tx = tileMinX; tx <= tileMaxX; tx++) {
+                int tile = ty * tilesX + tx;
+                if (tileBins[tile].length == tileBinCounts[tile]) {
+                    tileBins[tile] = Arrays.copyOf(tileBins[tile], tileBinCounts[tile] * 2);
+                }
+                tileBins[tile][tileBinCounts[tile]++] = triangleCount;
+            }
+        }
+        triangleCount++;
+    }
+
+    private void toScreen(int vertex, int target) {
+        float invW = 1.0f / clip[vertex + 3];
+        triangles[target] = (clip[vertex] * invW * 0.5f + 0.5f) * width;
+        triangles[target + 1] = (clip[vertex + 1] * invW * 0.5f + 0.5f) * height;
+        triangles[target + 2] = clip[vertex + 2] * invW * 0.5f + 0.5f;
+    }
+
+    /**
+     * Method to add a box shaped occluder
+     * @param min Vector3f The minimum corner of the box in model space
+     * @param max Vector3f The maximum corner of the box in model space
+     * @param modelMatrix Matrix4f Places the box in the world
+     */
+    public void addOccluderBox(Vector3f min, Vector3f max, Matrix4f modelMatrix) {
+        addOccluder(boxCorners(min, max), BOX_INDICES, modelMatrix);
+    }
+
+    /**
+     * Method to get the corners of a box in the order BOX_INDICES refers to them
+     * @param min Vector3f The minimum corner
+     * @param max Vector3f The maximum corner
+     * @return float[] The flattened eight corners
+     */
+    public static float[] boxCorners(Vector3f min, Vector3f max) {
+        float[] corners = new float[8 * 3];
+        for (int i = 0; i < 8; i++) {
+            corners[i * 3] = (i & 1) != 0 ? max.x : min.x;
+            corners[i * 3 + 1] = (i & 2) != 0 ? max.y : min.y;
+            corners[i * 3 + 2] = (i & 4) != 0 ? max.z : min.z;
+        }
+        return corners;
+    }
+
+    /**
+     * Method to rasterize the occluders added since begin() and build the Hi-Z pyramid
+     */
+    public void rasterize() {
+        JobSystem.getInstance().parallelFor(tilesX * tilesY, 1, this::rasterizeTile);
+        for (int i = 1; i < levels.length; i++) {
+            reduce(i);
+        }
+    }
+
+    private void rasterizeTile(int tile) {
+        float[] depth = levels[0];
+        int tileX = (tile % tilesX) * TILE_SIZE;
+        int tileY = (tile / tilesX) * TILE_SIZE;
+        for (int y = tileY; y < tileY + TILE_SIZE; y++) {
+            Arrays.fill(depth, y * width + tileX, y * width + tileX + TILE_SIZE, 1.0f);
+        }
+
+        int[] bin = tileBins[tile];
+        for (int i = 0; i < tileBinCounts[tile]; i++) {
+            int t = bin[i] * TRIANGLE_SIZE;
+            float x0 = triangles[t], y0 = triangles[t + 1], z0 = triangles[t + 2];
+            float x1 = triangles[t + 3], y1 = triangles[t + 4], z1 = triangles[t + 5];
+            float x2 = triangles[t + 6], y2 = triangles[t + 7], z2 = triangles[t + 8];
+
+            int minX = Math.max(tileX, (int) Math.min(x0, Math.min(x1, x2)));
+            int maxX = Math.min(tileX + TILE_SIZE - 1, (int) Math.max(x0, Math.max(x1, x2)));
+            int minY = Math.max(tileY, (int) Math.min(y0, Math.min(y1, y2)));
+            int maxY = Math.min(tileY + TILE_SIZE - 1, (int) Math.max(y0, Math.max(y1, y2)));
+            if (minX > maxX || minY > maxY) {
+                continue;
+            }
+
+            // Edge functions e = a * x + b * y + c, positive inside the counter clockwise triangle
+            float a0 = y1 - y2, b0 = x2 - x1, c0 = x1 * y2 - x2 * y1;
+            float a1 = y2 - y0, b1 = x0 - x2, c1 = x2 * y0 - x0 * y2;
+            float a2 = y0 - y1, b2 = x1 - x0, c2 = x0 * y1 - x1 * y0;
+            float invArea = 1.0f / (c0 + c1 + c2);
+
+            // Depth plane, pushed to the farthest depth the triangle reaches inside a pixel
+            float dzdx = (a0 * z0 + a1 * z1 + a2 * z2) * invArea;
+            float dzdy = (b0 * z0 + b1 * z1 + b2 * z2) * invArea;
+            float zBias = 0.5f * (Math.abs(dzdx) + Math.abs(dzdy));
+
+            float px = minX + 0.5f;
+            for (int y = minY; y <= maxY; y++) {
+                float py = y + 0.5f;
+                float e0 = a0 * px + b0 * py + c0;
+                float e1 = a1 * px + b1 * py + c1;
+                float e2 = a2 * px + b2 * py + c2;
+                float z = (e0 * z0 + e1 * z1 + e2 * z2) * invArea + zBias;
+                int row = y * width;
+                for (int x = minX; x <= maxX; x++) {
+                    if (e0 >= 0 && e1 >= 0 && e2 >= 0 && z < depth[row + x]) {
+                        depth[row + x] = z;
+                    }
+                    e0 += a0;
+                    e1 += a1;
+                    e2 += a2;
+                    z += dzdx;
+                }
+            }
+        }
+    }
+
+    /**
+     * Builds a level of the pyramid from the farthest depth of 2x2 texels of the level below
+     */
+    private void reduce(int level) {
+        float[] source = levels[level - 1];
+        int sourceWidth = levelWidths[level - 1];
+        int sourceHeight = levelHeights[level - 1];
+        float[] target = levels[level];
+        int targetWidth = levelWidths[level];
+        for (int y = 0; y < levelHeights[level]; y++) {
+            int row0 = 2 * y * sourceWidth;
+            int row1 = Math.min(2 * y + 1, sourceHeight - 1) * sourceWidth;
+            for (int x = 0; x < targetWidth; x++) {
+                int x0 = 2 * x;
+                int x1 = Math.min(2 * x + 1, sourceWidth - 1);
+                target[y * targetWidth + x] = Math.max(Math.max(source[row0 + x0], source[row0 + x1]),
+                        Math.max(source[row1 + x0], source[row1 + x1]));
+            }
+        }
+    }
+
+    /**
+     * Method to test a bounding box against the view frustum and the rasterized occluders
+     * @param min Vector3f The minimum corner of the box in model space
+     * @param max Vector3f The maximum corner of the box in model space
+     * @param modelMatrix Matrix4f Places the box in the world
+     * @return False if the box is outside of the frustum or behind the occluders, true if it may be visible
+     */
+    public boolean isVisible(Vector3f min, Vector3f max, Matrix4f modelMatrix) {
+        viewProjection.mul(modelMatrix, transform);
+        float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE, minZ = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+        // One bit per frustum plane, cleared as soon as a corner is inside of that plane
+        int outside = 0x3f;
+        boolean crossesNear = false;
+        for (int i = 0; i < 8; i++) {
+            float x = (i & 1) != 0 ? max.x : min.x;
+            float y = (i & 2) != 0 ? max.y : min.y;
+            float z = (i & 4) != 0 ? max.z : min.z;
+            float cx = transform.m00() * x + transform.m10() * y + transform.m20() * z + transform.m30();
+            float cy = transform.m01() * x + transform.m11() * y + transform.m21() * z + transform.m31();
+            float cz = transform.m02() * x + transform.m12() * y + transform.m22() * z + transform.m32();
+            float cw = transform.m03() * x + transform.m13() * y + transform.m23() * z + transform.m33();
+
+            int corner = 0;
+            corner |= cx < -cw ? 1 : 0;
+            corner |= cx > cw ? 2 : 0;
+            corner |= cy < -cw ? 4 : 0;
+            corner |= cy > cw ? 8 : 0;
+            corner |= cz < -cw ? 16 : 0;
+            corner |= cz > cw ? 32 : 0;
+            outside &= corner;
+            if (cz < -cw) {
+                crossesNear = true;
+                continue;
+            }
+            float invW = 1.0f / cw;
+            minX = Math.min(minX, cx * invW);
+            maxX = Math.max(maxX, cx * invW);
+            minY = Math.min(minY, cy * invW);
+            maxY = Math.max(maxY, cy * invW);
+            minZ = Math.min(minZ, cz * invW);
+        }
+        if (outside != 0) {
+            return false;
+        }
+        if (crossesNear) {
+            // The box reaches the camera, its projection is unbounded
+            return true;
+        }
+
+        int x0 = Math.max(0, (int) Math.floor((minX * 0.5f + 0.5f) * width));
+        int x1 = Math.min(width - 1, (int) Math.floor((maxX * 0.5f + 0.5f) * width));
+        int y0 = Math.max(0, (int) Math.floor((minY * 0.5f + 0.5f) * height));
+        int y1 = Math.min(height - 1, (int) Math.floor((maxY * 0.5f + 0.5f) * height));
+        float nearest = minZ * 0.5f + 0.5f;
+
+        // Pick the level where the rectangle covers at most 2x2 texels
+        int level = 0;
+        int size = Math.max(x1 - x0, y1 - y0);
+        while (size > 1 && level < levels.length - 1) {
+            size >>= 1;
+            x0 >>= 1;
+            x1 >>= 1;
+            y0 >>= 1;
+            y1 >>= 1;
+            level++;
+        }
+        float[] depth = levels[level];
+        int levelWidth = levelWidths[level];
+        for (int y = y0; y <= y1; y++) {
+            for (int x = x0; x <= x1; x++) {
+                if (nearest <= depth[y * levelWidth + x]) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return The number of occluder triangles rasterized since the last begin() call
+     */
+    public int getTriangleCount() {
+        return triangleCount;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return float[] The depth buffer, row by row from the bottom of the screen
+     */
+    public float[] getDepthBuffer() {
+        return levels[0];
+    }
+
+    /**
+     * Checks the culler headless and times it. Usage: OcclusionCuller [boxes [frames]]
+     * The checks place a wall in front of the camera and expect a box behind the wall to be rejected, a box in front
+     * of it to be kept and a box outside of the frustum to be rejected. The benchmark rasterizes a field of walls and
+     * tests randomly placed unit boxes against it, like the blocks of the demo scene
+     */
+    public static void main(String[] args) {
+        int boxCount = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int frames = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+
+        Matrix4f viewProjection = new Matrix4f().perspective((float) Math.toRadians(60.0f), 16.0f / 9.0f, 0.01f, 1000.0f)
+                .lookAt(0, 0, 0, 0, 0, -1, 0, 1, 0);
+        Matrix4f identity = new Matrix4f();
+        OcclusionCuller culler = new OcclusionCuller(256, 144);
+
+        culler.begin(viewProjection);
+        culler.addOccluderBox(new Vector3f(-5, -5, -11), new Vector3f(5, 5, -10), identity);
+        culler.rasterize();
+        check(!culler.isVisible(new Vector3f(-0.5f, -0.5f, -20.5f), new Vector3f(0.5f, 0.5f, -19.5f), identity),
+                "a box behind the wall is rejected");
+        check(culler.isVisible(new Vector3f(-0.5f, -0.5f, -5.5f), new Vector3f(0.5f, 0.5f, -4.5f), identity),
+                "a box in front of the wall is kept");
+        check(!culler.isVisible(new Vector3f(49.5f, -0.5f, -5.5f), new Vector3f(50.5f, 0.5f, -4.5f), identity),
+                "a box outside of the frustum is rejected");
+
+        Random random = new Random(42);
+        Vector3f[] wallMin = new Vector3f[16];
+        Vector3f[] wallMax = new Vector3f[wallMin.length];
+        for (int i = 0; i < wallMin.length; i++) {
+            float x = random.nextFloat() * 60 - 30;
+            float z = -10 - random.nextFloat() * 40;
+            wallMin[i] = new Vector3f(x - 4, -4, z - 1);
+            wallMax[i] = new Vector3f(x + 4, 4, z);
+        }
+        Vector3f[] boxMin = new Vector3f[boxCount];
+        Vector3f[] boxMax = new Vector3f[boxCount];
+        for (int i = 0; i < boxCount; i++) {
+            float x = random.nextFloat() * 200 - 100;
+            float y = random.nextFloat() * 8 - 4;
+            float z = -random.nextFloat() * 200;
+            boxMin[i] = new Vector3f(x - 0.5f, y - 0.5f, z - 0.5f);
+            boxMax[i] = new Vector3f(x + 0.5f, y + 0.5f, z + 0.5f);
+        }
+
+        long rasterizeTime = 0;
+        long testTime = 0;
+        int visible = 0;
+        // The first frames only warm up the JIT
+        int warmup = Math.min(frames, 10);
+        for (int frame = 0; frame < warmup + frames; frame++) {
+            long start = System.nanoTime();
+            culler.begin(viewProjection);
+            for (int i = 0; i < wallMin.length; i++) {
+                culler.addOccluderBox(wallMin[i], wallMax[i], identity);
+            }
+            culler.rasterize();
+            long rasterized = System.nanoTime();
+            visible = 0;
+            for (int i = 0; i < boxCount; i++) {
+                if (culler.isVisible(boxMin[i], boxMax[i], identity)) {
+                    visible++;
+                }
+            }
+            long tested = System.nanoTime();
+            if (frame >= warmup) {
+                rasterizeTime += rasterized - start;
+                testTime += tested - rasterized;
+            }
+        }
+        System.out.println(String.format("%dx%d depth buffer, %d occluder triangles: rasterize and reduce %.3f ms",
+                culler.getWidth(), culler.getHeight(), culler.getTriangleCount(), rasterizeTime / 1e6 / frames));
+        System.out.println(String.format("%d boxes: %d visible, tested in %.3f ms (%.1f ns per box)", boxCount, visible,
+                testTime / 1e6 / frames, (double) testTime / frames / Math.max(1, boxCount)));
+    }
+
+    private static void check(boolean condition, String expectation) {
+        if (!condition) {
+            throw new IllegalStateException("Check failed: " + expectation);
+        }
+        System.out.println("ok: " + expectation);
+    }
+}
@@ -0,0 +1,183 @@
+package engine.graphics;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL21.GL_PIXEL_PACK_BUFFER;
+import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL32.*;
+
+import java.nio.ByteBuffer;
+
+import engine.entities.Entity;
+import engine.input.PickCallback;
+
+/**
+ * Finds the entity drawn at a pixel on the GPU. The id pass draws the id of every entity into a single pixel integer
+ * texture, through a projection that scales the picked pixel up to the whole viewport, so the pixel is rasterized
+ * exactly as in the full frame while everything else is clipped away.
+ * The pixel is then copied into a pixel buffer object and a fence is placed behind the copy. poll() only maps the
+ * buffer once its fence is signaled, so reading the id back never waits for the GPU to catch up.
+ */
+public class PickingBuffer {
+
+    public static final int ID_FORMAT = GL_R32UI;
+
+    public static final int DEPTH_FORMAT = GL_DEPTH_COMPONENT32F;
+
+    /**
+     * Readbacks in flight at once, later picks wait in the queue of the scene
+     */
+    private static final int SLOT_COUNT = 3;
+
+    private final int fboId;
+
+    private final int[] pboIds;
+
+    private final long[] fences;
+
+    private final Entity[][] entities;
+
+    private final PickCallback[] callbacks;
+
+    private final int[] pixelX;
+
+    private final int[] pixelY;
+
+    /**
+     * The oldest readback in flight and the number of readbacks in flight
+     */
+    private int first;
+
+    private int pending;
+
+    private int idTextureId;
+
+    private int depthTextureId;
+
+    public PickingBuffer() {
+        fboId = glGenFramebuffers();
+        pboIds = new int[SLOT_COUNT];
+        for (int i = 0; i < SLOT_COUNT; i++) {
+            pboIds[i] = glGenBuffers();
+            glBindBuffer(GL_PIXEL_PACK_BUFFER, pboIds[i]);
+            glBufferData(GL_PIXEL_PACK_BUFFER, 4, GL_STREAM_READ);
+        }
+        glBindBuffer(GL_PIXEL_PACK_BUFFER, 0);
+        fences = new long[SLOT_COUNT];
+        entities = new Entity[SLOT_COUNT][];
+        callbacks = new PickCallback[SLOT_COUNT];
+        pixelX = new int[SLOT_COUNT];
+        pixelY = new int[SLOT_COUNT];
+    }
+
+    /**
+     * @return True if another readback can be started this frame
+     */
+    public boolean hasFreeSlot() {
+        return pending < SLOT_COUNT;
+    }
+
+    /**
+     * Method to attach the textures of the id pass, a single pixel each with the formats ID_FORMAT and DEPTH_FORMAT
+     * @param idTextureId int The id texture
+     * @param depthTextureId int The depth texture
+     */
+    public void attach(int idTextureId, int depthTextureId) {
+        if (idTextureId == this.idTextureId && depthTextureId == this.depthTextureId) {
+            return;
+        }
+        this.idTextureId = idTextureId;
+        this.depthTextureId = depthTextureId;
+        glBindFramebuffer(GL_FRAMEBUFFER, fboId);
+        glFramebufferTexture2D(GL_FRAMEBUFFER, GL_COLOR_ATTACHMENT0, GL_TEXTURE_2D, idTextureId, 0);
+        glFramebufferTexture2D(GL_FRAMEBUFFER, GL_DEPTH_ATTACHMENT, GL_TEXTURE_2D, depthTextureId, 0);
+        int status = glCheckFramebufferStatus(GL_FRAMEBUFFER);
+        glBindFramebuffer(GL_FRAMEBUFFER, 0);
+        if (status != GL_FRAMEBUFFER_COMPLETE) {
+            throw new IllegalStateException("Could not attach the picking textures: " + status);
+        }
+    }
+
+    /**
+     * Method to direct the following draws into the id pixel, cleared to id 0 which stands for no entity
+     */
+    public void bindForWriting() {
+        glBindFramebuffer(GL_FRAMEBUFFER, fboId);
+        glViewport(0, 0, 1, 1);
+        glClearBufferuiv(GL_COLOR, 0, new int[] { 0, 0, 0, 0 });
+        glClear(GL_DEPTH_BUFFER_BIT);
+    }
+
+    public void unbind() {
+        glBindFramebuffer(GL_FRAMEBUFFER, 0);
+    }
+
+    /**
+     * Method to start copying the id pixel into a free pixel buffer. Has to be called after the id pass drew into the
+     * attached textures
+     * @param drawnEntities Entity[] The entities by id minus one, as drawn by the id pass
+     * @param callback PickCallback Receives the entity once the copy finished
+     * @param x int The horizontal position of the pixel in the window, handed to the callback
+     * @param y int The vertical position of the pixel in the window, handed to the callback
+     */
+    public void readBack(Entity[] drawnEntities, PickCallback callback, int x, int y) {
+        if (!hasFreeSlot()) {
+            throw new IllegalStateException("All " + SLOT_COUNT + " readbacks are in flight");
+        }
+        int slot = (first + pending) % SLOT_COUNT;
+        glBindFramebuffer(GL_READ_FRAMEBUFFER, fboId);
+        glReadBuffer(GL_COLOR_ATTACHMENT0);
+        glBindBuffer(GL_PIXEL_PACK_BUFFER, pboIds[slot]);
+        // With a pack buffer bound the pixels go into the buffer at offset 0, the call returns right away
+        glReadPixels(0, 0, 1, 1, GL_RED_INTEGER, GL_UNSIGNED_INT, 0);
+        glBindBuffer(GL_PIXEL_PACK_BUFFER, 0);
+        glBindFramebuffer(GL_READ_FRAMEBUFFER, 0);
+        fences[slot] = glFenceSync(GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+        entities[slot] = drawnEntities;
+        callbacks[slot] = callback;
+        pixelX[slot] = x;
+        pixelY[slot] = y;
+        pending++;
+    }
+
+    /**
+     * Method to hand the finished readbacks to their callbacks, in the order they were started. Never waits for the GPU
+     */
+    public void poll() {
+        while (pending > 0) {
+            int slot = first;
+            int status = glClientWaitSync(fences[slot], 0, 0);
+            if (status != GL_ALREADY_SIGNALED && status != GL_CONDITION_SATISFIED) {
+                return;
+            }
+            glDeleteSync(fences[slot]);
+            fences[slot] = 0;
+
+            glBindBuffer(GL_PIXEL_PACK_BUFFER, pboIds[slot]);
+            ByteBuffer pixel = glMapBufferRange(GL_PIXEL_PACK_BUFFER, 0, 4, GL_MAP_READ_BIT);
+            int id = pixel != null ? pixel.getInt(0) : 0;
+            glUnmapBuffer(GL_PIXEL_PACK_BUFFER);
+            glBindBuffer(GL_PIXEL_PACK_BUFFER, 0);
+
+            Entity[] drawnEntities = entities[slot];
+            PickCallback callback = callbacks[slot];
+            entities[slot] = null;
+            callbacks[slot] = null;
+            first = (first + 1) % SLOT_COUNT;
+            pending--;
+
+            Entity entity = id > 0 && id <= drawnEntities.length ? drawnEntities[id - 1] : null;
+            callback.picked(entity, pixelX[slot], pixelY[slot]);
+        }
+    }
+
+    public void cleanup() {
+        for (int i = 0; i < SLOT_COUNT; i++) {
+            if (fences[i] != 0) {
+                glDeleteSync(fences[i]);
+            }
+            glDeleteBuffers(pboIds[i]);
+        }
+        glDeleteFramebuffers(fboId);
+    }
+}
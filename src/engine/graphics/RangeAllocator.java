@@ -0,0 +1,93 @@
+package engine.graphics;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * First-fit allocator handing out contiguous ranges of elements inside a buffer of fixed capacity.
+ * Freed ranges are merged with their free neighbours, so repeated allocation and release does not fragment the buffer.
+ * The allocator only does the bookkeeping, the owner of the buffer is responsible for the actual data.
+ */
+public class RangeAllocator {
+
+    public static final int NO_SPACE = -1;
+
+    private final int capacity;
+
+    private final TreeMap<Integer, Integer> freeRanges;
+
+    private int freeSpace;
+
+    /**
+     * Constructs an allocator where the whole range [0, capacity) is free
+     * @param capacity int The number of elements that can be handed out
+     */
+    public RangeAllocator(int capacity) {
+        this.capacity = capacity;
+        this.freeSpace = capacity;
+        freeRanges = new TreeMap<>();
+        if (capacity > 0) {
+            freeRanges.put(0, capacity);
+        }
+    }
+
+    /**
+     * Method to reserve a contiguous range of elements
+     * @param size int The number of elements to reserve
+     * @return int The offset of the first element of the range, or NO_SPACE if no free range is large enough
+     */
+    public int allocate(int size) {
+        if (size <= 0) {
+            return 0;
+        }
+        for (Map.Entry<Integer, Integer> range : freeRanges.entrySet()) {
+            int offset = range.getKey();
+            int rangeSize = range.getValue();
+            if (rangeSize >= size) {
+                freeRanges.remove(offset);
+                if (rangeSize > size) {
+                    freeRanges.put(offset + size, rangeSize - size);
+                }
+                freeSpace -= size;
+                return offset;
+            }
+        }
+        return NO_SPACE;
+    }
+
+    /**
+     * Method to give back a range previously returned by allocate()
+     * @param offset int The offset of the range
+     * @param size int The size the range was allocated with
+     */
+    public void free(int offset, int size) {
+        if (size <= 0) {
+            return;
+        }
+        int start = offset;
+        int end = offset + size;
+
+        // Merge with the free range directly before
+        Map.Entry<Integer, Integer> lower = freeRanges.lowerEntry(offset);
+        if (lower != null && lower.getKey() + lower.getValue() == offset) {
+            start = lower.getKey();
+            freeRanges.remove(lower.getKey());
+        }
+        // Merge with the free range directly after
+        Integer next = freeRanges.get(end);
+        if (next != null) {
+            freeRanges.remove(end);
+            end += next;
+        }
+        freeRanges.put(start, end - start);
+        freeSpace += size;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getFreeSpace() {
+        return freeSpace;
+    }
+}
@@ -0,0 +1,504 @@
+package engine.graphics;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL12.GL_CLAMP_TO_EDGE;
+import static org.lwjgl.opengl.GL14.*;
+import static org.lwjgl.opengl.GL30.*;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Describes a frame as passes reading and writing resources, instead of a fixed sequence of calls.
+ * The graph is declared anew every frame: resources are either imported, like the window or the shadow map, or
+ * transient textures the graph allocates itself. compile() first sorts the passes by their dependencies: a pass
+ * reading a resource runs after every pass writing it, and passes writing the same resource run in the order they
+ * were added. Passes without a dependency between them keep the order they were added in, and reading a resource no
+ * pass writes is an error. It then removes every pass whose results are never read, unless it writes an imported
+ * target, and gives every transient texture a pooled texture for the passes between its first and last use.
+ * Transient textures with the same description whose uses do not overlap share the same texture, and pooled textures
+ * no longer needed are deleted after a few frames.
+ */
+public class RenderGraph {
+
+    /**
+     * Frames a pooled texture is kept without being used, e.g. textures of the old size after a resize
+     */
+    private static final int POOL_FRAMES = 60;
+
+    /**
+     * Runs a pass, the textures of its resources can be queried with getTexture()
+     */
+    public interface PassExecutor {
+        void execute(RenderGraph graph);
+    }
+
+    /**
+     * The size and internal format of a transient texture
+     */
+    public static final class TextureDesc {
+
+        private final int width;
+
+        private final int height;
+
+        private final int internalFormat;
+
+        public TextureDesc(int width, int height, int internalFormat) {
+            this.width = width;
+            this.height = height;
+            this.internalFormat = internalFormat;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        public int getInternalFormat() {
+            return internalFormat;
+        }
+
+        public boolean isDepth() {
+            return internalFormat == GL_DEPTH_COMPONENT16 || internalFormat == GL_DEPTH_COMPONENT24
+                    || internalFormat == GL_DEPTH_COMPONENT32 || internalFormat == GL_DEPTH_COMPONENT32F;
+        }
+
+        /**
+         * @return True for the unsigned integer formats, which are written and read as integers instead of floats
+         */
+        public boolean isInteger() {
+            return internalFormat == GL_R32UI || internalFormat == GL_RG32UI || internalFormat == GL_RGBA32UI
+                    || internalFormat == GL_R16UI || internalFormat == GL_R8UI;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof TextureDesc)) {
+                return false;
+            }
+            TextureDesc other = (TextureDesc) o;
+            return width == other.width && height == other.height && internalFormat == other.internalFormat;
+        }
+
+        @Override
+        public int hashCode() {
+            return (width * 31 + height) * 31 + internalFormat;
+        }
+    }
+
+    /**
+     * A handle of a resource, only valid for the frame it was declared in
+     */
+    public static final class Resource {
+
+        private final String name;
+
+        private final TextureDesc desc;
+
+        private final boolean target;
+
+        private final List<Pass> writers = new ArrayList<>();
+
+        private int readerCount;
+
+        private int firstUse = -1;
+
+        private int lastUse = -1;
+
+        private PooledTexture texture;
+
+        private Resource(String name, TextureDesc desc, boolean target) {
+            this.name = name;
+            this.desc = desc;
+            this.target = target;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isTransient() {
+            return desc != null;
+        }
+    }
+
+    /**
+     * A pass of the graph, declaring what it reads and writes
+     */
+    public static final class Pass {
+
+        private final String name;
+
+        private final PassExecutor executor;
+
+        private final List<Resource> reads = new ArrayList<>();
+
+        private final List<Resource> writes = new ArrayList<>();
+
+        private boolean sideEffect;
+
+        private int refCount;
+
+        private boolean culled;
+
+        /**
+         * The position of the pass in the order of addition
+         */
+        private int index;
+
+        /**
+         * The passes that have to run after this pass, and the number of passes that have to run before it
+         */
+        private final List<Pass> dependents = new ArrayList<>();
+
+        private int dependencyCount;
+
+        private Pass(String name, PassExecutor executor) {
+            this.name = name;
+            this.executor = executor;
+        }
+
+        public Pass reads(Resource... resources) {
+            for (Resource resource : resources) {
+                reads.add(resource);
+            }
+            return this;
+        }
+
+        public Pass writes(Resource... resources) {
+            for (Resource resource : resources) {
+                writes.add(resource);
+                resource.writers.add(this);
+            }
+            return this;
+        }
+
+        /**
+         * Method to keep the pass even when nothing reads what it writes, e.g. for passes reading pixels back
+         */
+        public Pass sideEffect() {
+            sideEffect = true;
+            return this;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isCulled() {
+            return culled;
+        }
+    }
+
+    private static final class PooledTexture {
+
+        private final TextureDesc desc;
+
+        private final int id;
+
+        private boolean inUse;
+
+        private int lastFrame;
+
+        private PooledTexture(TextureDesc desc) {
+            this.desc = desc;
+            id = glGenTextures();
+            glBindTexture(GL_TEXTURE_2D, id);
+            if (desc.isDepth()) {
+                glTexImage2D(GL_TEXTURE_2D, 0, desc.internalFormat, desc.width, desc.height, 0, GL_DEPTH_COMPONENT,
+                        GL_FLOAT, 0);
+            } else if (desc.isInteger()) {
+                glTexImage2D(GL_TEXTURE_2D, 0, desc.internalFormat, desc.width, desc.height, 0, GL_RGBA_INTEGER,
+                        GL_UNSIGNED_INT, 0);
+            } else {
+                glTexImage2D(GL_TEXTURE_2D, 0, desc.internalFormat, desc.width, desc.height, 0, GL_RGBA, GL_FLOAT, 0);
+            }
+            // Render targets are read back at the pixel they were written to
+            glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_NEAREST);
+            glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
+            glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
+            glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
+            glBindTexture(GL_TEXTURE_2D, 0);
+        }
+    }
+
+    private final List<Pass> passes;
+
+    private final List<Resource> resources;
+
+    private final List<PooledTexture> pool;
+
+    private int frame;
+
+    private boolean compiled;
+
+    public RenderGraph() {
+        passes = new ArrayList<>();
+        resources = new ArrayList<>();
+        pool = new ArrayList<>();
+    }
+
+    /**
+     * Method to declare a resource owned outside of the graph, that passes only read when it was written this frame
+     * @param name String The name of the resource
+     * @return Resource The handle of the resource
+     */
+    public Resource importResource(String name) {
+        Resource resource = new Resource(name, null, false);
+        resources.add(resource);
+        return resource;
+    }
+
+    /**
+     * Method to declare an output of the frame owned outside of the graph, like the window. Passes writing it are never culled
+     * @param name String The name of the target
+     * @return Resource The handle of the target
+     */
+    public Resource importTarget(String name) {
+        Resource resource = new Resource(name, null, true);
+        resources.add(resource);
+        return resource;
+    }
+
+    /**
+     * Method to declare a texture living only during this frame. Its content is undefined until a pass writes it
+     * @param name String The name of the texture
+     * @param desc TextureDesc The size and format of the texture
+     * @return Resource The handle of the texture
+     */
+    public Resource createTexture(String name, TextureDesc desc) {
+        Resource resource = new Resource(name, desc, false);
+        resources.add(resource);
+        return resource;
+    }
+
+    /**
+     * Method to add a pass. It runs after the passes writing what it reads, and after the passes added before it
+     * that write the same resources
+     * @param name String The name of the pass
+     * @param executor PassExecutor Draws the pass
+     * @return Pass The pass, to declare its reads and writes
+     */
+    public Pass addPass(String name, PassExecutor executor) {
+        Pass pass = new Pass(name, executor);
+        pass.index = passes.size();
+        passes.add(pass);
+        return pass;
+    }
+
+    /**
+     * Method to sort the passes by their dependencies, cull the passes without effect and assign pooled textures to
+     * the transient resources
+     * @throws IllegalStateException If a pass reads a resource no pass writes, or the passes depend on each other in a cycle
+     */
+    public void compile() {
+        sort();
+
+        // Reference counting from the outputs: a resource nobody reads makes its writers lose a reference,
+        // and a pass without references left stops reading its inputs
+        for (Pass pass : passes) {
+            pass.refCount = pass.writes.size();
+            for (Resource resource : pass.reads) {
+                resource.readerCount++;
+            }
+        }
+        Deque<Resource> unused = new ArrayDeque<>();
+        for (Resource resource : resources) {
+            if (resource.readerCount == 0 && !resource.target) {
+                unused.push(resource);
+            }
+        }
+        while (!unused.isEmpty()) {
+            Resource resource = unused.pop();
+            for (Pass writer : resource.writers) {
+                if (--writer.refCount > 0 || writer.sideEffect || writer.culled) {
+                    continue;
+                }
+                writer.culled = true;
+                for (Resource read : writer.reads) {
+                    if (--read.readerCount == 0 && !read.target) {
+                        unused.push(read);
+                    }
+                }
+            }
+        }
+
+        // Lifetimes of the transient textures, in indices of the passes
+        for (int i = 0; i < passes.size(); i++) {
+            Pass pass = passes.get(i);
+            if (pass.culled) {
+                continue;
+            }
+            for (Resource resource : pass.reads) {
+                use(resource, i);
+            }
+            for (Resource resource : pass.writes) {
+                use(resource, i);
+            }
+        }
+
+        // Hand out the pooled textures in pass order, a texture is free again after the last pass using it
+        for (int i = 0; i < passes.size(); i++) {
+            for (Resource resource : resources) {
+                if (resource.isTransient() && resource.firstUse == i) {
+                    resource.texture = acquire(resource.desc);
+                }
+            }
+            for (Resource resource : resources) {
+                if (resource.isTransient() && resource.lastUse == i) {
+                    resource.texture.inUse = false;
+                }
+            }
+        }
+        compiled = true;
+    }
+
+    /**
+     * Orders the passes topologically by their read and write dependencies. Among the passes that are ready to run,
+     * the one added first is taken, so the order of addition is kept wherever the dependencies allow it
+     */
+    private void sort() {
+        for (Pass pass : passes) {
+            for (Resource resource : pass.reads) {
+                if (resource.writers.isEmpty()) {
+                    throw new IllegalStateException("Pass " + pass.name + " reads " + resource.name
+                            + ", which no pass writes");
+                }
+                // A pass reading and writing a resource only sees the writes of the passes added before it
+                boolean readsOwnWrite = pass.writes.contains(resource);
+                for (Pass writer : resource.writers) {
+                    if (writer != pass && (!readsOwnWrite || writer.index < pass.index)) {
+                        addDependency(writer, pass);
+                    }
+                }
+            }
+            for (Resource resource : pass.writes) {
+                for (Pass writer : resource.writers) {
+                    if (writer.index < pass.index) {
+                        addDependency(writer, pass);
+                    }
+                }
+            }
+        }
+
+        PriorityQueue<Pass> ready = new PriorityQueue<>((Pass a, Pass b) -> Integer.compare(a.index, b.index));
+        for (Pass pass : passes) {
+            if (pass.dependencyCount == 0) {
+                ready.add(pass);
+            }
+        }
+        List<Pass> sorted = new ArrayList<>(passes.size());
+        while (!ready.isEmpty()) {
+            Pass pass = ready.poll();
+            sorted.add(pass);
+            for (Pass dependent : pass.dependents) {
+                if (--dependent.dependencyCount == 0) {
+                    ready.add(dependent);
+                }
+            }
+        }
+        if (sorted.size() < passes.size()) {
+            StringBuilder cycle = new StringBuilder();
+            for (Pass pass : passes) {
+                if (pass.dependencyCount > 0) {
+                    cycle.append(cycle.length() > 0 ? ", " : "").append(pass.name);
+                }
+            }
+            throw new IllegalStateException("The passes depend on each other in a cycle: " + cycle);
+        }
+        passes.clear();
+        passes.addAll(sorted);
+    }
+
+    private static void addDependency(Pass before, Pass after) {
+        before.dependents.add(after);
+        after.dependencyCount++;
+    }
+
+    private static void use(Resource resource, int passIndex) {
+        if (resource.firstUse < 0) {
+            resource.firstUse = passIndex;
+        }
+        resource.lastUse = passIndex;
+    }
+
+    private PooledTexture acquire(TextureDesc desc) {
+        for (PooledTexture texture : pool) {
+            if (!texture.inUse && texture.desc.equals(desc)) {
+                texture.inUse = true;
+                texture.lastFrame = frame;
+                return texture;
+            }
+        }
+        PooledTexture texture = new PooledTexture(desc);
+        texture.inUse = true;
+        texture.lastFrame = frame;
+        pool.add(texture);
+        return texture;
+    }
+
+    /**
+     * Method to run the passes left after compile() in order, and forget the declarations of the frame afterwards
+     */
+    public void execute() {
+        if (!compiled) {
+            throw new IllegalStateException("The render graph has to be compiled before it is executed");
+        }
+        try {
+            for (Pass pass : passes) {
+                if (!pass.culled) {
+                    pass.executor.execute(this);
+                }
+            }
+        } finally {
+            reset();
+        }
+    }
+
+    /**
+     * Method to get the texture of a transient resource, valid while the passes using it run
+     * @param resource Resource A texture created with createTexture()
+     * @return int The id of the texture
+     */
+    public int getTexture(Resource resource) {
+        if (resource.texture == null) {
+            throw new IllegalStateException("No texture assigned to " + resource.name);
+        }
+        return resource.texture.id;
+    }
+
+    /**
+     * @return List<Pass> The passes of the frame, in the order they run once compiled, and marked by compile() if they were culled
+     */
+    public List<Pass> getPasses() {
+        return passes;
+    }
+
+    private void reset() {
+        passes.clear();
+        resources.clear();
+        compiled = false;
+        frame++;
+        for (int i = pool.size() - 1; i >= 0; i--) {
+            PooledTexture texture = pool.get(i);
+            if (frame - texture.lastFrame > POOL_FRAMES) {
+                glDeleteTextures(texture.id);
+                pool.remove(i);
+            }
+        }
+    }
+
+    public void cleanup() {
+        for (PooledTexture texture : pool) {
+            glDeleteTextures(texture.id);
+        }
+        pool.clear();
+    }
+}
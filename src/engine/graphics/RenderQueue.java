@@ -0,0 +1,237 @@
+package engine.graphics;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+import org.joml.Vector3f;
+
+import engine.Scene;
+import engine.entities.Entity;
+
+/**
+ * Draw order of the opaque entities of a frame. The mesh buckets of the scene are sorted front to back by their
+ * entity closest to the camera, and the entities of every bucket and the unique entities are sorted front to back too,
+ * so the depth test rejects as many hidden fragments as possible before they are shaded.
+ * Entities of meshes with levels of detail are split into one bucket per level, picked from their size on screen.
+ * The lists of the scene are not modified; the sorted copies are kept from frame to frame to avoid reallocating them.
+ */
+public class RenderQueue {
+
+    /**
+     * Fraction of the screen height below which the first simplified level is used. Every further level halves it
+     */
+    private static final float LOD_SCREEN_SIZE = 0.25f;
+
+    /**
+     * An entity has to move this fraction past a threshold before it switches level, so it does not flicker between two
+     */
+    private static final float LOD_HYSTERESIS = 0.15f;
+
+    private static final Comparator<Bucket> FRONT_TO_BACK = (Bucket a, Bucket b) -> Float.compare(a.distance, b.distance);
+
+    /**
+     * A mesh with the entities using it, sorted front to back
+     */
+    public static final class Bucket {
+
+        private final List<Entity> entities = new ArrayList<>();
+
+        private Mesh mesh;
+
+        /**
+         * Squared distance of the closest entity to the camera
+         */
+        private float distance;
+
+        public Mesh getMesh() {
+            return mesh;
+        }
+
+        public List<Entity> getEntities() {
+            return entities;
+        }
+    }
+
+    private final List<Bucket> buckets;
+
+    private final List<Bucket> bucketPool;
+
+    private final List<Entity> uniqueEntities;
+
+    private final List<Entity> sortedEntities;
+
+    /**
+     * Sort keys, the squared distance in the upper and the index of the entity in the lower 32 bits
+     */
+    private long[] keys;
+
+    public RenderQueue() {
+        buckets = new ArrayList<>();
+        bucketPool = new ArrayList<>();
+        uniqueEntities = new ArrayList<>();
+        sortedEntities = new ArrayList<>();
+        keys = new long[64];
+    }
+
+    /**
+     * Method to sort the entities of a scene for a camera position and pick their levels of detail
+     * @param scene Scene The scene to draw
+     * @param cameraPosition Vector3f The position of the camera in world space
+     * @param tanHalfFov float The tangent of half the vertical field of view, to tell the size of entities on screen
+     */
+    public void build(Scene scene, Vector3f cameraPosition, float tanHalfFov) {
+        buckets.clear();
+        addBuckets(scene.getEntityMeshes(), cameraPosition, tanHalfFov);
+        addBuckets(scene.getWorldMeshes(), cameraPosition, tanHalfFov);
+        buckets.sort(FRONT_TO_BACK);
+        // Forget the meshes of buckets not used this frame
+        for (int i = buckets.size(); i < bucketPool.size(); i++) {
+            bucketPool.get(i).mesh = null;
+            bucketPool.get(i).entities.clear();
+        }
+        sortedEntities.clear();
+
+        sort(scene.getUniqueEntites(), uniqueEntities, cameraPosition);
+        for (int i = 0; i < uniqueEntities.size(); i++) {
+            Entity entity = uniqueEntities.get(i);
+            selectLod(entity, entity.getMesh(), distance(i), tanHalfFov);
+        }
+    }
+
+    /**
+     * Adds the buckets of the entities grouped by mesh, every level of detail in use gets its own bucket
+     */
+    private void addBuckets(Map<Mesh, List<Entity>> mapMeshes, Vector3f cameraPosition, float tanHalfFov) {
+        for (Map.Entry<Mesh, List<Entity>> entry : mapMeshes.entrySet()) {
+            Mesh mesh = entry.getKey();
+            if (entry.getValue().isEmpty()) {
+                continue;
+            }
+            if (mesh.getLodCount() == 1) {
+                Bucket bucket = nextBucket(mesh);
+                bucket.distance = sort(entry.getValue(), bucket.entities, cameraPosition);
+                continue;
+            }
+            // Split the sorted entities by level, each level keeps the front to back order
+            sort(entry.getValue(), sortedEntities, cameraPosition);
+            int firstBucket = buckets.size();
+            for (int i = 0; i < sortedEntities.size(); i++) {
+                Entity entity = sortedEntities.get(i);
+                int level = selectLod(entity, mesh, distance(i), tanHalfFov);
+                Mesh lod = mesh.getLod(level);
+                Bucket bucket = null;
+                for (int b = firstBucket; b < buckets.size() && bucket == null; b++) {
+                    bucket = buckets.get(b).mesh == lod ? buckets.get(b) : null;
+                }
+                if (bucket == null) {
+                    bucket = nextBucket(lod);
+                    bucket.entities.clear();
+                    bucket.distance = distance(i);
+                }
+                bucket.entities.add(entity);
+            }
+        }
+    }
+
+    private Bucket nextBucket(Mesh mesh) {
+        if (bucketPool.size() == buckets.size()) {
+            bucketPool.add(new Bucket());
+        }
+        Bucket bucket = bucketPool.get(buckets.size());
+        bucket.mesh = mesh;
+        buckets.add(bucket);
+        return bucket;
+    }
+
+    /**
+     * @return The squared distance of the i-th entity of the last sort() call
+     */
+    private float distance(int i) {
+        return Float.intBitsToFloat((int) (keys[i] >>> 32));
+    }
+
+    /**
+     * Moves the level of detail of an entity towards the one matching its size on screen, only crossing a threshold
+     * when the size is clearly past it
+     * @return The new level of the entity
+     */
+    private int selectLod(Entity entity, Mesh mesh, float distanceSquared, float tanHalfFov) {
+        int levelCount = mesh.getLodCount();
+        if (levelCount == 1) {
+            entity.setLodLevel(0);
+            return 0;
+        }
+        float radius = mesh.getBoundingRadius() * entity.getScale();
+        float size = radius / Math.max((float) Math.sqrt(distanceSquared) * tanHalfFov, 1e-6f);
+
+        int level = Math.min(Math.max(entity.getLodLevel(), 0), levelCount - 1);
+        while (level + 1 < levelCount && size < lodThreshold(level + 1) * (1 - LOD_HYSTERESIS)) {
+            level++;
+        }
+        while (level > 0 && size > lodThreshold(level) * (1 + LOD_HYSTERESIS)) {
+            level--;
+        }
+        entity.setLodLevel(level);
+        return level;
+    }
+
+    /**
+     * @return The size on screen below which a level is used
+     */
+    private static float lodThreshold(int level) {
+        return LOD_SCREEN_SIZE / (1 << (level - 1));
+    }
+
+    /**
+     * Copies the entities into target ordered by their distance to the camera
+     * @return The squared distance of the closest entity
+     */
+    private float sort(List<Entity> source, List<Entity> target, Vector3f cameraPosition) {
+        int count = source.size();
+        if (keys.length < count) {
+            keys = new long[Math.max(count, keys.length * 2)];
+        }
+        for (int i = 0; i < count; i++) {
+            float distance = source.get(i).getPosition().distanceSquared(cameraPosition);
+            // The bits of a non negative float sort in the same order as its value
+            keys[i] = ((long) Float.floatToIntBits(distance) << 32) | i;
+        }
+        Arrays.sort(keys, 0, count);
+
+        target.clear();
+        for (int i = 0; i < count; i++) {
+            target.add(source.get((int) keys[i]));
+        }
+        return count > 0 ? Float.intBitsToFloat((int) (keys[0] >>> 32)) : Float.MAX_VALUE;
+    }
+
+    /**
+     * Method to drop the entities that are not visible from the sorted lists, and buckets left without any entity
+     * @param visible Predicate<Entity> Tells if an entity may be visible
+     */
+    public void retainVisible(Predicate<Entity> visible) {
+        for (Bucket bucket : buckets) {
+            bucket.entities.removeIf(visible.negate());
+        }
+        buckets.removeIf((Bucket bucket) -> bucket.entities.isEmpty());
+        uniqueEntities.removeIf(visible.negate());
+    }
+
+    /**
+     * @return The mesh buckets, closest first
+     */
+    public List<Bucket> getBuckets() {
+        return buckets;
+    }
+
+    /**
+     * @return The unique entities of the scene, closest first
+     */
+    public List<Entity> getUniqueEntities() {
+        return uniqueEntities;
+    }
+}
@@ -5,10 +5,10 @@ import engine.Scene;
 import engine.Window;
 import engine.entities.Entity;
 import engine.entities.SkyBox;
+import engine.entities.TextEntity;
 import engine.graphics.lights.DirectionalLight;
-import engine.graphics.lights.PointLight;
 import engine.graphics.lights.SceneLight;
-import engine.graphics.lights.SpotLight;
+import engine.jobs.JobSystem;
 import engine.utilities.Transformation;
 import engine.utilities.Utils;
 
@@ -17,7 +17,12 @@ import org.joml.Vector3f;
 import org.joml.Vector4f;
 
 import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL32.GL_DEPTH_CLAMP;
+import static org.lwjgl.opengl.GL32.GL_TEXTURE_CUBE_MAP_SEAMLESS;
 
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -28,71 +33,303 @@ public class Renderer {
     private static final float Z_NEAR = 0.01f;
 
     private static final float Z_FAR = 1000.f;
+    
+    /**
+     * Occluders smaller than this fraction of their distance to the camera hide too little to be worth rasterizing
+     */
+    private static final float MIN_OCCLUDER_SIZE = 0.02f;
+    
+    private static final int MAX_OCCLUDER_TRIANGLES = 8192;
+    
+    private static final int SHADOW_MAP_SIZE = 2048;
+    
+    /**
+     * View distance up to which the directional light casts shadows
+     */
+    private static final float SHADOW_DISTANCE = 100.0f;
+    
+    /**
+     * Number of draws recorded into one command list, and so by one task on the worker threads
+     */
+    private static final int DRAWS_PER_COMMAND_LIST = 256;
 
-    private static final int MAX_POINT_LIGHTS = 5;
-
-    private static final int MAX_SPOT_LIGHTS = 5;
+    
+    /**
+     * The way the scene is lit. FORWARD shades every fragment while it is drawn, DEFERRED first writes the surfaces
+     * into a G-buffer and shades every pixel once afterwards
+     */
+    public enum Pipeline {
+        FORWARD, DEFERRED
+    }
     
     private Transformation transformation;
     
-	private ShaderProgram sceneShaderProgram;
+	private ShaderCache shaderCache;
+	
+	private ShaderProgram texturedShaderProgram;
+	
+	private ShaderProgram colorShaderProgram;
 	
 	private ShaderProgram hudShaderProgram;
 	
+	private HudBatch hudBatch;
+	
 	private ShaderProgram skyBoxShaderProgram; 
 	
+	private ShaderProgram arenaShaderProgram;
+	
+	private final Map<GeometryArena, IndirectDrawBatch> arenaBatches;
+	
+	private TextureStreamer textureStreamer;
+	
+	private LightClusters lightClusters;
+	
+	private Pipeline pipeline;
+	
+	private GBuffer gBuffer;
+	
+	private DeferredLighting deferredLighting;
+	
+	private ShadowCascades shadowCascades;
+	
+	private final RenderGraph renderGraph;
+	
 	private float specularPower;
 	
+	private final RenderQueue renderQueue;
+	
+	private ShaderProgram depthShaderProgram;
+	
+	private ShaderProgram arenaDepthShaderProgram;
+	
+	private ShaderProgram idShaderProgram;
+	
+	private ShaderProgram arenaIdShaderProgram;
+	
+	private PickingBuffer pickingBuffer;
+	
+	/**
+	 * The pick drawn this frame, null on most frames
+	 */
+	private Scene.PickRequest pickRequest;
+	
+	private final Matrix4f pickMatrix;
+	
+	private final int[] viewport;
+	
+	private boolean depthPrePass;
+	
+	private OcclusionCuller occlusionCuller;
+	
+	private final Matrix4f viewProjectionMatrix;
+	
+	private final Matrix4f skyBoxViewMatrix;
+	
+	private final List<Mesh> drawMeshes;
+	
+	private final List<Entity> drawEntities;
+	
+	private final List<CommandBuffer> colorCommands;
+	
+	private final List<CommandBuffer> depthCommands;
+	
+	private final List<CommandBuffer> idCommands;
+	
+	private int commandListCount;
+	
 	public Renderer() {       
         transformation = new Transformation();
+        arenaBatches = new HashMap<>();
+        drawMeshes = new ArrayList<>();
+        drawEntities = new ArrayList<>();
+        colorCommands = new ArrayList<>();
+        renderGraph = new RenderGraph();
+        depthCommands = new ArrayList<>();
+        idCommands = new ArrayList<>();
+        pickMatrix = new Matrix4f();
+        viewport = new int[4];
+        renderQueue = new RenderQueue();
+        viewProjectionMatrix = new Matrix4f();
+        skyBoxViewMatrix = new Matrix4f();
         specularPower = 10.0f;
 	}
 	
 	public void init(Window window) throws Exception {
+		init(window, Pipeline.FORWARD);
+	}
+	
+	/**
+	 * Method to create the shaders and buffers of a pipeline
+	 * @param window Window The window rendered to
+	 * @param pipeline Pipeline The lighting pipeline used for the scene
+	 */
+	public void init(Window window, Pipeline pipeline) throws Exception {
+		this.pipeline = pipeline;
+		// Linked programs are kept on disk, later starts skip compiling the shaders
+		shaderCache = new ShaderCache(Paths.get("cache", "shaders"));
+		shadowCascades = new ShadowCascades(SHADOW_MAP_SIZE, SHADOW_DISTANCE);
+		if (pipeline == Pipeline.DEFERRED) {
+			gBuffer = new GBuffer();
+			deferredLighting = new DeferredLighting(shaderCache, shadowCascades);
+		} else {
+			lightClusters = new LightClusters();
+		}
 		setupSkyBoxShader();
         setupSceneShader();
+        setupArenaShader();
+        setupDepthShaders();
+        setupIdShaders();
         setupHudShader();
+        pickingBuffer = new PickingBuffer();
+	}
+	
+	/**
+	 * Method to turn the depth pre-pass on or off. With the pre-pass the opaque geometry is drawn twice, first only
+	 * into the depth buffer with a minimal shader, then with the full shaders testing for the depth found in the first pass.
+	 * Every pixel is then shaded once, which pays off when many surfaces overlap
+	 * @param depthPrePass boolean True to lay down the depth before shading
+	 */
+	public void setDepthPrePass(boolean depthPrePass) {
+		this.depthPrePass = depthPrePass;
+	}
+	
+	public boolean isDepthPrePass() {
+		return depthPrePass;
+	}
+	
+	/**
+	 * Method to turn the software occlusion culling on or off. Meshes marked as occluders are rasterized on the CPU
+	 * every frame, and entities hidden behind them or outside of the view are not drawn
+	 * @param occlusionCulling boolean True to cull occluded entities
+	 */
+	public void setOcclusionCulling(boolean occlusionCulling) {
+		occlusionCuller = occlusionCulling ? new OcclusionCuller(256, 128) : null;
+	}
+	
+	public boolean isOcclusionCulling() {
+		return occlusionCuller != null;
 	}
 	
     public void setupSceneShader() throws Exception {
+    	// Two permutations of the same source, so fragments do not branch on the kind of material
+    	texturedShaderProgram = createSceneShader(true);
+    	colorShaderProgram = createSceneShader(false);
+    }
+
+    private ShaderProgram createSceneShader(boolean textured) throws Exception {
     	//Create a new shader program
-    	sceneShaderProgram = new ShaderProgram();
-    	sceneShaderProgram.createVertexShader(Utils.loadResource("/resources/shaders/vertex.vs"));
-    	sceneShaderProgram.createFragmentShader(Utils.loadResource("/resources/shaders/fragment.fs"));
-    	sceneShaderProgram.link();
+    	ShaderProgram shaderProgram = new ShaderProgram(shaderCache);
+    	if (textured) {
+    		shaderProgram.addDefine("TEXTURED");
+    	}
+    	shaderProgram.createVertexShader(Utils.loadResource("/resources/shaders/vertex.vs"));
+    	// The deferred geometry pass only stores the surface, lighting happens in DeferredLighting
+    	shaderProgram.createFragmentShader(Utils.loadResource(pipeline == Pipeline.DEFERRED
+    			? "/resources/shaders/gbuffer_fragment.fs" : "/resources/shaders/fragment.fs"));
+    	shaderProgram.link();
 
         // Create uniforms for modelView and projection matrices and texture
-    	sceneShaderProgram.createUniform("projectionMatrix");
-    	sceneShaderProgram.createUniform("modelViewMatrix");
-    	sceneShaderProgram.createUniform("texture_sampler");
+    	shaderProgram.createUniform("projectionMatrix");
+    	shaderProgram.createUniform("modelViewMatrix");
+    	if (textured) {
+    		shaderProgram.createUniform("texture_sampler");
+    	}
         
         // Create uniform for material
-    	sceneShaderProgram.createMaterialUniform("material");
+    	shaderProgram.createMaterialUniform("material");
         
         // Create lighting related uniforms
-    	sceneShaderProgram.createUniform("specularPower");
-    	sceneShaderProgram.createUniform("ambientLight");
-    	sceneShaderProgram.createPointLightListUniform("pointLights", MAX_POINT_LIGHTS);
-        sceneShaderProgram.createSpotLightListUniform("spotLights", MAX_SPOT_LIGHTS);
-        sceneShaderProgram.createDirectionalLight("directionalLight");
+    	if (pipeline == Pipeline.FORWARD) {
+    		createLightUniforms(shaderProgram);
+    	}
+    	return shaderProgram;
+    }
+
+    /**
+     * @return The permutation of the scene shader drawing a material
+     */
+    private ShaderProgram sceneShader(Material material) {
+    	return material.isTextured() ? texturedShaderProgram : colorShaderProgram;
+    }
+
+    private void setupArenaShader() throws Exception {
+    	// Same lighting as the scene shader, but the model view matrix and material come from per-instance attributes
+    	arenaShaderProgram = new ShaderProgram(shaderCache);
+    	arenaShaderProgram.createVertexShader(Utils.loadResource("/resources/shaders/arena_vertex.vs"));
+    	arenaShaderProgram.createFragmentShader(Utils.loadResource(pipeline == Pipeline.DEFERRED
+    			? "/resources/shaders/arena_gbuffer_fragment.fs" : "/resources/shaders/arena_fragment.fs"));
+    	arenaShaderProgram.link();
+
+    	// The material is a per-instance attribute, only the kind of texture bound changes between draws
+    	arenaShaderProgram.createUniform("projectionMatrix");
+    	arenaShaderProgram.createUniform("texture_sampler");
+    	arenaShaderProgram.createUniform("texture_array_sampler");
+    	arenaShaderProgram.createUniform("textureMode");
+    	if (pipeline == Pipeline.FORWARD) {
+    		createLightUniforms(arenaShaderProgram);
+    	}
+    }
+
+    private void setupDepthShaders() throws Exception {
+    	depthShaderProgram = new ShaderProgram(shaderCache);
+    	depthShaderProgram.createVertexShader(Utils.loadResource("/resources/shaders/depth_vertex.vs"));
+    	depthShaderProgram.createFragmentShader(Utils.loadResource("/resources/shaders/depth_fragment.fs"));
+    	depthShaderProgram.link();
+    	depthShaderProgram.createUniform("projectionMatrix");
+    	depthShaderProgram.createUniform("modelViewMatrix");
+    	
+    	arenaDepthShaderProgram = new ShaderProgram(shaderCache);
+    	arenaDepthShaderProgram.createVertexShader(Utils.loadResource("/resources/shaders/arena_depth_vertex.vs"));
+    	arenaDepthShaderProgram.createFragmentShader(Utils.loadResource("/resources/shaders/depth_fragment.fs"));
+    	arenaDepthShaderProgram.link();
+    	arenaDepthShaderProgram.createUniform("projectionMatrix");
+    }
 
+    /**
+     * The id pass uses the vertex shaders of the depth pre-pass, the instanced one reading the id of every instance
+     */
+    private void setupIdShaders() throws Exception {
+    	idShaderProgram = new ShaderProgram(shaderCache);
+    	idShaderProgram.createVertexShader(Utils.loadResource("/resources/shaders/depth_vertex.vs"));
+    	idShaderProgram.createFragmentShader(Utils.loadResource("/resources/shaders/id_fragment.fs"));
+    	idShaderProgram.link();
+    	idShaderProgram.createUniform("projectionMatrix");
+    	idShaderProgram.createUniform("modelViewMatrix");
+    	idShaderProgram.createUniform("entityId");
+    	
+    	arenaIdShaderProgram = new ShaderProgram(shaderCache);
+    	arenaIdShaderProgram.addDefine("PICKING");
+    	arenaIdShaderProgram.addDefine("INSTANCED");
+    	arenaIdShaderProgram.createVertexShader(Utils.loadResource("/resources/shaders/arena_depth_vertex.vs"));
+    	arenaIdShaderProgram.createFragmentShader(Utils.loadResource("/resources/shaders/id_fragment.fs"));
+    	arenaIdShaderProgram.link();
+    	arenaIdShaderProgram.createUniform("projectionMatrix");
+    }
+
+    private void createLightUniforms(ShaderProgram shaderProgram) throws Exception {
+    	shaderProgram.createUniform("specularPower");
+    	shaderProgram.createUniform("ambientLight");
+    	lightClusters.createUniforms(shaderProgram);
+    	shaderProgram.createDirectionalLight("directionalLight");
+    	shadowCascades.createUniforms(shaderProgram);
     }
 
     private void setupHudShader() throws Exception {
-        hudShaderProgram = new ShaderProgram();
+        hudShaderProgram = new ShaderProgram(shaderCache);
         hudShaderProgram.createVertexShader(Utils.loadResource("/resources/shaders/hud_vertex.vs"));
         hudShaderProgram.createFragmentShader(Utils.loadResource("/resources/shaders/hud_fragment.fs"));
         hudShaderProgram.link();
 
-        // Create uniforms for Orthographic-model projection matrix and base color
-        hudShaderProgram.createUniform("projModelMatrix");
-        hudShaderProgram.createUniform("color");
-        hudShaderProgram.createUniform("hasTexture");
+        // Colour and texture mode are vertex attributes, so one draw can cover many HUD items
+        hudShaderProgram.createUniform("orthoMatrix");
+        hudShaderProgram.createUniform("texture_sampler");
+        
+        hudBatch = new HudBatch();
 
     }
     
     private void setupSkyBoxShader() throws Exception {
-    	skyBoxShaderProgram = new ShaderProgram();
+    	skyBoxShaderProgram = new ShaderProgram(shaderCache);
     	skyBoxShaderProgram.createVertexShader(Utils.loadResource("/resources/shaders/skybox_vertex.vs"));
     	skyBoxShaderProgram.createFragmentShader(Utils.loadResource("/resources/shaders/skybox_frag.fs"));
     	skyBoxShaderProgram.link();
@@ -101,6 +338,8 @@ public class Renderer {
     	skyBoxShaderProgram.createUniform("projectionMatrix");
     	skyBoxShaderProgram.createUniform("texture_sampler");
     	skyBoxShaderProgram.createUniform("ambientLight");
+    	// Filter across the edges of the cube map faces, so the seams of the sky box do not show
+    	glEnable(GL_TEXTURE_CUBE_MAP_SEAMLESS);
     }
     
     public void render(Window window, Camera camera, Scene scene, IHud hud) {
@@ -115,89 +354,527 @@ public class Renderer {
         transformation.updateProjectionMatrix(FOV, window.getWidth(), window.getHeight(), Z_NEAR, Z_FAR);
         transformation.updateViewMatrix(camera);
         
-        renderScene(window, camera, scene);
+        if (pipeline == Pipeline.FORWARD) {
+        	lightClusters.update(transformation.getProjectionMatrix(), transformation.getViewMatrix(),
+        			scene.getSceneLight(), window.getWidth(), window.getHeight(), Z_NEAR, Z_FAR);
+        }
+        DirectionalLight light = scene.getSceneLight().getDirectionalLight();
+        shadowCascades.update(transformation.getProjectionMatrix(), transformation.getViewMatrix(), Z_NEAR,
+        		light.getDirection());
+        
+        if (textureStreamer != null) {
+        	textureStreamer.beginFrame();
+        	requestTextureDetail(window, camera, scene);
+        }
+        
+        // Picks finished by the GPU go to their callbacks, and one new pick is drawn per frame
+        pickingBuffer.poll();
+        pickRequest = pickingBuffer.hasFreeSlot() ? scene.getPickRequests().poll() : null;
         
-        renderUniqueEntities(window, camera, scene);
+        // Opaque geometry is drawn front to back, and the arena batches are uploaded once for all passes
+        renderQueue.build(scene, camera.getPosition(), (float) Math.tan(FOV / 2.0f));
+        recordCommands();
+        prepareArenas();
         
-        renderSkybox(window, camera, scene);
+        buildFrameGraph(window, camera, scene, hud, light.getIntensity() > 0);
+        renderGraph.compile();
+        renderGraph.execute();
         
-        renderHud(window, hud);
+        if (textureStreamer != null) {
+        	textureStreamer.update();
+        }
     }
     
-    public void clear() {
-    	glClear(GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT);
+    /**
+     * Declares the passes of a frame. The shadow map is only read while the directional light shines, so the graph
+     * culls the shadow pass otherwise. The G-buffer textures of the deferred pipeline are transient textures of the graph
+     */
+    private void buildFrameGraph(Window window, Camera camera, Scene scene, IHud hud, boolean shadows) {
+    	RenderGraph.Resource backBuffer = renderGraph.importTarget("backBuffer");
+    	RenderGraph.Resource shadowMap = renderGraph.importResource("shadowMap");
+    	
+    	// Casters outside of the view still throw shadows into it, so the shadows are drawn before culling
+    	renderGraph.addPass("shadows", (RenderGraph graph) -> renderShadows(window)).writes(shadowMap);
+    	
+    	if (pickRequest != null) {
+    		// A single pixel is drawn, only its id is read back
+    		RenderGraph.Resource ids = renderGraph.createTexture("ids",
+    				new RenderGraph.TextureDesc(1, 1, PickingBuffer.ID_FORMAT));
+    		RenderGraph.Resource idDepth = renderGraph.createTexture("idDepth",
+    				new RenderGraph.TextureDesc(1, 1, PickingBuffer.DEPTH_FORMAT));
+    		renderGraph.addPass("ids", (RenderGraph graph) -> renderIds(window, graph.getTexture(ids),
+    				graph.getTexture(idDepth))).writes(ids, idDepth);
+    		renderGraph.addPass("pickReadback", (RenderGraph graph) -> pickingBuffer.readBack(pickEntities(),
+    				pickRequest.getCallback(), pickRequest.getX(), pickRequest.getY())).reads(ids).sideEffect();
+    	}
+    	
+    	if (pipeline == Pipeline.DEFERRED) {
+    		int width = window.getWidth();
+    		int height = window.getHeight();
+    		RenderGraph.Resource albedo = renderGraph.createTexture("albedo",
+    				new RenderGraph.TextureDesc(width, height, GBuffer.ALBEDO_FORMAT));
+    		RenderGraph.Resource normal = renderGraph.createTexture("normal",
+    				new RenderGraph.TextureDesc(width, height, GBuffer.NORMAL_FORMAT));
+    		RenderGraph.Resource depth = renderGraph.createTexture("depth",
+    				new RenderGraph.TextureDesc(width, height, GBuffer.DEPTH_FORMAT));
+    		
+    		renderGraph.addPass("geometry", (RenderGraph graph) -> {
+    			gBuffer.attach(graph.getTexture(albedo), graph.getTexture(normal), graph.getTexture(depth), width, height);
+    			gBuffer.bindForWriting();
+    			renderOpaque(window, camera, scene);
+    			gBuffer.unbind();
+    		}).writes(albedo, normal, depth);
+    		
+    		RenderGraph.Pass lighting = renderGraph.addPass("lighting", (RenderGraph graph) -> {
+    			deferredLighting.render(gBuffer, scene.getSceneLight(), transformation.getProjectionMatrix(),
+    					transformation.getViewMatrix(), specularPower, Z_FAR);
+    		}).reads(albedo, normal, depth).writes(backBuffer);
+    		if (shadows) {
+    			lighting.reads(shadowMap);
+    		}
+    	} else {
+    		RenderGraph.Pass forward = renderGraph.addPass("forward",
+    				(RenderGraph graph) -> renderOpaque(window, camera, scene)).writes(backBuffer);
+    		if (shadows) {
+    			forward.reads(shadowMap);
+    		}
+    	}
+    	
+    	renderGraph.addPass("skybox", (RenderGraph graph) -> renderSkybox(window, camera, scene)).writes(backBuffer);
+    	renderGraph.addPass("hud", (RenderGraph graph) -> renderHud(window, hud)).writes(backBuffer);
     }
     
-    public void renderUniqueEntities(Window window, Camera camera, Scene scene) {
-    	sceneShaderProgram.bind();
+    /**
+     * Draws the ids of the entities at the picked pixel. The pick matrix widens the pixel to the whole single pixel
+     * viewport, so the pixel gets the same fragments as in the full frame
+     */
+    private void renderIds(Window window, int idTextureId, int depthTextureId) {
+    	int width = window.getWidth();
+    	int height = window.getHeight();
+    	pickingBuffer.attach(idTextureId, depthTextureId);
+    	pickingBuffer.bindForWriting();
     	
-    	 Matrix4f projectionMatrix = transformation.getProjectionMatrix();
-         sceneShaderProgram.setUniform("projectionMatrix", projectionMatrix);
-
-         Matrix4f viewMatrix = transformation.getViewMatrix();
+    	// The pick is measured from the top of the window, the viewport from the bottom
+    	viewport[2] = width;
+    	viewport[3] = height;
+    	pickMatrix.identity().pick(pickRequest.getX() + 0.5f, height - pickRequest.getY() - 0.5f, 1, 1, viewport)
+    			.mul(transformation.getProjectionMatrix());
+    	
+    	idShaderProgram.bind();
+    	idShaderProgram.setUniform("projectionMatrix", pickMatrix);
+    	for (int i = 0; i < commandListCount; i++) {
+    		idCommands.get(i).execute();
+    	}
+    	idShaderProgram.unbind();
     	
-         sceneShaderProgram.setUniform("texture_sampler", 0);
-         
-        for (Entity e : scene.getUniqueEntites()) {
-        	Mesh mesh = e.getMesh();
-        	Matrix4f modelViewMatrix = transformation.buildModelViewMatrix(e, viewMatrix);
-        	sceneShaderProgram.setUniform("material", mesh.getMaterial());
-        	sceneShaderProgram.setUniform("modelViewMatrix", modelViewMatrix);
-        	mesh.render();
-        }
-         
-    	sceneShaderProgram.unbind();
+    	if (!arenaBatches.isEmpty()) {
+    		arenaIdShaderProgram.bind();
+    		arenaIdShaderProgram.setUniform("projectionMatrix", pickMatrix);
+    		for (IndirectDrawBatch batch : arenaBatches.values()) {
+    			batch.draw((int textureMode) -> { });
+    		}
+    		arenaIdShaderProgram.unbind();
+    	}
+    	
+    	pickingBuffer.unbind();
+    	glViewport(0, 0, width, height);
+    }
+    
+    /**
+     * @return The entities of the frame by id minus one: the recorded draws followed by the instances of the arena batches
+     */
+    private Entity[] pickEntities() {
+    	List<Entity> entities = new ArrayList<>(drawEntities);
+    	for (IndirectDrawBatch batch : arenaBatches.values()) {
+    		batch.collectEntities(entities);
+    	}
+    	return entities.toArray(new Entity[entities.size()]);
+    }
+    
+    /**
+     * Draws the opaque geometry into the bound framebuffer, after removing the entities hidden by occluders
+     */
+    private void renderOpaque(Window window, Camera camera, Scene scene) {
+        if (occlusionCuller != null) {
+        	cullOccluded(camera);
+        	for (IndirectDrawBatch batch : arenaBatches.values()) {
+        		batch.clear();
+        	}
+        	recordCommands();
+        	prepareArenas();
+        }
+        
+        if (depthPrePass) {
+        	renderDepth(transformation.getProjectionMatrix());
+        	// The color pass only shades the surfaces that won the pre-pass and leaves the depth buffer alone
+        	glDepthFunc(GL_LEQUAL);
+        	glDepthMask(false);
+        }
+        
+        renderScene(window, camera, scene);
+        
+        if (depthPrePass) {
+        	glDepthFunc(GL_LESS);
+        	glDepthMask(true);
+        }
+        for (IndirectDrawBatch batch : arenaBatches.values()) {
+        	batch.clear();
+        }
+    }
+    
+    /**
+     * Tells the texture streamer how large every streamed texture appears on screen, estimated from the bounding sphere
+     * of the closest entity using it
+     */
+    private void requestTextureDetail(Window window, Camera camera, Scene scene) {
+    	Vector3f cameraPos = camera.getPosition();
+    	float focalLength = window.getHeight() / (2.0f * (float) Math.tan(FOV / 2.0f));
+    	
+    	requestTextureDetail(scene.getEntityMeshes(), cameraPos, focalLength);
+    	requestTextureDetail(scene.getWorldMeshes(), cameraPos, focalLength);
+    	for (Entity e : scene.getUniqueEntites()) {
+    		Mesh mesh = e.getMesh();
+    		if (mesh.getMaterial().getTexture() instanceof StreamedTexture) {
+    			((StreamedTexture) mesh.getMaterial().getTexture()).requestScreenSize(projectedSize(mesh, e, cameraPos, focalLength));
+    		}
+    	}
+    }
+    
+    private void requestTextureDetail(Map<Mesh, List<Entity>> mapMeshes, Vector3f cameraPos, float focalLength) {
+    	for (Mesh mesh : mapMeshes.keySet()) {
+    		if (mesh.getMaterial().getTexture() instanceof StreamedTexture) {
+    			StreamedTexture texture = (StreamedTexture) mesh.getMaterial().getTexture();
+    			for (Entity e : mapMeshes.get(mesh)) {
+    				texture.requestScreenSize(projectedSize(mesh, e, cameraPos, focalLength));
+    			}
+    		}
+    	}
+    }
+    
+    private float projectedSize(Mesh mesh, Entity entity, Vector3f cameraPos, float focalLength) {
+    	float radius = mesh.getBoundingRadius() * entity.getScale();
+    	float distance = Math.max(entity.getPosition().distance(cameraPos) - radius, Z_NEAR);
+    	return 2.0f * radius / distance * focalLength;
+    }
+    
+    /**
+     * Method to set the streamer whose textures are kept at the detail they are seen with. The streamer is updated once every frame
+     * @param textureStreamer TextureStreamer The streamer, or null to stop updating it
+     */
+    public void setTextureStreamer(TextureStreamer textureStreamer) {
+    	this.textureStreamer = textureStreamer;
+    }
+    
+    /**
+     * 
+     * @return The transformation holding the projection and view matrices of the last frame
+     */
+    public Transformation getTransformation() {
+    	return transformation;
+    }
+    
+    public void clear() {
+    	glClear(GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT);
     }
     
     public void renderScene(Window window, Camera camera, Scene scene) {
 
-        sceneShaderProgram.bind();
-
-        // Update projection Matrix
-        Matrix4f projectionMatrix = transformation.getProjectionMatrix();
-        sceneShaderProgram.setUniform("projectionMatrix", projectionMatrix);
-
         // Update view Matrix
         Matrix4f viewMatrix = transformation.getViewMatrix();
 
-        renderLights(viewMatrix, scene.getSceneLight());
+        // Uniforms are per program, so both permutations get the frame uniforms
+        prepareSceneShader(colorShaderProgram, viewMatrix, scene);
+        prepareSceneShader(texturedShaderProgram, viewMatrix, scene);
+        
+        // Replay the draws recorded in recordCommands() closest first, meshes stored in a geometry arena were batched in prepareArenas()
+        for (int i = 0; i < commandListCount; i++) {
+        	colorCommands.get(i).execute();
+        }
 
-        sceneShaderProgram.setUniform("texture_sampler", 0);
+        texturedShaderProgram.unbind();
         
-        // Render each gameItem
-        Map<Mesh, List<Entity>> mapMeshes = scene.getEntityMeshes();
-		for (Mesh mesh : mapMeshes.keySet()) {
-			sceneShaderProgram.setUniform("material", mesh.getMaterial());
-			mesh.renderList(mapMeshes.get(mesh), (Entity e) -> {
-				Matrix4f modelViewMatrix = transformation.buildModelViewMatrix(e, viewMatrix);
-				sceneShaderProgram.setUniform("modelViewMatrix", modelViewMatrix);
-			});
-		}
+        renderArenas(viewMatrix, scene);
+    }
+
+    /**
+     * Binds a permutation of the scene shader and sets the uniforms shared by every draw of the frame
+     */
+    private void prepareSceneShader(ShaderProgram shaderProgram, Matrix4f viewMatrix, Scene scene) {
+    	shaderProgram.bind();
+
+        // Update projection Matrix
+        shaderProgram.setUniform("projectionMatrix", transformation.getProjectionMatrix());
 
-        sceneShaderProgram.unbind();
+        if (pipeline == Pipeline.FORWARD) {
+        	renderLights(shaderProgram, viewMatrix, scene.getSceneLight());
+        }
+
+        if (shaderProgram.hasUniform("texture_sampler")) {
+        	shaderProgram.setUniform("texture_sampler", 0);
+        }
     }
 
-    private void renderHud(Window window, IHud hud) {
-        hudShaderProgram.bind();
+    /**
+     * Rasterizes the closest large occluders and removes the entities they hide from the render queue
+     */
+    private void cullOccluded(Camera camera) {
+    	transformation.getProjectionMatrix().mul(transformation.getViewMatrix(), viewProjectionMatrix);
+    	occlusionCuller.begin(viewProjectionMatrix);
+    	
+    	Vector3f cameraPos = camera.getPosition();
+    	for (Entity e : renderQueue.getUniqueEntities()) {
+    		addOccluder(e, e.getMesh(), cameraPos);
+    	}
+    	for (RenderQueue.Bucket bucket : renderQueue.getBuckets()) {
+    		// Occluders are set on the full detail mesh, the bucket may hold a simplified level of it
+    		Mesh mesh = bucket.getEntities().get(0).getMesh();
+    		if (!mesh.isOccluder()) {
+    			continue;
+    		}
+    		// The entities are sorted by distance, so once one is too small the rest are too
+    		for (Entity e : bucket.getEntities()) {
+    			if (!addOccluder(e, mesh, cameraPos)) {
+    				break;
+    			}
+    		}
+    	}
+    	occlusionCuller.rasterize();
+    	
+    	renderQueue.retainVisible((Entity e) -> occlusionCuller.isVisible(e.getMesh().getBoundsMin(),
+    			e.getMesh().getBoundsMax(), transformation.buildModelMatrix(e)));
+    }
+    
+    private boolean addOccluder(Entity entity, Mesh mesh, Vector3f cameraPos) {
+    	if (!mesh.isOccluder() || occlusionCuller.getTriangleCount() >= MAX_OCCLUDER_TRIANGLES) {
+    		return false;
+    	}
+    	float radius = mesh.getBoundingRadius() * entity.getScale();
+    	if (radius < MIN_OCCLUDER_SIZE * entity.getPosition().distance(cameraPos)) {
+    		return false;
+    	}
+    	occlusionCuller.addOccluder(mesh.getOccluderPositions(), mesh.getOccluderIndices(),
+    			transformation.buildModelMatrix(entity));
+    	return true;
+    }
+    
+    /**
+     * Records the draws of all meshes outside of a geometry arena, the buckets followed by the unique entities.
+     * The draws are split into ranges, and every range is recorded into its own color and depth command list by the
+     * worker threads. Only the replay in renderScene() and renderDepth() talks to OpenGL
+     */
+    private void recordCommands() {
+    	drawMeshes.clear();
+    	drawEntities.clear();
+    	for (RenderQueue.Bucket bucket : renderQueue.getBuckets()) {
+    		Mesh mesh = bucket.getMesh();
+    		if (mesh.getArena() != null) {
+    			continue;
+    		}
+    		for (Entity e : bucket.getEntities()) {
+    			drawMeshes.add(mesh);
+    			drawEntities.add(e);
+    		}
+    	}
+    	for (Entity e : renderQueue.getUniqueEntities()) {
+    		drawMeshes.add(e.getMesh().getLod(e.getLodLevel()));
+    		drawEntities.add(e);
+    	}
+    	
+    	commandListCount = (drawMeshes.size() + DRAWS_PER_COMMAND_LIST - 1) / DRAWS_PER_COMMAND_LIST;
+    	while (colorCommands.size() < commandListCount) {
+    		colorCommands.add(new CommandBuffer());
+    		depthCommands.add(new CommandBuffer());
+    		idCommands.add(new CommandBuffer());
+    	}
+    	Matrix4f viewMatrix = transformation.getViewMatrix();
+    	JobSystem.getInstance().parallelFor(commandListCount, 1, (int list) -> recordCommandList(list, viewMatrix));
+    }
+    
+    /**
+     * Records one range of the draws. Runs on a worker thread, so it only reads the renderer and writes its own lists.
+     * The color list binds the scene shader it needs, the depth and id lists expect their shader to be bound.
+     * The id list is only recorded in frames with a pick, the id of a draw is its index plus one
+     */
+    private void recordCommandList(int list, Matrix4f viewMatrix) {
+    	CommandBuffer color = colorCommands.get(list);
+    	CommandBuffer depth = depthCommands.get(list);
+    	CommandBuffer ids = pickRequest != null ? idCommands.get(list) : null;
+    	color.reset();
+    	depth.reset();
+    	if (ids != null) {
+    		ids.reset();
+    	}
+    	
+    	Matrix4f modelViewMatrix = new Matrix4f();
+    	ShaderProgram bound = null;
+    	Mesh current = null;
+    	int end = Math.min((list + 1) * DRAWS_PER_COMMAND_LIST, drawMeshes.size());
+    	for (int i = list * DRAWS_PER_COMMAND_LIST; i < end; i++) {
+    		Mesh mesh = drawMeshes.get(i);
+    		if (mesh != current) {
+    			if (current != null) {
+    				color.endMesh(current);
+    				depth.endMesh(current);
+    				if (ids != null) {
+    					ids.endMesh(current);
+    				}
+    			}
+    			ShaderProgram shaderProgram = sceneShader(mesh.getMaterial());
+    			if (shaderProgram != bound) {
+    				color.bindProgram(shaderProgram);
+    				bound = shaderProgram;
+    			}
+    			color.setUniform(shaderProgram, "material", mesh.getMaterial());
+    			color.beginMesh(mesh);
+    			depth.beginMesh(mesh);
+    			if (ids != null) {
+    				ids.beginMesh(mesh);
+    			}
+    			current = mesh;
+    		}
+    		transformation.buildModelViewMatrix(drawEntities.get(i), viewMatrix, modelViewMatrix);
+    		color.setUniform(bound, "modelViewMatrix", modelViewMatrix);
+    		color.drawMesh(mesh);
+    		depth.setUniform(depthShaderProgram, "modelViewMatrix", modelViewMatrix);
+    		depth.drawMesh(mesh);
+    		if (ids != null) {
+    			ids.setUniform(idShaderProgram, "modelViewMatrix", modelViewMatrix);
+    			ids.setUniform(idShaderProgram, "entityId", i + 1);
+    			ids.drawMesh(mesh);
+    		}
+    	}
+    	if (current != null) {
+    		color.endMesh(current);
+    		depth.endMesh(current);
+    		if (ids != null) {
+    			ids.endMesh(current);
+    		}
+    	}
+    }
+    
+    /**
+     * Queues the buckets of arena meshes in their batches, in front to back order, and uploads the instances of this frame.
+     * The instance ids continue after the ids of the recorded draws
+     */
+    private void prepareArenas() {
+    	for (RenderQueue.Bucket bucket : renderQueue.getBuckets()) {
+    		GeometryArena arena = bucket.getMesh().getArena();
+    		if (arena == null) {
+    			continue;
+    		}
+    		IndirectDrawBatch batch = arenaBatches.get(arena);
+    		if (batch == null) {
+    			batch = new IndirectDrawBatch(arena);
+    			arenaBatches.put(arena, batch);
+    		}
+    		batch.add(bucket.getMesh(), bucket.getEntities());
+    	}
+    	Matrix4f viewMatrix = transformation.getViewMatrix();
+    	int idBase = drawEntities.size();
+    	for (IndirectDrawBatch batch : arenaBatches.values()) {
+    		batch.setIdBase(idBase);
+    		batch.upload((Entity e, Matrix4f dest) -> transformation.buildModelViewMatrix(e, viewMatrix, dest));
+    		idBase += batch.getInstanceCount();
+    	}
+    }
+    
+    /**
+     * Draws the depth of all opaque geometry into the cascades of the directional light that are out of date
+     */
+    private void renderShadows(Window window) {
+    	// Slope scaled offset against surfaces shadowing themselves, casters in front of a cascade are clamped to its near plane
+    	glEnable(GL_POLYGON_OFFSET_FILL);
+    	glPolygonOffset(2.0f, 4.0f);
+    	glEnable(GL_DEPTH_CLAMP);
+    	for (int i = 0; i < ShadowCascades.CASCADE_COUNT; i++) {
+    		if (shadowCascades.isStale(i)) {
+    			shadowCascades.bindForWriting(i);
+    			renderDepth(shadowCascades.getCasterMatrix(i));
+    		}
+    	}
+    	shadowCascades.unbind();
+    	glDisable(GL_DEPTH_CLAMP);
+    	glDisable(GL_POLYGON_OFFSET_FILL);
+    	glViewport(0, 0, window.getWidth(), window.getHeight());
+    }
+    
+    /**
+     * Draws the depth of all opaque geometry with the color writes masked
+     * @param projectionMatrix Matrix4f Applied to the view space positions, the camera projection or the one of a shadow cascade
+     */
+    private void renderDepth(Matrix4f projectionMatrix) {
+    	glColorMask(false, false, false, false);
+    	
+    	// The recorded model view matrices stay valid for every pass, only the projection changes
+    	depthShaderProgram.bind();
+    	depthShaderProgram.setUniform("projectionMatrix", projectionMatrix);
+    	for (int i = 0; i < commandListCount; i++) {
+    		depthCommands.get(i).execute();
+    	}
+    	depthShaderProgram.unbind();
+    	
+    	if (!arenaBatches.isEmpty()) {
+    		arenaDepthShaderProgram.bind();
+    		arenaDepthShaderProgram.setUniform("projectionMatrix", projectionMatrix);
+    		for (IndirectDrawBatch batch : arenaBatches.values()) {
+    			batch.draw((int textureMode) -> { });
+    		}
+    		arenaDepthShaderProgram.unbind();
+    	}
+    	
+    	glColorMask(true, true, true, true);
+    }
 
-        Matrix4f ortho = transformation.getOrthoProjectionMatrix(0, window.getWidth(), window.getHeight(), 0);
-        for (Entity entity : hud.getEntities()) {
-            Mesh mesh = entity.getMesh();
-            
-            // Set orthographic and model matrix for this HUD item
-            Matrix4f projModelMatrix = transformation.buildOrthoProjModelMatrix(entity, ortho);
-            hudShaderProgram.setUniform("projModelMatrix", projModelMatrix);
-            hudShaderProgram.setUniform("color", entity.getMesh().getMaterial().getColor());
-            hudShaderProgram.setUniform("hasTexture", mesh.getMaterial().isTextured() ? 1 : 0); 
+    private void renderArenas(Matrix4f viewMatrix, Scene scene) {
+    	if (arenaBatches.isEmpty()) {
+    		return;
+    	}
+    	arenaShaderProgram.bind();
+    	
+    	arenaShaderProgram.setUniform("projectionMatrix", transformation.getProjectionMatrix());
+    	if (pipeline == Pipeline.FORWARD) {
+    		renderLights(arenaShaderProgram, viewMatrix, scene.getSceneLight());
+    	}
+    	arenaShaderProgram.setUniform("texture_sampler", 0);
+    	arenaShaderProgram.setUniform("texture_array_sampler", 1);
+    	
+    	for (IndirectDrawBatch batch : arenaBatches.values()) {
+    		batch.draw((int textureMode) -> arenaShaderProgram.setUniform("textureMode", textureMode));
+    	}
+    	
+    	arenaShaderProgram.unbind();
+    }
 
-            // Render the mesh for this HUD item
-            mesh.render();
+    private void renderHud(Window window, IHud hud) {
+        hudBatch.begin();
+        for (Entity entity : hud.getEntities()) {
+            Matrix4f modelMatrix = transformation.buildModelMatrix(entity);
+            if (entity instanceof TextEntity) {
+                hudBatch.addText((TextEntity) entity, modelMatrix);
+            } else {
+                hudBatch.addMesh(entity.getMesh(), modelMatrix);
+            }
         }
 
+        hudShaderProgram.bind();
+        Matrix4f ortho = transformation.getOrthoProjectionMatrix(0, window.getWidth(), window.getHeight(), 0);
+        hudShaderProgram.setUniform("orthoMatrix", ortho);
+        hudShaderProgram.setUniform("texture_sampler", 0);
+        
+        hudBatch.render();
+
         hudShaderProgram.unbind();
     }
     
+    /**
+     * Draws the sky box after all opaque geometry. Its depth is the far plane, so the depth test leaves only the pixels
+     * nothing else was drawn to
+     */
     private void renderSkybox(Window window, Camera camera, Scene scene) {
+        SkyBox skyBox = scene.getSkyBox();
+        if (skyBox == null) {
+        	return;
+        }
     	skyBoxShaderProgram.bind();
     	
     	skyBoxShaderProgram.setUniform("texture_sampler", 0);
@@ -205,73 +882,46 @@ public class Renderer {
         // Update projection Matrix
         Matrix4f projectionMatrix = transformation.getProjectionMatrix();
         skyBoxShaderProgram.setUniform("projectionMatrix", projectionMatrix);
-        SkyBox skyBox = scene.getSkyBox();
-        Matrix4f viewMatrix = transformation.getViewMatrix();
-        viewMatrix.m30(0);
-        viewMatrix.m31(0);
-        viewMatrix.m32(0);
-        Matrix4f modelViewMatrix = transformation.buildModelViewMatrix(skyBox, viewMatrix);
+        // Only the rotation of the camera applies to the sky, on a copy so the view matrix of the frame stays intact
+        skyBoxViewMatrix.set(transformation.getViewMatrix()).setTranslation(0, 0, 0);
+        Matrix4f modelViewMatrix = transformation.buildModelViewMatrix(skyBox, skyBoxViewMatrix);
         skyBoxShaderProgram.setUniform("modelViewMatrix", modelViewMatrix);
         skyBoxShaderProgram.setUniform("ambientLight", scene.getSceneLight().getAmbientLight());
-                
-        scene.getSkyBox().getMesh().render();
+        
+        glDepthFunc(GL_LEQUAL);
+        glDepthMask(false);
+        skyBox.getCubeMap().bind();
+        skyBox.getMesh().render();
+        glDepthMask(true);
+        glDepthFunc(GL_LESS);
     	
     	skyBoxShaderProgram.unbind();
     }
     
-    private void renderLights(Matrix4f viewMatrix, SceneLight sceneLight) {
+    private void renderLights(ShaderProgram shaderProgram, Matrix4f viewMatrix, SceneLight sceneLight) {
 
-    	sceneShaderProgram.setUniform("ambientLight", sceneLight.getAmbientLight());
-    	sceneShaderProgram.setUniform("specularPower", specularPower);
+    	shaderProgram.setUniform("ambientLight", sceneLight.getAmbientLight());
+    	shaderProgram.setUniform("specularPower", specularPower);
 
-    	List<PointLight> pointLights = sceneLight.getPointLights();
-    	List<SpotLight> spotLights = sceneLight.getSpotLights();
-    	
-        // Process point lights
-        int numLights = pointLights != null ? pointLights.size() : 0;
-        for (int i = 0; i < numLights; i++) {
-            // Get a copy of the point light object and transform its position to view coordinates
-            PointLight currPointLight = new PointLight(pointLights.get(i));
-            Vector3f lightPos = currPointLight.getPosition();
-            Vector4f aux = new Vector4f(lightPos, 1);
-            aux.mul(viewMatrix);
-            lightPos.x = aux.x;
-            lightPos.y = aux.y;
-            lightPos.z = aux.z;
-            sceneShaderProgram.setUniform("pointLights", currPointLight, i);
-        }
-
-        // Process spot lights
-        numLights = spotLights != null ? spotLights.size() : 0;
-        for (int i = 0; i < numLights; i++) {
-            // Get a copy of the spot light object and transform its position and cone direction to view coordinates
-            SpotLight currSpotLight = new SpotLight(spotLights.get(i));
-            Vector4f dir = new Vector4f(currSpotLight.getConeDirection(), 0);
-            dir.mul(viewMatrix);
-            currSpotLight.setConeDirection(new Vector3f(dir.x, dir.y, dir.z));
-            Vector3f lightPos = currSpotLight.getPointLight().getPosition();
-
-            Vector4f aux = new Vector4f(lightPos, 1);
-            aux.mul(viewMatrix);
-            lightPos.x = aux.x;
-            lightPos.y = aux.y;
-            lightPos.z = aux.z;
-
-            sceneShaderProgram.setUniform("spotLights", currSpotLight, i);
-        }
+    	// Point and spot lights were assigned to clusters once for the frame
+    	lightClusters.setUniforms(shaderProgram);
+    	shadowCascades.setUniforms(shaderProgram);
 
         // Get a copy of the directional light object and transform its position to view coordinates
         DirectionalLight currDirLight = new DirectionalLight(sceneLight.getDirectionalLight());
         Vector4f dir = new Vector4f(currDirLight.getDirection(), 0);
         dir.mul(viewMatrix);
         currDirLight.setDirection(new Vector3f(dir.x, dir.y, dir.z));
-        sceneShaderProgram.setUniform("directionalLight", currDirLight);
+        shaderProgram.setUniform("directionalLight", currDirLight);
 
     }
     
     public void cleanup() {
-        if (sceneShaderProgram != null) {
-        	sceneShaderProgram.cleanup();
+        if (texturedShaderProgram != null) {
+        	texturedShaderProgram.cleanup();
+        }
+        if (colorShaderProgram != null) {
+        	colorShaderProgram.cleanup();
         }
         if (hudShaderProgram != null) {
         	hudShaderProgram.cleanup();
@@ -279,5 +929,55 @@ public class Renderer {
         if (skyBoxShaderProgram != null) {
         	skyBoxShaderProgram.cleanup();
         }
+        if (hudBatch != null) {
+        	hudBatch.cleanup();
+        }
+        if (lightClusters != null) {
+        	lightClusters.cleanup();
+        }
+        if (shadowCascades != null) {
+        	shadowCascades.cleanup();
+        }
+        if (gBuffer != null) {
+        	gBuffer.cleanup();
+        }
+        renderGraph.cleanup();
+        if (deferredLighting != null) {
+        	deferredLighting.cleanup();
+        }
+        if (arenaShaderProgram != null) {
+        	arenaShaderProgram.cleanup();
+        }
+        if (depthShaderProgram != null) {
+        	depthShaderProgram.cleanup();
+        }
+        if (arenaDepthShaderProgram != null) {
+        	arenaDepthShaderProgram.cleanup();
+        }
+        if (idShaderProgram != null) {
+        	idShaderProgram.cleanup();
+        }
+        if (arenaIdShaderProgram != null) {
+        	arenaIdShaderProgram.cleanup();
+        }
+        if (pickingBuffer != null) {
+        	pickingBuffer.cleanup();
+        }
+        for (IndirectDrawBatch batch : arenaBatches.values()) {
+        	batch.cleanup();
+        }
+        arenaBatches.clear();
+        for (CommandBuffer commands : colorCommands) {
+        	commands.cleanup();
+        }
+        for (CommandBuffer commands : depthCommands) {
+        	commands.cleanup();
+        }
+        for (CommandBuffer commands : idCommands) {
+        	commands.cleanup();
+        }
+        colorCommands.clear();
+        depthCommands.clear();
+        idCommands.clear();
     }
 }
\ No newline at end of file
@@ -0,0 +1,161 @@
+package engine.graphics;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL20.*;
+import static org.lwjgl.opengl.GL41.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GLCapabilities;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.MemoryUtil;
+
+/**
+ * Keeps the binaries of linked shader programs on disk, so later starts load them instead of compiling and linking
+ * the sources again. A binary is only valid for the driver that produced it, so the key hashes the preprocessed
+ * sources together with the vendor, renderer and version strings of the context. Updating the driver or editing a
+ * shader changes the key, and a binary the driver rejects anyway is deleted and rebuilt.
+ * Needs a current GL context; without program binary support every program is built from its sources.
+ */
+public class ShaderCache {
+
+    private static final int MAGIC = 0x53484452;
+
+    private static final int HEADER_SIZE = 8;
+
+    private final Path cacheDir;
+
+    private final String driver;
+
+    private final boolean supported;
+
+    /**
+     * @param cacheDir Path The directory the binaries are written to, it is created when needed
+     */
+    public ShaderCache(Path cacheDir) {
+        this.cacheDir = cacheDir;
+        driver = glGetString(GL_VENDOR) + "\n" + glGetString(GL_RENDERER) + "\n" + glGetString(GL_VERSION);
+        GLCapabilities caps = GL.getCapabilities();
+        supported = (caps.OpenGL41 || caps.GL_ARB_get_program_binary)
+                && glGetInteger(GL_NUM_PROGRAM_BINARY_FORMATS) > 0;
+    }
+
+    public boolean isSupported() {
+        return supported;
+    }
+
+    /**
+     * Method to compute the key of a program
+     * @param sources String[] The preprocessed sources of every stage of the program
+     * @return String The hex digest of the sources and the driver strings
+     */
+    public String key(String... sources) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            digest.update(driver.getBytes(StandardCharsets.UTF_8));
+            for (String source : sources) {
+                // The separator keeps moving text from one stage to the next from producing the same key
+                digest.update((byte) 0);
+                digest.update(source.getBytes(StandardCharsets.UTF_8));
+            }
+            StringBuilder key = new StringBuilder();
+            for (byte b : digest.digest()) {
+                key.append(String.format("%02x", b));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not available", e);
+        }
+    }
+
+    /**
+     * Method to load a cached binary into a program
+     * @param programId int The program object, without any shader attached
+     * @param key String The key of the program
+     * @return boolean True if the program is linked, false if it has to be built from its sources
+     */
+    public boolean load(int programId, String key) {
+        Path file = cacheDir.resolve(key + ".bin");
+        if (!supported || !Files.isRegularFile(file)) {
+            return false;
+        }
+        byte[] data;
+        try {
+            data = Files.readAllBytes(file);
+        } catch (IOException e) {
+            return false;
+        }
+        ByteBuffer header = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        if (data.length <= HEADER_SIZE || header.getInt(0) != MAGIC) {
+            discard(file);
+            return false;
+        }
+        ByteBuffer binary = MemoryUtil.memAlloc(data.length - HEADER_SIZE);
+        try {
+            binary.put(data, HEADER_SIZE, data.length - HEADER_SIZE).flip();
+            glProgramBinary(programId, header.getInt(4), binary);
+        } finally {
+            MemoryUtil.memFree(binary);
+        }
+        if (glGetProgrami(programId, GL_LINK_STATUS) == 0) {
+            // Drivers may refuse binaries of an older build even when the version string did not change
+            discard(file);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Method to save the binary of a program linked with the retrievable hint set. Failures only cost the cache entry
+     * @param programId int The linked program
+     * @param key String The key of the program
+     */
+    public void store(int programId, String key) {
+        if (!supported) {
+            return;
+        }
+        int length = glGetProgrami(programId, GL_PROGRAM_BINARY_LENGTH);
+        if (length <= 0) {
+            return;
+        }
+        ByteBuffer binary = MemoryUtil.memAlloc(HEADER_SIZE + length).order(ByteOrder.LITTLE_ENDIAN);
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            IntBuffer written = stack.mallocInt(1);
+            IntBuffer format = stack.mallocInt(1);
+            binary.position(HEADER_SIZE);
+            glGetProgramBinary(programId, written, format, binary);
+            binary.putInt(0, MAGIC).putInt(4, format.get(0));
+            binary.position(0).limit(HEADER_SIZE + written.get(0));
+
+            byte[] data = new byte[binary.remaining()];
+            binary.get(data);
+            Files.createDirectories(cacheDir);
+            // Write to a temporary file first, so an interrupted write never leaves a broken binary behind
+            Path tmp = Files.createTempFile(cacheDir, "shader", ".tmp");
+            Files.write(tmp, data);
+            Files.move(tmp, cacheDir.resolve(key + ".bin"), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            System.err.println("Could not cache shader program: " + e.getMessage());
+        } finally {
+            MemoryUtil.memFree(binary);
+        }
+    }
+
+    private static void discard(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            System.err.println("Could not delete shader binary: " + file);
+        }
+    }
+}
@@ -1,34 +1,76 @@
 package engine.graphics;
 
+import static org.lwjgl.opengl.GL11.GL_TRUE;
 import static org.lwjgl.opengl.GL20.*;
+import static org.lwjgl.opengl.GL41.GL_PROGRAM_BINARY_RETRIEVABLE_HINT;
+import static org.lwjgl.opengl.GL41.glProgramParameteri;
 
 import java.nio.FloatBuffer;
 import java.util.HashMap;
 import java.util.Map;
 
 import org.joml.Matrix4f;
+import org.joml.Vector2f;
 import org.joml.Vector3f;
+import org.joml.Vector4f;
 import org.lwjgl.system.MemoryStack;
 
 import engine.graphics.lights.*;
 
 public class ShaderProgram {
 	
+	/**
+	 * Validation checks the program against the current GL state, which is slow and only useful while debugging.
+	 * Run with -DvalidateShaders=true to turn it on
+	 */
+	private static final boolean VALIDATE = Boolean.getBoolean("validateShaders");
+	
 	private final int programId;
 
-	private int vertexShaderId;
+	private final ShaderCache cache;
+
+	private final StringBuilder defines;
+
+	private String vertexSource;
 
-	private int fragmentShaderId;
+	private String fragmentSource;
 
 	private final Map<String, Integer> uniforms;
 	
 	public ShaderProgram() throws Exception {
+		this(null);
+	}
+	
+	/**
+	 * @param cache ShaderCache The cache to load the linked program from and store it into, or null to always build it
+	 */
+	public ShaderProgram(ShaderCache cache) throws Exception {
+		this.cache = cache;
+		defines = new StringBuilder();
 		uniforms = new HashMap<>();
 		programId = glCreateProgram();
 		if (programId == 0) {
 			throw new Exception("Could not create Shader");
 		}
 	}
+	
+	/**
+	 * Method to define a preprocessor symbol in the shaders created after this call, so permutations of one source
+	 * can compile out the branches they never take
+	 * @param name String The name of the symbol
+	 */
+	public void addDefine(String name) {
+		addDefine(name, "1");
+	}
+	
+	/**
+	 * Method to define a preprocessor symbol with a value in the shaders created after this call
+	 * @param name String The name of the symbol
+	 * @param value Object The value of the symbol
+	 */
+	public void addDefine(String name, Object value) {
+		defines.append("#define ").append(name).append(' ').append(value).append('\n');
+	}
 
 	public void createUniform(String uniformName) throws Exception {
 	    int uniformLocation = glGetUniformLocation(programId, uniformName);
@@ -71,10 +113,41 @@ public class ShaderProgram {
         }
     }
 	
+	/**
+	 * Method to create a uniform a permutation of the shader may have compiled out
+	 * @param uniformName String The name of the uniform
+	 * @return boolean True if the uniform is used by the program
+	 */
+	public boolean createOptionalUniform(String uniformName) {
+	    int uniformLocation = glGetUniformLocation(programId, uniformName);
+	    if (uniformLocation >= 0) {
+	        uniforms.put(uniformName, uniformLocation);
+	    }
+	    return uniformLocation >= 0;
+	}
+	
+	public boolean hasUniform(String uniformName) {
+	    return uniforms.containsKey(uniformName);
+	}
+	
+	/**
+	 * Method to look up the location of a uniform created before. Only reads, so it can be called from any thread
+	 * @param uniformName String The name of the uniform
+	 * @return int The location of the uniform
+	 */
+	public int getUniformLocation(String uniformName) {
+	    Integer location = uniforms.get(uniformName);
+	    if (location == null) {
+	        throw new IllegalArgumentException("Uniform was not created: " + uniformName);
+	    }
+	    return location;
+	}
+	
 	public void createMaterialUniform(String uniformName) throws Exception {
-	    createUniform(uniformName + ".color");
-	    createUniform(uniformName + ".useColor");
+	    // Textured permutations only read the uv region, coloured ones only the color
+	    createOptionalUniform(uniformName + ".color");
 	    createUniform(uniformName + ".reflectance");
+	    createOptionalUniform(uniformName + ".uvRect");
 	}
 	
 	public void setUniform(String uniformName, Matrix4f value) {
@@ -112,10 +185,18 @@ public class ShaderProgram {
 	    glUniform1i(uniforms.get(uniformName), value);
 	}
 	
+	public void setUniform(String uniformName, Vector2f value) {
+		glUniform2f(uniforms.get(uniformName), value.x, value.y);
+	}
+	
 	public void setUniform(String uniformName, Vector3f value) {
 		glUniform3f(uniforms.get(uniformName), value.x, value.y, value.z);
 	}
 	
+	public void setUniform(String uniformName, Vector4f value) {
+		glUniform4f(uniforms.get(uniformName), value.x, value.y, value.z, value.w);
+	}
+	
 	public void setUniform(String uniformName, float value) {
 		glUniform1f(uniforms.get(uniformName), value);
 	}
@@ -143,17 +224,47 @@ public class ShaderProgram {
 	}
 	
 	public void setUniform(String uniformName, Material material) {
-	    setUniform(uniformName + ".color", material.getColor() );
-	    setUniform(uniformName + ".useColor", material.isTextured() ? 0 : 1);
+	    if (hasUniform(uniformName + ".color")) {
+	        setUniform(uniformName + ".color", material.getColor() );
+	    }
 	    setUniform(uniformName + ".reflectance", material.getReflectance());
+	    if (hasUniform(uniformName + ".uvRect")) {
+	        setUniform(uniformName + ".uvRect", material.getUvRect());
+	    }
 	}
 	
+	/**
+	 * Method to set the vertex shader source. It is compiled by link(), unless the program is found in the cache
+	 * @param shaderCode String The GLSL source
+	 */
 	public void createVertexShader(String shaderCode) throws Exception {
-		vertexShaderId = createShader(shaderCode, GL_VERTEX_SHADER);
+		vertexSource = preprocess(shaderCode);
 	}
 
+	/**
+	 * Method to set the fragment shader source. It is compiled by link(), unless the program is found in the cache
+	 * @param shaderCode String The GLSL source
+	 */
 	public void createFragmentShader(String shaderCode) throws Exception {
-		fragmentShaderId = createShader(shaderCode, GL_FRAGMENT_SHADER);
+		fragmentSource = preprocess(shaderCode);
+	}
+
+	/**
+	 * Inserts the defines right after the #version directive, which has to stay the first statement of the source
+	 */
+	private String preprocess(String shaderCode) {
+		if (defines.length() == 0) {
+			return shaderCode;
+		}
+		int version = shaderCode.indexOf("#version");
+		if (version < 0) {
+			return defines + shaderCode;
+		}
+		int lineEnd = shaderCode.indexOf('\n', version);
+		if (lineEnd < 0) {
+			return shaderCode + "\n" + defines;
+		}
+		return shaderCode.substring(0, lineEnd + 1) + defines + shaderCode.substring(lineEnd + 1);
 	}
 
 	protected int createShader(String shaderCode, int shaderType) throws Exception {
@@ -174,25 +285,50 @@ public class ShaderProgram {
 		return shaderId;
 	}
 
+	/**
+	 * Method to link the program, loading the binary from the cache when it holds one for these sources and driver.
+	 * Otherwise the shaders are compiled and linked, and the result is stored in the cache
+	 */
 	public void link() throws Exception {
+		if (vertexSource == null || fragmentSource == null) {
+			throw new Exception("Shader program needs a vertex and a fragment shader");
+		}
+		String key = null;
+		if (cache != null && cache.isSupported()) {
+			key = cache.key(vertexSource, fragmentSource);
+			if (cache.load(programId, key)) {
+				validate();
+				return;
+			}
+			glProgramParameteri(programId, GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GL_TRUE);
+		}
+
+		int vertexShaderId = createShader(vertexSource, GL_VERTEX_SHADER);
+		int fragmentShaderId = createShader(fragmentSource, GL_FRAGMENT_SHADER);
 		glLinkProgram(programId);
+		// The shader objects are not needed once linked, the program keeps its own copy of the code
+		glDetachShader(programId, vertexShaderId);
+		glDetachShader(programId, fragmentShaderId);
+		glDeleteShader(vertexShaderId);
+		glDeleteShader(fragmentShaderId);
 		if (glGetProgrami(programId, GL_LINK_STATUS) == 0) {
 			throw new Exception("Error linking Shader code: " + glGetProgramInfoLog(programId, 1024));
 		}
 
-		if (vertexShaderId != 0) {
-			glDetachShader(programId, vertexShaderId);
-		}
-		if (fragmentShaderId != 0) {
-			glDetachShader(programId, fragmentShaderId);
+		if (key != null) {
+			cache.store(programId, key);
 		}
+		validate();
+	}
 
-		//TODO Remove for deployment
+	private void validate() {
+		if (!VALIDATE) {
+			return;
+		}
 		glValidateProgram(programId);
 		if (glGetProgrami(programId, GL_VALIDATE_STATUS) == 0) {
 			System.err.println("Warning validating Shader code: " + glGetProgramInfoLog(programId, 1024));
 		}
-
 	}
 
 	public void bind() {
@@ -0,0 +1,300 @@
+package engine.graphics;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL12.*;
+import static org.lwjgl.opengl.GL13.*;
+import static org.lwjgl.opengl.GL14.*;
+import static org.lwjgl.opengl.GL30.*;
+
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+
+/**
+ * Cascaded shadow maps of the directional light. The view frustum is split into CASCADE_COUNT slices up to the shadow
+ * distance, and each slice gets its own layer of a depth texture array, rendered with an orthographic projection along
+ * the light. Every cascade is fitted to the bounding sphere of its slice, so its size does not change when the camera
+ * turns, and its position is snapped to whole texels in light space, so the shadow edges do not shimmer when it moves.
+ * The first cascade is rendered every frame. The distant ones cover a bit more than their slice and are kept until they
+ * are CACHE_INTERVAL frames old, the light turned by more than CACHE_ANGLE, or the slice left the cached area.
+ * The cascade count has to match the constant in fragment.fs, arena_fragment.fs and deferred_directional.fs.
+ */
+public class ShadowCascades {
+
+    public static final int CASCADE_COUNT = 3;
+
+    /**
+     * Texture unit of the shadow map array
+     */
+    public static final int SHADOW_UNIT = 3;
+
+    /**
+     * Blend between logarithmic (1) and uniform (0) split distances
+     */
+    private static final float SPLIT_LAMBDA = 0.75f;
+
+    /**
+     * Frames a distant cascade is kept before it is rendered again, to catch up with moving casters
+     */
+    private static final int CACHE_INTERVAL = 8;
+
+    /**
+     * Cosine of the angle the light may turn before the distant cascades are rendered again
+     */
+    private static final float CACHE_ANGLE = (float) Math.cos(Math.toRadians(0.5));
+
+    /**
+     * Fraction by which a distant cascade is larger than its slice, so the camera can move before it is rendered again
+     */
+    private static final float CACHE_MARGIN = 0.2f;
+
+    /**
+     * Maps clip space to texture coordinates and depth in [0, 1]
+     */
+    private static final Matrix4f BIAS = new Matrix4f().translate(0.5f, 0.5f, 0.5f).scale(0.5f);
+
+    private final int size;
+
+    private final float shadowDistance;
+
+    private final int fboId;
+
+    private final int depthTextureId;
+
+    /**
+     * Far view distance of every slice
+     */
+    private final float[] splits;
+
+    /**
+     * Light view and light projection the cascade was last rendered with
+     */
+    private final Matrix4f[] lightViews;
+
+    private final Matrix4f[] lightProjections;
+
+    /**
+     * Sphere the cascade was last fitted to, the center in the light view space of the cascade
+     */
+    private final Vector3f[] centers;
+
+    private final float[] radii;
+
+    private final Vector3f[] directions;
+
+    private final int[] ages;
+
+    private final boolean[] stale;
+
+    /**
+     * Camera view space to the clip space of every cascade, for drawing the instances uploaded for the camera
+     */
+    private final Matrix4f[] casterMatrices;
+
+    /**
+     * Camera view space to shadow map coordinates of every cascade
+     */
+    private final Matrix4f[] shadowMatrices;
+
+    private final Matrix4f invViewMatrix;
+
+    private final Vector3f sliceCenter;
+
+    private final Vector3f lightDirection;
+
+    /**
+     * @param size int The width and height of every cascade in texels
+     * @param shadowDistance float The view distance up to which shadows are drawn
+     */
+    public ShadowCascades(int size, float shadowDistance) throws Exception {
+        this.size = size;
+        this.shadowDistance = shadowDistance;
+        splits = new float[CASCADE_COUNT];
+        lightViews = new Matrix4f[CASCADE_COUNT];
+        lightProjections = new Matrix4f[CASCADE_COUNT];
+        centers = new Vector3f[CASCADE_COUNT];
+        radii = new float[CASCADE_COUNT];
+        directions = new Vector3f[CASCADE_COUNT];
+        ages = new int[CASCADE_COUNT];
+        stale = new boolean[CASCADE_COUNT];
+        casterMatrices = new Matrix4f[CASCADE_COUNT];
+        shadowMatrices = new Matrix4f[CASCADE_COUNT];
+        for (int i = 0; i < CASCADE_COUNT; i++) {
+            lightViews[i] = new Matrix4f();
+            lightProjections[i] = new Matrix4f();
+            centers[i] = new Vector3f();
+            directions[i] = new Vector3f();
+            casterMatrices[i] = new Matrix4f();
+            shadowMatrices[i] = new Matrix4f();
+            // Spread the refreshes of the distant cascades over different frames
+            ages[i] = i * CACHE_INTERVAL / CASCADE_COUNT;
+            stale[i] = true;
+        }
+        invViewMatrix = new Matrix4f();
+        sliceCenter = new Vector3f();
+        lightDirection = new Vector3f();
+
+        depthTextureId = glGenTextures();
+        glBindTexture(GL_TEXTURE_2D_ARRAY, depthTextureId);
+        glTexImage3D(GL_TEXTURE_2D_ARRAY, 0, GL_DEPTH_COMPONENT24, size, size, CASCADE_COUNT, 0,
+                GL_DEPTH_COMPONENT, GL_FLOAT, 0);
+        // Hardware comparison with bilinear filtering, every lookup already blends 2x2 texels
+        glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_MIN_FILTER, GL_LINEAR);
+        glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
+        glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
+        glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
+        glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_COMPARE_MODE, GL_COMPARE_REF_TO_TEXTURE);
+        glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_COMPARE_FUNC, GL_LEQUAL);
+        glBindTexture(GL_TEXTURE_2D_ARRAY, 0);
+
+        fboId = glGenFramebuffers();
+        glBindFramebuffer(GL_FRAMEBUFFER, fboId);
+        glFramebufferTextureLayer(GL_FRAMEBUFFER, GL_DEPTH_ATTACHMENT, depthTextureId, 0, 0);
+        glDrawBuffer(GL_NONE);
+        glReadBuffer(GL_NONE);
+        if (glCheckFramebufferStatus(GL_FRAMEBUFFER) != GL_FRAMEBUFFER_COMPLETE) {
+            throw new Exception("Could not create the shadow map framebuffer");
+        }
+        glBindFramebuffer(GL_FRAMEBUFFER, 0);
+    }
+
+    public void createUniforms(ShaderProgram shaderProgram) throws Exception {
+        shaderProgram.createUniform("shadowMap");
+        for (int i = 0; i < CASCADE_COUNT; i++) {
+            shaderProgram.createUniform("shadowMatrices[" + i + "]");
+            shaderProgram.createUniform("cascadeSplits[" + i + "]");
+        }
+    }
+
+    /**
+     * Method to fit the cascades to the view of the frame and find the ones that have to be rendered
+     * @param projectionMatrix Matrix4f The perspective projection of the frame
+     * @param viewMatrix Matrix4f The view matrix of the frame
+     * @param zNear float The near plane distance of the projection
+     * @param direction Vector3f The direction towards the light, in world space
+     */
+    public void update(Matrix4f projectionMatrix, Matrix4f viewMatrix, float zNear, Vector3f direction) {
+        viewMatrix.invert(invViewMatrix);
+        direction.normalize(lightDirection);
+        // Squared tangent of the angle between the view axis and the corners of the frustum
+        float tanX = 1.0f / projectionMatrix.m00();
+        float tanY = 1.0f / projectionMatrix.m11();
+        float k = tanX * tanX + tanY * tanY;
+
+        float near = zNear;
+        for (int i = 0; i < CASCADE_COUNT; i++) {
+            float t = (i + 1) / (float) CASCADE_COUNT;
+            float far = SPLIT_LAMBDA * zNear * (float) Math.pow(shadowDistance / zNear, t)
+                    + (1 - SPLIT_LAMBDA) * (zNear + (shadowDistance - zNear) * t);
+            splits[i] = far;
+
+            // Smallest sphere around the slice, its center lies on the view axis
+            float centerDistance = Math.min(far, (far + near) * (1 + k) / 2);
+            float radius = (float) Math.sqrt((far - centerDistance) * (far - centerDistance) + far * far * k);
+            invViewMatrix.transformPosition(sliceCenter.set(0, 0, -centerDistance));
+            near = far;
+
+            ages[i]++;
+            if (i > 0 && !stale[i] && ages[i] < CACHE_INTERVAL
+                    && directions[i].dot(lightDirection) >= CACHE_ANGLE && contains(i, radius)) {
+                continue;
+            }
+            fit(i, i > 0 ? radius * (1 + CACHE_MARGIN) : radius);
+        }
+
+        for (int i = 0; i < CASCADE_COUNT; i++) {
+            lightProjections[i].mul(lightViews[i], casterMatrices[i]).mul(invViewMatrix);
+            BIAS.mul(casterMatrices[i], shadowMatrices[i]);
+        }
+    }
+
+    /**
+     * @return True if the slice sphere around sliceCenter still lies inside the area cached for a cascade
+     */
+    private boolean contains(int cascade, float radius) {
+        Vector3f center = lightViews[cascade].transformPosition(sliceCenter, new Vector3f());
+        float dx = Math.abs(center.x - centers[cascade].x);
+        float dy = Math.abs(center.y - centers[cascade].y);
+        float dz = Math.abs(center.z - centers[cascade].z);
+        float cachedRadius = radii[cascade];
+        return dx + radius <= cachedRadius && dy + radius <= cachedRadius && dz + radius <= cachedRadius;
+    }
+
+    /**
+     * Points a cascade at the sphere around sliceCenter and marks it for rendering
+     */
+    private void fit(int cascade, float radius) {
+        Matrix4f lightView = lightViews[cascade];
+        // Any up axis works, it only has to differ from the light direction
+        boolean vertical = Math.abs(lightDirection.y) > 0.99f;
+        lightView.setLookAt(0, 0, 0, -lightDirection.x, -lightDirection.y, -lightDirection.z,
+                0, vertical ? 0 : 1, vertical ? 1 : 0);
+
+        Vector3f center = lightView.transformPosition(sliceCenter, centers[cascade]);
+        // Move in steps of whole texels, so the same world position always lands on the same texel
+        float texel = 2 * radius / size;
+        center.x = (float) Math.floor(center.x / texel) * texel;
+        center.y = (float) Math.floor(center.y / texel) * texel;
+        // Casters between the light and the sphere are clamped to the near plane while rendering
+        lightProjections[cascade].setOrtho(center.x - radius, center.x + radius, center.y - radius, center.y + radius,
+                -center.z - radius, -center.z + radius);
+
+        radii[cascade] = radius;
+        directions[cascade].set(lightDirection);
+        ages[cascade] = 0;
+        stale[cascade] = true;
+    }
+
+    /**
+     * @return True if the cascade has to be rendered this frame
+     */
+    public boolean isStale(int cascade) {
+        return stale[cascade];
+    }
+
+    /**
+     * Method to get the matrix taking camera view space positions to the clip space of a cascade. Drawing with it reuses
+     * the model view matrices built for the camera
+     * @param cascade int The cascade to render
+     * @return Matrix4f The matrix to use as the projection of the depth shaders
+     */
+    public Matrix4f getCasterMatrix(int cascade) {
+        return casterMatrices[cascade];
+    }
+
+    /**
+     * Method to direct the following draws into a cascade and clear it. The viewport is changed to the cascade size
+     * @param cascade int The cascade to render
+     */
+    public void bindForWriting(int cascade) {
+        glBindFramebuffer(GL_FRAMEBUFFER, fboId);
+        glFramebufferTextureLayer(GL_FRAMEBUFFER, GL_DEPTH_ATTACHMENT, depthTextureId, 0, cascade);
+        glViewport(0, 0, size, size);
+        glClear(GL_DEPTH_BUFFER_BIT);
+        stale[cascade] = false;
+    }
+
+    public void unbind() {
+        glBindFramebuffer(GL_FRAMEBUFFER, 0);
+    }
+
+    /**
+     * Method to bind the shadow map array to SHADOW_UNIT and set the uniforms of the lighting shaders
+     * @param shaderProgram ShaderProgram A bound program created with createUniforms()
+     */
+    public void setUniforms(ShaderProgram shaderProgram) {
+        glActiveTexture(GL_TEXTURE0 + SHADOW_UNIT);
+        glBindTexture(GL_TEXTURE_2D_ARRAY, depthTextureId);
+        glActiveTexture(GL_TEXTURE0);
+
+        shaderProgram.setUniform("shadowMap", SHADOW_UNIT);
+        for (int i = 0; i < CASCADE_COUNT; i++) {
+            shaderProgram.setUniform("shadowMatrices[" + i + "]", shadowMatrices[i]);
+            shaderProgram.setUniform("cascadeSplits[" + i + "]", splits[i]);
+        }
+    }
+
+    public void cleanup() {
+        glDeleteFramebuffers(fboId);
+        glDeleteTextures(depthTextureId);
+    }
+}
@@ -0,0 +1,138 @@
+package engine.graphics;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Packs rectangles into a fixed size area using the bottom-left skyline heuristic.
+ * The packer keeps the upper outline of everything placed so far as a list of horizontal segments,
+ * and puts every new rectangle where it ends up lowest, preferring the leftmost position on ties.
+ */
+public class SkylinePacker {
+
+    private static class Segment {
+
+        private int x;
+
+        private int y;
+
+        private int width;
+
+        private Segment(int x, int y, int width) {
+            this.x = x;
+            this.y = y;
+            this.width = width;
+        }
+    }
+
+    private final int width;
+
+    private final int height;
+
+    private final List<Segment> skyline;
+
+    private int usedArea;
+
+    public SkylinePacker(int width, int height) {
+        this.width = width;
+        this.height = height;
+        skyline = new ArrayList<>();
+        skyline.add(new Segment(0, 0, width));
+    }
+
+    /**
+     * Method to find a place for a rectangle and mark it as occupied
+     * @param rectWidth int The width of the rectangle
+     * @param rectHeight int The height of the rectangle
+     * @return Rectangle The position of the rectangle, or null if it does not fit anymore
+     */
+    public Rectangle insert(int rectWidth, int rectHeight) {
+        int bestIndex = -1;
+        int bestY = Integer.MAX_VALUE;
+        int bestX = 0;
+        for (int i = 0; i < skyline.size(); i++) {
+            int y = fitHeight(i, rectWidth);
+            if (y >= 0 && y + rectHeight <= height && y < bestY) {
+                bestIndex = i;
+                bestY = y;
+                bestX = skyline.get(i).x;
+            }
+        }
+        if (bestIndex < 0) {
+            return null;
+        }
+
+        addSegment(bestIndex, new Segment(bestX, bestY + rectHeight, rectWidth));
+        usedArea += rectWidth * rectHeight;
+        return new Rectangle(bestX, bestY, rectWidth, rectHeight);
+    }
+
+    /**
+     * Computes the height a rectangle would be placed at, when its left edge is aligned with a segment
+     * @return int The y coordinate of the rectangle, or -1 if it would stick out on the right
+     */
+    private int fitHeight(int index, int rectWidth) {
+        int x = skyline.get(index).x;
+        if (x + rectWidth > width) {
+            return -1;
+        }
+        int remaining = rectWidth;
+        int y = 0;
+        for (int i = index; remaining > 0; i++) {
+            Segment segment = skyline.get(i);
+            y = Math.max(y, segment.y);
+            remaining -= segment.width;
+        }
+        return y;
+    }
+
+    private void addSegment(int index, Segment segment) {
+        skyline.add(index, segment);
+
+        // Shrink or remove the segments now covered by the new one
+        int end = segment.x + segment.width;
+        int i = index + 1;
+        while (i < skyline.size()) {
+            Segment next = skyline.get(i);
+            if (next.x >= end) {
+                break;
+            }
+            int overlap = end - next.x;
+            if (overlap >= next.width) {
+                skyline.remove(i);
+            } else {
+                next.x += overlap;
+                next.width -= overlap;
+                break;
+            }
+        }
+
+        // Merge neighbours at the same height
+        for (i = 0; i < skyline.size() - 1; i++) {
+            Segment current = skyline.get(i);
+            Segment next = skyline.get(i + 1);
+            if (current.y == next.y) {
+                current.width += next.width;
+                skyline.remove(i + 1);
+                i--;
+            }
+        }
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     *
+     * @return float The fraction of the area covered by the rectangles inserted so far
+     */
+    public float getOccupancy() {
+        return (float) usedArea / (float) (width * height);
+    }
+}
@@ -0,0 +1,172 @@
+package engine.graphics;
+
+/**
+ * A texture whose mip levels are uploaded over several frames by a TextureStreamer.
+ * The texture is usable straight away; it samples black until the coarsest level has arrived, and then
+ * sharpens as finer levels become resident. GL_TEXTURE_BASE_LEVEL always points at the finest complete level.
+ */
+public class StreamedTexture extends Texture {
+
+    private final String fileName;
+
+    private volatile TextureCache.Container container;
+
+    private volatile Exception error;
+
+    private int width;
+
+    private int height;
+
+    /**
+     * The finest level uploaded completely, getLevelCount() while nothing is resident
+     */
+    private int residentLevel;
+
+    /**
+     * The finest level needed by the last frame
+     */
+    private int targetLevel;
+
+    /**
+     * The finest level requested in the current frame
+     */
+    private int requestedLevel;
+
+    /**
+     * The level being uploaded and the number of texel rows already copied into it, -1 if no upload is in progress
+     */
+    private int uploadLevel;
+
+    private int uploadedRows;
+
+    private long residentBytes;
+
+    StreamedTexture(int id, String fileName) {
+        super(id, 0, 0);
+        this.fileName = fileName;
+        this.uploadLevel = -1;
+    }
+
+    /**
+     * Method to tell the streamer how large the texture currently appears on screen. Called every frame the texture is drawn
+     * @param pixels float The approximate size of the textured surface on screen, in pixels
+     */
+    public void requestScreenSize(float pixels) {
+        if (container == null) {
+            return;
+        }
+        int level = 0;
+        if (pixels > 0) {
+            float texels = Math.max(width, height);
+            level = (int) Math.floor(Math.log(texels / pixels) / Math.log(2));
+        } else {
+            level = getLevelCount() - 1;
+        }
+        level = Math.max(0, Math.min(level, getLevelCount() - 1));
+        requestedLevel = Math.min(requestedLevel, level);
+    }
+
+    /**
+     * Method to keep every level resident, regardless of the screen size
+     */
+    public void requestFullResolution() {
+        requestedLevel = 0;
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    /**
+     * @return True once the worker thread has prepared the level data
+     */
+    public boolean isLoaded() {
+        return container != null;
+    }
+
+    /**
+     * @return The exception thrown while preparing the level data, or null. A texture that failed stays black
+     */
+    public Exception getError() {
+        return error;
+    }
+
+    public int getResidentLevel() {
+        return residentLevel;
+    }
+
+    public int getTargetLevel() {
+        return targetLevel;
+    }
+
+    public long getResidentBytes() {
+        return residentBytes;
+    }
+
+    int getLevelCount() {
+        return container != null ? container.getLevelCount() : 0;
+    }
+
+    TextureCache.Container getContainer() {
+        return container;
+    }
+
+    /**
+     * Called from the worker thread once the container has been built and mapped
+     */
+    void setContainer(TextureCache.Container container) {
+        this.width = container.getWidth();
+        this.height = container.getHeight();
+        this.residentLevel = container.getLevelCount();
+        this.targetLevel = container.getLevelCount() - 1;
+        this.requestedLevel = this.targetLevel;
+        this.container = container;
+    }
+
+    void setError(Exception error) {
+        this.error = error;
+    }
+
+    /**
+     * Promotes the requests of the finished frame to the target level and starts collecting requests for the next one
+     */
+    void beginFrame() {
+        targetLevel = requestedLevel;
+        requestedLevel = getLevelCount() - 1;
+    }
+
+    void setResidentLevel(int residentLevel) {
+        this.residentLevel = residentLevel;
+    }
+
+    int getUploadLevel() {
+        return uploadLevel;
+    }
+
+    void setUploadLevel(int uploadLevel) {
+        this.uploadLevel = uploadLevel;
+        this.uploadedRows = 0;
+    }
+
+    int getUploadedRows() {
+        return uploadedRows;
+    }
+
+    void addUploadedRows(int rows) {
+        this.uploadedRows += rows;
+    }
+
+    void addResidentBytes(long bytes) {
+        this.residentBytes += bytes;
+    }
+}
@@ -0,0 +1,153 @@
+package engine.graphics;
+
+import java.util.Arrays;
+
+/**
+ * The glyph quads of a text, kept on the CPU for the HudBatch, which copies them into its streaming vertex buffer
+ * every frame. When the text changes only the quads of glyphs that changed or moved are rewritten.
+ * The arrays keep spare room for more glyphs, and are only reallocated when the text outgrows them, then to twice the size.
+ */
+public class TextMesh {
+
+    private static final float ZPOS = 0.0f;
+
+    private static final int VERTICES_PER_QUAD = 4;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final FontTexture fontTexture;
+
+    private int capacity;
+
+    private int glyphCount;
+
+    private char[] glyphs;
+
+    private float[] penPositions;
+
+    /**
+     * Pen positions of the text being set, compared against the current ones
+     */
+    private float[] layoutPositions;
+
+    private float[] positions;
+
+    private float[] textCoords;
+
+    /**
+     * The atlas page of every glyph
+     */
+    private int[] pages;
+
+    public TextMesh(FontTexture fontTexture) {
+        this.fontTexture = fontTexture;
+        glyphs = new char[0];
+        penPositions = new float[0];
+        positions = new float[0];
+        textCoords = new float[0];
+        pages = new int[0];
+        grow(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Method to change the text, updating the quads of the glyphs that changed
+     * @param text CharSequence The new text
+     */
+    public void setText(CharSequence text) {
+        int length = text.length();
+        if (length > capacity) {
+            grow(Math.max(length, capacity * 2));
+        }
+        fontTexture.layout(text, layoutPositions);
+
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (i < glyphCount && glyphs[i] == c && penPositions[i] == layoutPositions[i]) {
+                continue;
+            }
+            glyphs[i] = c;
+            penPositions[i] = layoutPositions[i];
+            writeQuad(i);
+        }
+        glyphCount = length;
+    }
+
+    private void writeQuad(int glyph) {
+        FontTexture.CharInfo charInfo = fontTexture.getCharInfo(glyphs[glyph]);
+        float left = penPositions[glyph] + charInfo.getXOffset();
+        float top = charInfo.getYOffset();
+        float right = left + charInfo.getQuadWidth();
+        float bottom = top + charInfo.getQuadHeight();
+
+        // Left Top, Left Bottom, Right Bottom and Right Top vertex
+        int p = glyph * VERTICES_PER_QUAD * 3;
+        positions[p] = left;
+        positions[p + 1] = top;
+        positions[p + 2] = ZPOS;
+        positions[p + 3] = left;
+        positions[p + 4] = bottom;
+        positions[p + 5] = ZPOS;
+        positions[p + 6] = right;
+        positions[p + 7] = bottom;
+        positions[p + 8] = ZPOS;
+        positions[p + 9] = right;
+        positions[p + 10] = top;
+        positions[p + 11] = ZPOS;
+
+        int t = glyph * VERTICES_PER_QUAD * 2;
+        textCoords[t] = charInfo.getU0();
+        textCoords[t + 1] = charInfo.getV0();
+        textCoords[t + 2] = charInfo.getU0();
+        textCoords[t + 3] = charInfo.getV1();
+        textCoords[t + 4] = charInfo.getU1();
+        textCoords[t + 5] = charInfo.getV1();
+        textCoords[t + 6] = charInfo.getU1();
+        textCoords[t + 7] = charInfo.getV0();
+        pages[glyph] = charInfo.getPage();
+    }
+
+    /**
+     * Reallocates the arrays for more glyphs, keeping the quads built so far
+     */
+    private void grow(int newCapacity) {
+        glyphs = Arrays.copyOf(glyphs, newCapacity);
+        penPositions = Arrays.copyOf(penPositions, newCapacity);
+        layoutPositions = new float[newCapacity];
+        positions = Arrays.copyOf(positions, newCapacity * VERTICES_PER_QUAD * 3);
+        textCoords = Arrays.copyOf(textCoords, newCapacity * VERTICES_PER_QUAD * 2);
+        pages = Arrays.copyOf(pages, newCapacity);
+        capacity = newCapacity;
+    }
+
+    /**
+     * @return The number of glyph quads of the current text
+     */
+    public int getGlyphCount() {
+        return glyphCount;
+    }
+
+    /**
+     * @return The flattened quad vertices, four per glyph. Only the first getGlyphCount() quads are valid
+     */
+    public float[] getPositions() {
+        return positions;
+    }
+
+    /**
+     * @return The flattened texture coordinates, four per glyph
+     */
+    public float[] getTextCoords() {
+        return textCoords;
+    }
+
+    /**
+     * @return The font atlas page of every glyph, to be bound while drawing its quad
+     */
+    public int[] getPages() {
+        return pages;
+    }
+
+    public FontTexture getFontTexture() {
+        return fontTexture;
+    }
+}
@@ -1,8 +1,5 @@
 package engine.graphics;
 
-import de.matthiasmann.twl.utils.PNGDecoder;
-import de.matthiasmann.twl.utils.PNGDecoder.Format;
-
 import java.io.InputStream;
 import java.nio.ByteBuffer;
 import static org.lwjgl.opengl.GL11.*;
@@ -16,22 +13,53 @@ public class Texture {
     
     private final int width;
     
+    /**
+     * Creates an empty RGBA texture, to be filled later with glTexSubImage2D
+     * @param width int The width of the texture
+     * @param height int The height of the texture
+     */
+    public Texture(int width, int height) {
+        this(width, height, GL_RGBA8, GL_RGBA);
+    }
+
+    /**
+     * Creates an empty texture with a given storage format, to be filled later with glTexSubImage2D
+     * @param width int The width of the texture
+     * @param height int The height of the texture
+     * @param internalFormat int The sized GL format of the storage, e.g. GL_R8 for a single channel
+     * @param format int The GL format of the pixels uploaded into it, e.g. GL_RED
+     */
+    public Texture(int width, int height, int internalFormat, int format) {
+        this.width = width;
+        this.height = height;
+
+        this.id = glGenTextures();
+        glBindTexture(GL_TEXTURE_2D, this.id);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_NEAREST);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
+        glTexImage2D(GL_TEXTURE_2D, 0, internalFormat, width, height, 0, format, GL_UNSIGNED_BYTE, (ByteBuffer) null);
+        glBindTexture(GL_TEXTURE_2D, 0);
+    }
+
+    /**
+     * Wraps a texture already created and uploaded, e.g. by the TextureCache
+     */
+    Texture(int id, int width, int height) {
+        this.id = id;
+        this.width = width;
+        this.height = height;
+    }
+
     public Texture(String fileName) throws Exception {
         this(Texture.class.getResourceAsStream(fileName));
     }
 
     public Texture(InputStream is) throws Exception {
-        // Load Texture file
-        PNGDecoder decoder = new PNGDecoder(is);
-
-        this.width = decoder.getWidth();
-        this.height = decoder.getHeight();
+        // Load texture contents into an off-heap buffer, freed as soon as it has been uploaded
+        ImageData image = ImageData.loadPNG(is);
 
-        // Load texture contents into a byte buffer
-        ByteBuffer buf = ByteBuffer.allocateDirect(
-                4 * decoder.getWidth() * decoder.getHeight());
-        decoder.decode(buf, decoder.getWidth() * 4, Format.RGBA);
-        buf.flip();
+        this.width = image.getWidth();
+        this.height = image.getHeight();
 
         // Create a new OpenGL texture 
         this.id = glGenTextures();
@@ -44,7 +72,11 @@ public class Texture {
         glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_NEAREST);
         glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
         // Upload the texture data
-        glTexImage2D(GL_TEXTURE_2D, 0, GL_RGBA, this.width, this.height, 0, GL_RGBA, GL_UNSIGNED_BYTE, buf);
+        try {
+            glTexImage2D(GL_TEXTURE_2D, 0, GL_RGBA, this.width, this.height, 0, GL_RGBA, GL_UNSIGNED_BYTE, image.getPixels());
+        } finally {
+            image.free();
+        }
         // Generate Mip Map
         glGenerateMipmap(GL_TEXTURE_2D);
     }
@@ -0,0 +1,99 @@
+package engine.graphics;
+
+import java.nio.ByteBuffer;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL12.*;
+import static org.lwjgl.opengl.GL30.*;
+
+/**
+ * A GL_TEXTURE_2D_ARRAY holding equally sized textures in its layers.
+ * Materials refer to a layer instead of a texture of their own, so meshes with different textures can be drawn
+ * with the array bound once.
+ */
+public class TextureArray {
+
+    private final int id;
+
+    private final int width;
+
+    private final int height;
+
+    private final int maxLayers;
+
+    private int layerCount;
+
+    /**
+     * Allocates the storage of the array. All layers are uninitialized until addLayer() is called
+     * @param width int The width of every layer
+     * @param height int The height of every layer
+     * @param maxLayers int The number of layers reserved
+     */
+    public TextureArray(int width, int height, int maxLayers) {
+        this.width = width;
+        this.height = height;
+        this.maxLayers = maxLayers;
+
+        id = glGenTextures();
+        glBindTexture(GL_TEXTURE_2D_ARRAY, id);
+        glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_MIN_FILTER, GL_NEAREST);
+        glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
+        // Only the base level is allocated and sampled, so the array is complete without mipmaps
+        glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_MAX_LEVEL, 0);
+        glTexImage3D(GL_TEXTURE_2D_ARRAY, 0, GL_RGBA8, width, height, maxLayers, 0, GL_RGBA, GL_UNSIGNED_BYTE,
+                (ByteBuffer) null);
+        glBindTexture(GL_TEXTURE_2D_ARRAY, 0);
+    }
+
+    /**
+     * Method to upload an image into the next free layer
+     * @param image ImageData The image, which has to have the size of the array
+     * @return int The index of the layer the image has been stored in
+     * @throws Exception If the image has a different size or the array is full
+     */
+    public int addLayer(ImageData image) throws Exception {
+        if (image.getWidth() != width || image.getHeight() != height) {
+            throw new Exception("Image size " + image.getWidth() + "x" + image.getHeight()
+                    + " does not match texture array size " + width + "x" + height);
+        }
+        if (isFull()) {
+            throw new Exception("Texture array is full, layers: " + maxLayers);
+        }
+        int layer = layerCount++;
+
+        glBindTexture(GL_TEXTURE_2D_ARRAY, id);
+        glPixelStorei(GL_UNPACK_ALIGNMENT, 1);
+        glTexSubImage3D(GL_TEXTURE_2D_ARRAY, 0, 0, 0, layer, width, height, 1, GL_RGBA, GL_UNSIGNED_BYTE,
+                image.getPixels());
+        glBindTexture(GL_TEXTURE_2D_ARRAY, 0);
+        return layer;
+    }
+
+    public boolean isFull() {
+        return layerCount >= maxLayers;
+    }
+
+    public void bind() {
+        glBindTexture(GL_TEXTURE_2D_ARRAY, id);
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getLayerCount() {
+        return layerCount;
+    }
+
+    public void cleanup() {
+        glDeleteTextures(id);
+    }
+}
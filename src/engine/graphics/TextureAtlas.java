@@ -0,0 +1,64 @@
+package engine.graphics;
+
+import java.awt.Rectangle;
+
+import static org.lwjgl.opengl.GL11.*;
+
+import org.joml.Vector4f;
+
+/**
+ * One large texture, that smaller images of any size are packed into with a SkylinePacker.
+ * Every image is addressed by a UV rectangle (offset in xy, scale in zw), which is stored in the Material.
+ */
+public class TextureAtlas {
+
+    /**
+     * Empty texels left around every image, so filtering does not bleed into the neighbours
+     */
+    private static final int PADDING = 1;
+
+    private final Texture texture;
+
+    private final SkylinePacker packer;
+
+    public TextureAtlas(int width, int height) {
+        texture = new Texture(width, height);
+        packer = new SkylinePacker(width, height);
+    }
+
+    /**
+     * Method to pack an image into the atlas
+     * @param image ImageData The image to upload
+     * @return Vector4f The UV rectangle of the image: xy is the offset and zw the scale of the texture coordinates, or null if it does not fit
+     */
+    public Vector4f add(ImageData image) {
+        Rectangle rect = packer.insert(image.getWidth() + 2 * PADDING, image.getHeight() + 2 * PADDING);
+        if (rect == null) {
+            return null;
+        }
+        int x = rect.x + PADDING;
+        int y = rect.y + PADDING;
+
+        texture.bind();
+        glPixelStorei(GL_UNPACK_ALIGNMENT, 1);
+        glTexSubImage2D(GL_TEXTURE_2D, 0, x, y, image.getWidth(), image.getHeight(), GL_RGBA, GL_UNSIGNED_BYTE,
+                image.getPixels());
+        glBindTexture(GL_TEXTURE_2D, 0);
+
+        float atlasWidth = texture.getWidth();
+        float atlasHeight = texture.getHeight();
+        return new Vector4f(x / atlasWidth, y / atlasHeight, image.getWidth() / atlasWidth, image.getHeight() / atlasHeight);
+    }
+
+    public Texture getTexture() {
+        return texture;
+    }
+
+    public float getOccupancy() {
+        return packer.getOccupancy();
+    }
+
+    public void cleanup() {
+        texture.cleanup();
+    }
+}
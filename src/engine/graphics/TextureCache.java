@@ -0,0 +1,542 @@
+package engine.graphics;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL12.*;
+import static org.lwjgl.opengl.GL13.*;
+import static org.lwjgl.opengl.EXTTextureCompressionS3TC.*;
+
+import org.lwjgl.opengl.GL;
+import org.lwjgl.system.MemoryUtil;
+
+/**
+ * Converts PNG textures once into a cached container holding every mip level precomputed, optionally block compressed,
+ * and loads textures from that container afterwards.
+ * Loading memory-maps the container and uploads the levels straight from the mapping, so no PNG decoding
+ * and no runtime mipmap generation happen after the first run.
+ * The container is a small KTX-like file (little endian):
+ * magic, version, CRC32 of the source PNG, GL internal format, compressed flag, width, height, level count,
+ * followed by (width, height, byte size, data) for every level.
+ * Cube maps are built from six face textures, or cut out of a 3x2 atlas laid out like the UVs of skybox.obj, in which
+ * case every face gets a container of its own, validated against the CRC of the atlas.
+ * The cache can also be built offline with the main method, without a GL context.
+ */
+public class TextureCache {
+
+    private static final int MAGIC = 0x58455445; // "ETEX"
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 8 * 4;
+
+    private static final String EXTENSION = ".etex";
+
+    private static final String[] FACE_NAMES = { "px", "nx", "py", "ny", "pz", "nz" };
+
+    /**
+     * Where the faces of a cube map lie in a 3x2 atlas: column, row and the quarter turns from the face to the cell,
+     * in the order of GL_TEXTURE_CUBE_MAP_POSITIVE_X + i
+     */
+    private static final int[][] ATLAS_FACES = {
+        { 2, 1, 2 }, { 0, 1, 2 }, { 1, 0, 1 }, { 2, 0, 0 }, { 0, 0, 2 }, { 1, 1, 2 }
+    };
+
+    /**
+     * A container mapped into memory. The level buffers are slices of the mapping and stay valid as long as they are referenced
+     */
+    public static class Container {
+
+        private final int internalFormat;
+
+        private final boolean compressed;
+
+        private final int width;
+
+        private final int height;
+
+        private final int[] levelWidths;
+
+        private final int[] levelHeights;
+
+        private final ByteBuffer[] levelData;
+
+        private Container(int internalFormat, boolean compressed, int width, int height, int levels) {
+            this.internalFormat = internalFormat;
+            this.compressed = compressed;
+            this.width = width;
+            this.height = height;
+            levelWidths = new int[levels];
+            levelHeights = new int[levels];
+            levelData = new ByteBuffer[levels];
+        }
+
+        public int getInternalFormat() {
+            return internalFormat;
+        }
+
+        public boolean isCompressed() {
+            return compressed;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        public int getLevelCount() {
+            return levelData.length;
+        }
+
+        public int getLevelWidth(int level) {
+            return levelWidths[level];
+        }
+
+        public int getLevelHeight(int level) {
+            return levelHeights[level];
+        }
+
+        public ByteBuffer getLevelData(int level) {
+            return levelData[level];
+        }
+    }
+
+    private final Path cacheDir;
+
+    private final boolean compress;
+
+    /**
+     * @param cacheDir Path The directory the containers are written to, it is created when needed
+     * @param compress boolean True to store BC1/BC3 blocks when the driver supports S3TC, false to store RGBA8 levels
+     */
+    public TextureCache(Path cacheDir, boolean compress) {
+        this.cacheDir = cacheDir;
+        this.compress = compress;
+    }
+
+    /**
+     * Method to load a texture through the cache. The container is (re)built if it is missing or was written from a PNG
+     * with a different CRC32
+     * @param fileName String The resource path of the PNG texture
+     * @return Texture The uploaded texture with all mip levels
+     * @throws Exception If the PNG or the container cannot be read
+     */
+    public Texture getTexture(String fileName) throws Exception {
+        Path container = build(fileName, useCompression());
+        return load(container);
+    }
+
+    /**
+     * Method to check whether containers should be block compressed. Has to be called with a GL context current
+     * @return True if compression is enabled and the driver supports S3TC
+     */
+    public boolean useCompression() {
+        return compress && GL.getCapabilities().GL_EXT_texture_compression_s3tc;
+    }
+
+    /**
+     * Method to make sure an up to date container exists for a texture. Needs no GL context
+     * @param fileName String The resource path of the PNG texture
+     * @param useCompression boolean True to store BC1/BC3 blocks, false to store RGBA8 levels
+     * @return Path The path of the container
+     * @throws Exception If the PNG cannot be read or the container cannot be written
+     */
+    public Path build(String fileName, boolean useCompression) throws Exception {
+        byte[] source = readResource(fileName);
+        CRC32 crc = new CRC32();
+        crc.update(source);
+        int sourceCrc = (int) crc.getValue();
+
+        Path container = cacheDir.resolve(cacheName(fileName, useCompression));
+        if (isValid(container, sourceCrc)) {
+            return container;
+        }
+
+        ImageData image = ImageData.loadPNG(new ByteArrayInputStream(source));
+        try {
+            write(container, image, sourceCrc, useCompression);
+        } finally {
+            image.free();
+        }
+        return container;
+    }
+
+    /**
+     * Method to load a cube map through the cache
+     * @param faceFiles String[] The resource paths of the six square PNG faces, in the order of GL_TEXTURE_CUBE_MAP_POSITIVE_X + i
+     * @return CubeMap The uploaded cube map with all mip levels
+     * @throws Exception If a PNG or a container cannot be read
+     */
+    public CubeMap getCubeMap(String[] faceFiles) throws Exception {
+        if (faceFiles.length != FACE_NAMES.length) {
+            throw new Exception("A cube map needs " + FACE_NAMES.length + " faces, got " + faceFiles.length);
+        }
+        boolean useCompression = useCompression();
+        Path[] containers = new Path[faceFiles.length];
+        for (int i = 0; i < faceFiles.length; i++) {
+            containers[i] = build(faceFiles[i], useCompression);
+        }
+        return loadCubeMap(containers);
+    }
+
+    /**
+     * Method to load a cube map stored as a 3x2 atlas through the cache
+     * @param fileName String The resource path of the PNG atlas
+     * @return CubeMap The uploaded cube map with all mip levels
+     * @throws Exception If the PNG or a container cannot be read
+     */
+    public CubeMap getAtlasCubeMap(String fileName) throws Exception {
+        return loadCubeMap(buildCubeFaces(fileName, useCompression()));
+    }
+
+    /**
+     * Method to make sure up to date containers exist for the faces of a cube map stored as a 3x2 atlas. Needs no GL context
+     * @param fileName String The resource path of the PNG atlas
+     * @param useCompression boolean True to store BC1/BC3 blocks, false to store RGBA8 levels
+     * @return Path[] The paths of the face containers, in the order of GL_TEXTURE_CUBE_MAP_POSITIVE_X + i
+     * @throws Exception If the PNG cannot be read, is not a 3x2 atlas of square cells, or a container cannot be written
+     */
+    public Path[] buildCubeFaces(String fileName, boolean useCompression) throws Exception {
+        byte[] source = readResource(fileName);
+        CRC32 crc = new CRC32();
+        crc.update(source);
+        int sourceCrc = (int) crc.getValue();
+
+        Path[] containers = new Path[FACE_NAMES.length];
+        boolean valid = true;
+        for (int i = 0; i < containers.length; i++) {
+            containers[i] = cacheDir.resolve(cacheName(fileName + "_" + FACE_NAMES[i], useCompression));
+            valid &= isValid(containers[i], sourceCrc);
+        }
+        if (valid) {
+            return containers;
+        }
+
+        ImageData atlas = ImageData.loadPNG(new ByteArrayInputStream(source));
+        try {
+            int size = atlas.getWidth() / 3;
+            if (atlas.getWidth() != size * 3 || atlas.getHeight() != size * 2) {
+                throw new Exception("Not a 3x2 cube map atlas: " + fileName);
+            }
+            for (int i = 0; i < containers.length; i++) {
+                ImageData face = cutFace(atlas, size, ATLAS_FACES[i]);
+                try {
+                    write(containers[i], face, sourceCrc, useCompression);
+                } finally {
+                    face.free();
+                }
+            }
+        } finally {
+            atlas.free();
+        }
+        return containers;
+    }
+
+    /**
+     * Copies one cell of an atlas into a new image, turned into the orientation of its cube map face
+     */
+    private static ImageData cutFace(ImageData atlas, int size, int[] layout) {
+        ByteBuffer src = atlas.getPixels();
+        ByteBuffer dst = MemoryUtil.memAlloc(size * size * 4);
+        int originX = layout[0] * size;
+        int originY = layout[1] * size;
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                int cellX = x;
+                int cellY = y;
+                for (int turn = 0; turn < layout[2]; turn++) {
+                    int t = cellX;
+                    cellX = cellY;
+                    cellY = size - 1 - t;
+                }
+                int pixel = src.getInt(((originY + cellY) * atlas.getWidth() + originX + cellX) * 4);
+                dst.putInt((y * size + x) * 4, pixel);
+            }
+        }
+        return new ImageData(size, size, dst);
+    }
+
+    private static String cacheName(String fileName, boolean useCompression) {
+        String name = fileName.replaceAll("^/+", "").replaceAll("[^A-Za-z0-9._-]", "_");
+        return name + (useCompression ? ".bc" : ".rgba") + EXTENSION;
+    }
+
+    private static byte[] readResource(String fileName) throws Exception {
+        try (InputStream in = TextureCache.class.getResourceAsStream(fileName)) {
+            if (in == null) {
+                throw new Exception("Could not find texture: " + fileName);
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] chunk = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(chunk)) != -1) {
+                out.write(chunk, 0, read);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    private static boolean isValid(Path container, int sourceCrc) throws IOException {
+        if (!Files.isRegularFile(container) || Files.size(container) < HEADER_SIZE) {
+            return false;
+        }
+        try (FileChannel channel = FileChannel.open(container, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            channel.read(header, 0);
+            return header.getInt(0) == MAGIC && header.getInt(4) == VERSION && header.getInt(8) == sourceCrc;
+        }
+    }
+
+    private void write(Path container, ImageData image, int sourceCrc, boolean useCompression) throws IOException {
+        boolean withAlpha = !BlockCompressor.isOpaque(image.getPixels());
+        int internalFormat;
+        int blockSize;
+        if (useCompression) {
+            internalFormat = withAlpha ? GL_COMPRESSED_RGBA_S3TC_DXT5_EXT : GL_COMPRESSED_RGB_S3TC_DXT1_EXT;
+            blockSize = withAlpha ? BlockCompressor.BC3_BLOCK_SIZE : BlockCompressor.BC1_BLOCK_SIZE;
+        } else {
+            internalFormat = GL_RGBA8;
+            blockSize = 0;
+        }
+
+        int levels = mipLevelCount(image.getWidth(), image.getHeight());
+        long fileSize = HEADER_SIZE;
+        int w = image.getWidth();
+        int h = image.getHeight();
+        for (int level = 0; level < levels; level++) {
+            fileSize += 12 + levelSize(w, h, blockSize);
+            w = Math.max(1, w / 2);
+            h = Math.max(1, h / 2);
+        }
+
+        Files.createDirectories(cacheDir);
+        // Write to a temporary file first, so an interrupted build never leaves a broken container behind
+        Path tmp = Files.createTempFile(cacheDir, "texture", ".tmp");
+        ByteBuffer out = MemoryUtil.memAlloc((int) fileSize).order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer level = image.getPixels();
+        boolean ownsLevel = false;
+        try {
+            out.putInt(MAGIC).putInt(VERSION).putInt(sourceCrc).putInt(internalFormat)
+                    .putInt(useCompression ? 1 : 0).putInt(image.getWidth()).putInt(image.getHeight()).putInt(levels);
+
+            w = image.getWidth();
+            h = image.getHeight();
+            for (int i = 0; i < levels; i++) {
+                out.putInt(w).putInt(h).putInt(levelSize(w, h, blockSize));
+                if (useCompression) {
+                    BlockCompressor.compress(level, w, h, withAlpha, out);
+                } else {
+                    level.position(0);
+                    out.put(level);
+                    level.position(0);
+                }
+                if (i + 1 < levels) {
+                    ByteBuffer next = downsample(level, w, h);
+                    if (ownsLevel) {
+                        MemoryUtil.memFree(level);
+                    }
+                    level = next;
+                    ownsLevel = true;
+                    w = Math.max(1, w / 2);
+                    h = Math.max(1, h / 2);
+                }
+            }
+            out.flip();
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (out.hasRemaining()) {
+                    channel.write(out);
+                }
+            }
+            Files.move(tmp, container, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            if (ownsLevel) {
+                MemoryUtil.memFree(level);
+            }
+            MemoryUtil.memFree(out);
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private static int mipLevelCount(int width, int height) {
+        int levels = 1;
+        while (width > 1 || height > 1) {
+            width = Math.max(1, width / 2);
+            height = Math.max(1, height / 2);
+            levels++;
+        }
+        return levels;
+    }
+
+    private static int levelSize(int width, int height, int blockSize) {
+        return blockSize > 0 ? BlockCompressor.compressedSize(width, height, blockSize) : width * height * 4;
+    }
+
+    /**
+     * Halves an RGBA8 image with a 2x2 box filter
+     * @return ByteBuffer A newly allocated buffer, to be freed with MemoryUtil.memFree
+     */
+    private static ByteBuffer downsample(ByteBuffer src, int width, int height) {
+        int dstWidth = Math.max(1, width / 2);
+        int dstHeight = Math.max(1, height / 2);
+        ByteBuffer dst = MemoryUtil.memAlloc(dstWidth * dstHeight * 4);
+        for (int y = 0; y < dstHeight; y++) {
+            int y0 = Math.min(y * 2, height - 1);
+            int y1 = Math.min(y * 2 + 1, height - 1);
+            for (int x = 0; x < dstWidth; x++) {
+                int x0 = Math.min(x * 2, width - 1);
+                int x1 = Math.min(x * 2 + 1, width - 1);
+                for (int c = 0; c < 4; c++) {
+                    int sum = (src.get((y0 * width + x0) * 4 + c) & 0xFF)
+                            + (src.get((y0 * width + x1) * 4 + c) & 0xFF)
+                            + (src.get((y1 * width + x0) * 4 + c) & 0xFF)
+                            + (src.get((y1 * width + x1) * 4 + c) & 0xFF);
+                    dst.put((y * dstWidth + x) * 4 + c, (byte) ((sum + 2) / 4));
+                }
+            }
+        }
+        return dst;
+    }
+
+    /**
+     * Method to map a container into memory. Needs no GL context
+     * @param container Path The container written by build()
+     * @return Container The header and the level data of the container
+     * @throws IOException If the file cannot be mapped or is not a container
+     */
+    public static Container map(Path container) throws IOException {
+        try (FileChannel channel = FileChannel.open(container, StandardOpenOption.READ)) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            mapped.order(ByteOrder.LITTLE_ENDIAN);
+            if (mapped.getInt(0) != MAGIC || mapped.getInt(4) != VERSION) {
+                throw new IOException("Not a texture cache container: " + container);
+            }
+            Container result = new Container(mapped.getInt(12), mapped.getInt(16) != 0, mapped.getInt(20),
+                    mapped.getInt(24), mapped.getInt(28));
+
+            int offset = HEADER_SIZE;
+            for (int level = 0; level < result.getLevelCount(); level++) {
+                result.levelWidths[level] = mapped.getInt(offset);
+                result.levelHeights[level] = mapped.getInt(offset + 4);
+                int size = mapped.getInt(offset + 8);
+                offset += 12;
+
+                ByteBuffer data = mapped.duplicate();
+                data.position(offset).limit(offset + size);
+                result.levelData[level] = data.slice();
+                offset += size;
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Method to upload a container, mapped into memory, as a new texture
+     * @param container Path The container written by build()
+     * @return Texture The uploaded texture
+     * @throws IOException If the container cannot be mapped
+     */
+    public static Texture load(Path container) throws IOException {
+        Container mapped = map(container);
+        int levels = mapped.getLevelCount();
+
+        int id = glGenTextures();
+        glBindTexture(GL_TEXTURE_2D, id);
+        glPixelStorei(GL_UNPACK_ALIGNMENT, 1);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_NEAREST);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAX_LEVEL, levels - 1);
+
+        for (int level = 0; level < levels; level++) {
+            if (mapped.isCompressed()) {
+                glCompressedTexImage2D(GL_TEXTURE_2D, level, mapped.getInternalFormat(), mapped.getLevelWidth(level),
+                        mapped.getLevelHeight(level), 0, mapped.getLevelData(level));
+            } else {
+                glTexImage2D(GL_TEXTURE_2D, level, mapped.getInternalFormat(), mapped.getLevelWidth(level),
+                        mapped.getLevelHeight(level), 0, GL_RGBA, GL_UNSIGNED_BYTE, mapped.getLevelData(level));
+            }
+        }
+        glBindTexture(GL_TEXTURE_2D, 0);
+        return new Texture(id, mapped.getWidth(), mapped.getHeight());
+    }
+
+    /**
+     * Method to upload the containers of the six faces, mapped into memory, as a new cube map
+     * @param containers Path[] The square face containers, in the order of GL_TEXTURE_CUBE_MAP_POSITIVE_X + i
+     * @return CubeMap The uploaded cube map
+     * @throws IOException If a container cannot be mapped, or the faces differ in size
+     */
+    public static CubeMap loadCubeMap(Path[] containers) throws IOException {
+        Container[] faces = new Container[containers.length];
+        for (int i = 0; i < containers.length; i++) {
+            faces[i] = map(containers[i]);
+            if (faces[i].getWidth() != faces[i].getHeight() || faces[i].getWidth() != faces[0].getWidth()
+                    || faces[i].getInternalFormat() != faces[0].getInternalFormat()) {
+                throw new IOException("Cube map faces have to be square and of the same size and format: " + containers[i]);
+            }
+        }
+        int levels = faces[0].getLevelCount();
+
+        int id = glGenTextures();
+        glBindTexture(GL_TEXTURE_CUBE_MAP, id);
+        glPixelStorei(GL_UNPACK_ALIGNMENT, 1);
+        // Filtered, the faces are seen magnified and at grazing angles
+        glTexParameteri(GL_TEXTURE_CUBE_MAP, GL_TEXTURE_MIN_FILTER, GL_LINEAR_MIPMAP_LINEAR);
+        glTexParameteri(GL_TEXTURE_CUBE_MAP, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
+        glTexParameteri(GL_TEXTURE_CUBE_MAP, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
+        glTexParameteri(GL_TEXTURE_CUBE_MAP, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
+        glTexParameteri(GL_TEXTURE_CUBE_MAP, GL_TEXTURE_WRAP_R, GL_CLAMP_TO_EDGE);
+        glTexParameteri(GL_TEXTURE_CUBE_MAP, GL_TEXTURE_MAX_LEVEL, levels - 1);
+
+        for (int i = 0; i < faces.length; i++) {
+            Container face = faces[i];
+            int target = GL_TEXTURE_CUBE_MAP_POSITIVE_X + i;
+            for (int level = 0; level < levels; level++) {
+                if (face.isCompressed()) {
+                    glCompressedTexImage2D(target, level, face.getInternalFormat(), face.getLevelWidth(level),
+                            face.getLevelHeight(level), 0, face.getLevelData(level));
+                } else {
+                    glTexImage2D(target, level, face.getInternalFormat(), face.getLevelWidth(level),
+                            face.getLevelHeight(level), 0, GL_RGBA, GL_UNSIGNED_BYTE, face.getLevelData(level));
+                }
+            }
+        }
+        glBindTexture(GL_TEXTURE_CUBE_MAP, 0);
+        return new CubeMap(id, faces[0].getWidth());
+    }
+
+    /**
+     * Builds the cache offline. Usage: TextureCache cacheDir [--rgba] texture...
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: TextureCache cacheDir [--rgba] texture...");
+            System.exit(-1);
+        }
+        boolean useCompression = true;
+        TextureCache cache = new TextureCache(Paths.get(args[0]), true);
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("--rgba")) {
+                useCompression = false;
+                continue;
+            }
+            Path container = cache.build(args[i], useCompression);
+            System.out.println(args[i] + " -> " + container + " (" + Files.size(container) + " bytes)");
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package engine.graphics;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.joml.Vector4f;
+
+/**
+ * Owns the texture arrays and atlases textures are packed into, and hands out materials referring to them.
+ * Textures of the same size go into the layers of a shared TextureArray, a new array is opened when one fills up.
+ * Textures of any size can instead be packed into atlas pages.
+ * Materials created by the pool share their texture objects, so the pool has to be cleaned up instead of the textures.
+ */
+public class TexturePool {
+
+    private final int layersPerArray;
+
+    private final int atlasSize;
+
+    private final Map<Long, TextureArray> openArrays;
+
+    private final List<TextureArray> arrays;
+
+    private final List<TextureAtlas> atlases;
+
+    /**
+     * @param layersPerArray int The number of layers reserved for every texture array
+     * @param atlasSize int The width and height of every atlas page
+     */
+    public TexturePool(int layersPerArray, int atlasSize) {
+        this.layersPerArray = layersPerArray;
+        this.atlasSize = atlasSize;
+        openArrays = new HashMap<>();
+        arrays = new ArrayList<>();
+        atlases = new ArrayList<>();
+    }
+
+    /**
+     * Method to load an image into a layer of a texture array of the same size
+     * @param fileName String The resource path of the PNG image
+     * @param reflectance float The reflectance of the material
+     * @return Material A material referring to the array and layer
+     * @throws Exception If the image cannot be loaded
+     */
+    public Material createArrayMaterial(String fileName, float reflectance) throws Exception {
+        ImageData image = ImageData.loadPNG(fileName);
+        try {
+            long key = ((long) image.getWidth() << 32) | image.getHeight();
+            TextureArray array = openArrays.get(key);
+            if (array == null || array.isFull()) {
+                array = new TextureArray(image.getWidth(), image.getHeight(), layersPerArray);
+                openArrays.put(key, array);
+                arrays.add(array);
+            }
+            int layer = array.addLayer(image);
+            return new Material(array, layer, reflectance);
+        } finally {
+            image.free();
+        }
+    }
+
+    /**
+     * Method to pack an image into an atlas page
+     * @param fileName String The resource path of the PNG image
+     * @param reflectance float The reflectance of the material
+     * @return Material A material referring to the atlas texture and the region of the image
+     * @throws Exception If the image cannot be loaded or is larger than an atlas page
+     */
+    public Material createAtlasMaterial(String fileName, float reflectance) throws Exception {
+        ImageData image = ImageData.loadPNG(fileName);
+        try {
+            // Try the newest page first, older pages rarely have room left
+            for (int i = atlases.size() - 1; i >= 0; i--) {
+                TextureAtlas atlas = atlases.get(i);
+                Vector4f uvRect = atlas.add(image);
+                if (uvRect != null) {
+                    return new Material(atlas.getTexture(), uvRect, reflectance);
+                }
+            }
+            TextureAtlas atlas = new TextureAtlas(atlasSize, atlasSize);
+            atlases.add(atlas);
+            Vector4f uvRect = atlas.add(image);
+            if (uvRect == null) {
+                throw new Exception("Image " + fileName + " does not fit into an atlas page of size " + atlasSize);
+            }
+            return new Material(atlas.getTexture(), uvRect, reflectance);
+        } finally {
+            image.free();
+        }
+    }
+
+    public void cleanup() {
+        for (TextureArray array : arrays) {
+            array.cleanup();
+        }
+        for (TextureAtlas atlas : atlases) {
+            atlas.cleanup();
+        }
+        arrays.clear();
+        atlases.clear();
+        openArrays.clear();
+    }
+}
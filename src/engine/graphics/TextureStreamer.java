@@ -0,0 +1,338 @@
+package engine.graphics;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL12.*;
+import static org.lwjgl.opengl.GL13.*;
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL21.*;
+import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL32.*;
+
+import org.lwjgl.system.MemoryUtil;
+
+/**
+ * Streams textures into video memory without blocking the frame.
+ * Worker threads decode the PNG and build its mip chain through the TextureCache, then map the container.
+ * Every frame update() copies a budgeted number of bytes through a ring of pixel buffer objects with glTexSubImage2D,
+ * coarsest levels first, so a blurry version of every texture shows up almost immediately.
+ * Finer levels are only streamed in when a texture is large enough on screen to need them, and when the resident
+ * levels exceed the video memory budget, the finest levels of textures no longer needing them are dropped.
+ * All public methods have to be called from the thread owning the GL context.
+ */
+public class TextureStreamer {
+
+    private static final int PBO_COUNT = 3;
+
+    private final TextureCache cache;
+
+    private final boolean useCompression;
+
+    private final ExecutorService workers;
+
+    private final List<StreamedTexture> textures;
+
+    /**
+     * Textures whose level data could not be prepared, only kept to delete them in cleanup()
+     */
+    private final List<StreamedTexture> failedTextures;
+
+    private final int[] pboIds;
+
+    private final long[] pboFences;
+
+    private final int pboSize;
+
+    private final long uploadBudget;
+
+    private final long memoryBudget;
+
+    private int nextPbo;
+
+    private long residentBytes;
+
+    private long uploadedBytes;
+
+    /**
+     * @param cache TextureCache The cache building the mip chains and containers
+     * @param workerCount int The number of threads decoding textures
+     * @param uploadBudget long The maximum number of bytes uploaded per frame
+     * @param memoryBudget long The number of bytes the resident levels of all textures should stay within
+     */
+    public TextureStreamer(TextureCache cache, int workerCount, long uploadBudget, long memoryBudget) {
+        this.cache = cache;
+        this.useCompression = cache.useCompression();
+        this.uploadBudget = uploadBudget;
+        this.memoryBudget = memoryBudget;
+        this.textures = new ArrayList<>();
+        this.failedTextures = new ArrayList<>();
+        this.workers = Executors.newFixedThreadPool(workerCount, (Runnable r) -> {
+            Thread thread = new Thread(r, "TEXTURE_STREAMER_THREAD");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        // Every slice has to fit into one PBO, so one PBO has to hold the per-frame budget
+        pboSize = (int) Math.max(64 * 1024, Math.min(uploadBudget, Integer.MAX_VALUE));
+        pboIds = new int[PBO_COUNT];
+        pboFences = new long[PBO_COUNT];
+        for (int i = 0; i < PBO_COUNT; i++) {
+            pboIds[i] = glGenBuffers();
+            glBindBuffer(GL_PIXEL_UNPACK_BUFFER, pboIds[i]);
+            glBufferData(GL_PIXEL_UNPACK_BUFFER, pboSize, GL_STREAM_DRAW);
+        }
+        glBindBuffer(GL_PIXEL_UNPACK_BUFFER, 0);
+    }
+
+    /**
+     * Method to start streaming a texture. Returns immediately, the texture fills in over the next frames.
+     * If the PNG cannot be read or cached, StreamedTexture.getError() returns the exception, the texture is no longer
+     * streamed and stays black
+     * @param fileName String The resource path of the PNG texture
+     * @return StreamedTexture The texture, usable in a Material straight away
+     */
+    public StreamedTexture load(String fileName) {
+        StreamedTexture texture = new StreamedTexture(glGenTextures(), fileName);
+        textures.add(texture);
+        workers.submit(() -> {
+            try {
+                texture.setContainer(TextureCache.map(cache.build(fileName, useCompression)));
+            } catch (Exception excp) {
+                texture.setError(excp);
+            }
+        });
+        return texture;
+    }
+
+    /**
+     * Method to mark the start of a frame. The screen size requests made during the previous frame become the targets
+     */
+    public void beginFrame() {
+        for (StreamedTexture texture : textures) {
+            if (texture.isLoaded()) {
+                texture.beginFrame();
+            }
+        }
+    }
+
+    /**
+     * Method to upload the next slices of pending levels and to evict levels over the memory budget. Called once per frame
+     */
+    public void update() {
+        for (int i = textures.size() - 1; i >= 0; i--) {
+            if (textures.get(i).getError() != null) {
+                failedTextures.add(textures.remove(i));
+            }
+        }
+        evict();
+
+        uploadedBytes = 0;
+        glPixelStorei(GL_UNPACK_ALIGNMENT, 1);
+        while (uploadedBytes < uploadBudget) {
+            StreamedTexture texture = nextUpload();
+            if (texture == null || !uploadSlice(texture)) {
+                break;
+            }
+        }
+        glBindBuffer(GL_PIXEL_UNPACK_BUFFER, 0);
+        glBindTexture(GL_TEXTURE_2D, 0);
+    }
+
+    /**
+     * Picks the texture missing the coarsest level, so every texture gets a low resolution version first.
+     * Levels finer than the coarsest one are only started if they fit into the memory budget
+     */
+    private StreamedTexture nextUpload() {
+        StreamedTexture best = null;
+        int bestLevel = -1;
+        for (StreamedTexture texture : textures) {
+            if (!texture.isLoaded()) {
+                continue;
+            }
+            int level = texture.getUploadLevel();
+            if (level < 0) {
+                level = texture.getResidentLevel() - 1;
+                if (level < texture.getTargetLevel()) {
+                    continue;
+                }
+                long levelBytes = texture.getContainer().getLevelData(level).remaining();
+                if (level < texture.getLevelCount() - 1 && residentBytes + levelBytes > memoryBudget) {
+                    continue;
+                }
+            }
+            if (level > bestLevel) {
+                best = texture;
+                bestLevel = level;
+            }
+        }
+        return best;
+    }
+
+    private boolean uploadSlice(StreamedTexture texture) {
+        TextureCache.Container container = texture.getContainer();
+        int level = texture.getUploadLevel();
+        if (level < 0) {
+            level = texture.getResidentLevel() - 1;
+            long levelBytes = container.getLevelData(level).remaining();
+            allocateLevel(texture, level);
+            texture.setUploadLevel(level);
+            texture.addResidentBytes(levelBytes);
+            residentBytes += levelBytes;
+        }
+
+        int pbo = nextPbo;
+        if (pboFences[pbo] != 0) {
+            int status = glClientWaitSync(pboFences[pbo], 0, 0);
+            if (status == GL_TIMEOUT_EXPIRED) {
+                // The GPU still reads from the oldest PBO, try again next frame
+                return false;
+            }
+            glDeleteSync(pboFences[pbo]);
+            pboFences[pbo] = 0;
+        }
+
+        int width = container.getLevelWidth(level);
+        int height = container.getLevelHeight(level);
+        ByteBuffer data = container.getLevelData(level);
+        // Compressed levels are copied in rows of 4x4 blocks
+        int rowGroup = container.isCompressed() ? 4 : 1;
+        int groups = (height + rowGroup - 1) / rowGroup;
+        int groupBytes = data.remaining() / groups;
+        int firstGroup = texture.getUploadedRows() / rowGroup;
+        int groupCount = Math.max(1, Math.min(groups - firstGroup, pboSize / groupBytes));
+        int sliceBytes = groupCount * groupBytes;
+        int yOffset = firstGroup * rowGroup;
+        int rows = Math.min(groupCount * rowGroup, height - yOffset);
+
+        glBindBuffer(GL_PIXEL_UNPACK_BUFFER, pboIds[pbo]);
+        // Orphan the old storage, then copy the slice from the mapped container into the PBO
+        glBufferData(GL_PIXEL_UNPACK_BUFFER, Math.max(pboSize, sliceBytes), GL_STREAM_DRAW);
+        ByteBuffer mapped = glMapBufferRange(GL_PIXEL_UNPACK_BUFFER, 0, sliceBytes,
+                GL_MAP_WRITE_BIT | GL_MAP_INVALIDATE_BUFFER_BIT, null);
+        if (mapped == null) {
+            return false;
+        }
+        MemoryUtil.memCopy(MemoryUtil.memAddress(data) + (long) firstGroup * groupBytes, MemoryUtil.memAddress(mapped),
+                sliceBytes);
+        glUnmapBuffer(GL_PIXEL_UNPACK_BUFFER);
+
+        texture.bind();
+        if (container.isCompressed()) {
+            glCompressedTexSubImage2D(GL_TEXTURE_2D, level, 0, yOffset, width, rows, container.getInternalFormat(),
+                    sliceBytes, 0);
+        } else {
+            glTexSubImage2D(GL_TEXTURE_2D, level, 0, yOffset, width, rows, GL_RGBA, GL_UNSIGNED_BYTE, 0);
+        }
+        pboFences[pbo] = glFenceSync(GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+        nextPbo = (nextPbo + 1) % PBO_COUNT;
+
+        uploadedBytes += sliceBytes;
+        texture.addUploadedRows(rows);
+        if (yOffset + rows >= height) {
+            // Level complete, let the sampler use it
+            texture.setUploadLevel(-1);
+            texture.setResidentLevel(level);
+            glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_BASE_LEVEL, level);
+        }
+        return true;
+    }
+
+    private void allocateLevel(StreamedTexture texture, int level) {
+        TextureCache.Container container = texture.getContainer();
+        int levels = container.getLevelCount();
+        int width = container.getLevelWidth(level);
+        int height = container.getLevelHeight(level);
+
+        glBindBuffer(GL_PIXEL_UNPACK_BUFFER, 0);
+        texture.bind();
+        if (level == levels - 1) {
+            // First level of this texture, set up the sampling state
+            glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_NEAREST);
+            glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
+            glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_BASE_LEVEL, levels - 1);
+            glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAX_LEVEL, levels - 1);
+        }
+        if (container.isCompressed()) {
+            glCompressedTexImage2D(GL_TEXTURE_2D, level, container.getInternalFormat(), width, height, 0,
+                    container.getLevelData(level).remaining(), 0);
+        } else {
+            glTexImage2D(GL_TEXTURE_2D, level, container.getInternalFormat(), width, height, 0, GL_RGBA,
+                    GL_UNSIGNED_BYTE, 0);
+        }
+    }
+
+    /**
+     * Drops the finest resident level of textures that need less detail than they have, until the budget is met
+     */
+    private void evict() {
+        while (residentBytes > memoryBudget) {
+            StreamedTexture victim = null;
+            int largestSurplus = 0;
+            for (StreamedTexture texture : textures) {
+                if (!texture.isLoaded() || texture.getUploadLevel() >= 0) {
+                    continue;
+                }
+                int surplus = texture.getTargetLevel() - texture.getResidentLevel();
+                if (surplus > largestSurplus) {
+                    victim = texture;
+                    largestSurplus = surplus;
+                }
+            }
+            if (victim == null) {
+                return;
+            }
+            int level = victim.getResidentLevel();
+            long levelBytes = victim.getContainer().getLevelData(level).remaining();
+            victim.bind();
+            glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_BASE_LEVEL, level + 1);
+            // Respecifying the level with no size releases its storage
+            glTexImage2D(GL_TEXTURE_2D, level, GL_RGBA8, 0, 0, 0, GL_RGBA, GL_UNSIGNED_BYTE, 0);
+            victim.setResidentLevel(level + 1);
+            victim.addResidentBytes(-levelBytes);
+            residentBytes -= levelBytes;
+        }
+        glBindTexture(GL_TEXTURE_2D, 0);
+    }
+
+    /**
+     * @return The number of bytes of all resident levels
+     */
+    public long getResidentBytes() {
+        return residentBytes;
+    }
+
+    /**
+     * @return The number of bytes uploaded during the last update()
+     */
+    public long getUploadedBytes() {
+        return uploadedBytes;
+    }
+
+    public void cleanup() {
+        workers.shutdownNow();
+        try {
+            workers.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException ie) {
+        }
+        for (int i = 0; i < PBO_COUNT; i++) {
+            if (pboFences[i] != 0) {
+                glDeleteSync(pboFences[i]);
+            }
+            glDeleteBuffers(pboIds[i]);
+        }
+        for (StreamedTexture texture : textures) {
+            texture.cleanup();
+        }
+        textures.clear();
+        for (StreamedTexture texture : failedTextures) {
+            texture.cleanup();
+        }
+        failedTextures.clear();
+    }
+}
@@ -10,6 +10,10 @@ public class SceneLight {
 	    
 	    private List<PointLight> pointLights;
 	    
+	    private final List<PointLight> worldPointLights;
+	    
+	    private final List<PointLight> allPointLights;
+	    
 	    private List<SpotLight> spotLights;
 	    
 	    private DirectionalLight directionalLight;
@@ -17,6 +21,8 @@ public class SceneLight {
 	    public SceneLight() {
 	    	ambientLight = new Vector3f(0, 0, 0);
 	    	pointLights = new ArrayList<>();
+	    	worldPointLights = new ArrayList<>();
+	    	allPointLights = new ArrayList<>();
 	    	spotLights = new ArrayList<>();
 	    	directionalLight = new DirectionalLight(new Vector3f(0, 0, 0), new Vector3f(0, 0, 0), 0.0f);
 	    }
@@ -29,8 +35,26 @@ public class SceneLight {
 	        this.ambientLight = ambientLight;
 	    }
 
+	    /**
+	     * @return List<PointLight> The lights added to the scene light followed by the lights of the world
+	     */
 	    public List<PointLight> getPointLights() {
-	        return pointLights;
+	    	if (worldPointLights.isEmpty()) {
+	    		return pointLights;
+	    	}
+	    	allPointLights.clear();
+	    	allPointLights.addAll(pointLights);
+	    	allPointLights.addAll(worldPointLights);
+	        return allPointLights;
+	    }
+	    
+	    /**
+	     * Method to replace the lights taken from the components of the world
+	     * @param worldPointLights List<PointLight> The lights, copied
+	     */
+	    public void setWorldPointLights(List<PointLight> worldPointLights) {
+	    	this.worldPointLights.clear();
+	    	this.worldPointLights.addAll(worldPointLights);
 	    }
 
 	    public void addPointLight(PointLight pointLight) {
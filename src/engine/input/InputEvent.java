@@ -0,0 +1,86 @@
+package engine.input;
+
+/**
+ * One event taken from an InputEventQueue. The object is filled in by InputEventQueue.poll() and reused for the next
+ * event, so it must not be kept around
+ */
+public final class InputEvent {
+
+    /**
+     * A key was pressed, repeated or released. The code is the GLFW key, the action GLFW_PRESS, GLFW_REPEAT or GLFW_RELEASE
+     */
+    public static final int KEY = 1;
+
+    /**
+     * A mouse button was pressed or released. The code is the GLFW mouse button, the action GLFW_PRESS or GLFW_RELEASE
+     */
+    public static final int MOUSE_BUTTON = 2;
+
+    /**
+     * The cursor moved to x and y, in screen coordinates from the top left corner of the window
+     */
+    public static final int CURSOR_POS = 3;
+
+    /**
+     * The cursor entered the window, action 1, or left it, action 0
+     */
+    public static final int CURSOR_ENTER = 4;
+
+    /**
+     * The mouse wheel or touchpad scrolled by x and y
+     */
+    public static final int SCROLL = 5;
+
+    /**
+     * The window was resized to x by y
+     */
+    public static final int RESIZE = 6;
+
+    int type;
+
+    int code;
+
+    int action;
+
+    int mods;
+
+    double x;
+
+    double y;
+
+    long time;
+
+    public int getType() {
+        return type;
+    }
+
+    public int getCode() {
+        return code;
+    }
+
+    public int getAction() {
+        return action;
+    }
+
+    /**
+     * @return The GLFW modifier bits held down during a key or mouse button event
+     */
+    public int getMods() {
+        return mods;
+    }
+
+    public double getX() {
+        return x;
+    }
+
+    public double getY() {
+        return y;
+    }
+
+    /**
+     * @return The System.nanoTime() the event was received at
+     */
+    public long getTime() {
+        return time;
+    }
+}
@@ -0,0 +1,138 @@
+package engine.input;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded ring of input events with a single producer, the thread running the GLFW callbacks, and a single consumer,
+ * e.g. the thread updating the game. The events are stored field by field in preallocated arrays, so pushing and
+ * polling never allocate, and neither side takes a lock: the producer publishes an event by advancing the tail after
+ * writing it, the consumer frees a slot by advancing the head after reading it.
+ * If the consumer falls behind by a full ring, new events are dropped and counted
+ */
+public final class InputEventQueue {
+
+    private final int mask;
+
+    private final int[] types;
+
+    private final int[] codes;
+
+    private final int[] actions;
+
+    private final int[] mods;
+
+    private final double[] xs;
+
+    private final double[] ys;
+
+    private final long[] times;
+
+    /**
+     * The next event to poll, only written by the consumer
+     */
+    private final AtomicLong head;
+
+    /**
+     * The next slot to push into, only written by the producer
+     */
+    private final AtomicLong tail;
+
+    /**
+     * The head as last seen by the producer, so it only reads the shared head when the ring looks full
+     */
+    private long cachedHead;
+
+    private volatile long droppedCount;
+
+    /**
+     * @param capacity int The number of events the ring holds, a power of two
+     */
+    public InputEventQueue(int capacity) {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("The capacity has to be a power of two: " + capacity);
+        }
+        mask = capacity - 1;
+        types = new int[capacity];
+        codes = new int[capacity];
+        actions = new int[capacity];
+        mods = new int[capacity];
+        xs = new double[capacity];
+        ys = new double[capacity];
+        times = new long[capacity];
+        head = new AtomicLong();
+        tail = new AtomicLong();
+    }
+
+    /**
+     * Method to add an event, only called by the producer thread
+     * @param type int One of the event types of InputEvent
+     * @param code int The key or mouse button
+     * @param action int The action of the key or button
+     * @param mods int The modifier bits
+     * @param x double The x coordinate or offset
+     * @param y double The y coordinate or offset
+     * @return boolean False if the ring was full and the event dropped
+     */
+    public boolean push(int type, int code, int action, int mods, double x, double y) {
+        long t = tail.get();
+        if (t - cachedHead > mask) {
+            cachedHead = head.get();
+            if (t - cachedHead > mask) {
+                droppedCount++;
+                return false;
+            }
+        }
+        int slot = (int) t & mask;
+        types[slot] = type;
+        codes[slot] = code;
+        actions[slot] = action;
+        this.mods[slot] = mods;
+        xs[slot] = x;
+        ys[slot] = y;
+        times[slot] = System.nanoTime();
+        // Ordered store: the consumer sees the fields of the slot before it sees the new tail
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    /**
+     * Method to take the oldest event, only called by the consumer thread
+     * @param event InputEvent Receives the event
+     * @return boolean False if there was no event
+     */
+    public boolean poll(InputEvent event) {
+        long h = head.get();
+        if (h == tail.get()) {
+            return false;
+        }
+        int slot = (int) h & mask;
+        event.type = types[slot];
+        event.code = codes[slot];
+        event.action = actions[slot];
+        event.mods = mods[slot];
+        event.x = xs[slot];
+        event.y = ys[slot];
+        event.time = times[slot];
+        // The slot is handed back to the producer only after it was read
+        head.lazySet(h + 1);
+        return true;
+    }
+
+    /**
+     * @return The number of events waiting, exact only when called by one of the two threads while the other one is idle
+     */
+    public int size() {
+        return (int) (tail.get() - head.get());
+    }
+
+    public int getCapacity() {
+        return mask + 1;
+    }
+
+    /**
+     * @return The number of events dropped because the ring was full
+     */
+    public long getDroppedCount() {
+        return droppedCount;
+    }
+}
@@ -0,0 +1,254 @@
+package engine.input;
+
+import static org.lwjgl.glfw.GLFW.*;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * The state of the keyboard, mouse and window as of the last update(), built by replaying the events of an
+ * InputEventQueue in order. Besides what is held down, it remembers what was pressed and released since the update
+ * before, so a key tapped between two frames is still seen by the frame.
+ * Owned by the consumer thread of the queue, it must only be read by that thread
+ */
+public final class InputSnapshot {
+
+    private final boolean[] keysDown;
+
+    private final boolean[] keysPressed;
+
+    private final boolean[] keysReleased;
+
+    private final boolean[] buttonsDown;
+
+    private final boolean[] buttonsPressed;
+
+    private final boolean[] buttonsReleased;
+
+    private final InputEvent event;
+
+    private Consumer<InputEvent> eventListener;
+
+    private double cursorX;
+
+    private double cursorY;
+
+    private boolean hasCursor;
+
+    private double cursorDeltaX;
+
+    private double cursorDeltaY;
+
+    private double scrollX;
+
+    private double scrollY;
+
+    private boolean inWindow;
+
+    private boolean resized;
+
+    private int width;
+
+    private int height;
+
+    private int eventCount;
+
+    private long lastEventTime;
+
+    public InputSnapshot() {
+        keysDown = new boolean[GLFW_KEY_LAST + 1];
+        keysPressed = new boolean[GLFW_KEY_LAST + 1];
+        keysReleased = new boolean[GLFW_KEY_LAST + 1];
+        buttonsDown = new boolean[GLFW_MOUSE_BUTTON_LAST + 1];
+        buttonsPressed = new boolean[GLFW_MOUSE_BUTTON_LAST + 1];
+        buttonsReleased = new boolean[GLFW_MOUSE_BUTTON_LAST + 1];
+        event = new InputEvent();
+    }
+
+    /**
+     * Method to set a listener that sees every event applied by update(), in the order they happened
+     * @param eventListener Consumer<InputEvent> The listener, or null. The event object is reused for the next event
+     */
+    public void setEventListener(Consumer<InputEvent> eventListener) {
+        this.eventListener = eventListener;
+    }
+
+    /**
+     * Method to forget what happened during the last frame and apply the events queued since
+     * @param queue InputEventQueue The queue, consumed by the calling thread
+     */
+    public void update(InputEventQueue queue) {
+        Arrays.fill(keysPressed, false);
+        Arrays.fill(keysReleased, false);
+        Arrays.fill(buttonsPressed, false);
+        Arrays.fill(buttonsReleased, false);
+        cursorDeltaX = 0;
+        cursorDeltaY = 0;
+        scrollX = 0;
+        scrollY = 0;
+        resized = false;
+        eventCount = 0;
+        while (queue.poll(event)) {
+            apply(event);
+            eventCount++;
+            lastEventTime = event.time;
+            if (eventListener != null) {
+                eventListener.accept(event);
+            }
+        }
+    }
+
+    private void apply(InputEvent event) {
+        switch (event.type) {
+        case InputEvent.KEY:
+            if (event.code >= 0 && event.code < keysDown.length) {
+                applyAction(event.code, event.action, keysDown, keysPressed, keysReleased);
+            }
+            break;
+        case InputEvent.MOUSE_BUTTON:
+            if (event.code >= 0 && event.code < buttonsDown.length) {
+                applyAction(event.code, event.action, buttonsDown, buttonsPressed, buttonsReleased);
+            }
+            break;
+        case InputEvent.CURSOR_POS:
+            // The first position only places the cursor, and jumps while it is outside of the window do not count as movement
+            if (hasCursor && inWindow) {
+                cursorDeltaX += event.x - cursorX;
+                cursorDeltaY += event.y - cursorY;
+            }
+            cursorX = event.x;
+            cursorY = event.y;
+            hasCursor = true;
+            break;
+        case InputEvent.CURSOR_ENTER:
+            inWindow = event.action != 0;
+            break;
+        case InputEvent.SCROLL:
+            scrollX += event.x;
+            scrollY += event.y;
+            break;
+        case InputEvent.RESIZE:
+            resized = true;
+            width = (int) event.x;
+            height = (int) event.y;
+            break;
+        default:
+            throw new IllegalStateException("Unknown input event type " + event.type);
+        }
+    }
+
+    private static void applyAction(int code, int action, boolean[] down, boolean[] pressed, boolean[] released) {
+        if (action == GLFW_PRESS) {
+            down[code] = true;
+            pressed[code] = true;
+        } else if (action == GLFW_RELEASE) {
+            down[code] = false;
+            released[code] = true;
+        }
+    }
+
+    /**
+     * @return True if the key is held down at the end of the frame
+     */
+    public boolean isKeyDown(int key) {
+        return key >= 0 && key < keysDown.length && keysDown[key];
+    }
+
+    /**
+     * @return True if the key went down during the frame, even if it was released again
+     */
+    public boolean wasKeyPressed(int key) {
+        return key >= 0 && key < keysPressed.length && keysPressed[key];
+    }
+
+    public boolean wasKeyReleased(int key) {
+        return key >= 0 && key < keysReleased.length && keysReleased[key];
+    }
+
+    /**
+     * @return True if the mouse button is held down at the end of the frame
+     */
+    public boolean isButtonDown(int button) {
+        return button >= 0 && button < buttonsDown.length && buttonsDown[button];
+    }
+
+    /**
+     * @return True if the mouse button went down during the frame, even if it was released again
+     */
+    public boolean wasButtonPressed(int button) {
+        return button >= 0 && button < buttonsPressed.length && buttonsPressed[button];
+    }
+
+    public boolean wasButtonReleased(int button) {
+        return button >= 0 && button < buttonsReleased.length && buttonsReleased[button];
+    }
+
+    /**
+     * @return The horizontal position of the cursor, in screen coordinates from the left of the window
+     */
+    public double getCursorX() {
+        return cursorX;
+    }
+
+    /**
+     * @return The vertical position of the cursor, in screen coordinates from the top of the window
+     */
+    public double getCursorY() {
+        return cursorY;
+    }
+
+    /**
+     * @return The horizontal movement of the cursor inside of the window during the frame
+     */
+    public double getCursorDeltaX() {
+        return cursorDeltaX;
+    }
+
+    /**
+     * @return The vertical movement of the cursor inside of the window during the frame
+     */
+    public double getCursorDeltaY() {
+        return cursorDeltaY;
+    }
+
+    public double getScrollX() {
+        return scrollX;
+    }
+
+    public double getScrollY() {
+        return scrollY;
+    }
+
+    public boolean isInWindow() {
+        return inWindow;
+    }
+
+    /**
+     * @return True if the window was resized during the frame, getWidth() and getHeight() then hold the new size
+     */
+    public boolean wasResized() {
+        return resized;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return The number of events applied by the last update()
+     */
+    public int getEventCount() {
+        return eventCount;
+    }
+
+    /**
+     * @return The System.nanoTime() of the latest event applied so far
+     */
+    public long getLastEventTime() {
+        return lastEventTime;
+    }
+}
@@ -5,24 +5,22 @@ import static org.lwjgl.glfw.GLFW.*;
 import org.lwjgl.glfw.GLFWCursorPosCallback;
 import org.lwjgl.glfw.GLFWCursorEnterCallback;
 import org.lwjgl.glfw.GLFWMouseButtonCallback;
+import org.lwjgl.glfw.GLFWScrollCallback;
 
+import engine.Scene;
 import engine.Window;
 
+/**
+ * The mouse as seen by the game. The GLFW callbacks only push events into the input queue of the window, the state
+ * read by the game comes from the input snapshot the window takes once per frame
+ */
 public class MouseInput {
 
-    private final Vector2d previousPos;
-
     private final Vector2d currentPos;
 
     private final Vector2f displVec;
 
-    private boolean inWindow = false;
-
-    private boolean leftButtonPressed = false;
-
-    private boolean rightButtonPressed = false;
-    
-    private boolean middleButonPressed = false;
+    private InputSnapshot input;
 
     @SuppressWarnings("unused")
 	private GLFWCursorPosCallback cursorPosCallback;
@@ -33,68 +31,100 @@ public class MouseInput {
     @SuppressWarnings("unused")
 	private GLFWMouseButtonCallback mouseButtonCallback;
 
+    @SuppressWarnings("unused")
+	private GLFWScrollCallback scrollCallback;
+
     public MouseInput() {
-        previousPos = new Vector2d(-1, -1);
         currentPos = new Vector2d(0, 0);
         displVec = new Vector2f();
     }
 
     public void init(Window window) {
+        InputEventQueue events = window.getInputEvents();
+        input = window.getInput();
         glfwSetCursorPosCallback(window.getWindowHandle(), cursorPosCallback = new GLFWCursorPosCallback() {
             @Override
             public void invoke(long window, double xpos, double ypos) {
-                currentPos.x = xpos;
-                currentPos.y = ypos;
+                events.push(InputEvent.CURSOR_POS, 0, 0, 0, xpos, ypos);
             }
         });
         glfwSetCursorEnterCallback(window.getWindowHandle(), cursorEnterCallback = new GLFWCursorEnterCallback() {
             @Override
             public void invoke(long window, boolean entered) {
-                inWindow = entered;
+                events.push(InputEvent.CURSOR_ENTER, 0, entered ? 1 : 0, 0, 0, 0);
             }
         });
         glfwSetMouseButtonCallback(window.getWindowHandle(), mouseButtonCallback = new GLFWMouseButtonCallback() {
             @Override
             public void invoke(long window, int button, int action, int mods) {
-                leftButtonPressed = button == GLFW_MOUSE_BUTTON_1 && action == GLFW_PRESS;
-                rightButtonPressed = button == GLFW_MOUSE_BUTTON_2 && action == GLFW_PRESS;
-                middleButonPressed = button == GLFW_MOUSE_BUTTON_3  && action == GLFW_PRESS;
+                events.push(InputEvent.MOUSE_BUTTON, button, action, mods, 0, 0);
+            }
+        });
+        glfwSetScrollCallback(window.getWindowHandle(), scrollCallback = new GLFWScrollCallback() {
+            @Override
+            public void invoke(long window, double xoffset, double yoffset) {
+                events.push(InputEvent.SCROLL, 0, 0, 0, xoffset, yoffset);
             }
         });
     }
 
+    /**
+     * @return The position of the cursor in screen coordinates, relative to the top left corner of the window
+     */
+    public Vector2d getCurrentPos() {
+        return currentPos;
+    }
+
+    /**
+     * Method to ask the renderer of a scene which entity is drawn under the cursor
+     * @param scene Scene The scene
+     * @param callback PickCallback Receives the entity a frame or two later, or null if there is none under the cursor
+     */
+    public void requestPick(Scene scene, PickCallback callback) {
+        scene.requestPick((int) currentPos.x, (int) currentPos.y, callback);
+    }
+
+    /**
+     * @return The movement of the cursor during the frame, x holding the vertical and y the horizontal movement
+     */
     public Vector2f getDisplVec() {
         return displVec;
     }
 
+    /**
+     * Method to read the cursor from the input snapshot, called after Window.updateInput() once per frame
+     */
     public void input(Window window) {
-        displVec.x = 0;
-        displVec.y = 0;
-        if (previousPos.x > 0 && previousPos.y > 0 && inWindow) {
-            double deltax = currentPos.x - previousPos.x;
-            double deltay = currentPos.y - previousPos.y;
-            boolean rotateX = deltax != 0;
-            boolean rotateY = deltay != 0;
-            if (rotateX) {
-                displVec.y = (float) deltax;
-            }
-            if (rotateY) {
-                displVec.x = (float) deltay;
-            }
-        }
-        previousPos.x = currentPos.x;
-        previousPos.y = currentPos.y;
+        InputSnapshot snapshot = window.getInput();
+        currentPos.set(snapshot.getCursorX(), snapshot.getCursorY());
+        // All movement since the frame before, not only the distance between the positions polled at two frames
+        displVec.x = (float) snapshot.getCursorDeltaY();
+        displVec.y = (float) snapshot.getCursorDeltaX();
     }
 
     public boolean isLeftButtonPressed() {
-        return leftButtonPressed;
+        return isButtonPressed(GLFW_MOUSE_BUTTON_1);
     }
 
     public boolean isRightButtonPressed() {
-        return rightButtonPressed;
+        return isButtonPressed(GLFW_MOUSE_BUTTON_2);
     }
     
     public boolean isMiddleButtonPressed() {
-    	return middleButonPressed;
+    	return isButtonPressed(GLFW_MOUSE_BUTTON_3);
+    }
+
+    /**
+     * @return True if the button is held down, or was clicked during the frame
+     */
+    private boolean isButtonPressed(int button) {
+        return input != null && (input.isButtonDown(button) || input.wasButtonPressed(button));
+    }
+
+    /**
+     * @return True if the left button went down during the frame, true for only one frame per click
+     */
+    public boolean wasLeftButtonClicked() {
+        return input != null && input.wasButtonPressed(GLFW_MOUSE_BUTTON_1);
     }
 }
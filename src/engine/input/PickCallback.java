@@ -0,0 +1,17 @@
+package engine.input;
+
+import engine.entities.Entity;
+
+/**
+ * Receives the result of a pick requested with Scene.requestPick() or MouseInput.requestPick(), called on the thread
+ * rendering the scene a frame or two after the request
+ */
+public interface PickCallback {
+
+    /**
+     * @param entity Entity The entity drawn at the pixel, or null if no entity was drawn there
+     * @param x int The horizontal position of the pixel, from the left of the window
+     * @param y int The vertical position of the pixel, from the top of the window
+     */
+    void picked(Entity entity, int x, int y);
+}
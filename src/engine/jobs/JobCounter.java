@@ -0,0 +1,85 @@
+package engine.jobs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Counts the unfinished jobs of a group. JobSystem.await() waits for a counter to reach zero, and jobs submitted with
+ * a counter as dependency start once it does. A counter can be reused after it was awaited.
+ * The first exception thrown by a job of the group is kept and rethrown by await()
+ */
+public final class JobCounter {
+
+    private final AtomicInteger count;
+
+    private final List<JobSystem.Job> waiting;
+
+    private volatile Throwable error;
+
+    public JobCounter() {
+        count = new AtomicInteger();
+        waiting = new ArrayList<>();
+    }
+
+    public boolean isDone() {
+        return count.get() == 0;
+    }
+
+    /**
+     * @return The number of jobs of the group that did not finish yet
+     */
+    public int getCount() {
+        return count.get();
+    }
+
+    void increment() {
+        count.incrementAndGet();
+    }
+
+    /**
+     * @return The jobs waiting for the counter if it reached zero, otherwise null
+     */
+    List<JobSystem.Job> decrement() {
+        if (count.decrementAndGet() > 0) {
+            return null;
+        }
+        synchronized (waiting) {
+            if (waiting.isEmpty() || count.get() > 0) {
+                return null;
+            }
+            List<JobSystem.Job> released = new ArrayList<>(waiting);
+            waiting.clear();
+            return released;
+        }
+    }
+
+    /**
+     * Method to park a job until the counter reaches zero
+     * @return False if the counter is zero already, then the job was not added
+     */
+    boolean addWaiting(JobSystem.Job job) {
+        synchronized (waiting) {
+            if (count.get() == 0) {
+                return false;
+            }
+            waiting.add(job);
+            return true;
+        }
+    }
+
+    void fail(Throwable throwable) {
+        if (error == null) {
+            error = throwable;
+        }
+    }
+
+    /**
+     * @return The first exception of a job of the group since the last call, or null
+     */
+    Throwable takeError() {
+        Throwable throwable = error;
+        error = null;
+        return throwable;
+    }
+}
@@ -0,0 +1,384 @@
+package engine.jobs;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.IntConsumer;
+
+/**
+ * The worker threads of the engine, one per core besides the game loop thread. Every feature that wants to spread work
+ * over the cores submits jobs here instead of creating its own threads.
+ * Every worker has its own deque: jobs submitted by a worker go to the back of its deque and are taken from the back
+ * again, so nested jobs run while their data is still in the cache. Idle workers steal from the front of the other
+ * deques. Jobs submitted from other threads go through a shared queue.
+ * A thread waiting for a counter runs jobs itself until the counter is done, so waiting inside a job never blocks a
+ * worker and the game loop thread helps with its own work.
+ * Jobs must not block on anything but counters; loading files and the like belongs on threads of their own.
+ */
+public final class JobSystem {
+
+    /**
+     * Rounds a worker looks for jobs before parking
+     */
+    private static final int IDLE_SPINS = 64;
+
+    /**
+     * Upper bound of a parked worker's sleep, so a missed wake up only costs a fraction of a frame
+     */
+    private static final long PARK_NANOS = 200_000;
+
+    /**
+     * Runs the body for a range of indices, from inclusive and to exclusive
+     */
+    public interface RangeConsumer {
+        void accept(int from, int to);
+    }
+
+    static final class Job {
+
+        private final Runnable task;
+
+        private final JobCounter counter;
+
+        /**
+         * Dependencies not done yet, plus one while the job is being submitted
+         */
+        private final AtomicInteger pending;
+
+        private Job(Runnable task, JobCounter counter, int dependencyCount) {
+            this.task = task;
+            this.counter = counter;
+            pending = new AtomicInteger(dependencyCount + 1);
+        }
+    }
+
+    private static final class Worker {
+
+        private final int index;
+
+        private final ConcurrentLinkedDeque<Job> deque = new ConcurrentLinkedDeque<>();
+
+        private Thread thread;
+
+        private volatile boolean parked;
+
+        private volatile long busyNanos;
+
+        private volatile int jobCount;
+
+        private volatile int stealCount;
+
+        private long frameBusyNanos;
+
+        private int frameJobCount;
+
+        private int frameStealCount;
+
+        private long lastBusyNanos;
+
+        private int lastJobCount;
+
+        private int lastStealCount;
+
+        private Worker(int index) {
+            this.index = index;
+        }
+    }
+
+    private static final class Holder {
+        private static final JobSystem INSTANCE = new JobSystem(Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+    }
+
+    private static final ThreadLocal<Worker> CURRENT = new ThreadLocal<>();
+
+    private final Worker[] workers;
+
+    private final ConcurrentLinkedQueue<Job> sharedQueue;
+
+    private volatile boolean running;
+
+    private long frameStart;
+
+    private long lastFrameNanos;
+
+    /**
+     * @param workerCount int The number of worker threads
+     */
+    public JobSystem(int workerCount) {
+        if (workerCount < 1) {
+            throw new IllegalArgumentException("A job system needs at least one worker");
+        }
+        workers = new Worker[workerCount];
+        sharedQueue = new ConcurrentLinkedQueue<>();
+        running = true;
+        for (int i = 0; i < workerCount; i++) {
+            Worker worker = new Worker(i);
+            workers[i] = worker;
+            worker.thread = new Thread(() -> runWorker(worker), "JOB_WORKER_THREAD_" + i);
+            worker.thread.setDaemon(true);
+        }
+        // Workers steal from each other, so all of them have to exist before the first one starts
+        for (Worker worker : workers) {
+            worker.thread.start();
+        }
+        frameStart = System.nanoTime();
+    }
+
+    /**
+     * @return JobSystem The job system of the engine, with one worker per core besides the game loop thread
+     */
+    public static JobSystem getInstance() {
+        return Holder.INSTANCE;
+    }
+
+    public int getWorkerCount() {
+        return workers.length;
+    }
+
+    /**
+     * Method to submit a job
+     * @param task Runnable The work of the job
+     * @param dependencies JobCounter[] Counters that have to be done before the job starts
+     * @return JobCounter A new counter, done when the job finished
+     */
+    public JobCounter submit(Runnable task, JobCounter... dependencies) {
+        JobCounter counter = new JobCounter();
+        submit(counter, task, dependencies);
+        return counter;
+    }
+
+    /**
+     * Method to submit a job into a group
+     * @param counter JobCounter Counts the job until it finished
+     * @param task Runnable The work of the job
+     * @param dependencies JobCounter[] Counters that have to be done before the job starts
+     */
+    public void submit(JobCounter counter, Runnable task, JobCounter... dependencies) {
+        if (!running) {
+            throw new IllegalStateException("The job system was shut down");
+        }
+        counter.increment();
+        Job job = new Job(task, counter, dependencies.length);
+        for (JobCounter dependency : dependencies) {
+            if (!dependency.addWaiting(job)) {
+                release(job);
+            }
+        }
+        release(job);
+    }
+
+    /**
+     * Method to wait for a counter, running jobs on the calling thread meanwhile
+     * @param counter JobCounter The counter to wait for
+     * @throws RuntimeException If a job of the counter threw, with the exception as cause
+     */
+    public void await(JobCounter counter) {
+        Worker self = CURRENT.get();
+        int idle = 0;
+        while (!counter.isDone()) {
+            Job job = findJob(self);
+            if (job != null) {
+                execute(job, self);
+                idle = 0;
+            } else if (++idle > IDLE_SPINS) {
+                // The remaining jobs run on other threads
+                Thread.yield();
+            }
+        }
+        Throwable error = counter.takeError();
+        if (error instanceof RuntimeException) {
+            throw (RuntimeException) error;
+        } else if (error instanceof Error) {
+            throw (Error) error;
+        } else if (error != null) {
+            throw new RuntimeException(error);
+        }
+    }
+
+    /**
+     * Method to call a body for every index, spread over the workers in batches, and wait for all of them
+     * @param count int The number of indices, from 0
+     * @param batchSize int The number of indices run by one job
+     * @param body IntConsumer Called for every index, from several threads at once
+     */
+    public void parallelFor(int count, int batchSize, IntConsumer body) {
+        parallelRange(count, batchSize, (int from, int to) -> {
+            for (int i = from; i < to; i++) {
+                body.accept(i);
+            }
+        });
+    }
+
+    /**
+     * Method to cut a range of indices into batches, run them on the workers and wait for all of them
+     * @param count int The number of indices, from 0
+     * @param batchSize int The largest number of indices of one batch
+     * @param body RangeConsumer Called for every batch, from several threads at once
+     */
+    public void parallelRange(int count, int batchSize, RangeConsumer body) {
+        if (count <= 0) {
+            return;
+        }
+        batchSize = Math.max(batchSize, 1);
+        if (count <= batchSize) {
+            body.accept(0, count);
+            return;
+        }
+        JobCounter counter = new JobCounter();
+        // The calling thread takes the first batch itself instead of waiting idle
+        for (int from = batchSize; from < count; from += batchSize) {
+            int start = from;
+            int end = Math.min(from + batchSize, count);
+            submit(counter, () -> body.accept(start, end));
+        }
+        try {
+            body.accept(0, batchSize);
+        } finally {
+            await(counter);
+        }
+    }
+
+    /**
+     * Method to close the metrics of the frame before, called by the game loop once per frame
+     */
+    public void beginFrame() {
+        long now = System.nanoTime();
+        lastFrameNanos = now - frameStart;
+        frameStart = now;
+        for (Worker worker : workers) {
+            long busy = worker.busyNanos;
+            int jobs = worker.jobCount;
+            int steals = worker.stealCount;
+            worker.lastBusyNanos = busy - worker.frameBusyNanos;
+            worker.lastJobCount = jobs - worker.frameJobCount;
+            worker.lastStealCount = steals - worker.frameStealCount;
+            worker.frameBusyNanos = busy;
+            worker.frameJobCount = jobs;
+            worker.frameStealCount = steals;
+        }
+    }
+
+    /**
+     * @return The fraction of the last frame a worker spent running jobs, between 0 and 1
+     */
+    public float getUtilization(int worker) {
+        return lastFrameNanos > 0 ? Math.min(1.0f, workers[worker].lastBusyNanos / (float) lastFrameNanos) : 0;
+    }
+
+    /**
+     * @return The number of jobs a worker ran in the last frame
+     */
+    public int getJobCount(int worker) {
+        return workers[worker].lastJobCount;
+    }
+
+    /**
+     * @return The number of jobs a worker took from the deques of other workers in the last frame
+     */
+    public int getStealCount(int worker) {
+        return workers[worker].lastStealCount;
+    }
+
+    /**
+     * Method to stop the workers once they finished their current job, queued jobs are dropped
+     */
+    public void shutdown() {
+        running = false;
+        for (Worker worker : workers) {
+            LockSupport.unpark(worker.thread);
+        }
+    }
+
+    private void release(Job job) {
+        if (job.pending.decrementAndGet() > 0) {
+            return;
+        }
+        Worker self = CURRENT.get();
+        if (self != null && isOwnWorker(self)) {
+            self.deque.addLast(job);
+        } else {
+            sharedQueue.add(job);
+        }
+        wakeWorker();
+    }
+
+    private boolean isOwnWorker(Worker worker) {
+        return worker.index < workers.length && workers[worker.index] == worker;
+    }
+
+    private void wakeWorker() {
+        for (Worker worker : workers) {
+            if (worker.parked) {
+                LockSupport.unpark(worker.thread);
+                return;
+            }
+        }
+    }
+
+    private void runWorker(Worker self) {
+        CURRENT.set(self);
+        int idle = 0;
+        while (running) {
+            Job job = findJob(self);
+            if (job != null) {
+                execute(job, self);
+                idle = 0;
+            } else if (++idle > IDLE_SPINS) {
+                self.parked = true;
+                // Jobs submitted between the last look and parking are picked up when the park times out
+                if (sharedQueue.isEmpty()) {
+                    LockSupport.parkNanos(this, PARK_NANOS);
+                }
+                self.parked = false;
+                idle = 0;
+            }
+        }
+    }
+
+    /**
+     * @return A job from the own deque, the shared queue or the deque of another worker, or null
+     */
+    private Job findJob(Worker self) {
+        Job job = null;
+        if (self != null && isOwnWorker(self)) {
+            job = self.deque.pollLast();
+        }
+        if (job == null) {
+            job = sharedQueue.poll();
+        }
+        int start = self != null ? self.index + 1 : 0;
+        for (int i = 0; i < workers.length && job == null; i++) {
+            Worker victim = workers[(start + i) % workers.length];
+            if (victim != self) {
+                job = victim.deque.pollFirst();
+                if (job != null && self != null && isOwnWorker(self)) {
+                    self.stealCount++;
+                }
+            }
+        }
+        return job;
+    }
+
+    private void execute(Job job, Worker self) {
+        boolean measured = self != null && isOwnWorker(self);
+        long start = measured ? System.nanoTime() : 0;
+        try {
+            job.task.run();
+        } catch (Throwable throwable) {
+            job.counter.fail(throwable);
+        } finally {
+            List<Job> released = job.counter.decrement();
+            if (released != null) {
+                for (Job waiting : released) {
+                    release(waiting);
+                }
+            }
+            if (measured) {
+                self.busyNanos += System.nanoTime() - start;
+                self.jobCount++;
+            }
+        }
+    }
+}
@@ -0,0 +1,488 @@
+package engine.physics;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.function.IntConsumer;
+
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+
+import engine.GameEngine;
+import engine.entities.Entity;
+import engine.graphics.Mesh;
+
+/**
+ * Finds the bodies whose axis aligned bounding boxes overlap, with sweep and prune along the x axis.
+ * Static bodies are kept in arrays sorted by their minimum x, only sorted again after statics were added, moved or
+ * removed. Dynamic bodies are kept in a second sorted list, updated with an insertion sort since their order barely
+ * changes from one update to the next. Pairs of dynamic bodies are found with a sweep over that list, and every dynamic
+ * body looks up the statics it may touch with a binary search, so the cost grows with the dynamic bodies and not
+ * with the, usually far more, static ones. Static bodies never form pairs with each other.
+ */
+public class Broadphase {
+
+    /**
+     * Receives a pair of overlapping bodies, the first one is always dynamic
+     */
+    public interface PairConsumer {
+        void accept(int bodyA, int bodyB);
+    }
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private float[] bounds;
+
+    private boolean[] dynamic;
+
+    private boolean[] used;
+
+    private Entity[] entities;
+
+    private int[] freeBodies;
+
+    private int freeCount;
+
+    private int bodyCount;
+
+    /**
+     * Static bodies ordered by their minimum x, and those minimums, to binary search them
+     */
+    private int[] staticOrder;
+
+    private float[] staticMinX;
+
+    private int staticCount;
+
+    private boolean staticDirty;
+
+    /**
+     * The widest static body, a static starting further left than this cannot reach a box
+     */
+    private float maxStaticWidth;
+
+    private int[] dynamicOrder;
+
+    private int dynamicCount;
+
+    private long[] keys;
+
+    private final Matrix4f modelMatrix;
+
+    private final Vector3f corner;
+
+    public Broadphase() {
+        bounds = new float[INITIAL_CAPACITY * 6];
+        dynamic = new boolean[INITIAL_CAPACITY];
+        used = new boolean[INITIAL_CAPACITY];
+        entities = new Entity[INITIAL_CAPACITY];
+        freeBodies = new int[64];
+        staticOrder = new int[INITIAL_CAPACITY];
+        staticMinX = new float[INITIAL_CAPACITY];
+        dynamicOrder = new int[64];
+        keys = new long[0];
+        modelMatrix = new Matrix4f();
+        corner = new Vector3f();
+    }
+
+    /**
+     * Method to add an entity, bounded by the box of its mesh placed with its transform
+     * @param entity Entity An entity with a mesh
+     * @param isDynamic boolean True if the entity moves, then update() has to be called after every move
+     * @return int The id of the body
+     */
+    public int add(Entity entity, boolean isDynamic) {
+        int body = add(0, 0, 0, 0, 0, 0, isDynamic);
+        entities[body] = entity;
+        update(body);
+        return body;
+    }
+
+    /**
+     * Method to add a box without an entity
+     * @return int The id of the body
+     */
+    public int add(float minX, float minY, float minZ, float maxX, float maxY, float maxZ, boolean isDynamic) {
+        int body;
+        if (freeCount > 0) {
+            body = freeBodies[--freeCount];
+        } else {
+            body = bodyCount++;
+            if (body == used.length) {
+                int capacity = body * 2;
+                bounds = Arrays.copyOf(bounds, capacity * 6);
+                dynamic = Arrays.copyOf(dynamic, capacity);
+                used = Arrays.copyOf(used, capacity);
+                entities = Arrays.copyOf(entities, capacity);
+            }
+        }
+        used[body] = true;
+        dynamic[body] = isDynamic;
+        entities[body] = null;
+        setBounds(body, minX, minY, minZ, maxX, maxY, maxZ);
+        if (isDynamic) {
+            if (dynamicCount == dynamicOrder.length) {
+                dynamicOrder = Arrays.copyOf(dynamicOrder, dynamicCount * 2);
+            }
+            dynamicOrder[dynamicCount++] = body;
+        } else {
+            staticDirty = true;
+        }
+        return body;
+    }
+
+    /**
+     * Method to remove a body, its id may be handed out again
+     */
+    public void remove(int body) {
+        requireBody(body);
+        used[body] = false;
+        entities[body] = null;
+        if (dynamic[body]) {
+            for (int i = 0; i < dynamicCount; i++) {
+                if (dynamicOrder[i] == body) {
+                    System.arraycopy(dynamicOrder, i + 1, dynamicOrder, i, dynamicCount - i - 1);
+                    dynamicCount--;
+                    break;
+                }
+            }
+        } else {
+            staticDirty = true;
+        }
+        if (freeCount == freeBodies.length) {
+            freeBodies = Arrays.copyOf(freeBodies, freeCount * 2);
+        }
+        freeBodies[freeCount++] = body;
+    }
+
+    /**
+     * Method to recompute the box of a body added with an entity, after the entity moved
+     */
+    public void update(int body) {
+        requireBody(body);
+        Entity entity = entities[body];
+        if (entity == null) {
+            throw new IllegalArgumentException("Body " + body + " has no entity");
+        }
+        Mesh mesh = entity.getMesh();
+        Vector3f rotation = entity.getRotation();
+        modelMatrix.identity().translate(entity.getPosition()).
+                rotateX((float) Math.toRadians(-rotation.x)).
+                rotateY((float) Math.toRadians(-rotation.y)).
+                rotateZ((float) Math.toRadians(-rotation.z)).
+                scale(entity.getScale());
+        // The box around the eight transformed corners of the mesh box
+        Vector3f min = mesh.getBoundsMin();
+        Vector3f max = mesh.getBoundsMax();
+        float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE, minZ = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE, maxZ = -Float.MAX_VALUE;
+        for (int i = 0; i < 8; i++) {
+            corner.set((i & 1) == 0 ? min.x : max.x, (i & 2) == 0 ? min.y : max.y, (i & 4) == 0 ? min.z : max.z);
+            modelMatrix.transformPosition(corner);
+            minX = Math.min(minX, corner.x);
+            minY = Math.min(minY, corner.y);
+            minZ = Math.min(minZ, corner.z);
+            maxX = Math.max(maxX, corner.x);
+            maxY = Math.max(maxY, corner.y);
+            maxZ = Math.max(maxZ, corner.z);
+        }
+        setBounds(body, minX, minY, minZ, maxX, maxY, maxZ);
+    }
+
+    /**
+     * Method to move the box of a body
+     */
+    public void setBounds(int body, float minX, float minY, float minZ, float maxX, float maxY, float maxZ) {
+        int base = body * 6;
+        bounds[base] = minX;
+        bounds[base + 1] = minY;
+        bounds[base + 2] = minZ;
+        bounds[base + 3] = maxX;
+        bounds[base + 4] = maxY;
+        bounds[base + 5] = maxZ;
+        if (!dynamic[body]) {
+            staticDirty = true;
+        }
+    }
+
+    public void getMin(int body, Vector3f dest) {
+        int base = body * 6;
+        dest.set(bounds[base], bounds[base + 1], bounds[base + 2]);
+    }
+
+    public void getMax(int body, Vector3f dest) {
+        int base = body * 6;
+        dest.set(bounds[base + 3], bounds[base + 4], bounds[base + 5]);
+    }
+
+    /**
+     * @return The entity of a body, null for plain boxes
+     */
+    public Entity getEntity(int body) {
+        return entities[body];
+    }
+
+    public boolean isDynamic(int body) {
+        return dynamic[body];
+    }
+
+    /**
+     * Method to report every pair of overlapping boxes where at least one body is dynamic
+     * @param consumer PairConsumer Receives the pairs, the dynamic body first
+     */
+    public void findPairs(PairConsumer consumer) {
+        sortStatics();
+        sortDynamics();
+        for (int i = 0; i < dynamicCount; i++) {
+            int a = dynamicOrder[i];
+            int baseA = a * 6;
+            float maxX = bounds[baseA + 3];
+            // Sweep: the following dynamics start further right, stop at the first one starting past this box
+            for (int j = i + 1; j < dynamicCount; j++) {
+                int b = dynamicOrder[j];
+                if (bounds[b * 6] > maxX) {
+                    break;
+                }
+                if (overlapsYZ(baseA, b * 6)) {
+                    consumer.accept(a, b);
+                }
+            }
+            final int body = a;
+            queryStatics(bounds[baseA], bounds[baseA + 1], bounds[baseA + 2], maxX, bounds[baseA + 4], bounds[baseA + 5],
+                    (int s) -> consumer.accept(body, s));
+        }
+    }
+
+    /**
+     * Method to find the bodies whose box overlaps a box
+     * @param consumer IntConsumer Receives the ids of the bodies
+     */
+    public void query(float minX, float minY, float minZ, float maxX, float maxY, float maxZ, IntConsumer consumer) {
+        sortStatics();
+        queryStatics(minX, minY, minZ, maxX, maxY, maxZ, consumer);
+        for (int i = 0; i < dynamicCount; i++) {
+            int body = dynamicOrder[i];
+            if (overlaps(body * 6, minX, minY, minZ, maxX, maxY, maxZ)) {
+                consumer.accept(body);
+            }
+        }
+    }
+
+    private void queryStatics(float minX, float minY, float minZ, float maxX, float maxY, float maxZ, IntConsumer consumer) {
+        // Statics starting right of the box cannot touch it, neither can the ones starting further left than the widest static
+        int end = upperBound(maxX);
+        float leftmost = minX - maxStaticWidth;
+        for (int i = end - 1; i >= 0 && staticMinX[i] >= leftmost; i--) {
+            int body = staticOrder[i];
+            if (overlaps(body * 6, minX, minY, minZ, maxX, maxY, maxZ)) {
+                consumer.accept(body);
+            }
+        }
+    }
+
+    /**
+     * @return The number of statics whose minimum x is at most x
+     */
+    private int upperBound(float x) {
+        int low = 0;
+        int high = staticCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (staticMinX[mid] <= x) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private boolean overlapsYZ(int baseA, int baseB) {
+        return bounds[baseA + 1] <= bounds[baseB + 4] && bounds[baseB + 1] <= bounds[baseA + 4]
+                && bounds[baseA + 2] <= bounds[baseB + 5] && bounds[baseB + 2] <= bounds[baseA + 5];
+    }
+
+    private boolean overlaps(int base, float minX, float minY, float minZ, float maxX, float maxY, float maxZ) {
+        return bounds[base] <= maxX && minX <= bounds[base + 3]
+                && bounds[base + 1] <= maxY && minY <= bounds[base + 4]
+                && bounds[base + 2] <= maxZ && minZ <= bounds[base + 5];
+    }
+
+    private void sortStatics() {
+        if (!staticDirty) {
+            return;
+        }
+        staticCount = 0;
+        maxStaticWidth = 0;
+        if (keys.length < bodyCount) {
+            keys = new long[bodyCount];
+        }
+        for (int body = 0; body < bodyCount; body++) {
+            if (used[body] && !dynamic[body]) {
+                float minX = bounds[body * 6];
+                keys[staticCount++] = ((long) sortableBits(minX) << 32) | body;
+                maxStaticWidth = Math.max(maxStaticWidth, bounds[body * 6 + 3] - minX);
+            }
+        }
+        Arrays.sort(keys, 0, staticCount);
+        if (staticOrder.length < staticCount) {
+            staticOrder = new int[bodyCount];
+            staticMinX = new float[bodyCount];
+        }
+        for (int i = 0; i < staticCount; i++) {
+            int body = (int) keys[i];
+            staticOrder[i] = body;
+            staticMinX[i] = bounds[body * 6];
+        }
+        staticDirty = false;
+    }
+
+    /**
+     * Maps a float to an int with the same order, negative values included
+     */
+    private static int sortableBits(float value) {
+        int bits = Float.floatToIntBits(value);
+        return bits ^ ((bits >> 31) & 0x7FFFFFFF);
+    }
+
+    /**
+     * Insertion sort, close to linear for a list that was sorted in the update before
+     */
+    private void sortDynamics() {
+        for (int i = 1; i < dynamicCount; i++) {
+            int body = dynamicOrder[i];
+            float minX = bounds[body * 6];
+            int j = i - 1;
+            while (j >= 0 && bounds[dynamicOrder[j] * 6] > minX) {
+                dynamicOrder[j + 1] = dynamicOrder[j];
+                j--;
+            }
+            dynamicOrder[j + 1] = body;
+        }
+    }
+
+    private void requireBody(int body) {
+        if (body < 0 || body >= bodyCount || !used[body]) {
+            throw new IllegalArgumentException("Body " + body + " does not exist");
+        }
+    }
+
+    /**
+     * Times findPairs() headless against the update budget and checks its pairs against a brute force search.
+     * Usage: Broadphase [statics [dynamics [updates]]]
+     * The statics are unit blocks on a grid at two heights like the blocks of the demo scene, the dynamics are
+     * smaller boxes flying across the grid
+     */
+    public static void main(String[] args) {
+        int staticCount = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int dynamicCount = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int updates = args.length > 2 ? Integer.parseInt(args[2]) : 300;
+
+        Random random = new Random(42);
+        Broadphase broadphase = new Broadphase();
+        int side = (int) Math.ceil(Math.sqrt(staticCount));
+        for (int i = 0; i < staticCount; i++) {
+            float x = i % side;
+            float y = random.nextFloat() > 0.9f ? 1 : 0;
+            float z = i / side;
+            broadphase.add(x - 0.5f, y - 0.5f, z - 0.5f, x + 0.5f, y + 0.5f, z + 0.5f, false);
+        }
+        int[] dynamics = new int[dynamicCount];
+        float[] velocities = new float[dynamicCount * 3];
+        for (int i = 0; i < dynamicCount; i++) {
+            float x = random.nextFloat() * side;
+            float y = random.nextFloat() * 3;
+            float z = random.nextFloat() * side;
+            dynamics[i] = broadphase.add(x - 0.25f, y - 0.25f, z - 0.25f, x + 0.25f, y + 0.25f, z + 0.25f, true);
+            velocities[i * 3] = (random.nextFloat() - 0.5f) * 0.4f;
+            velocities[i * 3 + 1] = (random.nextFloat() - 0.5f) * 0.1f;
+            velocities[i * 3 + 2] = (random.nextFloat() - 0.5f) * 0.4f;
+        }
+
+        long[][] pairs = { new long[1024] };
+        int[] pairCount = new int[1];
+        PairConsumer collector = (int a, int b) -> {
+            if (pairCount[0] == pairs[0].length) {
+                pairs[0] = Arrays.copyOf(pairs[0], pairCount[0] * 2);
+            }
+            pairs[0][pairCount[0]++] = pairKey(a, b);
+        };
+
+        // The first update sorts the statics once, like the first frame of a scene
+        long start = System.nanoTime();
+        broadphase.findPairs(collector);
+        long firstTime = System.nanoTime() - start;
+
+        long totalTime = 0;
+        long maxTime = 0;
+        long totalPairs = 0;
+        int checks = 0;
+        for (int update = 0; update < updates; update++) {
+            for (int i = 0; i < dynamicCount; i++) {
+                int base = dynamics[i] * 6;
+                float[] b = broadphase.bounds;
+                broadphase.setBounds(dynamics[i], b[base] + velocities[i * 3], b[base + 1] + velocities[i * 3 + 1],
+                        b[base + 2] + velocities[i * 3 + 2], b[base + 3] + velocities[i * 3], b[base + 4] + velocities[i * 3 + 1],
+                        b[base + 5] + velocities[i * 3 + 2]);
+            }
+            pairCount[0] = 0;
+            start = System.nanoTime();
+            broadphase.findPairs(collector);
+            long time = System.nanoTime() - start;
+            totalTime += time;
+            maxTime = Math.max(maxTime, time);
+            totalPairs += pairCount[0];
+
+            if (update % 50 == 0 || update == updates - 1) {
+                long[] found = Arrays.copyOf(pairs[0], pairCount[0]);
+                long[] expected = bruteForcePairs(broadphase);
+                Arrays.sort(found);
+                if (!Arrays.equals(found, expected)) {
+                    throw new IllegalStateException("Update " + update + ": sweep and prune found " + found.length
+                            + " pairs, brute force " + expected.length);
+                }
+                checks++;
+            }
+        }
+
+        double budget = 1000.0 / GameEngine.TARGET_UPS;
+        System.out.println(String.format("%d statics, %d dynamics: first update with sorting %.3f ms", staticCount,
+                dynamicCount, firstTime / 1e6));
+        System.out.println(String.format("%d updates: %.3f ms average, %.3f ms worst, %.1f pairs per update, budget %.1f ms",
+                updates, totalTime / 1e6 / Math.max(1, updates), maxTime / 1e6, (double) totalPairs / Math.max(1, updates),
+                budget));
+        System.out.println("Pairs matched brute force in " + checks + " updates");
+    }
+
+    /**
+     * Every pair with a dynamic body, tested against all other bodies
+     */
+    private static long[] bruteForcePairs(Broadphase broadphase) {
+        float[] b = broadphase.bounds;
+        long[] pairs = new long[1024];
+        int count = 0;
+        for (int a = 0; a < broadphase.bodyCount; a++) {
+            if (!broadphase.used[a] || !broadphase.dynamic[a]) {
+                continue;
+            }
+            for (int other = 0; other < broadphase.bodyCount; other++) {
+                if (other == a || !broadphase.used[other] || (broadphase.dynamic[other] && other < a)) {
+                    continue;
+                }
+                int base = other * 6;
+                if (broadphase.overlaps(a * 6, b[base], b[base + 1], b[base + 2], b[base + 3], b[base + 4], b[base + 5])) {
+                    if (count == pairs.length) {
+                        pairs = Arrays.copyOf(pairs, count * 2);
+                    }
+                    pairs[count++] = pairKey(a, other);
+                }
+            }
+        }
+        long[] sorted = Arrays.copyOf(pairs, count);
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    private static long pairKey(int a, int b) {
+        return ((long) Math.min(a, b) << 32) | Math.max(a, b);
+    }
+}
@@ -0,0 +1,283 @@
+package engine.physics;
+
+import java.util.Arrays;
+
+/**
+ * A bounding volume hierarchy over boxes, built top down with the surface area heuristic evaluated over a few bins
+ * per axis. The nodes are flattened depth first into arrays: the left child of an inner node directly follows it,
+ * the node only stores where its right child starts. A leaf stores a range of the primitive order instead.
+ */
+final class BvhTree {
+
+    private static final int BIN_COUNT = 12;
+
+    /**
+     * Leaves with this many primitives or less are never split
+     */
+    private static final int MIN_SPLIT = 2;
+
+    /**
+     * Leaves with more primitives are split even when the heuristic prefers a leaf
+     */
+    private static final int MAX_LEAF = 8;
+
+    /**
+     * Cost of visiting a node, relative to testing one primitive
+     */
+    private static final float TRAVERSAL_COST = 1.0f;
+
+    /**
+     * The box of every node: min x, y, z, max x, y, z
+     */
+    final float[] bounds;
+
+    /**
+     * Two ints per node: the first node of the right child and 0 for inner nodes, the first index into order and the
+     * number of primitives for leaves
+     */
+    final int[] nodes;
+
+    /**
+     * The primitives in the order of the leaves
+     */
+    final int[] order;
+
+    final int nodeCount;
+
+    /**
+     * The number of levels below the root, which bounds the stack of a traversal
+     */
+    final int depth;
+
+    private BvhTree(float[] bounds, int[] nodes, int[] order, int nodeCount, int depth) {
+        this.bounds = bounds;
+        this.nodes = nodes;
+        this.order = order;
+        this.nodeCount = nodeCount;
+        this.depth = depth;
+    }
+
+    /**
+     * Method to build a tree
+     * @param boxes float[] The box of every primitive, six floats each
+     * @param count int The number of primitives
+     * @return BvhTree The tree, with a single empty leaf if there are no primitives
+     */
+    static BvhTree build(float[] boxes, int count) {
+        Builder builder = new Builder(boxes, count);
+        builder.build(0, count, 0);
+        return new BvhTree(builder.bounds, builder.nodes, builder.order, builder.nodeCount, builder.depth);
+    }
+
+    /**
+     * Method to intersect a ray with the box of a node
+     * @return float The distance along the ray the box is entered, or infinity if it is missed within maxDistance
+     */
+    float intersectNode(int node, float ox, float oy, float oz, float invX, float invY, float invZ, float maxDistance) {
+        int base = node * 6;
+        float tx1 = (bounds[base] - ox) * invX;
+        float tx2 = (bounds[base + 3] - ox) * invX;
+        float tMin = Math.min(tx1, tx2);
+        float tMax = Math.max(tx1, tx2);
+        float ty1 = (bounds[base + 1] - oy) * invY;
+        float ty2 = (bounds[base + 4] - oy) * invY;
+        tMin = Math.max(tMin, Math.min(ty1, ty2));
+        tMax = Math.min(tMax, Math.max(ty1, ty2));
+        float tz1 = (bounds[base + 2] - oz) * invZ;
+        float tz2 = (bounds[base + 5] - oz) * invZ;
+        tMin = Math.max(tMin, Math.min(tz1, tz2));
+        tMax = Math.min(tMax, Math.max(tz1, tz2));
+        // NaN from a zero direction and a box face at the origin fails both comparisons and counts as a hit
+        return tMax >= Math.max(tMin, 0) && tMin <= maxDistance ? Math.max(tMin, 0) : Float.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Method to recompute the boxes of the nodes from new primitive boxes, keeping the structure of the tree.
+     * Cheaper than a new build, but the tree gets worse the further the primitives moved
+     * @param boxes float[] The box of every primitive, six floats each
+     */
+    void refit(float[] boxes) {
+        // Children always follow their parent, so going backwards visits them first
+        for (int node = nodeCount - 1; node >= 0; node--) {
+            int base = node * 6;
+            int count = nodes[node * 2 + 1];
+            if (count > 0) {
+                int first = nodes[node * 2];
+                resetBox(bounds, base);
+                for (int i = first; i < first + count; i++) {
+                    growBox(bounds, base, boxes, order[i] * 6);
+                }
+            } else if (order.length > 0) {
+                resetBox(bounds, base);
+                growBox(bounds, base, bounds, (node + 1) * 6);
+                growBox(bounds, base, bounds, nodes[node * 2] * 6);
+            }
+        }
+    }
+
+    private static void resetBox(float[] box, int base) {
+        box[base] = box[base + 1] = box[base + 2] = Float.POSITIVE_INFINITY;
+        box[base + 3] = box[base + 4] = box[base + 5] = Float.NEGATIVE_INFINITY;
+    }
+
+    private static void growBox(float[] box, int base, float[] other, int otherBase) {
+        box[base] = Math.min(box[base], other[otherBase]);
+        box[base + 1] = Math.min(box[base + 1], other[otherBase + 1]);
+        box[base + 2] = Math.min(box[base + 2], other[otherBase + 2]);
+        box[base + 3] = Math.max(box[base + 3], other[otherBase + 3]);
+        box[base + 4] = Math.max(box[base + 4], other[otherBase + 4]);
+        box[base + 5] = Math.max(box[base + 5], other[otherBase + 5]);
+    }
+
+    private static float halfArea(float[] box, int base) {
+        float dx = box[base + 3] - box[base];
+        float dy = box[base + 4] - box[base + 1];
+        float dz = box[base + 5] - box[base + 2];
+        return dx < 0 ? 0 : dx * dy + dy * dz + dz * dx;
+    }
+
+    private static final class Builder {
+
+        private final float[] boxes;
+
+        private final int[] order;
+
+        private final float[] centroids;
+
+        private final float[] bounds;
+
+        private final int[] nodes;
+
+        private int nodeCount;
+
+        private int depth;
+
+        private final int[] binCounts = new int[BIN_COUNT];
+
+        private final float[] binBoxes = new float[BIN_COUNT * 6];
+
+        /**
+         * The area of the box around all bins left of every split
+         */
+        private final float[] leftAreas = new float[BIN_COUNT];
+
+        private final float[] sweepBox = new float[6];
+
+        private Builder(float[] boxes, int count) {
+            this.boxes = boxes;
+            order = new int[count];
+            centroids = new float[count * 3];
+            for (int i = 0; i < count; i++) {
+                order[i] = i;
+                centroids[i * 3] = (boxes[i * 6] + boxes[i * 6 + 3]) * 0.5f;
+                centroids[i * 3 + 1] = (boxes[i * 6 + 1] + boxes[i * 6 + 4]) * 0.5f;
+                centroids[i * 3 + 2] = (boxes[i * 6 + 2] + boxes[i * 6 + 5]) * 0.5f;
+            }
+            // A binary tree with leaves of at least one primitive has less than twice as many nodes
+            int capacity = Math.max(1, 2 * count - 1);
+            bounds = new float[capacity * 6];
+            nodes = new int[capacity * 2];
+        }
+
+        private void build(int start, int end, int level) {
+            int node = nodeCount++;
+            depth = Math.max(depth, level);
+            int base = node * 6;
+            resetBox(bounds, base);
+            float cMinX = Float.POSITIVE_INFINITY, cMinY = Float.POSITIVE_INFINITY, cMinZ = Float.POSITIVE_INFINITY;
+            float cMaxX = Float.NEGATIVE_INFINITY, cMaxY = Float.NEGATIVE_INFINITY, cMaxZ = Float.NEGATIVE_INFINITY;
+            for (int i = start; i < end; i++) {
+                int primitive = order[i];
+                growBox(bounds, base, boxes, primitive * 6);
+                float x = centroids[primitive * 3], y = centroids[primitive * 3 + 1], z = centroids[primitive * 3 + 2];
+                cMinX = Math.min(cMinX, x);
+                cMinY = Math.min(cMinY, y);
+                cMinZ = Math.min(cMinZ, z);
+                cMaxX = Math.max(cMaxX, x);
+                cMaxY = Math.max(cMaxY, y);
+                cMaxZ = Math.max(cMaxZ, z);
+            }
+            int count = end - start;
+            if (count <= MIN_SPLIT) {
+                makeLeaf(node, start, count);
+                return;
+            }
+
+            // The cheapest split over the bins of all three axes
+            float nodeArea = halfArea(bounds, base);
+            float bestCost = Float.POSITIVE_INFINITY;
+            int bestAxis = -1;
+            int bestBin = 0;
+            float[] cMin = { cMinX, cMinY, cMinZ };
+            float[] cMax = { cMaxX, cMaxY, cMaxZ };
+            for (int axis = 0; axis < 3; axis++) {
+                float extent = cMax[axis] - cMin[axis];
+                if (extent <= 0) {
+                    continue;
+                }
+                float scale = BIN_COUNT / extent;
+                Arrays.fill(binCounts, 0);
+                for (int bin = 0; bin < BIN_COUNT; bin++) {
+                    resetBox(binBoxes, bin * 6);
+                }
+                for (int i = start; i < end; i++) {
+                    int primitive = order[i];
+                    int bin = binOf(centroids[primitive * 3 + axis], cMin[axis], scale);
+                    binCounts[bin]++;
+                    growBox(binBoxes, bin * 6, boxes, primitive * 6);
+                }
+                resetBox(sweepBox, 0);
+                for (int bin = 0; bin < BIN_COUNT - 1; bin++) {
+                    growBox(sweepBox, 0, binBoxes, bin * 6);
+                    leftAreas[bin] = halfArea(sweepBox, 0);
+                }
+                resetBox(sweepBox, 0);
+                int rightCount = 0;
+                for (int bin = BIN_COUNT - 1; bin > 0; bin--) {
+                    growBox(sweepBox, 0, binBoxes, bin * 6);
+                    rightCount += binCounts[bin];
+                    int leftCount = count - rightCount;
+                    if (leftCount == 0 || rightCount == 0) {
+                        continue;
+                    }
+                    float cost = leftAreas[bin - 1] * leftCount + halfArea(sweepBox, 0) * rightCount;
+                    if (cost < bestCost) {
+                        bestCost = cost;
+                        bestAxis = axis;
+                        bestBin = bin;
+                    }
+                }
+            }
+            boolean leafCheaper = nodeArea <= 0 || TRAVERSAL_COST + bestCost / nodeArea >= count;
+            if (bestAxis < 0 || (leafCheaper && count <= MAX_LEAF)) {
+                // Either all centroids coincide and no split separates them, or a leaf is cheaper
+                makeLeaf(node, start, count);
+                return;
+            }
+
+            // Move the primitives left of the split to the front of the range
+            float scale = BIN_COUNT / (cMax[bestAxis] - cMin[bestAxis]);
+            int mid = start;
+            for (int i = start; i < end; i++) {
+                int primitive = order[i];
+                if (binOf(centroids[primitive * 3 + bestAxis], cMin[bestAxis], scale) < bestBin) {
+                    order[i] = order[mid];
+                    order[mid++] = primitive;
+                }
+            }
+            build(start, mid, level + 1);
+            nodes[node * 2] = nodeCount;
+            nodes[node * 2 + 1] = 0;
+            build(mid, end, level + 1);
+        }
+
+        private static int binOf(float centroid, float min, float scale) {
+            return Math.min(BIN_COUNT - 1, (int) ((centroid - min) * scale));
+        }
+
+        private void makeLeaf(int node, int start, int count) {
+            nodes[node * 2] = start;
+            nodes[node * 2 + 1] = count;
+        }
+    }
+}
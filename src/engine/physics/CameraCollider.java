@@ -0,0 +1,81 @@
+package engine.physics;
+
+import org.joml.Vector3f;
+
+import engine.graphics.Camera;
+
+/**
+ * Moves a camera like Camera.movePosition(), treating it as a sphere that is pushed out of the bodies of a Broadphase
+ */
+public class CameraCollider {
+
+    /**
+     * Push outs per move, enough to settle in the corner between a wall and the floor
+     */
+    private static final int ITERATIONS = 4;
+
+    private final Broadphase broadphase;
+
+    private final float radius;
+
+    private final Vector3f min;
+
+    private final Vector3f max;
+
+    private final Vector3f separation;
+
+    private final Vector3f deepest;
+
+    /**
+     * @param broadphase Broadphase The bodies the camera collides with
+     * @param radius float The radius of the sphere around the camera, larger than the near plane distance
+     */
+    public CameraCollider(Broadphase broadphase, float radius) {
+        this.broadphase = broadphase;
+        this.radius = radius;
+        min = new Vector3f();
+        max = new Vector3f();
+        separation = new Vector3f();
+        deepest = new Vector3f();
+    }
+
+    /**
+     * Method to move a camera and push it out of the bodies it ended up in
+     * @param camera Camera The camera
+     * @param offsetX float Displacement to the right of the camera
+     * @param offsetY float Displacement upwards
+     * @param offsetZ float Displacement backwards
+     * @return boolean True if the camera touched a body
+     */
+    public boolean move(Camera camera, float offsetX, float offsetY, float offsetZ) {
+        camera.movePosition(offsetX, offsetY, offsetZ);
+        return resolve(camera.getPosition());
+    }
+
+    /**
+     * Method to push a sphere out of the bodies it overlaps, the deepest overlap first
+     * @param position Vector3f The center of the sphere, moved in place
+     * @return boolean True if the sphere overlapped a body
+     */
+    public boolean resolve(Vector3f position) {
+        boolean collided = false;
+        for (int i = 0; i < ITERATIONS; i++) {
+            deepest.set(0, 0, 0);
+            broadphase.query(position.x - radius, position.y - radius, position.z - radius,
+                    position.x + radius, position.y + radius, position.z + radius, (int body) -> {
+                broadphase.getMin(body, min);
+                broadphase.getMax(body, max);
+                if (Narrowphase.sphereAabb(position, radius, min, max, separation)
+                        && separation.lengthSquared() > deepest.lengthSquared()) {
+                    deepest.set(separation);
+                }
+            });
+            if (deepest.lengthSquared() == 0) {
+                break;
+            }
+            position.add(deepest);
+            collided = true;
+        }
+        return collided;
+    }
+}
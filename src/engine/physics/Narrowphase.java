@@ -0,0 +1,119 @@
+package engine.physics;
+
+import org.joml.Vector3f;
+
+/**
+ * Exact overlap tests for the pairs found by the Broadphase. Every test returns whether the shapes overlap and writes
+ * the shortest translation that moves the first shape out of the second one
+ */
+public final class Narrowphase {
+
+    private Narrowphase() {
+    }
+
+    /**
+     * Method to test two axis aligned boxes
+     * @param minA Vector3f The minimum corner of the first box
+     * @param maxA Vector3f The maximum corner of the first box
+     * @param minB Vector3f The minimum corner of the second box
+     * @param maxB Vector3f The maximum corner of the second box
+     * @param separation Vector3f Receives the translation of the first box along the axis of least penetration, zero without overlap
+     * @return boolean True if the boxes overlap
+     */
+    public static boolean aabbAabb(Vector3f minA, Vector3f maxA, Vector3f minB, Vector3f maxB, Vector3f separation) {
+        separation.set(0, 0, 0);
+        float dx = Math.min(maxA.x - minB.x, maxB.x - minA.x);
+        float dy = Math.min(maxA.y - minB.y, maxB.y - minA.y);
+        float dz = Math.min(maxA.z - minB.z, maxB.z - minA.z);
+        if (dx <= 0 || dy <= 0 || dz <= 0) {
+            return false;
+        }
+        // Push along the axis of least penetration, away from the center of the second box
+        if (dx <= dy && dx <= dz) {
+            separation.x = minA.x + maxA.x < minB.x + maxB.x ? -dx : dx;
+        } else if (dy <= dz) {
+            separation.y = minA.y + maxA.y < minB.y + maxB.y ? -dy : dy;
+        } else {
+            separation.z = minA.z + maxA.z < minB.z + maxB.z ? -dz : dz;
+        }
+        return true;
+    }
+
+    /**
+     * Method to test a sphere against an axis aligned box
+     * @param center Vector3f The center of the sphere
+     * @param radius float The radius of the sphere
+     * @param min Vector3f The minimum corner of the box
+     * @param max Vector3f The maximum corner of the box
+     * @param separation Vector3f Receives the translation of the sphere out of the box, zero without overlap
+     * @return boolean True if the sphere overlaps the box
+     */
+    public static boolean sphereAabb(Vector3f center, float radius, Vector3f min, Vector3f max, Vector3f separation) {
+        separation.set(0, 0, 0);
+        float closestX = Math.max(min.x, Math.min(center.x, max.x));
+        float closestY = Math.max(min.y, Math.min(center.y, max.y));
+        float closestZ = Math.max(min.z, Math.min(center.z, max.z));
+        float dx = center.x - closestX;
+        float dy = center.y - closestY;
+        float dz = center.z - closestZ;
+        float distanceSquared = dx * dx + dy * dy + dz * dz;
+        if (distanceSquared >= radius * radius) {
+            return false;
+        }
+        if (distanceSquared > 0) {
+            float distance = (float) Math.sqrt(distanceSquared);
+            float push = (radius - distance) / distance;
+            separation.set(dx * push, dy * push, dz * push);
+            return true;
+        }
+        // The center is inside the box, leave through the closest face
+        float left = center.x - min.x, right = max.x - center.x;
+        float bottom = center.y - min.y, top = max.y - center.y;
+        float back = center.z - min.z, front = max.z - center.z;
+        float least = Math.min(Math.min(Math.min(left, right), Math.min(bottom, top)), Math.min(back, front));
+        if (least == left) {
+            separation.x = -(left + radius);
+        } else if (least == right) {
+            separation.x = right + radius;
+        } else if (least == bottom) {
+            separation.y = -(bottom + radius);
+        } else if (least == top) {
+            separation.y = top + radius;
+        } else if (least == back) {
+            separation.z = -(back + radius);
+        } else {
+            separation.z = front + radius;
+        }
+        return true;
+    }
+
+    /**
+     * Method to test two spheres
+     * @param centerA Vector3f The center of the first sphere
+     * @param radiusA float The radius of the first sphere
+     * @param centerB Vector3f The center of the second sphere
+     * @param radiusB float The radius of the second sphere
+     * @param separation Vector3f Receives the translation of the first sphere out of the second, zero without overlap
+     * @return boolean True if the spheres overlap
+     */
+    public static boolean sphereSphere(Vector3f centerA, float radiusA, Vector3f centerB, float radiusB, Vector3f separation) {
+        separation.set(0, 0, 0);
+        float dx = centerA.x - centerB.x;
+        float dy = centerA.y - centerB.y;
+        float dz = centerA.z - centerB.z;
+        float distanceSquared = dx * dx + dy * dy + dz * dz;
+        float radius = radiusA + radiusB;
+        if (distanceSquared >= radius * radius) {
+            return false;
+        }
+        if (distanceSquared == 0) {
+            // Same center, any direction separates them
+            separation.y = radius;
+            return true;
+        }
+        float distance = (float) Math.sqrt(distanceSquared);
+        float push = (radius - distance) / distance;
+        separation.set(dx * push, dy * push, dz * push);
+        return true;
+    }
+}
@@ -0,0 +1,129 @@
+package engine.physics;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.joml.Matrix4f;
+import org.joml.Vector2d;
+import org.joml.Vector3f;
+
+import engine.Scene;
+import engine.Window;
+import engine.entities.Entity;
+import engine.input.MouseInput;
+import engine.utilities.Transformation;
+
+/**
+ * Finds the entity under the cursor. The cursor is turned into a ray with the projection and view matrices the last
+ * frame was drawn with, which is then cast against the entities of a scene. The entities added to the scene and the
+ * ones extracted from its world are kept in two SceneBvhs: the first one is only built when the scene changes, the
+ * second one follows the world after every update
+ */
+public class Picker {
+
+    private final SceneBvh sceneBvh;
+
+    private final SceneBvh worldBvh;
+
+    /**
+     * The world entities the world hierarchy was built with, and the ones of the latest update to compare them with
+     */
+    private List<Entity> worldEntities;
+
+    private List<Entity> latestWorldEntities;
+
+    private final Matrix4f viewProjection;
+
+    private final int[] viewport;
+
+    private final Vector3f origin;
+
+    private final Vector3f direction;
+
+    public Picker() {
+        sceneBvh = new SceneBvh();
+        worldBvh = new SceneBvh();
+        worldEntities = new ArrayList<>();
+        latestWorldEntities = new ArrayList<>();
+        viewProjection = new Matrix4f();
+        viewport = new int[4];
+        origin = new Vector3f();
+        direction = new Vector3f();
+    }
+
+    /**
+     * Method to collect the entities of a scene that can be picked, has to be called again once entities were added
+     * to or removed from the scene itself
+     * @param scene Scene The scene, with the entities of its world as of its last update
+     */
+    public void build(Scene scene) {
+        List<Entity> entities = new ArrayList<>(scene.getUniqueEntites());
+        for (List<Entity> list : scene.getEntityMeshes().values()) {
+            entities.addAll(list);
+        }
+        sceneBvh.build(entities);
+        update(scene);
+    }
+
+    /**
+     * Method to follow the entities of the world of a scene, has to be called after every Scene.update().
+     * Their hierarchy is rebuilt when entities were created or destroyed, and refit when they only moved
+     * @param scene Scene The scene, with the entities of its world as of its last update
+     */
+    public void update(Scene scene) {
+        latestWorldEntities.clear();
+        for (List<Entity> list : scene.getWorldMeshes().values()) {
+            latestWorldEntities.addAll(list);
+        }
+        if (latestWorldEntities.equals(worldEntities)) {
+            worldBvh.refit();
+            return;
+        }
+        List<Entity> entities = worldEntities;
+        worldEntities = latestWorldEntities;
+        latestWorldEntities = entities;
+        worldBvh.build(worldEntities);
+    }
+
+    /**
+     * Method to update the bounds of all entities after they moved
+     */
+    public void refit() {
+        sceneBvh.refit();
+        worldBvh.refit();
+    }
+
+    /**
+     * Method to pick the nearest entity under the cursor
+     * @param window Window The window the scene is drawn in
+     * @param mouseInput MouseInput The position of the cursor
+     * @param transformation Transformation The matrices the scene was drawn with
+     * @param hit RayHit Receives the entity, the triangle of its mesh and the world space point that was hit
+     * @return boolean True if an entity is under the cursor
+     */
+    public boolean pick(Window window, MouseInput mouseInput, Transformation transformation, RayHit hit) {
+        Vector2d cursor = mouseInput.getCurrentPos();
+        viewport[2] = window.getWidth();
+        viewport[3] = window.getHeight();
+        // The cursor is measured from the top of the window, the viewport from the bottom
+        transformation.getProjectionMatrix().mul(transformation.getViewMatrix(), viewProjection)
+                .unprojectRay((float) cursor.x, (float) (window.getHeight() - cursor.y), viewport, origin, direction);
+        direction.normalize();
+        return raycast(origin, direction, Float.POSITIVE_INFINITY, hit);
+    }
+
+    /**
+     * Method to cast a ray against the entities
+     * @param origin Vector3f The start of the ray in world space
+     * @param direction Vector3f The direction of the ray, normalized to measure distances in world units
+     * @param maxDistance float Entities further away are ignored
+     * @param hit RayHit Receives the nearest hit
+     * @return boolean True if an entity was hit
+     */
+    public boolean raycast(Vector3f origin, Vector3f direction, float maxDistance, RayHit hit) {
+        hit.reset();
+        // The second cast only replaces the hit if it finds a closer one
+        boolean found = sceneBvh.intersect(origin, direction, maxDistance, hit);
+        return worldBvh.intersect(origin, direction, maxDistance, hit) || found;
+    }
+}
@@ -0,0 +1,72 @@
+package engine.physics;
+
+import org.joml.Vector3f;
+
+import engine.entities.Entity;
+
+/**
+ * The nearest hit of a ray cast, filled in by TriangleBvh, SceneBvh and Picker. Can be reused for many casts
+ */
+public class RayHit {
+
+    private Entity entity;
+
+    private int triangle;
+
+    private float distance;
+
+    private final Vector3f point;
+
+    public RayHit() {
+        point = new Vector3f();
+        reset();
+    }
+
+    /**
+     * Method to forget the last hit
+     */
+    public void reset() {
+        entity = null;
+        triangle = -1;
+        distance = Float.POSITIVE_INFINITY;
+        point.set(0, 0, 0);
+    }
+
+    /**
+     * @return The entity that was hit, null for a hit on a single mesh
+     */
+    public Entity getEntity() {
+        return entity;
+    }
+
+    /**
+     * @return The index of the triangle of the mesh, in the order of its triangle list, or -1 if only its bounds were hit
+     */
+    public int getTriangle() {
+        return triangle;
+    }
+
+    /**
+     * @return The distance along the ray, in units of its direction
+     */
+    public float getDistance() {
+        return distance;
+    }
+
+    /**
+     * @return The point that was hit, in world space for entities and in model space for a single mesh
+     */
+    public Vector3f getPoint() {
+        return point;
+    }
+
+    void set(Entity entity, int triangle, float distance) {
+        this.entity = entity;
+        this.triangle = triangle;
+        this.distance = distance;
+    }
+
+    void setEntity(Entity entity) {
+        this.entity = entity;
+    }
+}
@@ -0,0 +1,217 @@
+package engine.physics;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+
+import engine.entities.Entity;
+import engine.graphics.Mesh;
+import engine.utilities.Transformation;
+
+/**
+ * A bounding volume hierarchy over the world space boxes of entities. A ray first finds the entities whose boxes it
+ * passes through, nearest first, and is then moved into the model space of each of them to be cast against the
+ * TriangleBvh of its mesh, so the triangles never have to be transformed.
+ * The hierarchy only knows the entities it was built with: build() again after adding or removing entities, and
+ * refit() after moving them.
+ */
+public class SceneBvh {
+
+    private Entity[] entities;
+
+    private float[] boxes;
+
+    private BvhTree tree;
+
+    private final Transformation transformation;
+
+    private final Matrix4f inverseModel;
+
+    private final Vector3f corner;
+
+    private final Vector3f localOrigin;
+
+    private final Vector3f localDirection;
+
+    public SceneBvh() {
+        entities = new Entity[0];
+        boxes = new float[0];
+        tree = BvhTree.build(boxes, 0);
+        transformation = new Transformation();
+        inverseModel = new Matrix4f();
+        corner = new Vector3f();
+        localOrigin = new Vector3f();
+        localDirection = new Vector3f();
+    }
+
+    /**
+     * Method to build the hierarchy anew
+     * @param entities List<Entity> The entities, those without a mesh are left out
+     */
+    public void build(List<Entity> entities) {
+        List<Entity> withMesh = new ArrayList<>(entities.size());
+        for (Entity entity : entities) {
+            if (entity.getMesh() != null) {
+                withMesh.add(entity);
+            }
+        }
+        this.entities = withMesh.toArray(new Entity[withMesh.size()]);
+        boxes = new float[this.entities.length * 6];
+        updateBoxes();
+        tree = BvhTree.build(boxes, this.entities.length);
+    }
+
+    /**
+     * Method to update the boxes of the hierarchy after entities moved, without changing its structure
+     */
+    public void refit() {
+        updateBoxes();
+        tree.refit(boxes);
+    }
+
+    public int getEntityCount() {
+        return entities.length;
+    }
+
+    private void updateBoxes() {
+        for (int i = 0; i < entities.length; i++) {
+            Entity entity = entities[i];
+            Matrix4f modelMatrix = transformation.buildModelMatrix(entity);
+            Mesh mesh = entity.getMesh();
+            Vector3f min = mesh.getBoundsMin();
+            Vector3f max = mesh.getBoundsMax();
+            int base = i * 6;
+            boxes[base] = boxes[base + 1] = boxes[base + 2] = Float.POSITIVE_INFINITY;
+            boxes[base + 3] = boxes[base + 4] = boxes[base + 5] = Float.NEGATIVE_INFINITY;
+            for (int c = 0; c < 8; c++) {
+                corner.set((c & 1) == 0 ? min.x : max.x, (c & 2) == 0 ? min.y : max.y, (c & 4) == 0 ? min.z : max.z);
+                modelMatrix.transformPosition(corner);
+                boxes[base] = Math.min(boxes[base], corner.x);
+                boxes[base + 1] = Math.min(boxes[base + 1], corner.y);
+                boxes[base + 2] = Math.min(boxes[base + 2], corner.z);
+                boxes[base + 3] = Math.max(boxes[base + 3], corner.x);
+                boxes[base + 4] = Math.max(boxes[base + 4], corner.y);
+                boxes[base + 5] = Math.max(boxes[base + 5], corner.z);
+            }
+        }
+    }
+
+    /**
+     * Method to find the nearest entity hit by a ray
+     * @param origin Vector3f The start of the ray in world space
+     * @param direction Vector3f The direction of the ray in world space, distances are measured in its length
+     * @param maxDistance float Entities further away are ignored
+     * @param hit RayHit Receives the entity, triangle, distance and world space point, only if something closer than its distance was hit
+     * @return boolean True if an entity was hit
+     */
+    public boolean intersect(Vector3f origin, Vector3f direction, float maxDistance, RayHit hit) {
+        if (entities.length == 0) {
+            return false;
+        }
+        float ox = origin.x, oy = origin.y, oz = origin.z;
+        float invX = 1.0f / direction.x, invY = 1.0f / direction.y, invZ = 1.0f / direction.z;
+        float nearest = Math.min(maxDistance, hit.getDistance());
+        if (tree.intersectNode(0, ox, oy, oz, invX, invY, invZ, nearest) == Float.POSITIVE_INFINITY) {
+            return false;
+        }
+        int[] nodes = tree.nodes;
+        int[] stack = new int[tree.depth + 1];
+        int stackSize = 0;
+        int node = 0;
+        boolean found = false;
+        while (true) {
+            int count = nodes[node * 2 + 1];
+            if (count > 0) {
+                int first = nodes[node * 2];
+                for (int i = first; i < first + count; i++) {
+                    int entity = tree.order[i];
+                    // The box of the entity itself, tighter than the one of the leaf
+                    if (intersectBox(entity, ox, oy, oz, invX, invY, invZ, nearest)
+                            && intersectEntity(entities[entity], origin, direction, nearest, hit)) {
+                        nearest = hit.getDistance();
+                        found = true;
+                    }
+                }
+            } else {
+                int left = node + 1;
+                int right = nodes[node * 2];
+                float tLeft = tree.intersectNode(left, ox, oy, oz, invX, invY, invZ, nearest);
+                float tRight = tree.intersectNode(right, ox, oy, oz, invX, invY, invZ, nearest);
+                if (tLeft != Float.POSITIVE_INFINITY && tRight != Float.POSITIVE_INFINITY) {
+                    if (tRight < tLeft) {
+                        node = right;
+                        stack[stackSize++] = left;
+                    } else {
+                        node = left;
+                        stack[stackSize++] = right;
+                    }
+                    continue;
+                } else if (tLeft != Float.POSITIVE_INFINITY) {
+                    node = left;
+                    continue;
+                } else if (tRight != Float.POSITIVE_INFINITY) {
+                    node = right;
+                    continue;
+                }
+            }
+            if (stackSize == 0) {
+                break;
+            }
+            node = stack[--stackSize];
+        }
+        return found;
+    }
+
+    private boolean intersectBox(int entity, float ox, float oy, float oz, float invX, float invY, float invZ, float maxDistance) {
+        int base = entity * 6;
+        float tx1 = (boxes[base] - ox) * invX, tx2 = (boxes[base + 3] - ox) * invX;
+        float ty1 = (boxes[base + 1] - oy) * invY, ty2 = (boxes[base + 4] - oy) * invY;
+        float tz1 = (boxes[base + 2] - oz) * invZ, tz2 = (boxes[base + 5] - oz) * invZ;
+        float tMin = Math.max(Math.max(Math.min(tx1, tx2), Math.min(ty1, ty2)), Math.min(tz1, tz2));
+        float tMax = Math.min(Math.min(Math.max(tx1, tx2), Math.max(ty1, ty2)), Math.max(tz1, tz2));
+        return tMax >= Math.max(tMin, 0) && tMin <= maxDistance;
+    }
+
+    /**
+     * Method to cast the ray against the triangles of an entity in its model space. An affine transform keeps the
+     * distances along the ray, so they compare directly with the ones of other entities
+     */
+    private boolean intersectEntity(Entity entity, Vector3f origin, Vector3f direction, float maxDistance, RayHit hit) {
+        transformation.buildModelMatrix(entity).invertAffine(inverseModel);
+        inverseModel.transformPosition(origin, localOrigin);
+        inverseModel.transformDirection(direction, localDirection);
+        Mesh mesh = entity.getMesh();
+        TriangleBvh triangles = mesh.getTriangleBvh();
+        if (triangles != null) {
+            if (!triangles.intersect(localOrigin, localDirection, maxDistance, hit)) {
+                return false;
+            }
+        } else {
+            // Meshes without triangles on the heap are picked by their bounds
+            float distance = intersectBounds(mesh.getBoundsMin(), mesh.getBoundsMax(), maxDistance);
+            if (distance == Float.POSITIVE_INFINITY) {
+                return false;
+            }
+            hit.set(null, -1, distance);
+        }
+        hit.setEntity(entity);
+        hit.getPoint().set(direction).mul(hit.getDistance()).add(origin);
+        return true;
+    }
+
+    private float intersectBounds(Vector3f min, Vector3f max, float maxDistance) {
+        float tMin = 0;
+        float tMax = maxDistance;
+        for (int axis = 0; axis < 3; axis++) {
+            float o = localOrigin.get(axis);
+            float inv = 1.0f / localDirection.get(axis);
+            float t1 = (min.get(axis) - o) * inv;
+            float t2 = (max.get(axis) - o) * inv;
+            tMin = Math.max(tMin, Math.min(t1, t2));
+            tMax = Math.min(tMax, Math.max(t1, t2));
+        }
+        return tMin <= tMax ? tMin : Float.POSITIVE_INFINITY;
+    }
+}
@@ -0,0 +1,158 @@
+package engine.physics;
+
+import org.joml.Vector3f;
+
+/**
+ * A bounding volume hierarchy over the triangles of a mesh, to cast rays against the mesh without testing every
+ * triangle. Built once from the triangle list the mesh is created from. The vertices are copied in the order of the
+ * leaves, so the triangles of a leaf are tested from one contiguous run of memory
+ */
+public class TriangleBvh {
+
+    /**
+     * Hits closer to the edge of a triangle than this, in barycentric coordinates, still count, so rays through a
+     * shared edge do not slip between the two triangles
+     */
+    private static final float EDGE_EPSILON = 1e-6f;
+
+    private final BvhTree tree;
+
+    /**
+     * Nine floats per triangle in the order of the leaves
+     */
+    private final float[] vertices;
+
+    /**
+     * Method to build the hierarchy of a triangle list
+     * @param positions float[] The flattened vertices
+     * @param indices int[] Three indices per triangle
+     */
+    public TriangleBvh(float[] positions, int[] indices) {
+        int triangleCount = indices.length / 3;
+        float[] boxes = new float[triangleCount * 6];
+        for (int t = 0; t < triangleCount; t++) {
+            int a = indices[t * 3] * 3, b = indices[t * 3 + 1] * 3, c = indices[t * 3 + 2] * 3;
+            for (int axis = 0; axis < 3; axis++) {
+                float pa = positions[a + axis], pb = positions[b + axis], pc = positions[c + axis];
+                boxes[t * 6 + axis] = Math.min(pa, Math.min(pb, pc));
+                boxes[t * 6 + 3 + axis] = Math.max(pa, Math.max(pb, pc));
+            }
+        }
+        tree = BvhTree.build(boxes, triangleCount);
+        vertices = new float[triangleCount * 9];
+        for (int i = 0; i < triangleCount; i++) {
+            int t = tree.order[i];
+            for (int corner = 0; corner < 3; corner++) {
+                System.arraycopy(positions, indices[t * 3 + corner] * 3, vertices, i * 9 + corner * 3, 3);
+            }
+        }
+    }
+
+    public int getTriangleCount() {
+        return tree.order.length;
+    }
+
+    public int getNodeCount() {
+        return tree.nodeCount;
+    }
+
+    /**
+     * Method to find the nearest triangle hit by a ray
+     * @param origin Vector3f The start of the ray
+     * @param direction Vector3f The direction of the ray, distances are measured in its length
+     * @param maxDistance float Triangles further away are ignored
+     * @param hit RayHit Receives the triangle, distance and point in the space of the ray, only if a triangle closer than its distance was hit
+     * @return boolean True if a triangle was hit
+     */
+    public boolean intersect(Vector3f origin, Vector3f direction, float maxDistance, RayHit hit) {
+        int triangle = -1;
+        float nearest = Math.min(maxDistance, hit.getDistance());
+        if (tree.order.length == 0) {
+            return false;
+        }
+        float ox = origin.x, oy = origin.y, oz = origin.z;
+        float dx = direction.x, dy = direction.y, dz = direction.z;
+        float invX = 1.0f / dx, invY = 1.0f / dy, invZ = 1.0f / dz;
+        int[] nodes = tree.nodes;
+        int[] stack = new int[tree.depth + 1];
+        int stackSize = 0;
+        int node = 0;
+        if (tree.intersectNode(0, ox, oy, oz, invX, invY, invZ, nearest) == Float.POSITIVE_INFINITY) {
+            return false;
+        }
+        while (true) {
+            int count = nodes[node * 2 + 1];
+            if (count > 0) {
+                int first = nodes[node * 2];
+                for (int i = first; i < first + count; i++) {
+                    float t = intersectTriangle(i * 9, ox, oy, oz, dx, dy, dz);
+                    if (t < nearest) {
+                        nearest = t;
+                        triangle = tree.order[i];
+                    }
+                }
+            } else {
+                // Visit the nearer child first, so the farther one is often culled by the hit found in the nearer one
+                int left = node + 1;
+                int right = nodes[node * 2];
+                float tLeft = tree.intersectNode(left, ox, oy, oz, invX, invY, invZ, nearest);
+                float tRight = tree.intersectNode(right, ox, oy, oz, invX, invY, invZ, nearest);
+                if (tLeft != Float.POSITIVE_INFINITY && tRight != Float.POSITIVE_INFINITY) {
+                    if (tRight < tLeft) {
+                        node = right;
+                        stack[stackSize++] = left;
+                    } else {
+                        node = left;
+                        stack[stackSize++] = right;
+                    }
+                    continue;
+                } else if (tLeft != Float.POSITIVE_INFINITY) {
+                    node = left;
+                    continue;
+                } else if (tRight != Float.POSITIVE_INFINITY) {
+                    node = right;
+                    continue;
+                }
+            }
+            if (stackSize == 0) {
+                break;
+            }
+            node = stack[--stackSize];
+        }
+        if (triangle < 0) {
+            return false;
+        }
+        hit.set(null, triangle, nearest);
+        hit.getPoint().set(dx, dy, dz).mul(nearest).add(ox, oy, oz);
+        return true;
+    }
+
+    /**
+     * Moller-Trumbore intersection of a ray with both sides of a triangle
+     * @return float The distance of the hit, or infinity
+     */
+    private float intersectTriangle(int base, float ox, float oy, float oz, float dx, float dy, float dz) {
+        float[] v = vertices;
+        float ax = v[base], ay = v[base + 1], az = v[base + 2];
+        float e1x = v[base + 3] - ax, e1y = v[base + 4] - ay, e1z = v[base + 5] - az;
+        float e2x = v[base + 6] - ax, e2y = v[base + 7] - ay, e2z = v[base + 8] - az;
+        float px = dy * e2z - dz * e2y, py = dz * e2x - dx * e2z, pz = dx * e2y - dy * e2x;
+        float det = e1x * px + e1y * py + e1z * pz;
+        if (det == 0) {
+            return Float.POSITIVE_INFINITY;
+        }
+        float invDet = 1.0f / det;
+        float sx = ox - ax, sy = oy - ay, sz = oz - az;
+        float u = (sx * px + sy * py + sz * pz) * invDet;
+        if (u < -EDGE_EPSILON || u > 1 + EDGE_EPSILON) {
+            return Float.POSITIVE_INFINITY;
+        }
+        float qx = sy * e1z - sz * e1y, qy = sz * e1x - sx * e1z, qz = sx * e1y - sy * e1x;
+        float w = (dx * qx + dy * qy + dz * qz) * invDet;
+        if (w < -EDGE_EPSILON || u + w > 1 + EDGE_EPSILON) {
+            return Float.POSITIVE_INFINITY;
+        }
+        float t = (e2x * qx + e2y * qy + e2z * qz) * invDet;
+        return t >= 0 ? t : Float.POSITIVE_INFINITY;
+    }
+}
@@ -0,0 +1,55 @@
+package engine.utilities;
+
+import engine.graphics.GeometryArena;
+import engine.graphics.Mesh;
+
+/**
+ * The vertex attributes and indices of a mesh kept on the heap, so they can be processed before the mesh is uploaded
+ */
+public class MeshData {
+
+    private final float[] positions;
+
+    private final float[] textCoords;
+
+    private final float[] normals;
+
+    private final int[] indices;
+
+    public MeshData(float[] positions, float[] textCoords, float[] normals, int[] indices) {
+        this.positions = positions;
+        this.textCoords = textCoords;
+        this.normals = normals;
+        this.indices = indices;
+    }
+
+    public float[] getPositions() {
+        return positions;
+    }
+
+    public float[] getTextCoords() {
+        return textCoords;
+    }
+
+    public float[] getNormals() {
+        return normals;
+    }
+
+    public int[] getIndices() {
+        return indices;
+    }
+
+    public int getVertexCount() {
+        return positions.length / 3;
+    }
+
+    /**
+     * Method to upload the data into a new mesh
+     * @param arena GeometryArena The arena to place the mesh into, or null to create a standalone mesh
+     * @return Mesh The new mesh
+     */
+    public Mesh createMesh(GeometryArena arena) {
+        return arena != null ? new Mesh(arena, positions, textCoords, normals, indices)
+                : new Mesh(positions, textCoords, normals, indices);
+    }
+}
@@ -0,0 +1,387 @@
+package engine.utilities;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import engine.graphics.HeightMapMesh;
+
+/**
+ * Reorders the triangles and vertices of meshes for the GPU, in three steps:
+ * the triangles are reordered for the post-transform vertex cache with the Tipsify algorithm of Sander, Nehab and Barczak,
+ * the resulting clusters of triangles are sorted so that outward facing clusters are drawn first to reduce overdraw,
+ * and the vertices are renumbered in the order they are first used so vertex fetches walk through memory linearly.
+ * The quality of an order is measured by the ACMR, the average number of vertices transformed per triangle,
+ * and the ATVR, the average number of times every vertex is transformed, both for a FIFO cache of CACHE_SIZE entries.
+ * Running the class prints both before and after optimizing the given *.obj resources and terrain grids.
+ */
+public class MeshOptimizer {
+
+    /**
+     * Entries of the simulated post-transform cache, small enough to be met by any GPU
+     */
+    public static final int CACHE_SIZE = 16;
+
+    /**
+     * The overdraw sort may raise the ACMR by this factor at most, otherwise the cache order is kept.
+     * Clusters are also closed once their own ACMR is within this factor of the ACMR of the whole mesh
+     */
+    private static final float OVERDRAW_THRESHOLD = 1.1f;
+
+    /**
+     * Every cluster starts with a cold cache, so clusters have to be large for the vertex cache to stay effective
+     */
+    private static final int MIN_CLUSTER_TRIANGLES = 128;
+
+    /**
+     * Method to reorder the triangles and the vertices of a mesh
+     * @param data MeshData The mesh to optimize, which is left unchanged
+     * @return MeshData The optimized mesh, without the vertices no triangle uses
+     */
+    public static MeshData optimize(MeshData data) {
+        int[] indices = optimizeIndices(data.getIndices(), data.getPositions());
+        return optimizeVertexFetch(new MeshData(data.getPositions(), data.getTextCoords(), data.getNormals(), indices));
+    }
+
+    /**
+     * Method to reorder triangles for the vertex cache and then by cluster for less overdraw
+     * @param indices int[] The triangle indices
+     * @param positions float[] The flattened vertex positions
+     * @return int[] The reordered triangle indices
+     */
+    public static int[] optimizeIndices(int[] indices, float[] positions) {
+        List<Integer> clusters = new ArrayList<>();
+        int[] ordered = tipsify(indices, positions.length / 3, CACHE_SIZE, clusters);
+        if (acmr(indices, CACHE_SIZE) < acmr(ordered, CACHE_SIZE)) {
+            // Some exporters already optimize for the cache, keep their order and only split it into clusters
+            ordered = indices;
+            clusters.clear();
+        }
+        int[] sorted = optimizeOverdraw(ordered, positions, splitClusters(ordered, clusters));
+        return acmr(sorted, CACHE_SIZE) <= acmr(ordered, CACHE_SIZE) * OVERDRAW_THRESHOLD ? sorted : ordered;
+    }
+
+    /**
+     * Method to reorder triangles for the post-transform vertex cache
+     * @param indices int[] The triangle indices
+     * @param vertexCount int The number of vertices of the mesh
+     * @return int[] The reordered triangle indices
+     */
+    public static int[] optimizeVertexCache(int[] indices, int vertexCount) {
+        return tipsify(indices, vertexCount, CACHE_SIZE, new ArrayList<Integer>());
+    }
+
+    /**
+     * Tipsify: fans out the triangles around a vertex, then continues with the neighbour that will stay in the
+     * cache the longest. Dead ends continue with the most recently used vertex that still has triangles left.
+     * @param clusters List<Integer> Receives the first triangle of every run that had to jump to a vertex outside the cache
+     */
+    private static int[] tipsify(int[] indices, int vertexCount, int cacheSize, List<Integer> clusters) {
+        int triangleCount = indices.length / 3;
+
+        // Triangles around every vertex, as offsets into one array
+        int[] liveCount = new int[vertexCount];
+        for (int index : indices) {
+            liveCount[index]++;
+        }
+        int[] offsets = new int[vertexCount + 1];
+        for (int v = 0; v < vertexCount; v++) {
+            offsets[v + 1] = offsets[v] + liveCount[v];
+        }
+        int[] adjacency = new int[indices.length];
+        int[] fill = Arrays.copyOf(offsets, vertexCount);
+        for (int i = 0; i < indices.length; i++) {
+            adjacency[fill[indices[i]]++] = i / 3;
+        }
+
+        int[] cacheTime = new int[vertexCount];
+        boolean[] emitted = new boolean[triangleCount];
+        int[] deadEnds = new int[indices.length];
+        int deadEndCount = 0;
+        int[] candidates = new int[indices.length];
+        int[] output = new int[indices.length];
+        int outputCount = 0;
+
+        int time = cacheSize + 1;
+        int cursor = 0;
+        int fanning = vertexCount > 0 ? 0 : -1;
+        boolean jumped = true;
+        while (fanning >= 0) {
+            if (jumped && liveCount[fanning] > 0) {
+                clusters.add(outputCount / 3);
+            }
+            int candidateCount = 0;
+            for (int i = offsets[fanning]; i < offsets[fanning + 1]; i++) {
+                int t = adjacency[i];
+                if (emitted[t]) {
+                    continue;
+                }
+                emitted[t] = true;
+                for (int j = 0; j < 3; j++) {
+                    int v = indices[t * 3 + j];
+                    output[outputCount++] = v;
+                    deadEnds[deadEndCount++] = v;
+                    candidates[candidateCount++] = v;
+                    liveCount[v]--;
+                    if (time - cacheTime[v] > cacheSize) {
+                        cacheTime[v] = time;
+                        time++;
+                    }
+                }
+            }
+
+            // The candidate with triangles left which stays in the cache the longest after fanning it
+            int next = -1;
+            int best = -1;
+            for (int i = 0; i < candidateCount; i++) {
+                int v = candidates[i];
+                if (liveCount[v] <= 0) {
+                    continue;
+                }
+                int priority = 0;
+                if (time - cacheTime[v] + 2 * liveCount[v] <= cacheSize) {
+                    priority = time - cacheTime[v];
+                }
+                if (priority > best) {
+                    best = priority;
+                    next = v;
+                }
+            }
+            jumped = next < 0;
+            if (next < 0) {
+                while (deadEndCount > 0 && next < 0) {
+                    int v = deadEnds[--deadEndCount];
+                    next = liveCount[v] > 0 ? v : -1;
+                }
+            }
+            while (next < 0 && cursor < vertexCount) {
+                next = liveCount[cursor] > 0 ? cursor : -1;
+                cursor++;
+            }
+            fanning = next;
+        }
+        return output;
+    }
+
+    /**
+     * Splits the runs found by Tipsify further, wherever a run has used the cache about as well as the whole mesh.
+     * Starting a new cluster there costs little, and smaller clusters can be sorted more finely
+     * @return int[] The first triangle of every cluster, followed by the triangle count
+     */
+    private static int[] splitClusters(int[] indices, List<Integer> hardClusters) {
+        int triangleCount = indices.length / 3;
+        float threshold = acmr(indices, CACHE_SIZE) * OVERDRAW_THRESHOLD;
+        int vertexCount = 0;
+        for (int index : indices) {
+            vertexCount = Math.max(vertexCount, index + 1);
+        }
+
+        List<Integer> clusters = new ArrayList<>();
+        int[] cacheTime = new int[vertexCount];
+        Arrays.fill(cacheTime, -CACHE_SIZE - 1);
+        int time = 0;
+        int misses = 0;
+        int clusterStart = 0;
+        int hard = 0;
+        for (int t = 0; t < triangleCount; t++) {
+            boolean hardStart = hard < hardClusters.size() && hardClusters.get(hard) == t;
+            if (hardStart) {
+                hard++;
+            }
+            if (t == 0 || hardStart || (t - clusterStart >= MIN_CLUSTER_TRIANGLES && misses <= threshold * (t - clusterStart))) {
+                clusters.add(t);
+                clusterStart = t;
+                misses = 0;
+            }
+            for (int j = 0; j < 3; j++) {
+                int v = indices[t * 3 + j];
+                if (time - cacheTime[v] > CACHE_SIZE) {
+                    cacheTime[v] = time;
+                    time++;
+                    misses++;
+                }
+            }
+        }
+        int[] starts = new int[clusters.size() + 1];
+        for (int i = 0; i < clusters.size(); i++) {
+            starts[i] = clusters.get(i);
+        }
+        starts[clusters.size()] = triangleCount;
+        return starts;
+    }
+
+    /**
+     * Sorts clusters of triangles by how much they face away from the center of the mesh. Clusters on the outside
+     * are drawn first, so they can hide the clusters behind them from the fragment shader
+     * @param clusterStarts int[] The first triangle of every cluster, followed by the triangle count
+     */
+    private static int[] optimizeOverdraw(int[] indices, float[] positions, int[] clusterStarts) {
+        int clusterCount = clusterStarts.length - 1;
+        if (clusterCount < 2) {
+            return indices;
+        }
+        float[] centroids = new float[clusterCount * 3];
+        float[] normals = new float[clusterCount * 3];
+        float[] areas = new float[clusterCount];
+        float centerX = 0, centerY = 0, centerZ = 0, totalArea = 0;
+        for (int c = 0; c < clusterCount; c++) {
+            for (int t = clusterStarts[c]; t < clusterStarts[c + 1]; t++) {
+                int a = indices[t * 3] * 3, b = indices[t * 3 + 1] * 3, d = indices[t * 3 + 2] * 3;
+                float abx = positions[b] - positions[a], aby = positions[b + 1] - positions[a + 1], abz = positions[b + 2] - positions[a + 2];
+                float adx = positions[d] - positions[a], ady = positions[d + 1] - positions[a + 1], adz = positions[d + 2] - positions[a + 2];
+                float nx = aby * adz - abz * ady, ny = abz * adx - abx * adz, nz = abx * ady - aby * adx;
+                float area = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+                normals[c * 3] += nx;
+                normals[c * 3 + 1] += ny;
+                normals[c * 3 + 2] += nz;
+                for (int k = 0; k < 3; k++) {
+                    centroids[c * 3 + k] += area * (positions[a + k] + positions[b + k] + positions[d + k]) / 3;
+                }
+                areas[c] += area;
+            }
+            centerX += centroids[c * 3];
+            centerY += centroids[c * 3 + 1];
+            centerZ += centroids[c * 3 + 2];
+            totalArea += areas[c];
+        }
+        if (totalArea == 0) {
+            return indices;
+        }
+        centerX /= totalArea;
+        centerY /= totalArea;
+        centerZ /= totalArea;
+
+        // Sort keys, the order of the dot product in the upper and the cluster in the lower 32 bits
+        long[] keys = new long[clusterCount];
+        for (int c = 0; c < clusterCount; c++) {
+            float dot = 0;
+            float length = (float) Math.sqrt(normals[c * 3] * normals[c * 3] + normals[c * 3 + 1] * normals[c * 3 + 1]
+                    + normals[c * 3 + 2] * normals[c * 3 + 2]);
+            if (areas[c] > 0 && length > 0) {
+                dot = ((centroids[c * 3] / areas[c] - centerX) * normals[c * 3]
+                        + (centroids[c * 3 + 1] / areas[c] - centerY) * normals[c * 3 + 1]
+                        + (centroids[c * 3 + 2] / areas[c] - centerZ) * normals[c * 3 + 2]) / length;
+            }
+            keys[c] = ((long) sortableBits(-dot) << 32) | c;
+        }
+        Arrays.sort(keys);
+
+        int[] output = new int[indices.length];
+        int position = 0;
+        for (long key : keys) {
+            int c = (int) key;
+            int length = (clusterStarts[c + 1] - clusterStarts[c]) * 3;
+            System.arraycopy(indices, clusterStarts[c] * 3, output, position, length);
+            position += length;
+        }
+        return output;
+    }
+
+    /**
+     * Maps a float to an int which sorts as a signed int in the same order as the float
+     */
+    private static int sortableBits(float value) {
+        int bits = Float.floatToIntBits(value);
+        return bits >= 0 ? bits : bits ^ 0x7fffffff;
+    }
+
+    /**
+     * Method to renumber the vertices in the order the triangles first use them, dropping unused vertices
+     * @param data MeshData The mesh
+     * @return MeshData The mesh with its attributes and indices renumbered
+     */
+    public static MeshData optimizeVertexFetch(MeshData data) {
+        int[] indices = data.getIndices().clone();
+        int[] remap = new int[data.getVertexCount()];
+        Arrays.fill(remap, -1);
+        int vertexCount = 0;
+        for (int i = 0; i < indices.length; i++) {
+            int v = indices[i];
+            if (remap[v] < 0) {
+                remap[v] = vertexCount++;
+            }
+            indices[i] = remap[v];
+        }
+        return new MeshData(remap(data.getPositions(), remap, 3, vertexCount), remap(data.getTextCoords(), remap, 2, vertexCount),
+                remap(data.getNormals(), remap, 3, vertexCount), indices);
+    }
+
+    private static float[] remap(float[] data, int[] remap, int components, int vertexCount) {
+        float[] result = new float[vertexCount * components];
+        for (int v = 0; v < remap.length && (v + 1) * components <= data.length; v++) {
+            if (remap[v] >= 0) {
+                System.arraycopy(data, v * components, result, remap[v] * components, components);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Method to simulate a FIFO post-transform cache
+     * @param indices int[] The triangle indices
+     * @param cacheSize int The number of entries of the cache
+     * @return int The number of vertices the vertex shader runs for
+     */
+    public static int countTransforms(int[] indices, int cacheSize) {
+        int vertexCount = 0;
+        for (int index : indices) {
+            vertexCount = Math.max(vertexCount, index + 1);
+        }
+        int[] cacheTime = new int[vertexCount];
+        Arrays.fill(cacheTime, -cacheSize - 1);
+        int time = 0;
+        for (int v : indices) {
+            if (time - cacheTime[v] > cacheSize) {
+                cacheTime[v] = time;
+                time++;
+            }
+        }
+        return time;
+    }
+
+    /**
+     * @return The average number of vertices transformed per triangle, between 0.5 for ideal and 3
+     */
+    public static float acmr(int[] indices, int cacheSize) {
+        return indices.length == 0 ? 0 : countTransforms(indices, cacheSize) / (indices.length / 3.0f);
+    }
+
+    /**
+     * @return The average number of times every vertex is transformed, 1 is ideal
+     */
+    public static float atvr(int[] indices, int vertexCount, int cacheSize) {
+        return vertexCount == 0 ? 0 : countTransforms(indices, cacheSize) / (float) vertexCount;
+    }
+
+    /**
+     * Prints the ACMR and ATVR of meshes before and after optimizing them
+     * @param args String[] Resource paths of *.obj files, or grid:WIDTHxHEIGHT for a terrain grid as built by HeightMapMesh
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            System.err.println("Usage: MeshOptimizer (model.obj | grid:WIDTHxHEIGHT)...");
+            return;
+        }
+        for (String arg : args) {
+            MeshData data;
+            if (arg.startsWith("grid:")) {
+                String[] size = arg.substring(5).split("x");
+                int width = Integer.parseInt(size[0]);
+                int height = Integer.parseInt(size[1]);
+                float[] positions = new float[width * height * 3];
+                for (int i = 0; i < width * height; i++) {
+                    positions[i * 3] = i % width;
+                    positions[i * 3 + 2] = i / width;
+                }
+                data = new MeshData(positions, new float[0], new float[0], HeightMapMesh.createIndices(width, height));
+            } else {
+                data = OBJLoader.loadMeshData(arg);
+            }
+            MeshData optimized = optimize(data);
+            int vertexCount = optimized.getVertexCount();
+            System.out.println(String.format("%s: %d triangles, ACMR %.3f -> %.3f, ATVR %.3f -> %.3f", arg,
+                    data.getIndices().length / 3, acmr(data.getIndices(), CACHE_SIZE), acmr(optimized.getIndices(), CACHE_SIZE),
+                    atvr(data.getIndices(), vertexCount, CACHE_SIZE), atvr(optimized.getIndices(), vertexCount, CACHE_SIZE)));
+        }
+    }
+}
@@ -0,0 +1,450 @@
+package engine.utilities;
+
+import java.util.Arrays;
+import java.util.PriorityQueue;
+
+import engine.graphics.GeometryArena;
+import engine.graphics.Mesh;
+
+/**
+ * Reduces the triangle count of a mesh by collapsing edges in the order of the quadric error metric of Garland and Heckbert.
+ * Every vertex accumulates the planes of the triangles around it into a quadric, and the edge whose collapse moves
+ * its removed vertex the least away from those planes is collapsed first. Collapses only move a vertex onto one of
+ * its neighbours, so the simplified meshes reuse the original vertices and their texture coordinates and normals.
+ * Successive calls to simplify() continue from the previous result, producing a chain of levels of detail.
+ */
+public class MeshSimplifier {
+
+    /**
+     * Weight of the planes added along open borders, so borders keep their shape
+     */
+    private static final double BORDER_WEIGHT = 1000.0;
+
+    private static final class Collapse implements Comparable<Collapse> {
+
+        private final int from;
+
+        private final int to;
+
+        private final double cost;
+
+        private final int fromVersion;
+
+        private final int toVersion;
+
+        private Collapse(int from, int to, double cost, int fromVersion, int toVersion) {
+            this.from = from;
+            this.to = to;
+            this.cost = cost;
+            this.fromVersion = fromVersion;
+            this.toVersion = toVersion;
+        }
+
+        @Override
+        public int compareTo(Collapse other) {
+            return Double.compare(cost, other.cost);
+        }
+    }
+
+    private final float[] positions;
+
+    private final int[] triangles;
+
+    private final boolean[] removedTriangles;
+
+    private int triangleCount;
+
+    /**
+     * Ten coefficients of the symmetric 4x4 quadric of every vertex
+     */
+    private final double[] quadrics;
+
+    /**
+     * The triangles around every vertex, removed triangles are dropped lazily
+     */
+    private final int[][] vertexTriangles;
+
+    private final int[] vertexTriangleCounts;
+
+    private final boolean[] removedVertices;
+
+    /**
+     * Incremented whenever the neighbourhood of a vertex changes, to recognize outdated collapses in the queue
+     */
+    private final int[] versions;
+
+    private final PriorityQueue<Collapse> queue;
+
+    /**
+     * Scratch space to collect the neighbours of a vertex once each
+     */
+    private final int[] neighbours;
+
+    private final int[] visited;
+
+    private int visitStamp;
+
+    /**
+     * Builds the quadrics and the queue of collapses of a mesh
+     * @param positions float[] The flattened vertex positions
+     * @param indices int[] The triangle indices
+     */
+    public MeshSimplifier(float[] positions, int[] indices) {
+        this.positions = positions;
+        this.triangles = indices.clone();
+        int vertexCount = positions.length / 3;
+        triangleCount = indices.length / 3;
+        removedTriangles = new boolean[triangleCount];
+        quadrics = new double[vertexCount * 10];
+        vertexTriangles = new int[vertexCount][];
+        vertexTriangleCounts = new int[vertexCount];
+        removedVertices = new boolean[vertexCount];
+        versions = new int[vertexCount];
+        queue = new PriorityQueue<>();
+        neighbours = new int[vertexCount];
+        visited = new int[vertexCount];
+
+        for (int v = 0; v < vertexCount; v++) {
+            vertexTriangles[v] = new int[8];
+        }
+        for (int t = 0; t < triangleCount; t++) {
+            if (isDegenerate(t)) {
+                removedTriangles[t] = true;
+                continue;
+            }
+            for (int i = 0; i < 3; i++) {
+                addVertexTriangle(triangles[t * 3 + i], t);
+            }
+            addTriangleQuadric(t);
+        }
+        triangleCount = 0;
+        for (boolean removed : removedTriangles) {
+            triangleCount += removed ? 0 : 1;
+        }
+        addBorderQuadrics();
+
+        for (int v = 0; v < vertexCount; v++) {
+            queueCollapses(v);
+        }
+    }
+
+    private boolean isDegenerate(int t) {
+        int a = triangles[t * 3], b = triangles[t * 3 + 1], c = triangles[t * 3 + 2];
+        return a == b || b == c || a == c;
+    }
+
+    private void addVertexTriangle(int v, int t) {
+        if (vertexTriangles[v].length == vertexTriangleCounts[v]) {
+            vertexTriangles[v] = Arrays.copyOf(vertexTriangles[v], vertexTriangleCounts[v] * 2);
+        }
+        vertexTriangles[v][vertexTriangleCounts[v]++] = t;
+    }
+
+    private void addTriangleQuadric(int t) {
+        int a = triangles[t * 3] * 3, b = triangles[t * 3 + 1] * 3, c = triangles[t * 3 + 2] * 3;
+        double abx = positions[b] - positions[a], aby = positions[b + 1] - positions[a + 1], abz = positions[b + 2] - positions[a + 2];
+        double acx = positions[c] - positions[a], acy = positions[c + 1] - positions[a + 1], acz = positions[c + 2] - positions[a + 2];
+        double nx = aby * acz - abz * acy;
+        double ny = abz * acx - abx * acz;
+        double nz = abx * acy - aby * acx;
+        double length = Math.sqrt(nx * nx + ny * ny + nz * nz);
+        if (length == 0) {
+            return;
+        }
+        // The plane is weighted by the area of the triangle, which is half the length of the cross product
+        double weight = length * 0.5;
+        nx /= length;
+        ny /= length;
+        nz /= length;
+        double d = -(nx * positions[a] + ny * positions[a + 1] + nz * positions[a + 2]);
+        for (int i = 0; i < 3; i++) {
+            addPlane(triangles[t * 3 + i], nx, ny, nz, d, weight);
+        }
+    }
+
+    /**
+     * Adds planes perpendicular to every edge used by only one triangle, which penalize moving vertices off the border
+     */
+    private void addBorderQuadrics() {
+        for (int t = 0; t < removedTriangles.length; t++) {
+            if (removedTriangles[t]) {
+                continue;
+            }
+            for (int i = 0; i < 3; i++) {
+                int a = triangles[t * 3 + i];
+                int b = triangles[t * 3 + (i + 1) % 3];
+                if (countEdgeTriangles(a, b) != 1) {
+                    continue;
+                }
+                int c = triangles[t * 3 + (i + 2) % 3];
+                addBorderPlane(a, b, c);
+            }
+        }
+    }
+
+    private int countEdgeTriangles(int a, int b) {
+        int count = 0;
+        for (int i = 0; i < vertexTriangleCounts[a]; i++) {
+            int t = vertexTriangles[a][i];
+            if (!removedTriangles[t] && containsVertex(t, b)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private void addBorderPlane(int a, int b, int c) {
+        int pa = a * 3, pb = b * 3, pc = c * 3;
+        double ex = positions[pb] - positions[pa], ey = positions[pb + 1] - positions[pa + 1], ez = positions[pb + 2] - positions[pa + 2];
+        double fx = positions[pc] - positions[pa], fy = positions[pc + 1] - positions[pa + 1], fz = positions[pc + 2] - positions[pa + 2];
+        // Normal of the triangle, then the direction in its plane perpendicular to the border edge
+        double tx = ey * fz - ez * fy, ty = ez * fx - ex * fz, tz = ex * fy - ey * fx;
+        double nx = ty * ez - tz * ey, ny = tz * ex - tx * ez, nz = tx * ey - ty * ex;
+        double length = Math.sqrt(nx * nx + ny * ny + nz * nz);
+        if (length == 0) {
+            return;
+        }
+        nx /= length;
+        ny /= length;
+        nz /= length;
+        double d = -(nx * positions[pa] + ny * positions[pa + 1] + nz * positions[pa + 2]);
+        double weight = BORDER_WEIGHT * (ex * ex + ey * ey + ez * ez);
+        addPlane(a, nx, ny, nz, d, weight);
+        addPlane(b, nx, ny, nz, d, weight);
+    }
+
+    private void addPlane(int v, double a, double b, double c, double d, double weight) {
+        int q = v * 10;
+        quadrics[q] += weight * a * a;
+        quadrics[q + 1] += weight * a * b;
+        quadrics[q + 2] += weight * a * c;
+        quadrics[q + 3] += weight * a * d;
+        quadrics[q + 4] += weight * b * b;
+        quadrics[q + 5] += weight * b * c;
+        quadrics[q + 6] += weight * b * d;
+        quadrics[q + 7] += weight * c * c;
+        quadrics[q + 8] += weight * c * d;
+        quadrics[q + 9] += weight * d * d;
+    }
+
+    /**
+     * Error of the combined quadric of two vertices at the position of the second one
+     */
+    private double collapseCost(int from, int to) {
+        int q0 = from * 10, q1 = to * 10;
+        double x = positions[to * 3], y = positions[to * 3 + 1], z = positions[to * 3 + 2];
+        double[] q = quadrics;
+        return (q[q0] + q[q1]) * x * x + 2 * (q[q0 + 1] + q[q1 + 1]) * x * y + 2 * (q[q0 + 2] + q[q1 + 2]) * x * z
+                + 2 * (q[q0 + 3] + q[q1 + 3]) * x + (q[q0 + 4] + q[q1 + 4]) * y * y + 2 * (q[q0 + 5] + q[q1 + 5]) * y * z
+                + 2 * (q[q0 + 6] + q[q1 + 6]) * y + (q[q0 + 7] + q[q1 + 7]) * z * z + 2 * (q[q0 + 8] + q[q1 + 8]) * z
+                + (q[q0 + 9] + q[q1 + 9]);
+    }
+
+    /**
+     * Queues the cheapest collapse of a vertex onto one of its neighbours
+     */
+    private void queueCollapses(int v) {
+        if (removedVertices[v]) {
+            return;
+        }
+        int best = -1;
+        double bestCost = Double.MAX_VALUE;
+        for (int i = 0; i < vertexTriangleCounts[v]; i++) {
+            int t = vertexTriangles[v][i];
+            if (removedTriangles[t]) {
+                continue;
+            }
+            for (int j = 0; j < 3; j++) {
+                int neighbour = triangles[t * 3 + j];
+                if (neighbour == v) {
+                    continue;
+                }
+                double cost = collapseCost(v, neighbour);
+                if (cost < bestCost) {
+                    bestCost = cost;
+                    best = neighbour;
+                }
+            }
+        }
+        if (best >= 0) {
+            queue.add(new Collapse(v, best, bestCost, versions[v], versions[best]));
+        }
+    }
+
+    /**
+     * Method to collapse edges until at most a number of triangles is left
+     * @param targetTriangles int The number of triangles to reduce the mesh to
+     * @return int[] The indices of the remaining triangles, referring to the vertices of the original mesh
+     */
+    public int[] simplify(int targetTriangles) {
+        while (triangleCount > targetTriangles && !queue.isEmpty()) {
+            Collapse collapse = queue.poll();
+            if (removedVertices[collapse.from] || removedVertices[collapse.to]
+                    || versions[collapse.from] != collapse.fromVersion || versions[collapse.to] != collapse.toVersion) {
+                // Outdated, the vertex has been queued again after its neighbourhood changed
+                continue;
+            }
+            if (flipsTriangle(collapse.from, collapse.to)) {
+                // Try again once the neighbourhood has changed
+                continue;
+            }
+            collapse(collapse.from, collapse.to);
+        }
+        return getIndices();
+    }
+
+    /**
+     * Tells if moving a vertex onto another one would turn any of its remaining triangles upside down
+     */
+    private boolean flipsTriangle(int from, int to) {
+        for (int i = 0; i < vertexTriangleCounts[from]; i++) {
+            int t = vertexTriangles[from][i];
+            if (removedTriangles[t] || containsVertex(t, to)) {
+                continue;
+            }
+            double[] before = triangleNormal(t, from, from);
+            double[] after = triangleNormal(t, from, to);
+            if (before[0] * after[0] + before[1] * after[1] + before[2] * after[2] <= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private double[] triangleNormal(int t, int replaced, int replacement) {
+        int[] p = new int[3];
+        for (int i = 0; i < 3; i++) {
+            int v = triangles[t * 3 + i];
+            p[i] = (v == replaced ? replacement : v) * 3;
+        }
+        double abx = positions[p[1]] - positions[p[0]], aby = positions[p[1] + 1] - positions[p[0] + 1], abz = positions[p[1] + 2] - positions[p[0] + 2];
+        double acx = positions[p[2]] - positions[p[0]], acy = positions[p[2] + 1] - positions[p[0] + 1], acz = positions[p[2] + 2] - positions[p[0] + 2];
+        return new double[] { aby * acz - abz * acy, abz * acx - abx * acz, abx * acy - aby * acx };
+    }
+
+    private boolean containsVertex(int t, int v) {
+        return triangles[t * 3] == v || triangles[t * 3 + 1] == v || triangles[t * 3 + 2] == v;
+    }
+
+    private void collapse(int from, int to) {
+        for (int i = 0; i < vertexTriangleCounts[from]; i++) {
+            int t = vertexTriangles[from][i];
+            if (removedTriangles[t]) {
+                continue;
+            }
+            if (containsVertex(t, to)) {
+                removedTriangles[t] = true;
+                triangleCount--;
+                continue;
+            }
+            for (int j = 0; j < 3; j++) {
+                if (triangles[t * 3 + j] == from) {
+                    triangles[t * 3 + j] = to;
+                }
+            }
+            addVertexTriangle(to, t);
+        }
+        removedVertices[from] = true;
+        vertexTriangleCounts[from] = 0;
+        for (int i = 0; i < 10; i++) {
+            quadrics[to * 10 + i] += quadrics[from * 10 + i];
+        }
+
+        // The costs of the surviving vertex and all of its neighbours changed
+        compactVertexTriangles(to);
+        visitStamp++;
+        int neighbourCount = 0;
+        for (int i = 0; i < vertexTriangleCounts[to]; i++) {
+            int t = vertexTriangles[to][i];
+            for (int j = 0; j < 3; j++) {
+                int v = triangles[t * 3 + j];
+                if (v != to && visited[v] != visitStamp) {
+                    visited[v] = visitStamp;
+                    neighbours[neighbourCount++] = v;
+                }
+            }
+        }
+        versions[to]++;
+        for (int i = 0; i < neighbourCount; i++) {
+            versions[neighbours[i]]++;
+        }
+        queueCollapses(to);
+        for (int i = 0; i < neighbourCount; i++) {
+            queueCollapses(neighbours[i]);
+        }
+    }
+
+    /**
+     * Drops removed triangles from the list of a vertex
+     */
+    private void compactVertexTriangles(int v) {
+        int count = 0;
+        for (int i = 0; i < vertexTriangleCounts[v]; i++) {
+            int t = vertexTriangles[v][i];
+            if (!removedTriangles[t]) {
+                vertexTriangles[v][count++] = t;
+            }
+        }
+        vertexTriangleCounts[v] = count;
+    }
+
+    private int[] getIndices() {
+        int[] indices = new int[triangleCount * 3];
+        int i = 0;
+        for (int t = 0; t < removedTriangles.length; t++) {
+            if (!removedTriangles[t]) {
+                indices[i++] = triangles[t * 3];
+                indices[i++] = triangles[t * 3 + 1];
+                indices[i++] = triangles[t * 3 + 2];
+            }
+        }
+        return indices;
+    }
+
+    /**
+     * @return The number of triangles left
+     */
+    public int getTriangleCount() {
+        return triangleCount;
+    }
+
+    /**
+     * Method to create a mesh from simplified indices, keeping only the vertices they use
+     * @param indices int[] Indices returned by simplify()
+     * @param textCoords float[] The flattened texture coordinates of the original mesh
+     * @param normals float[] The flattened normals of the original mesh
+     * @param arena GeometryArena The arena to place the mesh into, or null to create a standalone mesh
+     * @return Mesh The simplified mesh
+     */
+    public Mesh createMesh(int[] indices, float[] textCoords, float[] normals, GeometryArena arena) {
+        int[] remap = new int[positions.length / 3];
+        Arrays.fill(remap, -1);
+        int vertexCount = 0;
+        int[] newIndices = new int[indices.length];
+        for (int i = 0; i < indices.length; i++) {
+            int v = indices[i];
+            if (remap[v] < 0) {
+                remap[v] = vertexCount++;
+            }
+            newIndices[i] = remap[v];
+        }
+        float[] newPositions = new float[vertexCount * 3];
+        float[] newTextCoords = new float[vertexCount * 2];
+        float[] newNormals = new float[vertexCount * 3];
+        for (int v = 0; v < remap.length; v++) {
+            int n = remap[v];
+            if (n < 0) {
+                continue;
+            }
+            System.arraycopy(positions, v * 3, newPositions, n * 3, 3);
+            if (textCoords.length >= (v + 1) * 2) {
+                System.arraycopy(textCoords, v * 2, newTextCoords, n * 2, 2);
+            }
+            if (normals.length >= (v + 1) * 3) {
+                System.arraycopy(normals, v * 3, newNormals, n * 3, 3);
+            }
+        }
+        return arena != null ? new Mesh(arena, newPositions, newTextCoords, newNormals, newIndices)
+                : new Mesh(newPositions, newTextCoords, newNormals, newIndices);
+    }
+}
@@ -4,10 +4,16 @@ import java.util.*;
 
 import org.joml.*;
 
+import engine.graphics.GeometryArena;
 import engine.graphics.Mesh;
 
 public class OBJLoader {
 
+	/**
+	 * Simplifying further would leave too little of the shape
+	 */
+	private static final int MIN_LOD_TRIANGLES = 32;
+
 	protected static class Face {
 
 		/**
@@ -65,6 +71,45 @@ public class OBJLoader {
 	}
 
 	public static Mesh loadMesh(String fileName) throws Exception {
+		return loadMesh(fileName, null);
+	}
+
+	/**
+	 * Loads a mesh from an *.obj file into the shared buffers of a geometry arena
+	 * @param fileName String The resource path of the *.obj file
+	 * @param arena GeometryArena The arena to place the mesh into, or null to create a standalone mesh
+	 * @return Mesh The loaded mesh
+	 * @throws Exception If the file cannot be read
+	 */
+	public static Mesh loadMesh(String fileName, GeometryArena arena) throws Exception {
+		return loadMesh(fileName, arena, 0);
+	}
+
+	/**
+	 * Loads a mesh from an *.obj file and generates simplified levels of detail for it, each with half the triangles of the one before
+	 * @param fileName String The resource path of the *.obj file
+	 * @param arena GeometryArena The arena to place the mesh and its levels into, or null to create standalone meshes
+	 * @param lodLevels int The maximum number of simplified levels. Fewer are generated for meshes too small to simplify
+	 * @return Mesh The loaded mesh
+	 * @throws Exception If the file cannot be read
+	 */
+	public static Mesh loadMesh(String fileName, GeometryArena arena, int lodLevels) throws Exception {
+		// Reorder for the vertex cache before simplifying, the levels keep the order of the vertices
+		MeshData data = MeshOptimizer.optimize(loadMeshData(fileName));
+		Mesh mesh = data.createMesh(arena);
+		if (lodLevels > 0) {
+			mesh.setLods(createLods(data, arena, lodLevels));
+		}
+		return mesh;
+	}
+
+	/**
+	 * Reads the vertices and faces of an *.obj file without creating a mesh
+	 * @param fileName String The resource path of the *.obj file
+	 * @return MeshData The vertex attributes and indices in the order of the file
+	 * @throws Exception If the file cannot be read
+	 */
+	public static MeshData loadMeshData(String fileName) throws Exception {
 		List<String> lines = Utils.readAllLines(fileName);
 
 		List<Vector3f> vertices = new ArrayList<>();
@@ -104,7 +149,7 @@ public class OBJLoader {
 		return reorderLists(vertices, textures, normals, faces);
 	}
 
-	private static Mesh reorderLists(List<Vector3f> posList, List<Vector2f> textCoordList, List<Vector3f> normList,
+	private static MeshData reorderLists(List<Vector3f> posList, List<Vector2f> textCoordList, List<Vector3f> normList,
 			List<Face> facesList) {
 
 		List<Integer> indices = new ArrayList<Integer>();
@@ -131,8 +176,24 @@ public class OBJLoader {
 
 		int[] indicesArr = new int[indices.size()];
 		indicesArr = indices.stream().mapToInt((Integer v) -> v).toArray();
-		Mesh mesh = new Mesh(posArr, textCoordArr, normArr, indicesArr);
-		return mesh;
+		return new MeshData(posArr, textCoordArr, normArr, indicesArr);
+	}
+
+	private static Mesh[] createLods(MeshData data, GeometryArena arena, int lodLevels) {
+		MeshSimplifier simplifier = new MeshSimplifier(data.getPositions(), data.getIndices());
+		List<Mesh> lods = new ArrayList<>();
+		int triangles = simplifier.getTriangleCount();
+		for (int level = 0; level < lodLevels && triangles / 2 >= MIN_LOD_TRIANGLES; level++) {
+			int[] lodIndices = simplifier.simplify(triangles / 2);
+			// Stop once the collapses left would tear the mesh apart
+			if (lodIndices.length / 3 > triangles * 3 / 4) {
+				break;
+			}
+			triangles = lodIndices.length / 3;
+			lodIndices = MeshOptimizer.optimizeIndices(lodIndices, data.getPositions());
+			lods.add(simplifier.createMesh(lodIndices, data.getTextCoords(), data.getNormals(), arena));
+		}
+		return lods.toArray(new Mesh[lods.size()]);
 	}
 
 	private static void processFaceVertex(IdxGroup indexGroup, List<Vector2f> textCoordList, List<Vector3f> normList,
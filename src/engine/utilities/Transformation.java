@@ -63,6 +63,15 @@ public class Transformation {
         return orthoMatrix;
     }
     
+    public Matrix4f buildModelMatrix(Entity entity) {
+        Vector3f rotation = entity.getRotation();
+        return modelMatrix.identity().translate(entity.getPosition()).
+                rotateX((float)Math.toRadians(-rotation.x)).
+                rotateY((float)Math.toRadians(-rotation.y)).
+                rotateZ((float)Math.toRadians(-rotation.z)).
+                scale(entity.getScale());
+    }
+
     public Matrix4f buildModelViewMatrix(Entity entity, Matrix4f viewMatrix) {
         Vector3f rotation = entity.getRotation();
         modelMatrix.identity().translate(entity.getPosition()).
@@ -74,6 +83,23 @@ public class Transformation {
         return modelViewMatrix.mul(modelMatrix);
     }
 
+    /**
+     * Method to build the model view matrix of an entity into a matrix of the caller. No state of the transformation
+     * is used, so several threads can build matrices at once
+     * @param entity Entity The entity to place
+     * @param viewMatrix Matrix4f The view matrix
+     * @param dest Matrix4f Receives the model view matrix
+     * @return Matrix4f dest
+     */
+    public Matrix4f buildModelViewMatrix(Entity entity, Matrix4f viewMatrix, Matrix4f dest) {
+        Vector3f rotation = entity.getRotation();
+        return dest.set(viewMatrix).translate(entity.getPosition()).
+                rotateX((float)Math.toRadians(-rotation.x)).
+                rotateY((float)Math.toRadians(-rotation.y)).
+                rotateZ((float)Math.toRadians(-rotation.z)).
+                scale(entity.getScale());
+    }
+
     public Matrix4f buildOrthoProjModelMatrix(Entity entity, Matrix4f orthoMatrix) {
         Vector3f rotation = entity.getRotation();
         modelMatrix.identity().translate(entity.getPosition()).
@@ -4,14 +4,23 @@ import org.joml.Vector2f;
 import org.joml.Vector3f;
 
 import engine.*;
+import engine.ecs.Components;
+import engine.ecs.MovementSystem;
+import engine.ecs.World;
 import engine.entities.Entity;
 import engine.entities.SkyBox;
 import engine.graphics.*;
 import engine.graphics.lights.*;
 import engine.input.MouseInput;
+import engine.physics.Broadphase;
+import engine.physics.CameraCollider;
+import engine.physics.Picker;
+import engine.physics.RayHit;
 import engine.utilities.*;
 
 import static org.lwjgl.glfw.GLFW.*;
+
+import java.nio.file.Paths;
 import java.util.*;
 
 public class DummyGame implements IGameLogic {
@@ -19,6 +28,8 @@ public class DummyGame implements IGameLogic {
     private static final float MOUSE_SENSITIVITY = 0.2f;
     
     private static final float CAMERA_POS_STEP = 0.05f;
+    
+    private static final float CAMERA_RADIUS = 0.25f;
 
     private final Vector3f cameraInc;
 
@@ -28,8 +39,22 @@ public class DummyGame implements IGameLogic {
 
     private Scene scene;
     
+    private GeometryArena arena;
+    
+    private TexturePool texturePool;
+    
+    private TextureCache textureCache;
+    
     private Hud hud; 
     
+    private Broadphase broadphase;
+    
+    private CameraCollider cameraCollider;
+    
+    private Picker picker;
+    
+    private RayHit pickHit;
+    
     private float lightAngle;
     
     public DummyGame() {
@@ -42,26 +67,39 @@ public class DummyGame implements IGameLogic {
 
     @Override
     public void init(Window window) throws Exception {
-    	 renderer.init(window);
+    	 // Run with -Dpipeline=DEFERRED to compare against the forward renderer
+    	 renderer.init(window, Renderer.Pipeline.valueOf(System.getProperty("pipeline", "FORWARD")));
+    	 renderer.setDepthPrePass(Boolean.getBoolean("depthPrePass"));
+    	 renderer.setOcclusionCulling(Boolean.getBoolean("occlusionCulling"));
 
          scene = new Scene();
          
+         // Shared buffers for the block field, so it is drawn with a handful of calls
+         arena = new GeometryArena(1 << 16, 1 << 18);
+         texturePool = new TexturePool(16, 1024);
+         textureCache = new TextureCache(Paths.get("cache", "textures"), true);
+         
          // Setup  GameItems
          float reflectance = 0.7f;
-         Mesh mesh = OBJLoader.loadMesh("/resources/models/cube.obj");
-         Texture texture = new Texture("/resources/textures/grassblock.png");
-         Material material = new Material(texture, reflectance);
+         Mesh mesh = OBJLoader.loadMesh("/resources/models/cube.obj", arena);
+         Material material = texturePool.createArrayMaterial("/resources/textures/grassblock.png", reflectance);
          mesh.setMaterial(material);
+         // The blocks are solid cubes, so they hide everything behind their bounding box
+         mesh.setBoxOccluder();
          
-         Mesh sphereMesh = OBJLoader.loadMesh("/resources/models/sphere.obj");
+         // Simplified levels are drawn while the sphere is small on screen
+         Mesh sphereMesh = OBJLoader.loadMesh("/resources/models/sphere.obj", null, 3);
          Vector3f color = new Vector3f(0.5f, 0.0f, 0.0f);
          Material sphereMaterial = new Material(color, reflectance);
          sphereMesh.setMaterial(sphereMaterial);
-         Entity sphere = new Entity(sphereMesh);
+         // The sphere lives in the world of the scene, moved by its systems
+         scene.getSystems().add(new MovementSystem());
+         World world = scene.getWorld();
+         int sphere = world.create(Components.POSITION, Components.SCALE, Components.MESH);
          Vector3f c = camera.getPosition();
-         sphere.setPosition(c.x, c.y + 5.0f, c.z);
-         sphere.setScale(2.0f);
-         scene.addUniqueEntity(sphere);
+         world.set(sphere, Components.POSITION, c.x, c.y + 5.0f, c.z);
+         world.set(sphere, Components.SCALE, 2.0f);
+         world.setObject(sphere, Components.MESH, sphereMesh);
          
          float blockScale = 0.5f;        
          float skyBoxScale = 40.0f;
@@ -92,9 +130,22 @@ public class DummyGame implements IGameLogic {
              posz -= inc;
          }
          scene.addEntities(entities);
+         
+         // The camera bumps into the blocks instead of flying through them
+         broadphase = new Broadphase();
+         for (Entity entity : entities) {
+             broadphase.add(entity, false);
+         }
+         cameraCollider = new CameraCollider(broadphase, CAMERA_RADIUS);
+         
+         // A left click names the block under the cursor
+         picker = new Picker();
+         picker.build(scene);
+         pickHit = new RayHit();
 
          // Setup  SkyBox
-         SkyBox skyBox = new SkyBox("/resources/models/skybox.obj", "/resources/textures/skybox.png");
+         // The faces of the cube map are cut out of the atlas once and kept in the texture cache
+         SkyBox skyBox = new SkyBox("/resources/models/skybox.obj", textureCache.getAtlasCubeMap("/resources/textures/skybox.png"));
          skyBox.setScale(skyBoxScale);
          scene.setSkyBox(skyBox);
          
@@ -127,6 +178,23 @@ public class DummyGame implements IGameLogic {
         } else if (window.isKeyPressed(GLFW_KEY_X)) {
             cameraInc.y = 1;
         }
+        if (mouseInput.wasLeftButtonClicked()) {
+            if (Boolean.getBoolean("gpuPicking")) {
+                // Run with -DgpuPicking=true to read the entity back from the id pass instead of casting a ray
+                mouseInput.requestPick(scene, (Entity entity, int x, int y) -> showPicked(entity));
+            } else {
+                showPicked(picker.pick(window, mouseInput, renderer.getTransformation(), pickHit) ? pickHit.getEntity() : null);
+            }
+        }
+    }
+
+    private void showPicked(Entity entity) {
+        if (entity != null) {
+            Vector3f position = entity.getPosition();
+            hud.setStatusText(String.format("BLOCK %.1f %.1f %.1f", position.x, position.y, position.z));
+        } else {
+            hud.setStatusText("DEMO");
+        }
     }
 
     private void setupLights() {
@@ -154,7 +222,7 @@ public class DummyGame implements IGameLogic {
         }
 
         // Update camera position
-        camera.movePosition(cameraInc.x * CAMERA_POS_STEP, cameraInc.y * CAMERA_POS_STEP, cameraInc.z * CAMERA_POS_STEP);
+        cameraCollider.move(camera, cameraInc.x * CAMERA_POS_STEP, cameraInc.y * CAMERA_POS_STEP, cameraInc.z * CAMERA_POS_STEP);
 
         SceneLight sceneLight = scene.getSceneLight();
 
@@ -183,6 +251,10 @@ public class DummyGame implements IGameLogic {
         double angRad = Math.toRadians(lightAngle);
         directionalLight.getDirection().x = (float) Math.sin(angRad);
         directionalLight.getDirection().y = (float) Math.cos(angRad);
+        
+        scene.update(interval);
+        // The sphere is moved by the systems of the world, so its box is updated after every update
+        picker.update(scene);
     }
 
     @Override
@@ -198,6 +270,16 @@ public class DummyGame implements IGameLogic {
             entity.getMesh().cleanUp();
         }
         hud.cleanup();
+        scene.getSkyBox().getMesh().cleanUp();
+        scene.getSkyBox().getCubeMap().cleanup();
+        for (Mesh mesh : scene.getEntityMeshes().keySet()) {
+            mesh.cleanUp();
+        }
+        for (Mesh mesh : scene.getWorldMeshes().keySet()) {
+            mesh.cleanUp();
+        }
+        arena.cleanup();
+        texturePool.cleanup();
     }
 
 }
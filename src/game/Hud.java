@@ -27,7 +27,7 @@ public class Hud implements IHud {
     public Hud(String statusText) throws Exception {
     	entities = new ArrayList<Entity>();
         this.statusTextEntity = new TextEntity(statusText, new FontTexture(FONT, CHARSET));
-        this.statusTextEntity.getMesh().getMaterial().setColor(new Vector3f(1, 1, 1));
+        this.statusTextEntity.setColor(new Vector3f(1, 1, 1));
         entities.add(statusTextEntity);
         
         // Create compass
@@ -57,6 +57,13 @@ public class Hud implements IHud {
         return entities;
     }
 
+    @Override
+    public void cleanup() {
+        IHud.super.cleanup();
+        // The text has no mesh owning the atlas of its font
+        statusTextEntity.getFontTexture().cleanup();
+    }
+
     public void updateSize(Window window) {
         this.statusTextEntity.setPosition(10f, window.getHeight() - 50f, 0);
         this.compassEntity.setPosition(window.getWidth() - 40f, 50f, 0);
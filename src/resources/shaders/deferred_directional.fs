@@ -0,0 +1,87 @@
+#version 330
+
+// Number of shadow cascades, has to match ShadowCascades
+const int CASCADE_COUNT = 3;
+
+out vec4 fragColor;
+
+struct DirectionalLight
+{
+	vec3 color;
+	vec3 direction;
+	float intensity;
+};
+
+uniform sampler2D albedo_sampler;
+uniform sampler2D normal_sampler;
+uniform sampler2D depth_sampler;
+uniform mat4 invProjectionMatrix;
+uniform vec2 screenSize;
+uniform float specularPower;
+uniform vec3 ambientLight;
+uniform DirectionalLight directionalLight;
+uniform sampler2DArrayShadow shadowMap;
+// Camera view space to shadow map coordinates, and the far view distance of every cascade
+uniform mat4 shadowMatrices[CASCADE_COUNT];
+uniform float cascadeSplits[CASCADE_COUNT];
+
+vec3 viewPosition(float depth)
+{
+    vec4 ndc = vec4(gl_FragCoord.xy / screenSize, depth, 1.0) * 2.0 - 1.0;
+    vec4 position = invProjectionMatrix * ndc;
+    return position.xyz / position.w;
+}
+
+float calcShadow(vec3 position)
+{
+    int cascade = 0;
+    while ( cascade < CASCADE_COUNT && -position.z > cascadeSplits[cascade] )
+    {
+        cascade++;
+    }
+    if ( cascade == CASCADE_COUNT )
+    {
+        // Past the shadow distance
+        return 1.0;
+    }
+    vec4 coord = shadowMatrices[cascade] * vec4(position, 1.0);
+    vec2 texelSize = 1.0 / vec2(textureSize(shadowMap, 0).xy);
+    // 3x3 percentage closer filter, every lookup compares and blends 2x2 texels on its own
+    float lit = 0.0;
+    for (int y=-1; y<=1; y++)
+    {
+        for (int x=-1; x<=1; x++)
+        {
+            lit += texture(shadowMap, vec4(coord.xy + vec2(x, y) * texelSize, cascade, coord.z));
+        }
+    }
+    return lit / 9.0;
+}
+
+void main()
+{
+    ivec2 pixel = ivec2(gl_FragCoord.xy);
+    float depth = texelFetch(depth_sampler, pixel, 0).r;
+    if ( depth == 1.0 )
+    {
+        // Nothing was drawn here, keep the cleared colour and depth
+        discard;
+    }
+    vec4 albedo = texelFetch(albedo_sampler, pixel, 0);
+    vec4 normalReflectance = texelFetch(normal_sampler, pixel, 0);
+    vec3 normal = normalize(normalReflectance.xyz);
+    vec3 position = viewPosition(depth);
+
+    vec3 to_light_dir = normalize(directionalLight.direction);
+    float diffuseFactor = max(dot(normal, to_light_dir), 0.0);
+    vec3 diffuseColor = directionalLight.color * directionalLight.intensity * diffuseFactor;
+
+    // The camera sits at the origin of view space
+    vec3 camera_direction = normalize(-position);
+    vec3 reflected_light = normalize(reflect(-to_light_dir, normal));
+    float specularFactor = pow(max(dot(camera_direction, reflected_light), 0.0), specularPower);
+    vec3 specColor = directionalLight.intensity * specularFactor * normalReflectance.w * directionalLight.color;
+
+    fragColor = vec4(albedo.rgb * (ambientLight + (diffuseColor + specColor) * calcShadow(position)), albedo.a);
+    gl_FragDepth = depth;
+}
\ No newline at end of file
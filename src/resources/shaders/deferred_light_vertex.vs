@@ -0,0 +1,26 @@
+#version 330
+
+layout (location=0) in vec3 position;
+// Per light, in view space: (position, range), (color, intensity), (constant, linear, exponent, cutOff), (cone direction, spot)
+layout (location=1) in vec4 lightPositionRange;
+layout (location=2) in vec4 lightColorIntensity;
+layout (location=3) in vec4 lightAttenuationCutOff;
+layout (location=4) in vec4 lightConeDirection;
+
+flat out vec4 outPositionRange;
+flat out vec4 outColorIntensity;
+flat out vec4 outAttenuationCutOff;
+flat out vec4 outConeDirection;
+
+uniform mat4 projectionMatrix;
+
+void main()
+{
+    // The unit sphere volume is scaled to the range of the light
+    vec3 mvPos = lightPositionRange.xyz + position * lightPositionRange.w;
+    gl_Position = projectionMatrix * vec4(mvPos, 1.0);
+    outPositionRange = lightPositionRange;
+    outColorIntensity = lightColorIntensity;
+    outAttenuationCutOff = lightAttenuationCutOff;
+    outConeDirection = lightConeDirection;
+}
\ No newline at end of file
@@ -0,0 +1,32 @@
+#version 330
+
+in vec2 outTexCoord;
+in vec3 mvVertexNormal;
+in vec3 mvVertexPos;
+
+layout (location=0) out vec4 albedoOut;
+layout (location=1) out vec4 normalOut;
+
+uniform sampler2D texture_sampler;
+
+struct Material
+{
+    // Only read by the untextured permutation
+    vec3 color;
+    float reflectance;
+    // Region of the texture used, xy is the offset and zw the scale of the texture coordinates. Only read when TEXTURED
+    vec4 uvRect;
+};
+
+uniform Material material;
+
+void main()
+{
+    // TEXTURED is defined by the renderer for textured materials, the other permutation uses the material color
+#ifdef TEXTURED
+    albedoOut = texture(texture_sampler, material.uvRect.xy + outTexCoord * material.uvRect.zw);
+#else
+    albedoOut = vec4(material.color, 1);
+#endif
+    normalOut = vec4(normalize(mvVertexNormal), material.reflectance);
+}
\ No newline at end of file
@@ -1,21 +1,28 @@
 #version 330
 
 in vec2 outTexCoord;
-in vec3 mvPos;
+in vec4 outColor;
+flat in int outMode;
 out vec4 fragColor;
 
 uniform sampler2D texture_sampler;
-uniform vec3 color;
-uniform int hasTexture;
 
 void main()
 {
-    if ( hasTexture == 1 )
+    if ( outMode == 2 )
     {
-        fragColor = vec4(color, 1) * texture(texture_sampler, outTexCoord);
+        // Signed distance field, the outline is at 0.5. Antialias over one screen pixel at any scale
+        float distance = texture(texture_sampler, outTexCoord).r;
+        float width = fwidth(distance) * 0.5;
+        float alpha = smoothstep(0.5 - width, 0.5 + width, distance);
+        fragColor = vec4(outColor.rgb, outColor.a * alpha);
+    }
+    else if ( outMode == 1 )
+    {
+        fragColor = outColor * texture(texture_sampler, outTexCoord);
     }
     else
     {
-        fragColor = vec4(color, 1);
+        fragColor = outColor;
     }
 }
\ No newline at end of file
@@ -1,13 +1,12 @@
 #version 330
 
-in vec2 outTexCoord;
-in vec3 mvPos;
+in vec3 outDirection;
 out vec4 fragColor;
 
-uniform sampler2D texture_sampler;
+uniform samplerCube texture_sampler;
 uniform vec3 ambientLight;
 
 void main()
 {
-    fragColor = vec4(ambientLight, 1) * texture(texture_sampler, outTexCoord);
+    fragColor = vec4(ambientLight, 1) * texture(texture_sampler, outDirection);
 }
\ No newline at end of file
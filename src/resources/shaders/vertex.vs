@@ -11,6 +11,9 @@ out vec3 mvVertexPos;
 uniform mat4 projectionMatrix;
 uniform mat4 modelViewMatrix;
 
+// The depth pre-pass shaders have to produce the same positions
+invariant gl_Position;
+
 void main()
 {
     vec4 mvPos = modelViewMatrix * vec4(position, 1.0);